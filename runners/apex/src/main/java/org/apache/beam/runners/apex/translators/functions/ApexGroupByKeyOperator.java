@@ -10,6 +10,8 @@ import java.util.Map;
 import java.util.Set;
 
 import org.apache.beam.runners.apex.ApexPipelineOptions;
+import org.apache.beam.runners.apex.translators.utils.ApexKeyedStateStore;
+import org.apache.beam.runners.apex.translators.utils.ApexStateInternals;
 import org.apache.beam.runners.apex.translators.utils.ApexStreamTuple;
 import org.apache.beam.runners.apex.translators.utils.SerializablePipelineOptions;
 import org.apache.beam.runners.core.GroupAlsoByWindowViaWindowSetDoFn;
@@ -29,7 +31,6 @@ import org.apache.beam.sdk.util.TimerInternals;
 import org.apache.beam.sdk.util.WindowedValue;
 import org.apache.beam.sdk.util.WindowingInternals;
 import org.apache.beam.sdk.util.WindowingStrategy;
-import org.apache.beam.sdk.util.state.InMemoryStateInternals;
 import org.apache.beam.sdk.util.state.StateInternals;
 import org.apache.beam.sdk.values.KV;
 import org.apache.beam.sdk.values.PCollection;
@@ -63,12 +64,17 @@ public class ApexGroupByKeyOperator<K, V> implements Operator
   @Bind(JavaSerializer.class)
   private WindowingStrategy<V, BoundedWindow> windowingStrategy;
   @Bind(JavaSerializer.class)
+  private Coder<K> keyCoder;
+  @Bind(JavaSerializer.class)
   private Coder<V> valueCoder;
 
   @Bind(JavaSerializer.class)
   private final SerializablePipelineOptions serializedOptions;
-  @Bind(JavaSerializer.class)
-  private Map<K, StateInternals<K>> perKeyStateInternals = new HashMap<>();
+  /**
+   * The state of all keys, coder-encoded, so that checkpoints neither Java-serialize keys nor
+   * state, and state of closed windows is removed when it is cleared.
+   */
+  private ApexKeyedStateStore stateStore = new ApexKeyedStateStore();
   private Map<K, Set<TimerInternals.TimerData>> activeTimers = new HashMap<>();
 
   private transient ProcessContext context;
@@ -105,6 +111,7 @@ public class ApexGroupByKeyOperator<K, V> implements Operator
     Preconditions.checkNotNull(pipelineOptions);
     this.serializedOptions = new SerializablePipelineOptions(pipelineOptions);
     this.windowingStrategy = (WindowingStrategy<V, BoundedWindow>)input.getWindowingStrategy();
+    this.keyCoder = ((KvCoder<K, V>)input.getCoder()).getKeyCoder();
     this.valueCoder = ((KvCoder<K, V>)input.getCoder()).getValueCoder();
   }
 
@@ -181,19 +188,19 @@ public class ApexGroupByKeyOperator<K, V> implements Operator
             kv.getKey(),
             Collections.singletonList(updatedWindowedValue));
 
-    context.setElement(kwi, getStateInternalsForKey(kwi.key()));
-    fn.processElement(context);
+    processKeyedWorkItem(kwi);
   }
 
-  private StateInternals<K> getStateInternalsForKey(K key) {
-    StateInternals<K> stateInternals = perKeyStateInternals.get(key);
-    if (stateInternals == null) {
-      //Coder<? extends BoundedWindow> windowCoder = this.windowingStrategy.getWindowFn().windowCoder();
-      //OutputTimeFn<? super BoundedWindow> outputTimeFn = this.windowingStrategy.getOutputTimeFn();
-      stateInternals = InMemoryStateInternals.forKey(key);
-      perKeyStateInternals.put(key, stateInternals);
-    }
-    return stateInternals;
+  /**
+   * Processes the work item with the state of its key, and writes the state modified while
+   * processing the work item back to the state store.
+   */
+  private void processKeyedWorkItem(KeyedWorkItem<K, V> kwi) throws Exception {
+    ApexStateInternals<K> stateInternals =
+        new ApexStateInternals<>(kwi.key(), keyCoder, stateStore);
+    context.setElement(kwi, stateInternals);
+    fn.processElement(context);
+    stateInternals.commit();
   }
 
   private void registerActiveTimer(K key, TimerInternals.TimerData timer) {
@@ -223,8 +230,7 @@ public class ApexGroupByKeyOperator<K, V> implements Operator
     if (!timers.isEmpty()) {
       for (K key : timers.keySet()) {
         KeyedWorkItem<K, V> kwi = KeyedWorkItems.<K, V>timersWorkItem(key, timers.get(key));
-        context.setElement(kwi, getStateInternalsForKey(kwi.key()));
-        fn.processElement(context);
+        processKeyedWorkItem(kwi);
       }
     }
   }
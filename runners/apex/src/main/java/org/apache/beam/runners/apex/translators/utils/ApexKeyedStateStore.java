@@ -0,0 +1,155 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.beam.runners.apex.translators.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The state of all keys of an operator, kept as coder-encoded bytes.
+ *
+ * <p>Each key and each state cell of a key are identified by their encoded form, and each cell
+ * holds the encoded contents of the cell as one or more chunks. Contents can be appended to a cell
+ * as a new chunk, so that appending does not copy the existing contents. The store only consists
+ * of strings and byte arrays, so it is checkpointed by Kryo without Java serialization of keys or
+ * state, and the checkpoint is proportional to the encoded size of the state. Cells that are
+ * cleared are removed, and so are keys without cells, so that state of closed windows does not
+ * outlive the windows.
+ *
+ * <p>State is read and written through {@link ApexStateInternals}.
+ */
+public class ApexKeyedStateStore {
+
+  private final Map<EncodedKey, Map<String, List<byte[]>>> cells = new HashMap<>();
+
+  /**
+   * Returns the contents of the cell of the provided key, or {@code null} if the cell is empty.
+   * The chunks of a cell that contents were appended to are concatenated.
+   */
+  public byte[] get(byte[] key, String cellId) {
+    List<byte[]> chunks = getChunks(key, cellId);
+    if (chunks.isEmpty()) {
+      return null;
+    } else if (chunks.size() == 1) {
+      return chunks.get(0);
+    }
+    ByteArrayOutputStream contents = new ByteArrayOutputStream();
+    for (byte[] chunk : chunks) {
+      contents.write(chunk, 0, chunk.length);
+    }
+    return contents.toByteArray();
+  }
+
+  /**
+   * Returns the chunks of the contents of the cell of the provided key, in the order they were
+   * written. Returns an empty list if the cell is empty.
+   */
+  public List<byte[]> getChunks(byte[] key, String cellId) {
+    Map<String, List<byte[]>> cellsForKey = cells.get(new EncodedKey(key));
+    List<byte[]> chunks = cellsForKey == null ? null : cellsForKey.get(cellId);
+    return chunks == null
+        ? Collections.<byte[]>emptyList()
+        : Collections.unmodifiableList(chunks);
+  }
+
+  /**
+   * Sets the contents of the cell of the provided key. {@code null} contents remove the cell.
+   */
+  public void put(byte[] key, String cellId, byte[] contents) {
+    if (contents == null) {
+      remove(key, cellId);
+    } else {
+      List<byte[]> chunks = new ArrayList<>(1);
+      chunks.add(contents);
+      cellsForKey(key).put(cellId, chunks);
+    }
+  }
+
+  /**
+   * Appends the provided contents to the cell of the provided key as a new chunk, without copying
+   * the existing contents of the cell.
+   */
+  public void append(byte[] key, String cellId, byte[] contents) {
+    Map<String, List<byte[]>> cellsForKey = cellsForKey(key);
+    List<byte[]> chunks = cellsForKey.get(cellId);
+    if (chunks == null) {
+      chunks = new ArrayList<>();
+      cellsForKey.put(cellId, chunks);
+    }
+    chunks.add(contents);
+  }
+
+  private Map<String, List<byte[]>> cellsForKey(byte[] key) {
+    EncodedKey encodedKey = new EncodedKey(key);
+    Map<String, List<byte[]>> cellsForKey = cells.get(encodedKey);
+    if (cellsForKey == null) {
+      cellsForKey = new HashMap<>();
+      cells.put(encodedKey, cellsForKey);
+    }
+    return cellsForKey;
+  }
+
+  private void remove(byte[] key, String cellId) {
+    EncodedKey encodedKey = new EncodedKey(key);
+    Map<String, List<byte[]>> cellsForKey = cells.get(encodedKey);
+    if (cellsForKey != null) {
+      cellsForKey.remove(cellId);
+      if (cellsForKey.isEmpty()) {
+        cells.remove(encodedKey);
+      }
+    }
+  }
+
+  /**
+   * Returns the number of keys with at least one cell.
+   */
+  public int getNumKeys() {
+    return cells.size();
+  }
+
+  /**
+   * An encoded key, with equality based on the encoded bytes.
+   */
+  private static class EncodedKey {
+    private final byte[] bytes;
+
+    private EncodedKey(byte[] bytes) {
+      this.bytes = bytes;
+    }
+
+    @SuppressWarnings("unused") // for Kryo
+    private EncodedKey() {
+      this.bytes = null;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      return other instanceof EncodedKey && Arrays.equals(bytes, ((EncodedKey) other).bytes);
+    }
+
+    @Override
+    public int hashCode() {
+      return Arrays.hashCode(bytes);
+    }
+  }
+}
@@ -0,0 +1,571 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.beam.runners.apex.translators.utils;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import org.apache.beam.sdk.coders.Coder;
+import org.apache.beam.sdk.coders.CoderException;
+import org.apache.beam.sdk.coders.InstantCoder;
+import org.apache.beam.sdk.options.PipelineOptions;
+import org.apache.beam.sdk.transforms.Combine;
+import org.apache.beam.sdk.transforms.CombineWithContext;
+import org.apache.beam.sdk.transforms.windowing.BoundedWindow;
+import org.apache.beam.sdk.transforms.windowing.OutputTimeFn;
+import org.apache.beam.sdk.util.CombineFnUtil;
+import org.apache.beam.sdk.util.CoderUtils;
+import org.apache.beam.sdk.util.state.AccumulatorCombiningState;
+import org.apache.beam.sdk.util.state.BagState;
+import org.apache.beam.sdk.util.state.ReadableState;
+import org.apache.beam.sdk.util.state.State;
+import org.apache.beam.sdk.util.state.StateContext;
+import org.apache.beam.sdk.util.state.StateInternals;
+import org.apache.beam.sdk.util.state.StateNamespace;
+import org.apache.beam.sdk.util.state.StateTable;
+import org.apache.beam.sdk.util.state.StateTag;
+import org.apache.beam.sdk.util.state.ValueState;
+import org.apache.beam.sdk.util.state.WatermarkHoldState;
+import org.apache.beam.sdk.values.PCollectionView;
+
+import com.google.common.collect.Iterables;
+
+import org.joda.time.Instant;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An implementation of the Beam {@link StateInternals} for a single key that keeps state
+ * coder-encoded in an {@link ApexKeyedStateStore}.
+ *
+ * <p>An {@link ApexStateInternals} is meant to be used to process a single work item. A state
+ * cell is decoded from the store the first time it is accessed, and modifications are kept in
+ * memory until {@link #commit()} is called, at which point only the modified cells are encoded
+ * and written to the store. Appending to a bag never decodes the existing contents of the bag.
+ */
+public class ApexStateInternals<K> implements StateInternals<K> {
+
+  private final K key;
+  private final byte[] encodedKey;
+  private final ApexKeyedStateStore store;
+
+  public ApexStateInternals(K key, Coder<K> keyCoder, ApexKeyedStateStore store) {
+    this.key = key;
+    this.store = checkNotNull(store);
+    try {
+      this.encodedKey = CoderUtils.encodeToByteArray(keyCoder, key);
+    } catch (CoderException e) {
+      throw new RuntimeException("Unable to encode key " + key, e);
+    }
+  }
+
+  /**
+   * The interface state cells implement so that their modifications can be written to the
+   * store by {@link #commit()}.
+   */
+  private interface Committable {
+
+    boolean isDirty();
+
+    void commit();
+  }
+
+  private final StateTable<K> stateTable = new StateTable<K>() {
+    @Override
+    protected StateTag.StateBinder<K> binderForNamespace(
+        final StateNamespace namespace, final StateContext<?> c) {
+      return new StateTag.StateBinder<K>() {
+
+        @Override
+        public <T> ValueState<T> bindValue(
+            StateTag<? super K, ValueState<T>> address, Coder<T> coder) {
+          return new ApexValue<>(cellId(namespace, address), coder);
+        }
+
+        @Override
+        public <T> BagState<T> bindBag(
+            StateTag<? super K, BagState<T>> address, Coder<T> elemCoder) {
+          return new ApexBag<>(cellId(namespace, address), elemCoder);
+        }
+
+        @Override
+        public <InputT, AccumT, OutputT> AccumulatorCombiningState<InputT, AccumT, OutputT>
+            bindCombiningValue(
+                StateTag<? super K, AccumulatorCombiningState<InputT, AccumT, OutputT>> address,
+                Coder<AccumT> accumCoder, Combine.CombineFn<InputT, AccumT, OutputT> combineFn) {
+          return new ApexCombiningValue<>(cellId(namespace, address),
+              CombineFnUtil.toFnWithContext(combineFn.<K>asKeyedFn()), accumCoder, c);
+        }
+
+        @Override
+        public <InputT, AccumT, OutputT> AccumulatorCombiningState<InputT, AccumT, OutputT>
+            bindKeyedCombiningValue(
+                StateTag<? super K, AccumulatorCombiningState<InputT, AccumT, OutputT>> address,
+                Coder<AccumT> accumCoder,
+                Combine.KeyedCombineFn<? super K, InputT, AccumT, OutputT> combineFn) {
+          return new ApexCombiningValue<>(cellId(namespace, address),
+              CombineFnUtil.toFnWithContext(combineFn), accumCoder, c);
+        }
+
+        @Override
+        public <InputT, AccumT, OutputT> AccumulatorCombiningState<InputT, AccumT, OutputT>
+            bindKeyedCombiningValueWithContext(
+                StateTag<? super K, AccumulatorCombiningState<InputT, AccumT, OutputT>> address,
+                Coder<AccumT> accumCoder,
+                CombineWithContext.KeyedCombineFnWithContext<? super K, InputT, AccumT, OutputT>
+                    combineFn) {
+          return new ApexCombiningValue<>(cellId(namespace, address), combineFn, accumCoder, c);
+        }
+
+        @Override
+        public <W extends BoundedWindow> WatermarkHoldState<W> bindWatermark(
+            StateTag<? super K, WatermarkHoldState<W>> address,
+            OutputTimeFn<? super W> outputTimeFn) {
+          return new ApexWatermarkHold<>(cellId(namespace, address), outputTimeFn);
+        }
+      };
+    }
+  };
+
+  @Override
+  public K getKey() {
+    return key;
+  }
+
+  @Override
+  public <StateT extends State> StateT state(
+      StateNamespace namespace, StateTag<? super K, StateT> address) {
+    return stateTable.get(namespace, address, null);
+  }
+
+  @Override
+  public <T extends State> T state(
+      StateNamespace namespace, StateTag<? super K, T> address, StateContext<?> c) {
+    return stateTable.get(namespace, address, c);
+  }
+
+  /**
+   * Encodes the state cells modified since they were read and writes them to the store.
+   */
+  public void commit() {
+    for (State state : stateTable.values()) {
+      if (!(state instanceof Committable)) {
+        throw new IllegalStateException(String.format(
+            "%s wasn't created by %s -- unable to commit it",
+            state.getClass().getSimpleName(),
+            getClass().getSimpleName()));
+      }
+      Committable committable = (Committable) state;
+      if (committable.isDirty()) {
+        committable.commit();
+      }
+    }
+  }
+
+  private static String cellId(StateNamespace namespace, StateTag<?, ?> address) {
+    StringBuilder sb = new StringBuilder(namespace.stringKey()).append('+');
+    try {
+      address.appendTo(sb);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    return sb.toString();
+  }
+
+  private <T> T readCell(String cellId, Coder<T> coder) {
+    byte[] contents = store.get(encodedKey, cellId);
+    if (contents == null) {
+      return null;
+    }
+    try {
+      return CoderUtils.decodeFromByteArray(coder, contents);
+    } catch (CoderException e) {
+      throw new RuntimeException("Unable to decode state " + cellId, e);
+    }
+  }
+
+  private <T> void writeCell(String cellId, Coder<T> coder, T value) {
+    try {
+      store.put(encodedKey, cellId,
+          value == null ? null : CoderUtils.encodeToByteArray(coder, value));
+    } catch (CoderException e) {
+      throw new RuntimeException("Unable to encode state " + cellId, e);
+    }
+  }
+
+  private final class ApexValue<T> implements ValueState<T>, Committable {
+
+    private final String cellId;
+    private final Coder<T> coder;
+
+    private boolean isRead = false;
+    private boolean isDirty = false;
+    private T value = null;
+
+    private ApexValue(String cellId, Coder<T> coder) {
+      this.cellId = cellId;
+      this.coder = coder;
+    }
+
+    @Override
+    public void clear() {
+      write(null);
+    }
+
+    @Override
+    public void write(T input) {
+      value = input;
+      isRead = true;
+      isDirty = true;
+    }
+
+    @Override
+    public T read() {
+      if (!isRead) {
+        value = readCell(cellId, coder);
+        isRead = true;
+      }
+      return value;
+    }
+
+    @Override
+    public ValueState<T> readLater() {
+      // Ignore
+      return this;
+    }
+
+    @Override
+    public boolean isDirty() {
+      return isDirty;
+    }
+
+    @Override
+    public void commit() {
+      writeCell(cellId, coder, value);
+      isDirty = false;
+    }
+  }
+
+  private final class ApexWatermarkHold<W extends BoundedWindow>
+      implements WatermarkHoldState<W>, Committable {
+
+    private final String cellId;
+    private final OutputTimeFn<? super W> outputTimeFn;
+
+    private boolean isRead = false;
+    private boolean isDirty = false;
+    private Instant hold = null;
+
+    private ApexWatermarkHold(String cellId, OutputTimeFn<? super W> outputTimeFn) {
+      this.cellId = cellId;
+      this.outputTimeFn = outputTimeFn;
+    }
+
+    @Override
+    public void clear() {
+      hold = null;
+      isRead = true;
+      isDirty = true;
+    }
+
+    @Override
+    public void add(Instant outputTime) {
+      Instant current = read();
+      hold = current == null ? outputTime : outputTimeFn.combine(current, outputTime);
+      isDirty = true;
+    }
+
+    @Override
+    public ReadableState<Boolean> isEmpty() {
+      return new ReadableState<Boolean>() {
+        @Override
+        public Boolean read() {
+          return ApexWatermarkHold.this.read() == null;
+        }
+
+        @Override
+        public ReadableState<Boolean> readLater() {
+          // Ignore
+          return this;
+        }
+      };
+    }
+
+    @Override
+    public OutputTimeFn<? super W> getOutputTimeFn() {
+      return outputTimeFn;
+    }
+
+    @Override
+    public Instant read() {
+      if (!isRead) {
+        hold = readCell(cellId, InstantCoder.of());
+        isRead = true;
+      }
+      return hold;
+    }
+
+    @Override
+    public WatermarkHoldState<W> readLater() {
+      // Ignore
+      return this;
+    }
+
+    @Override
+    public boolean isDirty() {
+      return isDirty;
+    }
+
+    @Override
+    public void commit() {
+      writeCell(cellId, InstantCoder.of(), hold);
+      isDirty = false;
+    }
+  }
+
+  private final class ApexCombiningValue<InputT, AccumT, OutputT>
+      implements AccumulatorCombiningState<InputT, AccumT, OutputT>, Committable {
+
+    private final String cellId;
+    private final Coder<AccumT> accumCoder;
+    private final CombineWithContext.KeyedCombineFnWithContext<? super K, InputT, AccumT, OutputT>
+        combineFn;
+    private final CombineWithContext.Context context;
+
+    private boolean isRead = false;
+    private boolean isDirty = false;
+    private boolean isClear = true;
+    private AccumT accum = null;
+
+    private ApexCombiningValue(
+        String cellId,
+        CombineWithContext.KeyedCombineFnWithContext<? super K, InputT, AccumT, OutputT>
+            combineFn,
+        Coder<AccumT> accumCoder,
+        final StateContext<?> stateContext) {
+      this.cellId = cellId;
+      this.combineFn = checkNotNull(combineFn);
+      this.accumCoder = checkNotNull(accumCoder);
+      this.context = new CombineWithContext.Context() {
+        @Override
+        public PipelineOptions getPipelineOptions() {
+          return stateContext.getPipelineOptions();
+        }
+
+        @Override
+        public <T> T sideInput(PCollectionView<T> view) {
+          return stateContext.sideInput(view);
+        }
+      };
+    }
+
+    private void readAccum() {
+      if (!isRead) {
+        accum = readCell(cellId, accumCoder);
+        isClear = accum == null;
+        if (isClear) {
+          accum = combineFn.createAccumulator(key, context);
+        }
+        isRead = true;
+      }
+    }
+
+    @Override
+    public void clear() {
+      accum = combineFn.createAccumulator(key, context);
+      isClear = true;
+      isRead = true;
+      isDirty = true;
+    }
+
+    @Override
+    public void add(InputT input) {
+      readAccum();
+      accum = combineFn.addInput(key, accum, input, context);
+      isClear = false;
+      isDirty = true;
+    }
+
+    @Override
+    public AccumT getAccum() {
+      readAccum();
+      return accum;
+    }
+
+    @Override
+    public ReadableState<Boolean> isEmpty() {
+      return new ReadableState<Boolean>() {
+        @Override
+        public ReadableState<Boolean> readLater() {
+          // Ignore
+          return this;
+        }
+
+        @Override
+        public Boolean read() {
+          readAccum();
+          return isClear;
+        }
+      };
+    }
+
+    @Override
+    public void addAccum(AccumT accum) {
+      readAccum();
+      this.accum = combineFn.mergeAccumulators(key, Arrays.asList(this.accum, accum), context);
+      isClear = false;
+      isDirty = true;
+    }
+
+    @Override
+    public AccumT mergeAccumulators(Iterable<AccumT> accumulators) {
+      return combineFn.mergeAccumulators(key, accumulators, context);
+    }
+
+    @Override
+    public OutputT read() {
+      readAccum();
+      return combineFn.extractOutput(key, accum, context);
+    }
+
+    @Override
+    public AccumulatorCombiningState<InputT, AccumT, OutputT> readLater() {
+      // Ignore
+      return this;
+    }
+
+    @Override
+    public boolean isDirty() {
+      return isDirty;
+    }
+
+    @Override
+    public void commit() {
+      writeCell(cellId, accumCoder, isClear ? null : accum);
+      isDirty = false;
+    }
+  }
+
+  /**
+   * A bag, stored as chunks of the nested encodings of its elements. Each commit appends the
+   * elements added since the previous commit as a new chunk, so that adding elements neither
+   * decodes nor copies the existing contents.
+   */
+  private final class ApexBag<T> implements BagState<T>, Committable {
+
+    private final String cellId;
+    private final Coder<T> elemCoder;
+
+    /** Elements added since the contents were last written to the store. */
+    private final List<T> added = new ArrayList<>();
+
+    /** Whether the contents in the store must be cleared before adding elements. */
+    private boolean isCleared = false;
+
+    private ApexBag(String cellId, Coder<T> elemCoder) {
+      this.cellId = cellId;
+      this.elemCoder = elemCoder;
+    }
+
+    @Override
+    public void clear() {
+      added.clear();
+      isCleared = true;
+    }
+
+    @Override
+    public Iterable<T> read() {
+      List<byte[]> chunks =
+          isCleared ? Collections.<byte[]>emptyList() : store.getChunks(encodedKey, cellId);
+      if (chunks.isEmpty()) {
+        return Collections.unmodifiableList(added);
+      }
+      List<T> elements = new ArrayList<>();
+      try {
+        for (byte[] chunk : chunks) {
+          ByteArrayInputStream inStream = new ByteArrayInputStream(chunk);
+          while (inStream.available() > 0) {
+            elements.add(elemCoder.decode(inStream, Coder.Context.NESTED));
+          }
+        }
+      } catch (IOException e) {
+        throw new RuntimeException("Unable to decode bag state " + cellId, e);
+      }
+      return Iterables.concat(
+          Collections.unmodifiableList(elements), Collections.unmodifiableList(added));
+    }
+
+    @Override
+    public BagState<T> readLater() {
+      // Ignore
+      return this;
+    }
+
+    @Override
+    public void add(T input) {
+      added.add(input);
+    }
+
+    @Override
+    public ReadableState<Boolean> isEmpty() {
+      return new ReadableState<Boolean>() {
+        @Override
+        public ReadableState<Boolean> readLater() {
+          // Ignore
+          return this;
+        }
+
+        @Override
+        public Boolean read() {
+          return added.isEmpty()
+              && (isCleared || store.getChunks(encodedKey, cellId).isEmpty());
+        }
+      };
+    }
+
+    @Override
+    public boolean isDirty() {
+      return isCleared || !added.isEmpty();
+    }
+
+    @Override
+    public void commit() {
+      if (isCleared) {
+        store.put(encodedKey, cellId, null);
+      }
+      if (!added.isEmpty()) {
+        ByteArrayOutputStream outStream = new ByteArrayOutputStream();
+        try {
+          for (T element : added) {
+            elemCoder.encode(element, outStream, Coder.Context.NESTED);
+          }
+        } catch (IOException e) {
+          throw new RuntimeException("Unable to encode bag state " + cellId, e);
+        }
+        store.append(encodedKey, cellId, outStream.toByteArray());
+      }
+      added.clear();
+      isCleared = false;
+    }
+  }
+}
@@ -0,0 +1,178 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.beam.runners.apex.translators.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+
+import org.apache.beam.sdk.coders.StringUtf8Coder;
+import org.apache.beam.sdk.coders.VarIntCoder;
+import org.apache.beam.sdk.transforms.Sum;
+import org.apache.beam.sdk.transforms.windowing.BoundedWindow;
+import org.apache.beam.sdk.transforms.windowing.OutputTimeFns;
+import org.apache.beam.sdk.util.CoderUtils;
+import org.apache.beam.sdk.util.state.AccumulatorCombiningState;
+import org.apache.beam.sdk.util.state.BagState;
+import org.apache.beam.sdk.util.state.StateNamespace;
+import org.apache.beam.sdk.util.state.StateNamespaceForTest;
+import org.apache.beam.sdk.util.state.StateTag;
+import org.apache.beam.sdk.util.state.StateTags;
+import org.apache.beam.sdk.util.state.ValueState;
+import org.apache.beam.sdk.util.state.WatermarkHoldState;
+
+import org.hamcrest.Matchers;
+import org.joda.time.Instant;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests for {@link ApexStateInternals}.
+ */
+@RunWith(JUnit4.class)
+public class ApexStateInternalsTest {
+  private static final StateNamespace NAMESPACE_1 = new StateNamespaceForTest("ns1");
+  private static final StateNamespace NAMESPACE_2 = new StateNamespaceForTest("ns2");
+
+  private static final StateTag<Object, ValueState<String>> STRING_VALUE_ADDR =
+      StateTags.value("stringValue", StringUtf8Coder.of());
+  private static final StateTag<Object, AccumulatorCombiningState<Integer, int[], Integer>>
+      SUM_INTEGER_ADDR = StateTags.combiningValueFromInputInternal(
+          "sumInteger", VarIntCoder.of(), new Sum.SumIntegerFn());
+  private static final StateTag<Object, BagState<String>> STRING_BAG_ADDR =
+      StateTags.bag("stringBag", StringUtf8Coder.of());
+  private static final StateTag<Object, WatermarkHoldState<BoundedWindow>>
+      WATERMARK_EARLIEST_ADDR =
+      StateTags.watermarkStateInternal("watermark", OutputTimeFns.outputAtEarliestInputTimestamp());
+
+  private final ApexKeyedStateStore store = new ApexKeyedStateStore();
+
+  private ApexStateInternals<String> forKey(String key) {
+    return new ApexStateInternals<>(key, StringUtf8Coder.of(), store);
+  }
+
+  @Test
+  public void testValueCommittedPerKeyAndNamespace() throws Exception {
+    ApexStateInternals<String> underTest = forKey("foo");
+    underTest.state(NAMESPACE_1, STRING_VALUE_ADDR).write("hello");
+    underTest.state(NAMESPACE_2, STRING_VALUE_ADDR).write("world");
+    forKey("foo").state(NAMESPACE_1, STRING_VALUE_ADDR).read();
+    assertEquals(0, store.getNumKeys());
+
+    underTest.commit();
+    assertEquals(1, store.getNumKeys());
+    assertThat(forKey("foo").state(NAMESPACE_1, STRING_VALUE_ADDR).read(),
+        Matchers.equalTo("hello"));
+    assertThat(forKey("foo").state(NAMESPACE_2, STRING_VALUE_ADDR).read(),
+        Matchers.equalTo("world"));
+    assertThat(forKey("bar").state(NAMESPACE_1, STRING_VALUE_ADDR).read(),
+        Matchers.nullValue());
+  }
+
+  @Test
+  public void testBagAppendsAcrossCommits() throws Exception {
+    ApexStateInternals<String> first = forKey("foo");
+    first.state(NAMESPACE_1, STRING_BAG_ADDR).add("hello");
+    first.commit();
+
+    ApexStateInternals<String> second = forKey("foo");
+    BagState<String> bag = second.state(NAMESPACE_1, STRING_BAG_ADDR);
+    assertThat(bag.isEmpty().read(), Matchers.is(false));
+    bag.add("world");
+    assertThat(bag.read(), Matchers.containsInAnyOrder("hello", "world"));
+    second.commit();
+
+    assertThat(forKey("foo").state(NAMESPACE_1, STRING_BAG_ADDR).read(),
+        Matchers.containsInAnyOrder("hello", "world"));
+  }
+
+  @Test
+  public void testBagCommitAppendsChunk() throws Exception {
+    for (String element : new String[] {"a", "b", "c"}) {
+      ApexStateInternals<String> underTest = forKey("foo");
+      underTest.state(NAMESPACE_1, STRING_BAG_ADDR).add(element);
+      underTest.commit();
+    }
+    byte[] encodedKey = CoderUtils.encodeToByteArray(StringUtf8Coder.of(), "foo");
+    StringBuilder cellId = new StringBuilder(NAMESPACE_1.stringKey()).append('+');
+    STRING_BAG_ADDR.appendTo(cellId);
+    // Each commit wrote only its own element
+    assertEquals(3, store.getChunks(encodedKey, cellId.toString()).size());
+    assertThat(forKey("foo").state(NAMESPACE_1, STRING_BAG_ADDR).read(),
+        Matchers.contains("a", "b", "c"));
+
+    ApexStateInternals<String> clearing = forKey("foo");
+    clearing.state(NAMESPACE_1, STRING_BAG_ADDR).clear();
+    clearing.state(NAMESPACE_1, STRING_BAG_ADDR).add("d");
+    clearing.commit();
+    assertEquals(1, store.getChunks(encodedKey, cellId.toString()).size());
+    assertThat(forKey("foo").state(NAMESPACE_1, STRING_BAG_ADDR).read(),
+        Matchers.contains("d"));
+  }
+
+  @Test
+  public void testCombiningValue() throws Exception {
+    ApexStateInternals<String> first = forKey("foo");
+    AccumulatorCombiningState<Integer, int[], Integer> value =
+        first.state(NAMESPACE_1, SUM_INTEGER_ADDR);
+    assertThat(value.isEmpty().read(), Matchers.is(true));
+    value.add(2);
+    value.add(5);
+    first.commit();
+
+    ApexStateInternals<String> second = forKey("foo");
+    value = second.state(NAMESPACE_1, SUM_INTEGER_ADDR);
+    assertThat(value.isEmpty().read(), Matchers.is(false));
+    value.addAccum(new int[]{3});
+    assertThat(value.read(), Matchers.equalTo(10));
+    second.commit();
+
+    assertThat(forKey("foo").state(NAMESPACE_1, SUM_INTEGER_ADDR).read(), Matchers.equalTo(10));
+  }
+
+  @Test
+  public void testWatermarkHold() throws Exception {
+    ApexStateInternals<String> underTest = forKey("foo");
+    WatermarkHoldState<BoundedWindow> hold = underTest.state(NAMESPACE_1, WATERMARK_EARLIEST_ADDR);
+    hold.add(new Instant(2000));
+    hold.add(new Instant(1000));
+    underTest.commit();
+
+    assertThat(forKey("foo").state(NAMESPACE_1, WATERMARK_EARLIEST_ADDR).read(),
+        Matchers.equalTo(new Instant(1000)));
+  }
+
+  @Test
+  public void testClearedStateIsRemovedFromStore() throws Exception {
+    ApexStateInternals<String> first = forKey("foo");
+    first.state(NAMESPACE_1, STRING_VALUE_ADDR).write("hello");
+    first.state(NAMESPACE_1, STRING_BAG_ADDR).add("world");
+    first.state(NAMESPACE_1, SUM_INTEGER_ADDR).add(1);
+    first.state(NAMESPACE_1, WATERMARK_EARLIEST_ADDR).add(new Instant(1000));
+    first.commit();
+    assertEquals(1, store.getNumKeys());
+
+    ApexStateInternals<String> second = forKey("foo");
+    second.state(NAMESPACE_1, STRING_VALUE_ADDR).clear();
+    second.state(NAMESPACE_1, STRING_BAG_ADDR).clear();
+    second.state(NAMESPACE_1, SUM_INTEGER_ADDR).clear();
+    second.state(NAMESPACE_1, WATERMARK_EARLIEST_ADDR).clear();
+    second.commit();
+    assertEquals(0, store.getNumKeys());
+  }
+}
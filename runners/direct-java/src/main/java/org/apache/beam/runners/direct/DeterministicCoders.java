@@ -0,0 +1,43 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.beam.runners.direct;
+
+import org.apache.beam.sdk.coders.Coder;
+import org.apache.beam.sdk.coders.Coder.NonDeterministicException;
+
+/**
+ * Static utility methods for checking whether values can be compared by their encoded form.
+ */
+final class DeterministicCoders {
+  private DeterministicCoders() {
+    // Do not instantiate
+  }
+
+  /**
+   * Returns whether equal values are always encoded to equal bytes by the provided
+   * {@link Coder}.
+   */
+  public static boolean isDeterministic(Coder<?> coder) {
+    try {
+      coder.verifyDeterministic();
+      return true;
+    } catch (NonDeterministicException e) {
+      return false;
+    }
+  }
+}
@@ -98,4 +98,63 @@ public interface DirectOptions extends PipelineOptions, ApplicationNameOptions {
   boolean isTestImmutability();
 
   void setTestImmutability(boolean test);
+
+  @Default.Boolean(false)
+  @Description(
+      "Controls whether the runner should store the elements of bundles encoded with the Coder of "
+          + "their PCollection in off-heap memory, decoding elements as they are processed. This "
+          + "reduces the heap used by pipelines which buffer many elements at the cost of "
+          + "additional CPU, and requires that every element can be encoded by its Coder.")
+  boolean isEncodeBundles();
+
+  void setEncodeBundles(boolean encode);
+
+  @Default.Long(0L)
+  @Description(
+      "The approximate number of bytes of encoded input a GroupByKey evaluator buffers in memory "
+          + "before spilling key-sorted runs to local temporary files, which are merged when the "
+          + "evaluator finishes. The merged values of each key are output in groups of about the "
+          + "same size. Values less than or equal to zero disable spilling. Spilling requires "
+          + "encodeBundles and disabling testImmutability, so that the grouped output is stored "
+          + "off-heap as it is produced.")
+  long getGroupByKeySpillThresholdBytes();
+
+  void setGroupByKeySpillThresholdBytes(long bytes);
+
+  @Default.Boolean(false)
+  @Description(
+      "If the runner should execute PTransforms on a work-stealing ForkJoinPool instead of the "
+          + "ExecutorService produced by the ExecutorServiceFactory. When enabled, a completed "
+          + "evaluation schedules the evaluation of its outputs directly on the local work queue "
+          + "of the thread that completed it, rather than handing its outputs to the monitor "
+          + "thread. Evaluations of each step and key are still performed serially.")
+  boolean isWorkStealingScheduler();
+
+  void setWorkStealingScheduler(boolean workStealing);
+
+  @Default.Integer(0)
+  @Description(
+      "The number of elements at the start of each bundle which are always checked by the "
+          + "model enforcements enabled by other options, such as immutability checking.")
+  int getEnforcementFirstElements();
+
+  void setEnforcementFirstElements(int firstElements);
+
+  @Default.Integer(1)
+  @Description(
+      "Of the elements of each bundle after the first enforcementFirstElements, one in every "
+          + "enforcementSampleInterval elements is checked by the model enforcements enabled by "
+          + "other options. 1 checks every element; 0 checks none of the remaining elements.")
+  int getEnforcementSampleInterval();
+
+  void setEnforcementSampleInterval(int sampleInterval);
+
+  @Default.Boolean(false)
+  @Description(
+      "If the runner should check for mutations of elements with a deterministic coder by "
+          + "comparing a hash of their encoded form, rather than by retaining and comparing a "
+          + "decoded copy of each element.")
+  boolean isEnforcementHashOnly();
+
+  void setEnforcementHashOnly(boolean hashOnly);
 }
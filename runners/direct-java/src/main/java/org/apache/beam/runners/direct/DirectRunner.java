@@ -17,6 +17,8 @@
  */
 package org.apache.beam.runners.direct;
 
+import static com.google.common.base.Preconditions.checkArgument;
+
 import org.apache.beam.runners.direct.DirectGroupByKey.DirectGroupByKeyOnly;
 import org.apache.beam.runners.direct.DirectRunner.DirectPipelineResult;
 import org.apache.beam.runners.direct.ViewEvaluatorFactory.ViewOverrideFactory;
@@ -55,6 +57,8 @@ import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 
 import org.joda.time.Instant;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.util.Collection;
 import java.util.HashMap;
@@ -68,6 +72,8 @@ import java.util.concurrent.ExecutorService;
 @Experimental
 public class DirectRunner
     extends PipelineRunner<DirectPipelineResult> {
+  private static final Logger LOG = LoggerFactory.getLogger(DirectRunner.class);
+
   /**
    * The default set of transform overrides to use in the {@link DirectRunner}.
    *
@@ -209,6 +215,13 @@ public class DirectRunner
 
   @Override
   public DirectPipelineResult run(Pipeline pipeline) {
+    checkArgument(
+        options.getGroupByKeySpillThresholdBytes() <= 0L
+            || (options.isEncodeBundles() && !options.isTestImmutability()),
+        "Spilling GroupByKey input (--groupByKeySpillThresholdBytes=%s) requires encoded bundles "
+            + "(--encodeBundles=true) without immutability checks (--testImmutability=false), as "
+            + "the grouped output would otherwise be kept on the heap",
+        options.getGroupByKeySpillThresholdBytes());
     ConsumerTrackingPipelineVisitor consumerTrackingVisitor = new ConsumerTrackingPipelineVisitor();
     pipeline.traverseTopologically(consumerTrackingVisitor);
     for (PValue unfinalized : consumerTrackingVisitor.getUnfinalizedPValues()) {
@@ -233,22 +246,29 @@ public class DirectRunner
             consumerTrackingVisitor.getViews());
 
     // independent executor service for each run
-    ExecutorService executorService =
-        context.getPipelineOptions().getExecutorServiceFactory().create();
+    ExecutorServiceFactory executorServiceFactory =
+        options.isWorkStealingScheduler()
+            ? ForkJoinPoolExecutorServiceFactory.instance()
+            : context.getPipelineOptions().getExecutorServiceFactory();
+    ExecutorService executorService = executorServiceFactory.create();
+    EnforcementSampler enforcementSampler =
+        EnforcementSampler.create(
+            options.getEnforcementFirstElements(), options.getEnforcementSampleInterval());
     PipelineExecutor executor =
         ExecutorServiceParallelExecutor.create(
             executorService,
             consumerTrackingVisitor.getValueToConsumers(),
             keyedPValueVisitor.getKeyedPValues(),
             TransformEvaluatorRegistry.defaultRegistry(),
-            defaultModelEnforcements(options),
-            context);
+            defaultModelEnforcements(options, enforcementSampler),
+            context,
+            options.isWorkStealingScheduler());
     executor.start(consumerTrackingVisitor.getRootTransforms());
 
     Map<Aggregator<?, ?>, Collection<PTransform<?, ?>>> aggregatorSteps =
         new AggregatorPipelineExtractor(pipeline).getAggregatorSteps();
     DirectPipelineResult result =
-        new DirectPipelineResult(executor, context, aggregatorSteps);
+        new DirectPipelineResult(executor, context, aggregatorSteps, enforcementSampler);
     if (options.isBlockOnRun()) {
       try {
         result.awaitCompletion();
@@ -265,26 +285,31 @@ public class DirectRunner
   }
 
   private Map<Class<? extends PTransform>, Collection<ModelEnforcementFactory>>
-      defaultModelEnforcements(DirectOptions options) {
+      defaultModelEnforcements(DirectOptions options, EnforcementSampler sampler) {
     ImmutableMap.Builder<Class<? extends PTransform>, Collection<ModelEnforcementFactory>>
         enforcements = ImmutableMap.builder();
-    Collection<ModelEnforcementFactory> parDoEnforcements = createParDoEnforcements(options);
+    Collection<ModelEnforcementFactory> parDoEnforcements =
+        createParDoEnforcements(options, sampler);
     enforcements.put(ParDo.Bound.class, parDoEnforcements);
     enforcements.put(ParDo.BoundMulti.class, parDoEnforcements);
     return enforcements.build();
   }
 
   private Collection<ModelEnforcementFactory> createParDoEnforcements(
-      DirectOptions options) {
+      DirectOptions options, EnforcementSampler sampler) {
     ImmutableList.Builder<ModelEnforcementFactory> enforcements = ImmutableList.builder();
     if (options.isTestImmutability()) {
-      enforcements.add(ImmutabilityEnforcementFactory.create());
+      enforcements.add(
+          ImmutabilityEnforcementFactory.create(sampler, options.isEnforcementHashOnly()));
     }
     return enforcements.build();
   }
 
   private BundleFactory createBundleFactory(DirectOptions pipelineOptions) {
-    BundleFactory bundleFactory = ImmutableListBundleFactory.create();
+    BundleFactory bundleFactory =
+        pipelineOptions.isEncodeBundles()
+            ? EncodedBundleFactory.create()
+            : ImmutableListBundleFactory.create();
     if (pipelineOptions.isTestImmutability()) {
       bundleFactory = ImmutabilityCheckingBundleFactory.create(bundleFactory);
     }
@@ -300,15 +325,18 @@ public class DirectRunner
     private final PipelineExecutor executor;
     private final EvaluationContext evaluationContext;
     private final Map<Aggregator<?, ?>, Collection<PTransform<?, ?>>> aggregatorSteps;
+    private final EnforcementSampler enforcementSampler;
     private State state;
 
     private DirectPipelineResult(
         PipelineExecutor executor,
         EvaluationContext evaluationContext,
-        Map<Aggregator<?, ?>, Collection<PTransform<?, ?>>> aggregatorSteps) {
+        Map<Aggregator<?, ?>, Collection<PTransform<?, ?>>> aggregatorSteps,
+        EnforcementSampler enforcementSampler) {
       this.executor = executor;
       this.evaluationContext = evaluationContext;
       this.aggregatorSteps = aggregatorSteps;
+      this.enforcementSampler = enforcementSampler;
       // Only ever constructed after the executor has started.
       this.state = State.RUNNING;
     }
@@ -338,6 +366,21 @@ public class DirectRunner
       return new MapAggregatorValues<>(stepValues);
     }
 
+    /**
+     * Returns the number of elements that model enforcements have verified so far.
+     */
+    public long getEnforcementElementsVerified() {
+      return enforcementSampler.getElementsVerified();
+    }
+
+    /**
+     * Returns the number of elements that model enforcements have skipped so far, as configured
+     * by {@link DirectOptions#getEnforcementSampleInterval()}.
+     */
+    public long getEnforcementElementsSkipped() {
+      return enforcementSampler.getElementsSkipped();
+    }
+
     /**
      * Blocks until the {@link Pipeline} execution represented by this
      * {@link DirectPipelineResult} is complete, returning the terminal state.
@@ -358,6 +401,12 @@ public class DirectRunner
         try {
           executor.awaitCompletion();
           state = State.DONE;
+          if (enforcementSampler.isSampling()) {
+            LOG.debug(
+                "Model enforcements verified {} elements and skipped {} elements",
+                enforcementSampler.getElementsVerified(),
+                enforcementSampler.getElementsSkipped());
+          }
         } catch (InterruptedException e) {
           Thread.currentThread().interrupt();
           throw e;
@@ -0,0 +1,496 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.beam.runners.direct;
+
+import static com.google.common.base.Preconditions.checkState;
+
+import org.apache.beam.runners.direct.DirectRunner.CommittedBundle;
+import org.apache.beam.runners.direct.DirectRunner.UncommittedBundle;
+import org.apache.beam.sdk.coders.Coder;
+import org.apache.beam.sdk.coders.VoidCoder;
+import org.apache.beam.sdk.util.UserCodeException;
+import org.apache.beam.sdk.util.WindowedValue;
+import org.apache.beam.sdk.util.WindowedValue.FullWindowedValueCoder;
+import org.apache.beam.sdk.values.PCollection;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.MoreObjects;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.ImmutableList;
+
+import org.joda.time.Instant;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A factory that produces bundles which store their elements encoded with the {@link Coder} of
+ * the {@link PCollection} they belong to, in direct (off-heap) {@link ByteBuffer} segments.
+ * Segments are pooled, and return to the pool once the bundle that owns them is no longer
+ * reachable.
+ *
+ * <p>Elements are encoded as they are added to an {@link UncommittedBundle}, and decoded each time
+ * the elements of a {@link CommittedBundle} are iterated over. As every element is encoded upon
+ * output, any element which cannot be encoded with the {@link Coder} of its {@link PCollection}
+ * fails as soon as it is added to a bundle.
+ */
+class EncodedBundleFactory implements BundleFactory {
+  /** The size of each buffer segment used to hold encoded elements. */
+  @VisibleForTesting static final int SEGMENT_SIZE = 64 * 1024;
+
+  /** The maximum number of unused segments retained for reuse. */
+  private static final int MAX_POOLED_SEGMENTS = 64;
+
+  public static EncodedBundleFactory create() {
+    return new EncodedBundleFactory();
+  }
+
+  private final SegmentPool segmentPool;
+
+  private EncodedBundleFactory() {
+    this.segmentPool = new SegmentPool(SEGMENT_SIZE, MAX_POOLED_SEGMENTS);
+  }
+
+  @Override
+  public <T> UncommittedBundle<T> createRootBundle(PCollection<T> output) {
+    return UncommittedEncodedBundle.create(
+        output, StructuralKey.of(null, VoidCoder.of()), segmentPool);
+  }
+
+  @Override
+  public <T> UncommittedBundle<T> createBundle(CommittedBundle<?> input, PCollection<T> output) {
+    return UncommittedEncodedBundle.create(output, input.getKey(), segmentPool);
+  }
+
+  @Override
+  public <K, T> UncommittedBundle<T> createKeyedBundle(
+      CommittedBundle<?> input, StructuralKey<K> key, PCollection<T> output) {
+    return UncommittedEncodedBundle.create(output, key, segmentPool);
+  }
+
+  private static <T> FullWindowedValueCoder<T> windowedValueCoder(PCollection<T> pcollection) {
+    return WindowedValue.getFullCoder(
+        pcollection.getCoder(), pcollection.getWindowingStrategy().getWindowFn().windowCoder());
+  }
+
+  /**
+   * A {@link UncommittedBundle} that encodes elements into direct buffer segments as they are
+   * added.
+   */
+  private static final class UncommittedEncodedBundle<T> implements UncommittedBundle<T> {
+    private final PCollection<T> pcollection;
+    private final StructuralKey<?> key;
+    private final FullWindowedValueCoder<T> coder;
+    private final SegmentPool segmentPool;
+    private final SegmentOutputStream elements;
+    private int numElements;
+    private boolean committed = false;
+
+    /**
+     * Create a new {@link UncommittedEncodedBundle} for the specified {@link PCollection}.
+     */
+    public static <T> UncommittedEncodedBundle<T> create(
+        PCollection<T> pcollection, StructuralKey<?> key, SegmentPool segmentPool) {
+      return new UncommittedEncodedBundle<>(pcollection, key, segmentPool);
+    }
+
+    private UncommittedEncodedBundle(
+        PCollection<T> pcollection, StructuralKey<?> key, SegmentPool segmentPool) {
+      this.pcollection = pcollection;
+      this.key = key;
+      this.coder = windowedValueCoder(pcollection);
+      this.segmentPool = segmentPool;
+      this.elements = new SegmentOutputStream(segmentPool);
+      this.numElements = 0;
+    }
+
+    @Override
+    public PCollection<T> getPCollection() {
+      return pcollection;
+    }
+
+    @Override
+    public UncommittedEncodedBundle<T> add(WindowedValue<T> element) {
+      checkState(
+          !committed,
+          "Can't add element %s to committed bundle in PCollection %s",
+          element,
+          pcollection);
+      try {
+        coder.encode(element, elements, Coder.Context.NESTED);
+      } catch (Exception e) {
+        throw UserCodeException.wrap(e);
+      }
+      numElements++;
+      return this;
+    }
+
+    @Override
+    public CommittedBundle<T> commit(Instant synchronizedCompletionTime) {
+      checkState(!committed, "Can't commit already committed bundle %s", this);
+      committed = true;
+      return new CommittedEncodedBundle<>(
+          pcollection,
+          key,
+          coder,
+          segmentPool,
+          elements.finish(),
+          numElements,
+          synchronizedCompletionTime);
+    }
+  }
+
+  private static class CommittedEncodedBundle<T> implements CommittedBundle<T> {
+    private final PCollection<T> pcollection;
+    /** The structural value key of the Bundle, as specified by the coder that created it. */
+    private final StructuralKey<?> key;
+    private final FullWindowedValueCoder<T> coder;
+    private final SegmentPool segmentPool;
+    private final EncodedSegments segments;
+    private final int numElements;
+    private final Instant synchronizedCompletionTime;
+
+    public CommittedEncodedBundle(
+        PCollection<T> pcollection,
+        StructuralKey<?> key,
+        FullWindowedValueCoder<T> coder,
+        SegmentPool segmentPool,
+        EncodedSegments segments,
+        int numElements,
+        Instant synchronizedCompletionTime) {
+      this.pcollection = pcollection;
+      this.key = key;
+      this.coder = coder;
+      this.segmentPool = segmentPool;
+      this.segments = segments;
+      this.numElements = numElements;
+      this.synchronizedCompletionTime = synchronizedCompletionTime;
+    }
+
+    @Override
+    public StructuralKey<?> getKey() {
+      return key;
+    }
+
+    @Override
+    public Iterable<WindowedValue<T>> getElements() {
+      return new Iterable<WindowedValue<T>>() {
+        @Override
+        public Iterator<WindowedValue<T>> iterator() {
+          return new DecodingIterator<>(coder, new SegmentInputStream(segments), numElements);
+        }
+
+        @Override
+        public String toString() {
+          return ImmutableList.copyOf(this).toString();
+        }
+      };
+    }
+
+    @Override
+    public PCollection<T> getPCollection() {
+      return pcollection;
+    }
+
+    @Override
+    public Instant getSynchronizedProcessingOutputWatermark() {
+      return synchronizedCompletionTime;
+    }
+
+    @Override
+    public String toString() {
+      return MoreObjects.toStringHelper(this)
+          .omitNullValues()
+          .add("pcollection", pcollection)
+          .add("key", key)
+          .add("numElements", numElements)
+          .toString();
+    }
+
+    @Override
+    public CommittedBundle<T> withElements(Iterable<WindowedValue<T>> elements) {
+      SegmentOutputStream replacement = new SegmentOutputStream(segmentPool);
+      int numReplacements = 0;
+      try {
+        for (WindowedValue<T> element : elements) {
+          coder.encode(element, replacement, Coder.Context.NESTED);
+          numReplacements++;
+        }
+      } catch (IOException e) {
+        throw UserCodeException.wrap(e);
+      }
+      return new CommittedEncodedBundle<>(
+          pcollection,
+          key,
+          coder,
+          segmentPool,
+          replacement.finish(),
+          numReplacements,
+          synchronizedCompletionTime);
+    }
+  }
+
+  /**
+   * An {@link Iterator} that decodes a fixed number of elements from an {@link InputStream}.
+   */
+  private static class DecodingIterator<T> extends AbstractIterator<WindowedValue<T>> {
+    private final FullWindowedValueCoder<T> coder;
+    private final InputStream encoded;
+    private int remaining;
+
+    private DecodingIterator(FullWindowedValueCoder<T> coder, InputStream encoded, int count) {
+      this.coder = coder;
+      this.encoded = encoded;
+      this.remaining = count;
+    }
+
+    @Override
+    protected WindowedValue<T> computeNext() {
+      if (remaining == 0) {
+        return endOfData();
+      }
+      remaining--;
+      try {
+        return coder.decode(encoded, Coder.Context.NESTED);
+      } catch (IOException e) {
+        throw UserCodeException.wrap(e);
+      }
+    }
+  }
+
+  /**
+   * A pool of fixed-size direct {@link ByteBuffer} segments.
+   *
+   * <p>Segments which are entirely filled become owned by the {@link EncodedSegments} they were
+   * written to, and are returned to the pool once those {@link EncodedSegments} are no longer
+   * reachable, which is after the {@link CommittedBundle} and every iterator over its elements
+   * have been discarded. The final, partially filled segment of each bundle is copied into a heap
+   * buffer of the exact required size when the bundle is committed, and the segment is returned to
+   * the pool immediately, so small bundles do not each retain an entire segment.
+   */
+  private static class SegmentPool {
+    private final int segmentSize;
+    private final BlockingQueue<ByteBuffer> available;
+    private final ReferenceQueue<EncodedSegments> unreachable;
+    /** Keeps each {@link SegmentReclaimer} reachable until it has been enqueued. */
+    private final Set<SegmentReclaimer> reclaimers;
+
+    private SegmentPool(int segmentSize, int maxPooledSegments) {
+      this.segmentSize = segmentSize;
+      this.available = new ArrayBlockingQueue<>(Math.max(1, maxPooledSegments));
+      this.unreachable = new ReferenceQueue<>();
+      this.reclaimers =
+          Collections.newSetFromMap(new ConcurrentHashMap<SegmentReclaimer, Boolean>());
+    }
+
+    public ByteBuffer take() {
+      reclaimUnreachable();
+      ByteBuffer segment = available.poll();
+      if (segment == null) {
+        segment = ByteBuffer.allocateDirect(segmentSize);
+      }
+      return segment;
+    }
+
+    public void release(ByteBuffer segment) {
+      segment.clear();
+      available.offer(segment);
+    }
+
+    /**
+     * Returns {@link EncodedSegments} that read from the provided segments. The full segments are
+     * returned to this pool once the result is no longer reachable.
+     */
+    public EncodedSegments own(List<ByteBuffer> fullSegments, List<ByteBuffer> allSegments) {
+      ImmutableList.Builder<ByteBuffer> readOnly = ImmutableList.builder();
+      for (ByteBuffer segment : allSegments) {
+        readOnly.add(segment.asReadOnlyBuffer());
+      }
+      EncodedSegments encoded = new EncodedSegments(readOnly.build());
+      if (!fullSegments.isEmpty()) {
+        reclaimers.add(new SegmentReclaimer(encoded, unreachable, fullSegments));
+      }
+      return encoded;
+    }
+
+    private void reclaimUnreachable() {
+      Reference<? extends EncodedSegments> reference = unreachable.poll();
+      while (reference != null) {
+        SegmentReclaimer reclaimer = (SegmentReclaimer) reference;
+        reclaimers.remove(reclaimer);
+        for (ByteBuffer segment : reclaimer.segments) {
+          release(segment);
+        }
+        reference = unreachable.poll();
+      }
+    }
+  }
+
+  /**
+   * The segments owned by an {@link EncodedSegments}, enqueued once it is no longer reachable.
+   */
+  private static class SegmentReclaimer extends PhantomReference<EncodedSegments> {
+    private final List<ByteBuffer> segments;
+
+    private SegmentReclaimer(
+        EncodedSegments owner,
+        ReferenceQueue<EncodedSegments> queue,
+        List<ByteBuffer> segments) {
+      super(owner, queue);
+      this.segments = segments;
+    }
+  }
+
+  /**
+   * The read-only encoded elements of a {@link CommittedBundle}. Every reader of the segments
+   * holds a reference to the {@link EncodedSegments}, so pooled segments are not reused while
+   * they can still be read.
+   */
+  private static class EncodedSegments {
+    private final List<ByteBuffer> segments;
+
+    private EncodedSegments(List<ByteBuffer> segments) {
+      this.segments = segments;
+    }
+  }
+
+  /**
+   * An {@link OutputStream} that writes into a sequence of {@link ByteBuffer} segments taken from
+   * a {@link SegmentPool}.
+   */
+  private static class SegmentOutputStream extends OutputStream {
+    private final SegmentPool pool;
+    private final List<ByteBuffer> filled;
+    private ByteBuffer current;
+
+    private SegmentOutputStream(SegmentPool pool) {
+      this.pool = pool;
+      this.filled = new ArrayList<>();
+    }
+
+    @Override
+    public void write(int b) {
+      ensureCapacity();
+      current.put((byte) b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+      while (len > 0) {
+        ensureCapacity();
+        int toWrite = Math.min(len, current.remaining());
+        current.put(b, off, toWrite);
+        off += toWrite;
+        len -= toWrite;
+      }
+    }
+
+    private void ensureCapacity() {
+      if (current == null) {
+        current = pool.take();
+      } else if (!current.hasRemaining()) {
+        current.flip();
+        filled.add(current);
+        current = pool.take();
+      }
+    }
+
+    /**
+     * Returns the segments written to by this stream. The stream may not be written to after it
+     * is finished.
+     */
+    public EncodedSegments finish() {
+      List<ByteBuffer> allSegments = new ArrayList<>(filled);
+      if (current != null) {
+        current.flip();
+        ByteBuffer tail = ByteBuffer.allocate(current.remaining());
+        tail.put(current);
+        tail.flip();
+        pool.release(current);
+        current = null;
+        allSegments.add(tail);
+      }
+      return pool.own(filled, allSegments);
+    }
+  }
+
+  /**
+   * An {@link InputStream} that reads from {@link EncodedSegments}. The positions of the segments
+   * are not modified.
+   */
+  private static class SegmentInputStream extends InputStream {
+    /** Keeps the segments from being reclaimed while they are read. */
+    private final EncodedSegments owner;
+    private final Iterator<ByteBuffer> segments;
+    private ByteBuffer current;
+
+    private SegmentInputStream(EncodedSegments owner) {
+      this.owner = owner;
+      this.segments = owner.segments.iterator();
+    }
+
+    @Override
+    public int read() {
+      if (!advance()) {
+        return -1;
+      }
+      return current.get() & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+      if (len == 0) {
+        return 0;
+      }
+      if (!advance()) {
+        return -1;
+      }
+      int toRead = Math.min(len, current.remaining());
+      current.get(b, off, toRead);
+      return toRead;
+    }
+
+    @Override
+    public int available() {
+      return current == null ? 0 : current.remaining();
+    }
+
+    private boolean advance() {
+      while (current == null || !current.hasRemaining()) {
+        if (!segments.hasNext()) {
+          return false;
+        }
+        current = segments.next().duplicate();
+      }
+      return true;
+    }
+  }
+}
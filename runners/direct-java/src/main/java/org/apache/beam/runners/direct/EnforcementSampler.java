@@ -0,0 +1,137 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.beam.runners.direct;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import org.apache.beam.runners.direct.DirectRunner.CommittedBundle;
+
+import com.google.common.base.MoreObjects;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Determines which elements of a {@link CommittedBundle} a {@link ModelEnforcement} verifies, and
+ * counts the number of elements that were verified and skipped.
+ *
+ * <p>Within each bundle, the first {@code firstElements} elements are always verified. Of the
+ * remaining elements, one in every {@code sampleInterval} elements is verified. A sample interval
+ * of 0 verifies no elements beyond the first elements.
+ */
+class EnforcementSampler {
+  private static final EnforcementSampler ALL = new EnforcementSampler(0, 1);
+
+  /**
+   * Returns an {@link EnforcementSampler} that verifies every element of every bundle. The
+   * returned sampler does not count the elements it verifies.
+   */
+  public static EnforcementSampler all() {
+    return ALL;
+  }
+
+  public static EnforcementSampler create(int firstElements, int sampleInterval) {
+    checkArgument(
+        firstElements >= 0,
+        "The number of first elements to verify must be nonnegative, got %s",
+        firstElements);
+    checkArgument(
+        sampleInterval >= 0, "The sample interval must be nonnegative, got %s", sampleInterval);
+    return new EnforcementSampler(firstElements, sampleInterval);
+  }
+
+  private final int firstElements;
+  private final int sampleInterval;
+  private final AtomicLong elementsVerified;
+  private final AtomicLong elementsSkipped;
+
+  private EnforcementSampler(int firstElements, int sampleInterval) {
+    this.firstElements = firstElements;
+    this.sampleInterval = sampleInterval;
+    this.elementsVerified = new AtomicLong();
+    this.elementsSkipped = new AtomicLong();
+  }
+
+  /**
+   * Returns whether this sampler skips any elements, that is whether it does not verify every
+   * element of every bundle.
+   */
+  public boolean isSampling() {
+    return sampleInterval != 1;
+  }
+
+  /**
+   * Returns a new {@link BundleSample} that selects the elements of a single bundle to verify.
+   */
+  public BundleSample forBundle() {
+    return new BundleSample();
+  }
+
+  /**
+   * Returns the number of elements selected for verification by this {@link EnforcementSampler}.
+   */
+  public long getElementsVerified() {
+    return elementsVerified.get();
+  }
+
+  /**
+   * Returns the number of elements not selected for verification by this
+   * {@link EnforcementSampler}.
+   */
+  public long getElementsSkipped() {
+    return elementsSkipped.get();
+  }
+
+  @Override
+  public String toString() {
+    return MoreObjects.toStringHelper(this)
+        .add("firstElements", firstElements)
+        .add("sampleInterval", sampleInterval)
+        .add("elementsVerified", elementsVerified)
+        .add("elementsSkipped", elementsSkipped)
+        .toString();
+  }
+
+  /**
+   * The sampling state of a single bundle. Not thread safe; a {@link BundleSample} should be used
+   * by the {@link ModelEnforcement} of a single bundle.
+   */
+  public class BundleSample {
+    private long elementIndex = 0L;
+
+    private BundleSample() {}
+
+    /**
+     * Returns true if the next element of the bundle should be verified.
+     */
+    public boolean sampleNext() {
+      long index = elementIndex++;
+      boolean verify;
+      if (index < firstElements) {
+        verify = true;
+      } else if (sampleInterval == 0) {
+        verify = false;
+      } else {
+        verify = (index - firstElements + 1) % sampleInterval == 0;
+      }
+      if (EnforcementSampler.this != ALL) {
+        (verify ? elementsVerified : elementsSkipped).incrementAndGet();
+      }
+      return verify;
+    }
+  }
+}
@@ -82,6 +82,12 @@ final class ExecutorServiceParallelExecutor implements PipelineExecutor {
   private final TransformExecutorService parallelExecutorService;
   private final CompletionCallback defaultCompletionCallback;
 
+  /**
+   * If true, completed evaluations schedule the consumers of their outputs directly, rather than
+   * providing them to the monitor thread.
+   */
+  private final boolean scheduleConsumersOnCompletion;
+
   private Collection<AppliedPTransform<?, ?, ?>> rootNodes;
 
   public static ExecutorServiceParallelExecutor create(
@@ -91,9 +97,16 @@ final class ExecutorServiceParallelExecutor implements PipelineExecutor {
       TransformEvaluatorRegistry registry,
       @SuppressWarnings("rawtypes")
       Map<Class<? extends PTransform>, Collection<ModelEnforcementFactory>> transformEnforcements,
-      EvaluationContext context) {
+      EvaluationContext context,
+      boolean scheduleConsumersOnCompletion) {
     return new ExecutorServiceParallelExecutor(
-        executorService, valueToConsumers, keyedPValues, registry, transformEnforcements, context);
+        executorService,
+        valueToConsumers,
+        keyedPValues,
+        registry,
+        transformEnforcements,
+        context,
+        scheduleConsumersOnCompletion);
   }
 
   private ExecutorServiceParallelExecutor(
@@ -103,13 +116,15 @@ final class ExecutorServiceParallelExecutor implements PipelineExecutor {
       TransformEvaluatorRegistry registry,
       @SuppressWarnings("rawtypes")
       Map<Class<? extends PTransform>, Collection<ModelEnforcementFactory>> transformEnforcements,
-      EvaluationContext context) {
+      EvaluationContext context,
+      boolean scheduleConsumersOnCompletion) {
     this.executorService = executorService;
     this.valueToConsumers = valueToConsumers;
     this.keyedPValues = keyedPValues;
     this.registry = registry;
     this.transformEnforcements = transformEnforcements;
     this.evaluationContext = context;
+    this.scheduleConsumersOnCompletion = scheduleConsumersOnCompletion;
 
     // Weak Values allows TransformExecutorServices that are no longer in use to be reclaimed.
     // Executing TransformExecutorServices have a strong reference to their TransformExecutorService
@@ -229,8 +244,15 @@ final class ExecutorServiceParallelExecutor implements PipelineExecutor {
         CommittedBundle<?> inputBundle, TransformResult result) {
       CommittedResult committedResult = getCommittedResult(inputBundle, result);
       for (CommittedBundle<?> outputBundle : committedResult.getOutputs()) {
-        allUpdates.offer(ExecutorUpdate.fromBundle(outputBundle,
-            valueToConsumers.get(outputBundle.getPCollection())));
+        ExecutorUpdate update = ExecutorUpdate.fromBundle(outputBundle,
+            valueToConsumers.get(outputBundle.getPCollection()));
+        if (scheduleConsumersOnCompletion) {
+          // The watermark update for this result has already been provided to the
+          // EvaluationContext, so the consumers' results will be applied after it.
+          scheduleConsumers(update);
+        } else {
+          allUpdates.offer(update);
+        }
       }
       CommittedBundle<?> unprocessedInputs = committedResult.getUnprocessedInputs();
       if (unprocessedInputs != null && !Iterables.isEmpty(unprocessedInputs.getElements())) {
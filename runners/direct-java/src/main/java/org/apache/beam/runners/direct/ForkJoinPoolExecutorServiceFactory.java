@@ -0,0 +1,46 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.beam.runners.direct;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * A {@link ExecutorServiceFactory} that produces work-stealing {@link ForkJoinPool ForkJoinPools},
+ * with a parallelism equal to the available processors as provided by
+ * {@link Runtime#availableProcessors()}.
+ *
+ * <p>Work scheduled by a thread of the pool onto the same pool is placed on the local work queue
+ * of that thread (see {@link TransformExecutorServices}), so a chain of {@link TransformExecutor
+ * TransformExecutors} tends to be evaluated on the same thread.
+ */
+class ForkJoinPoolExecutorServiceFactory implements ExecutorServiceFactory {
+  private static final ForkJoinPoolExecutorServiceFactory INSTANCE =
+      new ForkJoinPoolExecutorServiceFactory();
+
+  public static ForkJoinPoolExecutorServiceFactory instance() {
+    return INSTANCE;
+  }
+
+  private ForkJoinPoolExecutorServiceFactory() {}
+
+  @Override
+  public ExecutorService create() {
+    return new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+  }
+}
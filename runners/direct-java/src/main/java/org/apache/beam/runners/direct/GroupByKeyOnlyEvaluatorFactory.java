@@ -17,6 +17,7 @@
  */
 package org.apache.beam.runners.direct;
 
+import static org.apache.beam.sdk.util.CoderUtils.decodeFromByteArray;
 import static org.apache.beam.sdk.util.CoderUtils.encodeToByteArray;
 
 import static com.google.common.base.Preconditions.checkState;
@@ -38,9 +39,11 @@ import org.apache.beam.sdk.util.WindowedValue;
 import org.apache.beam.sdk.values.KV;
 import org.apache.beam.sdk.values.PCollection;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
@@ -69,9 +72,28 @@ class GroupByKeyOnlyEvaluatorFactory implements TransformEvaluatorFactory {
           application,
       final CommittedBundle<KV<K, WindowedValue<V>>> inputBundle,
       final EvaluationContext evaluationContext) {
+    long spillThresholdBytes =
+        evaluationContext.getPipelineOptions().getGroupByKeySpillThresholdBytes();
+    if (spillThresholdBytes > 0L) {
+      return new SpillingGroupByKeyOnlyEvaluator<>(
+          evaluationContext, inputBundle, application, spillThresholdBytes);
+    }
     return new GroupByKeyOnlyEvaluator<>(evaluationContext, inputBundle, application);
   }
 
+  private static <K, V> Coder<K> getKeyCoder(Coder<KV<K, WindowedValue<V>>> coder) {
+    checkState(
+        coder instanceof KvCoder,
+        "%s requires a coder of class %s."
+            + " This is an internal error; this is checked during pipeline construction"
+            + " but became corrupted.",
+        GroupByKeyOnlyEvaluatorFactory.class.getSimpleName(),
+        KvCoder.class.getSimpleName());
+    @SuppressWarnings("unchecked")
+    Coder<K> keyCoder = ((KvCoder<K, WindowedValue<V>>) coder).getKeyCoder();
+    return keyCoder;
+  }
+
   /**
    * A transform evaluator for the pseudo-primitive {@link GroupByKeyOnly}. Windowing is ignored;
    * all input should be in the global window since all output will be as well.
@@ -104,19 +126,6 @@ class GroupByKeyOnlyEvaluatorFactory implements TransformEvaluatorFactory {
       this.groupingMap = new HashMap<>();
     }
 
-    private Coder<K> getKeyCoder(Coder<KV<K, WindowedValue<V>>> coder) {
-      checkState(
-          coder instanceof KvCoder,
-          "%s requires a coder of class %s."
-              + " This is an internal error; this is checked during pipeline construction"
-              + " but became corrupted.",
-          getClass().getSimpleName(),
-          KvCoder.class.getSimpleName());
-      @SuppressWarnings("unchecked")
-      Coder<K> keyCoder = ((KvCoder<K, WindowedValue<V>>) coder).getKeyCoder();
-      return keyCoder;
-    }
-
     @Override
     public void processElement(WindowedValue<KV<K, WindowedValue<V>>> element) {
       KV<K, WindowedValue<V>> kv = element.getValue();
@@ -183,4 +192,113 @@ class GroupByKeyOnlyEvaluatorFactory implements TransformEvaluatorFactory {
       }
     }
   }
+
+  /**
+   * A transform evaluator for the pseudo-primitive {@link GroupByKeyOnly} which buffers encoded
+   * elements in a {@link SpillableGroupingTable}, spilling key-sorted runs to local temporary
+   * files when the buffered input exceeds a memory budget and merging them when the bundle is
+   * finished. The values of each key are streamed out of the merge into {@link KeyedWorkItem
+   * KeyedWorkItems} of approximately the memory budget, so a single key may produce several
+   * {@link KeyedWorkItem KeyedWorkItems}. The {@link DirectRunner} only uses this evaluator with
+   * {@link DirectOptions#isEncodeBundles() encoded bundles} and without immutability checks, so
+   * each {@link KeyedWorkItem} is encoded as it is added to its bundle and only one of them is
+   * decoded on the heap at a time.
+   * Windowing is ignored; all input should be in the global window since all output will be as
+   * well.
+   *
+   * @see GroupByKeyOnlyEvaluator
+   */
+  private static class SpillingGroupByKeyOnlyEvaluator<K, V>
+      implements TransformEvaluator<KV<K, WindowedValue<V>>> {
+    private final EvaluationContext evaluationContext;
+
+    private final CommittedBundle<KV<K, WindowedValue<V>>> inputBundle;
+    private final AppliedPTransform<
+            PCollection<KV<K, WindowedValue<V>>>,
+            PCollection<KeyedWorkItem<K, V>>,
+            DirectGroupByKeyOnly<K, V>> application;
+    private final Coder<K> keyCoder;
+    private final Coder<WindowedValue<V>> valueCoder;
+    private final long spillThresholdBytes;
+    private final SpillableGroupingTable groupingTable;
+
+    public SpillingGroupByKeyOnlyEvaluator(
+        EvaluationContext evaluationContext,
+        CommittedBundle<KV<K, WindowedValue<V>>> inputBundle,
+        AppliedPTransform<
+                PCollection<KV<K, WindowedValue<V>>>,
+                PCollection<KeyedWorkItem<K, V>>,
+                DirectGroupByKeyOnly<K, V>> application,
+        long spillThresholdBytes) {
+      this.evaluationContext = evaluationContext;
+      this.inputBundle = inputBundle;
+      this.application = application;
+      Coder<KV<K, WindowedValue<V>>> inputCoder = application.getInput().getCoder();
+      this.keyCoder = getKeyCoder(inputCoder);
+      @SuppressWarnings("unchecked")
+      Coder<WindowedValue<V>> valueCoder =
+          ((KvCoder<K, WindowedValue<V>>) inputCoder).getValueCoder();
+      this.valueCoder = valueCoder;
+      this.spillThresholdBytes = spillThresholdBytes;
+      this.groupingTable = SpillableGroupingTable.create(spillThresholdBytes);
+    }
+
+    @Override
+    public void processElement(WindowedValue<KV<K, WindowedValue<V>>> element)
+        throws Exception {
+      try {
+        KV<K, WindowedValue<V>> kv = element.getValue();
+        groupingTable.put(
+            StructuralKey.of(kv.getKey(), keyCoder), encodeToByteArray(valueCoder, kv.getValue()));
+      } catch (Exception e) {
+        // The evaluator is discarded after a failure, so delete any spilled runs now
+        closeAfterFailure(e);
+        throw e;
+      }
+    }
+
+    @Override
+    public TransformResult finishBundle() throws Exception {
+      Builder resultBuilder = StepTransformResult.withoutHold(application);
+      try (SpillableGroupingTable table = groupingTable) {
+        Iterator<KV<byte[], Iterator<byte[]>>> groups = table.groups();
+        while (groups.hasNext()) {
+          KV<byte[], Iterator<byte[]>> group = groups.next();
+          K key = decodeFromByteArray(keyCoder, group.getKey());
+          StructuralKey<K> structuralKey = StructuralKey.of(key, keyCoder);
+          Iterator<byte[]> encodedValues = group.getValue();
+          List<WindowedValue<V>> values = new ArrayList<>();
+          long valueBytes = 0L;
+          while (encodedValues.hasNext()) {
+            byte[] encodedValue = encodedValues.next();
+            values.add(decodeFromByteArray(valueCoder, encodedValue));
+            valueBytes += encodedValue.length;
+            if (valueBytes >= spillThresholdBytes && encodedValues.hasNext()) {
+              resultBuilder.addOutput(createOutput(structuralKey, key, values));
+              values = new ArrayList<>();
+              valueBytes = 0L;
+            }
+          }
+          resultBuilder.addOutput(createOutput(structuralKey, key, values));
+        }
+      }
+      return resultBuilder.build();
+    }
+
+    private UncommittedBundle<KeyedWorkItem<K, V>> createOutput(
+        StructuralKey<K> structuralKey, K key, List<WindowedValue<V>> values) {
+      UncommittedBundle<KeyedWorkItem<K, V>> bundle =
+          evaluationContext.createKeyedBundle(inputBundle, structuralKey, application.getOutput());
+      bundle.add(WindowedValue.valueInGlobalWindow(KeyedWorkItems.elementsWorkItem(key, values)));
+      return bundle;
+    }
+
+    private void closeAfterFailure(Exception failure) {
+      try {
+        groupingTable.close();
+      } catch (IOException e) {
+        failure.addSuppressed(e);
+      }
+    }
+  }
 }
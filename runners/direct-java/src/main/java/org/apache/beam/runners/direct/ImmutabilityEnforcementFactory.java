@@ -18,15 +18,21 @@
 package org.apache.beam.runners.direct;
 
 import org.apache.beam.runners.direct.DirectRunner.CommittedBundle;
+import org.apache.beam.runners.direct.EnforcementSampler.BundleSample;
 import org.apache.beam.sdk.coders.Coder;
 import org.apache.beam.sdk.coders.CoderException;
 import org.apache.beam.sdk.transforms.AppliedPTransform;
+import org.apache.beam.sdk.util.CoderUtils;
 import org.apache.beam.sdk.util.IllegalMutationException;
 import org.apache.beam.sdk.util.MutationDetector;
 import org.apache.beam.sdk.util.MutationDetectors;
 import org.apache.beam.sdk.util.UserCodeException;
 import org.apache.beam.sdk.util.WindowedValue;
 
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
 import java.util.IdentityHashMap;
 import java.util.Map;
 
@@ -34,36 +40,75 @@ import java.util.Map;
  * {@link ModelEnforcement} that enforces elements are not modified over the course of processing
  * an element.
  *
+ * <p>Only the elements selected by the {@link EnforcementSampler} of the factory are verified. If
+ * the factory compares hashes, elements with a deterministic {@link Coder} are verified by
+ * comparing a hash of the encoded element, rather than by retaining and comparing a decoded copy
+ * of the element.
+ *
  * <p>Implies {@link EncodabilityEnforcment}.
  */
 class ImmutabilityEnforcementFactory implements ModelEnforcementFactory {
+  private static final HashFunction HASH_FUNCTION = Hashing.murmur3_128();
+
   public static ModelEnforcementFactory create() {
     return new ImmutabilityEnforcementFactory();
   }
 
+  public static ImmutabilityEnforcementFactory create(
+      EnforcementSampler sampler, boolean compareHashes) {
+    return new ImmutabilityEnforcementFactory(sampler, compareHashes);
+  }
+
+  private final EnforcementSampler sampler;
+  private final boolean compareHashes;
+
+  ImmutabilityEnforcementFactory() {
+    this(EnforcementSampler.all(), false);
+  }
+
+  private ImmutabilityEnforcementFactory(EnforcementSampler sampler, boolean compareHashes) {
+    this.sampler = sampler;
+    this.compareHashes = compareHashes;
+  }
+
   @Override
   public <T> ModelEnforcement<T> forBundle(
       CommittedBundle<T> input, AppliedPTransform<?, ?, ?> consumer) {
-    return new ImmutabilityCheckingEnforcement<T>(input, consumer);
+    return new ImmutabilityCheckingEnforcement<T>(
+        input, consumer, sampler.forBundle(), compareHashes);
   }
 
   private static class ImmutabilityCheckingEnforcement<T> extends AbstractModelEnforcement<T> {
     private final AppliedPTransform<?, ?, ?> transform;
     private final Map<WindowedValue<T>, MutationDetector> mutationElements;
     private final Coder<T> coder;
+    private final BundleSample sample;
+    private final boolean compareHashes;
 
     private ImmutabilityCheckingEnforcement(
-        CommittedBundle<T> input, AppliedPTransform<?, ?, ?> transform) {
+        CommittedBundle<T> input,
+        AppliedPTransform<?, ?, ?> transform,
+        BundleSample sample,
+        boolean compareHashes) {
       this.transform = transform;
       coder = input.getPCollection().getCoder();
       mutationElements = new IdentityHashMap<>();
+      this.sample = sample;
+      // Hashes of the encoded form can only be compared if equal values have equal encodings
+      this.compareHashes = compareHashes && DeterministicCoders.isDeterministic(coder);
     }
 
     @Override
     public void beforeElement(WindowedValue<T> element) {
+      if (!sample.sampleNext()) {
+        return;
+      }
       try {
-        mutationElements.put(
-            element, MutationDetectors.forValueWithCoder(element.getValue(), coder));
+        MutationDetector detector =
+            compareHashes
+                ? new HashingMutationDetector<>(element.getValue(), coder)
+                : MutationDetectors.forValueWithCoder(element.getValue(), coder);
+        mutationElements.put(element, detector);
       } catch (CoderException e) {
         throw UserCodeException.wrap(e);
       }
@@ -71,7 +116,10 @@ class ImmutabilityEnforcementFactory implements ModelEnforcementFactory {
 
     @Override
     public void afterElement(WindowedValue<T> element) {
-      verifyUnmodified(mutationElements.get(element));
+      MutationDetector detector = mutationElements.get(element);
+      if (detector != null) {
+        verifyUnmodified(detector);
+      }
     }
 
     @Override
@@ -88,16 +136,62 @@ class ImmutabilityEnforcementFactory implements ModelEnforcementFactory {
       try {
         detector.verifyUnmodified();
       } catch (IllegalMutationException e) {
+        // A HashingMutationDetector does not retain the original value
+        Object value = e.getSavedValue() == null ? e.getNewValue() : e.getSavedValue();
         throw new IllegalMutationException(
             String.format(
                 "PTransform %s illegaly mutated value %s of class %s."
                     + " Input values must not be mutated in any way.",
                 transform.getFullName(),
-                e.getSavedValue(),
-                e.getSavedValue().getClass()),
+                value,
+                value.getClass()),
             e.getSavedValue(),
             e.getNewValue());
       }
     }
   }
+
+  /**
+   * A {@link MutationDetector} that retains only a hash of the encoded value, and detects
+   * mutations by comparing it to a hash of the encoding of the current value.
+   *
+   * <p>Must only be used with a deterministic {@link Coder}.
+   */
+  private static class HashingMutationDetector<T> implements MutationDetector {
+    private final T value;
+    private final Coder<T> coder;
+    private final HashCode originalHash;
+
+    private HashingMutationDetector(T value, Coder<T> coder) throws CoderException {
+      this.value = value;
+      this.coder = coder;
+      this.originalHash = hash(value, coder);
+    }
+
+    @Override
+    public void verifyUnmodified() {
+      try {
+        if (!originalHash.equals(hash(value, coder))) {
+          throw new IllegalMutationException(
+              String.format("Value %s mutated illegally, its encoding has changed", value),
+              null,
+              value);
+        }
+      } catch (CoderException e) {
+        throw new RuntimeException(e);
+      }
+    }
+
+    @Override
+    public void close() {
+      verifyUnmodified();
+    }
+
+    private static <T> HashCode hash(T value, Coder<T> coder) throws CoderException {
+      if (value == null) {
+        return HashCode.fromInt(0);
+      }
+      return HASH_FUNCTION.hashBytes(CoderUtils.encodeToByteArray(coder, value));
+    }
+  }
 }
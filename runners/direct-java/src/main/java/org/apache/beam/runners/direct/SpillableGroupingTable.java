@@ -0,0 +1,366 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.beam.runners.direct;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+import org.apache.beam.sdk.values.KV;
+
+import com.google.common.collect.AbstractIterator;
+import com.google.common.io.ByteStreams;
+import com.google.common.primitives.UnsignedBytes;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * A table which groups encoded values by their {@link StructuralKey}, spilling its contents to
+ * local temporary files as runs sorted by encoded key whenever the buffered contents exceed a
+ * memory budget.
+ *
+ * <p>The memory budget is measured in terms of the size of the buffered keys and values, and is
+ * approximate. When any run has been spilled, {@link #groups()} performs a streaming merge of all
+ * of the spilled runs, reading the values of each group from the runs as they are consumed. The
+ * keys must have been created with a deterministic {@link org.apache.beam.sdk.coders.Coder}, so
+ * that equal keys have equal encodings.
+ *
+ * <p>A {@link SpillableGroupingTable} is not thread safe.
+ */
+class SpillableGroupingTable implements Closeable {
+  /** The approximate per-array overhead of a buffered key or value. */
+  private static final long ARRAY_OVERHEAD_BYTES = 16L;
+
+  private static final Comparator<byte[]> KEY_ORDER = UnsignedBytes.lexicographicalComparator();
+
+  public static SpillableGroupingTable create(long memoryBudgetBytes) {
+    checkArgument(
+        memoryBudgetBytes > 0L,
+        "%s requires a positive memory budget, got %s",
+        SpillableGroupingTable.class.getSimpleName(),
+        memoryBudgetBytes);
+    return new SpillableGroupingTable(memoryBudgetBytes);
+  }
+
+  private final long memoryBudgetBytes;
+  private final List<File> runs;
+  private final List<RunReader> readers;
+  private Map<StructuralKey<?>, List<byte[]>> buffered;
+  private long bufferedBytes;
+  private boolean grouped;
+
+  private SpillableGroupingTable(long memoryBudgetBytes) {
+    this.memoryBudgetBytes = memoryBudgetBytes;
+    this.runs = new ArrayList<>();
+    this.readers = new ArrayList<>();
+    this.buffered = new HashMap<>();
+    this.bufferedBytes = 0L;
+    this.grouped = false;
+  }
+
+  /**
+   * Adds the provided encoded value to the group of the provided key.
+   */
+  public void put(StructuralKey<?> key, byte[] value) throws IOException {
+    checkState(!grouped, "Can't add to a %s after it was grouped", getClass().getSimpleName());
+    List<byte[]> values = buffered.get(key);
+    if (values == null) {
+      values = new ArrayList<>();
+      buffered.put(key, values);
+      bufferedBytes += key.getEncodedKey().length + ARRAY_OVERHEAD_BYTES;
+    }
+    values.add(value);
+    bufferedBytes += value.length + ARRAY_OVERHEAD_BYTES;
+    if (bufferedBytes > memoryBudgetBytes) {
+      spill();
+    }
+  }
+
+  /**
+   * Returns the number of runs that have been written to temporary files.
+   */
+  public int getNumSpilledRuns() {
+    return runs.size();
+  }
+
+  /**
+   * Returns an {@link Iterator} over each encoded key and the encoded values added for that key.
+   * Each key is returned exactly once. No more values may be added to this table after this
+   * method is called.
+   *
+   * <p>The values of a group may be read from the spilled runs as they are iterated over. They
+   * can only be iterated over until the next group is requested or the table is closed.
+   */
+  public Iterator<KV<byte[], Iterator<byte[]>>> groups() throws IOException {
+    checkState(!grouped, "Can't group a %s more than once", getClass().getSimpleName());
+    grouped = true;
+    if (runs.isEmpty()) {
+      final Iterator<Map.Entry<StructuralKey<?>, List<byte[]>>> entries =
+          buffered.entrySet().iterator();
+      return new AbstractIterator<KV<byte[], Iterator<byte[]>>>() {
+        @Override
+        protected KV<byte[], Iterator<byte[]>> computeNext() {
+          if (!entries.hasNext()) {
+            return endOfData();
+          }
+          Map.Entry<StructuralKey<?>, List<byte[]>> entry = entries.next();
+          return KV.of(entry.getKey().getEncodedKey(), entry.getValue().iterator());
+        }
+      };
+    }
+    spill();
+    // Readers are tracked as they are opened, so close() releases them if a later one fails
+    for (File run : runs) {
+      readers.add(RunReader.open(run));
+    }
+    return new MergingIterator(readers);
+  }
+
+  /**
+   * Closes all of the readers opened by {@link #groups()} and deletes all of the temporary files
+   * written by this table.
+   */
+  @Override
+  public void close() throws IOException {
+    buffered = Collections.emptyMap();
+    IOException thrown = null;
+    for (RunReader reader : readers) {
+      try {
+        reader.close();
+      } catch (IOException e) {
+        if (thrown == null) {
+          thrown = e;
+        } else {
+          thrown.addSuppressed(e);
+        }
+      }
+    }
+    readers.clear();
+    for (File run : runs) {
+      if (!run.delete() && run.exists()) {
+        IOException notDeleted =
+            new IOException(String.format("Unable to delete spilled run %s", run));
+        if (thrown == null) {
+          thrown = notDeleted;
+        } else {
+          thrown.addSuppressed(notDeleted);
+        }
+      }
+    }
+    runs.clear();
+    if (thrown != null) {
+      throw thrown;
+    }
+  }
+
+  private void spill() throws IOException {
+    if (buffered.isEmpty()) {
+      return;
+    }
+    List<Map.Entry<StructuralKey<?>, List<byte[]>>> entries =
+        new ArrayList<>(buffered.entrySet());
+    Collections.sort(
+        entries,
+        new Comparator<Map.Entry<StructuralKey<?>, List<byte[]>>>() {
+          @Override
+          public int compare(
+              Map.Entry<StructuralKey<?>, List<byte[]>> left,
+              Map.Entry<StructuralKey<?>, List<byte[]>> right) {
+            return KEY_ORDER.compare(
+                left.getKey().getEncodedKey(), right.getKey().getEncodedKey());
+          }
+        });
+    File run = File.createTempFile("beam-direct-grouping-", ".run");
+    // Tracked before it is written, so close() deletes it if the write fails
+    runs.add(run);
+    try (DataOutputStream out =
+        new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run)))) {
+      for (Map.Entry<StructuralKey<?>, List<byte[]>> entry : entries) {
+        writeBytes(out, entry.getKey().getEncodedKey());
+        out.writeInt(entry.getValue().size());
+        for (byte[] value : entry.getValue()) {
+          writeBytes(out, value);
+        }
+      }
+    }
+    buffered = new HashMap<>();
+    bufferedBytes = 0L;
+  }
+
+  private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static byte[] readBytes(DataInputStream in) throws IOException {
+    byte[] bytes = new byte[in.readInt()];
+    in.readFully(bytes);
+    return bytes;
+  }
+
+  /**
+   * Reads the groups of a single spilled run in key order, reading the values of each group one
+   * at a time.
+   */
+  private static class RunReader implements Closeable {
+    public static RunReader open(File run) throws IOException {
+      return new RunReader(
+          new DataInputStream(new BufferedInputStream(new FileInputStream(run))));
+    }
+
+    private final DataInputStream in;
+    private byte[] currentKey;
+    private int remainingValues;
+
+    private RunReader(DataInputStream in) {
+      this.in = in;
+    }
+
+    /**
+     * Skips any unread values of the current group and reads the key of the next group of the
+     * run. Returns false and closes the run if there are no more groups.
+     */
+    public boolean advance() throws IOException {
+      while (remainingValues > 0) {
+        ByteStreams.skipFully(in, in.readInt());
+        remainingValues--;
+      }
+      byte[] key;
+      try {
+        key = readBytes(in);
+      } catch (EOFException e) {
+        currentKey = null;
+        close();
+        return false;
+      }
+      currentKey = key;
+      remainingValues = in.readInt();
+      return true;
+    }
+
+    public boolean hasNextValue() {
+      return remainingValues > 0;
+    }
+
+    public byte[] nextValue() throws IOException {
+      remainingValues--;
+      return readBytes(in);
+    }
+
+    @Override
+    public void close() throws IOException {
+      in.close();
+    }
+  }
+
+  /**
+   * Performs a k-way merge of spilled runs, combining the values of equal keys across runs. The
+   * values of each group are read from the runs as they are consumed.
+   */
+  private static class MergingIterator extends AbstractIterator<KV<byte[], Iterator<byte[]>>> {
+    private final PriorityQueue<RunReader> readers;
+    private final List<RunReader> currentGroup;
+    private long generation;
+
+    private MergingIterator(List<RunReader> runReaders) throws IOException {
+      this.readers =
+          new PriorityQueue<>(
+              Math.max(1, runReaders.size()),
+              new Comparator<RunReader>() {
+                @Override
+                public int compare(RunReader left, RunReader right) {
+                  return KEY_ORDER.compare(left.currentKey, right.currentKey);
+                }
+              });
+      this.currentGroup = new ArrayList<>();
+      for (RunReader reader : runReaders) {
+        if (reader.advance()) {
+          readers.add(reader);
+        }
+      }
+    }
+
+    @Override
+    protected KV<byte[], Iterator<byte[]>> computeNext() {
+      try {
+        for (RunReader reader : currentGroup) {
+          if (reader.advance()) {
+            readers.add(reader);
+          }
+        }
+      } catch (IOException e) {
+        throw new IllegalStateException("Unable to read spilled grouping run", e);
+      }
+      currentGroup.clear();
+      generation++;
+      if (readers.isEmpty()) {
+        return endOfData();
+      }
+      RunReader first = readers.poll();
+      currentGroup.add(first);
+      while (!readers.isEmpty() && Arrays.equals(first.currentKey, readers.peek().currentKey)) {
+        currentGroup.add(readers.poll());
+      }
+      return KV.<byte[], Iterator<byte[]>>of(first.currentKey, new GroupValuesIterator());
+    }
+
+    /**
+     * Reads the values of the current group from each of the runs which contain the key.
+     */
+    private class GroupValuesIterator extends AbstractIterator<byte[]> {
+      private final long groupGeneration = generation;
+      private final Iterator<RunReader> groupReaders = new ArrayList<>(currentGroup).iterator();
+      private RunReader current;
+
+      @Override
+      protected byte[] computeNext() {
+        checkState(
+            groupGeneration == generation,
+            "The values of a group can't be read after the next group is requested");
+        try {
+          while (current == null || !current.hasNextValue()) {
+            if (!groupReaders.hasNext()) {
+              return endOfData();
+            }
+            current = groupReaders.next();
+          }
+          return current.nextValue();
+        } catch (IOException e) {
+          throw new IllegalStateException("Unable to read spilled grouping run", e);
+        }
+      }
+    }
+  }
+}
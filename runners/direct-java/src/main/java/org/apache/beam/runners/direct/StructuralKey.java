@@ -15,24 +15,80 @@
  * See the License for the specific language governing permissions and
  * limitations under the License.
  */
-
 package org.apache.beam.runners.direct;
 
 import org.apache.beam.sdk.coders.Coder;
 import org.apache.beam.sdk.coders.CoderException;
 import org.apache.beam.sdk.util.CoderUtils;
 
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import java.util.Arrays;
+
 /**
  * A (Key, Coder) pair that uses the structural value of the key (as provided by
  * {@link Coder#structuralValue(Object)}) to perform equality and hashing.
+ *
+ * <p>The key is encoded exactly once, when the {@link StructuralKey} is created, and a 64-bit hash
+ * of the encoded bytes is computed at the same time. Keys with equal encodings are always equal.
+ * If the {@link Coder} is deterministic, keys with different encodings are never equal, so the
+ * structural value of the key is never computed, and the hash of the encoded bytes is used as the
+ * hash code.
+ *
+ * <p>{@link StructuralKey StructuralKeys} created with the same deterministic coder are interned,
+ * so repeated calls to {@link #of(Object, Coder)} for a key which is in use return the same
+ * {@link StructuralKey}. If the {@link Coder} is also {@link Coder#consistentWithEquals()
+ * consistent with equals}, the key is decoded at most once. Otherwise the key may be mutable, so
+ * {@link #getKey()} decodes a fresh copy on every call rather than sharing one instance between
+ * every bundle and timer that uses the key.
+ *
+ * <p>{@link StructuralKey StructuralKeys} should only be compared to keys created with the same
+ * {@link Coder}.
  */
 class StructuralKey<K> {
+  private static final HashFunction HASH_FUNCTION = Hashing.murmur3_128();
+
+  /**
+   * Per-{@link Coder} information shared by all of the {@link StructuralKey StructuralKeys}
+   * created with that {@link Coder}. Weak keys ensure the information is reclaimed once the
+   * {@link Coder} is no longer in use.
+   */
+  private static final LoadingCache<Coder<?>, CoderKeys> CODER_KEYS =
+      CacheBuilder.newBuilder()
+          .weakKeys()
+          .build(
+              new CacheLoader<Coder<?>, CoderKeys>() {
+                @Override
+                public CoderKeys load(Coder<?> coder) {
+                  return new CoderKeys(coder);
+                }
+              });
+
   /**
    * Create a new Structural Key of the provided key that can be encoded by the provided coder.
    */
   public static <K> StructuralKey<K> of(K key, Coder<K> coder) {
     try {
-      return new StructuralKey<>(coder, key);
+      CoderKeys coderKeys = CODER_KEYS.getUnchecked(coder);
+      StructuralKey<K> structuralKey =
+          new StructuralKey<>(
+              coder,
+              coderKeys.deterministic,
+              coderKeys.consistentWithEquals,
+              CoderUtils.encodeToByteArray(coder, key));
+      if (!coderKeys.deterministic) {
+        // Interning would require the structural value of the key
+        return structuralKey;
+      }
+      @SuppressWarnings("unchecked")
+      StructuralKey<K> interned = (StructuralKey<K>) coderKeys.interner.intern(structuralKey);
+      return interned;
     } catch (Exception e) {
       throw new IllegalArgumentException(
           "Could not encode a key with its provided coder " + coder.getClass().getSimpleName(), e);
@@ -40,16 +96,48 @@ class StructuralKey<K> {
   }
 
   private final Coder<K> coder;
-  private final Object structuralValue;
+  private final boolean deterministic;
+  private final boolean memoizeKey;
   private final byte[] encoded;
+  private final long encodedHash;
+
+  /** The structural value of the key. Only computed if the coder is not deterministic. */
+  private volatile Object structuralValue;
+  /**
+   * The decoded key. Computed on the first call to {@link #getKey()} if the coder is consistent
+   * with equals.
+   */
+  private volatile K decoded;
+  private volatile boolean isDecoded;
 
-  private StructuralKey(Coder<K> coder, K key) throws Exception {
+  private StructuralKey(
+      Coder<K> coder, boolean deterministic, boolean memoizeKey, byte[] encoded) {
     this.coder = coder;
-    this.structuralValue = coder.structuralValue(key);
-    this.encoded = CoderUtils.encodeToByteArray(coder, key);
+    this.deterministic = deterministic;
+    this.memoizeKey = memoizeKey;
+    this.encoded = encoded;
+    this.encodedHash = HASH_FUNCTION.hashBytes(encoded).asLong();
   }
 
   public K getKey() {
+    if (!memoizeKey) {
+      return decodeKey();
+    }
+    if (!isDecoded) {
+      decoded = decodeKey();
+      isDecoded = true;
+    }
+    return decoded;
+  }
+
+  /**
+   * Returns the encoded form of the key. The returned array is shared, and must not be modified.
+   */
+  public byte[] getEncodedKey() {
+    return encoded;
+  }
+
+  private K decodeKey() {
     try {
       return CoderUtils.decodeFromByteArray(coder, encoded);
     } catch (CoderException e) {
@@ -58,20 +146,63 @@ class StructuralKey<K> {
     }
   }
 
+  private Object getStructuralValue() {
+    Object result = structuralValue;
+    if (result == null) {
+      try {
+        result = coder.structuralValue(getKey());
+      } catch (Exception e) {
+        throw new IllegalArgumentException(
+            "Could not get the structural value of a key with coder of type "
+                + coder.getClass().getSimpleName(),
+            e);
+      }
+      structuralValue = result;
+    }
+    return result;
+  }
+
   @Override
   public boolean equals(Object other) {
     if (other == this) {
       return true;
     }
     if (other instanceof StructuralKey) {
-      StructuralKey that = (StructuralKey) other;
-      return structuralValue.equals(that.structuralValue);
+      StructuralKey<?> that = (StructuralKey<?>) other;
+      // Equal encodings always have equal structural values
+      if (encodedHash == that.encodedHash && Arrays.equals(encoded, that.encoded)) {
+        return true;
+      }
+      // Structurally equal keys of a deterministic coder always have equal encodings
+      if (deterministic && that.deterministic) {
+        return false;
+      }
+      return getStructuralValue().equals(that.getStructuralValue());
     }
     return false;
   }
 
   @Override
   public int hashCode() {
-    return structuralValue.hashCode();
+    if (deterministic) {
+      return (int) (encodedHash ^ (encodedHash >>> 32));
+    }
+    return getStructuralValue().hashCode();
+  }
+
+  /**
+   * The determinism of a {@link Coder}, whether it is consistent with equals, and the
+   * {@link Interner} for keys created with it.
+   */
+  private static class CoderKeys {
+    private final boolean deterministic;
+    private final boolean consistentWithEquals;
+    private final Interner<StructuralKey<?>> interner;
+
+    private CoderKeys(Coder<?> coder) {
+      this.deterministic = DeterministicCoders.isDeterministic(coder);
+      this.consistentWithEquals = coder.consistentWithEquals();
+      this.interner = Interners.newWeakInterner();
+    }
   }
 }
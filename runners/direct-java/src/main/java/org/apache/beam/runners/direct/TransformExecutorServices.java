@@ -22,6 +22,9 @@ import com.google.common.base.MoreObjects;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
 import java.util.concurrent.atomic.AtomicReference;
 
 /**
@@ -48,6 +51,25 @@ final class TransformExecutorServices {
     return new SerialEvaluationState(executor);
   }
 
+  /**
+   * Submits the provided work to the {@link ExecutorService}.
+   *
+   * <p>If the {@link ExecutorService} is a {@link ForkJoinPool} and the current thread is a worker
+   * of that pool, the work is pushed onto the local work queue of the current thread, where it
+   * will be executed by the current thread unless it is stolen by an idle worker. Otherwise, the
+   * work is submitted to the {@link ExecutorService} as normal.
+   */
+  private static void submit(ExecutorService executor, TransformExecutor<?> work) {
+    Thread current = Thread.currentThread();
+    if (executor instanceof ForkJoinPool
+        && current instanceof ForkJoinWorkerThread
+        && ((ForkJoinWorkerThread) current).getPool() == executor) {
+      ForkJoinTask.adapt(work).fork();
+    } else {
+      executor.submit(work);
+    }
+  }
+
   /**
    * A {@link TransformExecutorService} with unlimited parallelism. Any {@link TransformExecutor}
    * scheduled will be immediately submitted to the {@link ExecutorService}.
@@ -64,7 +86,7 @@ final class TransformExecutorServices {
 
     @Override
     public void schedule(TransformExecutor<?> work) {
-      executor.submit(work);
+      submit(executor, work);
     }
 
     @Override
@@ -121,7 +143,7 @@ final class TransformExecutorServices {
           TransformExecutor<?> newWork = workQueue.poll();
           if (newWork != null) {
             if (currentlyEvaluating.compareAndSet(null, newWork)) {
-              executor.submit(newWork);
+              submit(executor, newWork);
             } else {
               workQueue.offer(newWork);
             }
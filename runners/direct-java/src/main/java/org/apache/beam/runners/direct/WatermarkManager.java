@@ -31,35 +31,38 @@ import org.apache.beam.sdk.values.PValue;
 
 import com.google.auto.value.AutoValue;
 import com.google.common.annotations.VisibleForTesting;
-import com.google.common.base.Function;
 import com.google.common.base.MoreObjects;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ComparisonChain;
-import com.google.common.collect.FluentIterable;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Ordering;
-import com.google.common.collect.SortedMultiset;
-import com.google.common.collect.TreeMultiset;
 
 import org.joda.time.Instant;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.NavigableSet;
+import java.util.NoSuchElementException;
 import java.util.Objects;
 import java.util.PriorityQueue;
 import java.util.Set;
 import java.util.TreeSet;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 import javax.annotation.Nullable;
 
@@ -206,14 +209,14 @@ public class WatermarkManager {
    */
   private static class AppliedPTransformInputWatermark implements Watermark {
     private final Collection<? extends Watermark> inputWatermarks;
-    private final SortedMultiset<WindowedValue<?>> pendingElements;
+    private final PendingBundles pendingElements;
     private final Map<StructuralKey<?>, NavigableSet<TimerData>> objectTimers;
 
     private AtomicReference<Instant> currentWatermark;
 
     public AppliedPTransformInputWatermark(Collection<? extends Watermark> inputWatermarks) {
       this.inputWatermarks = inputWatermarks;
-      this.pendingElements = TreeMultiset.create(new WindowedValueByTimestampComparator());
+      this.pendingElements = new PendingBundles();
       this.objectTimers = new HashMap<>();
       currentWatermark = new AtomicReference<>(BoundedWindow.TIMESTAMP_MIN_VALUE);
     }
@@ -237,34 +240,35 @@ public class WatermarkManager {
      *     </ul>
      *   </li>
      * </ul>
+     *
+     * <p>Refreshing does not block concurrent refreshes or updates to the pending elements.
      */
     @Override
-    public synchronized WatermarkUpdate refresh() {
-      Instant oldWatermark = currentWatermark.get();
+    public WatermarkUpdate refresh() {
       Instant minInputWatermark = BoundedWindow.TIMESTAMP_MAX_VALUE;
       for (Watermark inputWatermark : inputWatermarks) {
         minInputWatermark = INSTANT_ORDERING.min(minInputWatermark, inputWatermark.get());
       }
-      if (!pendingElements.isEmpty()) {
-        minInputWatermark = INSTANT_ORDERING.min(
-            minInputWatermark, pendingElements.firstEntry().getElement().getTimestamp());
-      }
-      Instant newWatermark = INSTANT_ORDERING.max(oldWatermark, minInputWatermark);
-      currentWatermark.set(newWatermark);
-      return WatermarkUpdate.fromTimestamps(oldWatermark, newWatermark);
+      minInputWatermark =
+          INSTANT_ORDERING.min(minInputWatermark, pendingElements.getMinimumTimestamp());
+      return advance(currentWatermark, minInputWatermark);
     }
 
-    private synchronized void addPendingElements(Iterable<? extends WindowedValue<?>> newPending) {
-      for (WindowedValue<?> pendingElement : newPending) {
-        pendingElements.add(pendingElement);
+    private void addPendingElements(CommittedBundle<?> newPending) {
+      Instant minTimestamp = BoundedWindow.TIMESTAMP_MAX_VALUE;
+      boolean empty = true;
+      for (WindowedValue<?> pendingElement : newPending.getElements()) {
+        minTimestamp = INSTANT_ORDERING.min(minTimestamp, pendingElement.getTimestamp());
+        empty = false;
+      }
+      // Bundles without any elements can't hold the watermark
+      if (!empty) {
+        pendingElements.add(newPending, minTimestamp);
       }
     }
 
-    private synchronized void removePendingElements(
-        Iterable<? extends WindowedValue<?>> finishedElements) {
-      for (WindowedValue<?> finishedElement : finishedElements) {
-        pendingElements.remove(finishedElement);
-      }
+    private void removePendingElements(CommittedBundle<?> finished) {
+      pendingElements.remove(finished);
     }
 
     private synchronized void updateTimers(TimerUpdate update) {
@@ -347,12 +351,12 @@ public class WatermarkManager {
      * </ul>
      */
     @Override
-    public synchronized WatermarkUpdate refresh() {
-      Instant oldWatermark = currentWatermark.get();
-      Instant newWatermark = INSTANT_ORDERING.min(inputWatermark.get(), holds.getMinHold());
-      newWatermark = INSTANT_ORDERING.max(oldWatermark, newWatermark);
-      currentWatermark.set(newWatermark);
-      return WatermarkUpdate.fromTimestamps(oldWatermark, newWatermark);
+    public WatermarkUpdate refresh() {
+      return advance(currentWatermark, INSTANT_ORDERING.min(inputWatermark.get(), getMinHold()));
+    }
+
+    private synchronized Instant getMinHold() {
+      return holds.getMinHold();
     }
 
     @Override
@@ -383,7 +387,7 @@ public class WatermarkManager {
    */
   private static class SynchronizedProcessingTimeInputWatermark implements Watermark {
     private final Collection<? extends Watermark> inputWms;
-    private final Collection<CommittedBundle<?>> pendingBundles;
+    private final PendingBundles pendingBundles;
     private final Map<StructuralKey<?>, NavigableSet<TimerData>> processingTimers;
     private final Map<StructuralKey<?>, NavigableSet<TimerData>> synchronizedProcessingTimers;
 
@@ -393,7 +397,7 @@ public class WatermarkManager {
 
     public SynchronizedProcessingTimeInputWatermark(Collection<? extends Watermark> inputWms) {
       this.inputWms = inputWms;
-      this.pendingBundles = new HashSet<>();
+      this.pendingBundles = new PendingBundles();
       this.processingTimers = new HashMap<>();
       this.synchronizedProcessingTimers = new HashMap<>();
       this.pendingTimers = new PriorityQueue<>();
@@ -429,21 +433,19 @@ public class WatermarkManager {
       for (Watermark input : inputWms) {
         minTime = INSTANT_ORDERING.min(minTime, input.get());
       }
-      for (CommittedBundle<?> bundle : pendingBundles) {
-        // TODO: Track elements in the bundle by the processing time they were output instead of
-        // entire bundles. Requried to support arbitrarily splitting and merging bundles between
-        // steps
-        minTime = INSTANT_ORDERING.min(minTime, bundle.getSynchronizedProcessingOutputWatermark());
-      }
+      // TODO: Track elements in the bundle by the processing time they were output instead of
+      // entire bundles. Requried to support arbitrarily splitting and merging bundles between
+      // steps
+      minTime = INSTANT_ORDERING.min(minTime, pendingBundles.getMinimumTimestamp());
       earliestHold.set(minTime);
       return WatermarkUpdate.fromTimestamps(oldHold, minTime);
     }
 
-    public synchronized void addPending(CommittedBundle<?> bundle) {
-      pendingBundles.add(bundle);
+    public void addPending(CommittedBundle<?> bundle) {
+      pendingBundles.add(bundle, bundle.getSynchronizedProcessingOutputWatermark());
     }
 
-    public synchronized void removePending(CommittedBundle<?> bundle) {
+    public void removePending(CommittedBundle<?> bundle) {
       pendingBundles.remove(bundle);
     }
 
@@ -629,17 +631,19 @@ public class WatermarkManager {
   private static final Ordering<Instant> INSTANT_ORDERING = Ordering.natural();
 
   /**
-   * A function that takes a WindowedValue and returns the exploded representation of that
-   * {@link WindowedValue}.
+   * Sets the value of the provided reference to the maximum of its current value and the provided
+   * candidate, and returns the resulting {@link WatermarkUpdate}. Concurrent calls never cause the
+   * value of the reference to move backwards.
    */
-  private static final Function<WindowedValue<?>, ? extends Iterable<? extends WindowedValue<?>>>
-      EXPLODE_WINDOWS_FN =
-          new Function<WindowedValue<?>, Iterable<? extends WindowedValue<?>>>() {
-            @Override
-            public Iterable<? extends WindowedValue<?>> apply(WindowedValue<?> input) {
-              return input.explodeWindows();
-            }
-          };
+  private static WatermarkUpdate advance(AtomicReference<Instant> current, Instant candidate) {
+    Instant oldWatermark;
+    Instant newWatermark;
+    do {
+      oldWatermark = current.get();
+      newWatermark = INSTANT_ORDERING.max(oldWatermark, candidate);
+    } while (newWatermark != oldWatermark && !current.compareAndSet(oldWatermark, newWatermark));
+    return WatermarkUpdate.fromTimestamps(oldWatermark, newWatermark);
+  }
 
   /**
    * For each (Object, PriorityQueue) pair in the provided map, remove each Timer that is before the
@@ -700,6 +704,12 @@ public class WatermarkManager {
    */
   private final ConcurrentLinkedQueue<AppliedPTransform<?, ?, ?>> pendingRefreshes;
 
+  /**
+   * Held while pending updates are applied, to ensure updates are applied in order. Not held while
+   * watermarks are refreshed.
+   */
+  private final Lock applyingUpdates;
+
   /**
    * Creates a new {@link WatermarkManager}. All watermarks within the newly created
    * {@link WatermarkManager} start at {@link BoundedWindow#TIMESTAMP_MIN_VALUE}, the
@@ -724,6 +734,7 @@ public class WatermarkManager {
     this.consumers = consumers;
     this.pendingUpdates = new ConcurrentLinkedQueue<>();
     this.pendingRefreshes = new ConcurrentLinkedQueue<>();
+    this.applyingUpdates = new ReentrantLock();
 
     transformToWatermarks = new HashMap<>();
 
@@ -837,16 +848,25 @@ public class WatermarkManager {
   /**
    * Applies all pending updates to this {@link WatermarkManager}, causing the pending state
    * of all {@link TransformWatermarks} to be advanced as far as possible.
+   *
+   * <p>Updates must be applied in the order they were received, as an update may remove elements
+   * that are added as pending by an earlier update. Only one thread applies updates at a time.
+   * The transforms that received updates are queued to be refreshed.
    */
   private void applyPendingUpdates() {
-    Set<AppliedPTransform<?, ?, ?>> updatedTransforms = new HashSet<>();
-    PendingWatermarkUpdate pending = pendingUpdates.poll();
-    while (pending != null) {
-      applyPendingUpdate(pending);
-      updatedTransforms.add(pending.getTransform());
-      pending = pendingUpdates.poll();
-    }
-    pendingRefreshes.addAll(updatedTransforms);
+    applyingUpdates.lock();
+    try {
+      Set<AppliedPTransform<?, ?, ?>> updatedTransforms = new HashSet<>();
+      PendingWatermarkUpdate pending = pendingUpdates.poll();
+      while (pending != null) {
+        applyPendingUpdate(pending);
+        updatedTransforms.add(pending.getTransform());
+        pending = pendingUpdates.poll();
+      }
+      pendingRefreshes.addAll(updatedTransforms);
+    } finally {
+      applyingUpdates.unlock();
+    }
   }
 
   private void applyPendingUpdate(PendingWatermarkUpdate pending) {
@@ -854,11 +874,13 @@ public class WatermarkManager {
     AppliedPTransform transform = result.getTransform();
     CommittedBundle<?> inputBundle = pending.getInputBundle();
 
-    updatePending(inputBundle, pending.getTimerUpdate(), result);
-
+    // The hold must be in place before the input bundle stops being pending, or the output
+    // watermark could advance past the hold in between.
     TransformWatermarks transformWms = transformToWatermarks.get(transform);
     transformWms.setEventTimeHold(inputBundle == null ? null : inputBundle.getKey(),
         pending.getEarliestHold());
+
+    updatePending(inputBundle, pending.getTimerUpdate(), result);
   }
 
   /**
@@ -901,24 +923,34 @@ public class WatermarkManager {
   /**
    * Refresh the watermarks contained within this {@link WatermarkManager}, causing all
    * watermarks to be advanced as far as possible.
+   *
+   * <p>Only the {@link AppliedPTransform AppliedPTransforms} which have received updates, and the
+   * consumers of any {@link AppliedPTransform} whose output watermark advances, are refreshed.
+   *
+   * <p>Multiple threads may refresh concurrently. Each transform is refreshed by one thread at a
+   * time, and a transform's consumers are queued only after its refresh completes, so updates
+   * propagate downstream in order; refreshes of different transforms proceed in parallel. When
+   * this method returns, every update received before it was called has been applied, and every
+   * resulting refresh has either been performed by this call or is being performed by a
+   * concurrent call.
    */
-  synchronized void refreshAll() {
+  void refreshAll() {
     applyPendingUpdates();
-    while (!pendingRefreshes.isEmpty()) {
-      refreshWatermarks(pendingRefreshes.poll());
+    AppliedPTransform<?, ?, ?> toRefresh = pendingRefreshes.poll();
+    while (toRefresh != null) {
+      refreshWatermarks(toRefresh);
+      toRefresh = pendingRefreshes.poll();
     }
   }
 
   private void refreshWatermarks(AppliedPTransform<?, ?, ?> toRefresh) {
     TransformWatermarks myWatermarks = transformToWatermarks.get(toRefresh);
     WatermarkUpdate updateResult = myWatermarks.refresh();
-    Set<AppliedPTransform<?, ?, ?>> additionalRefreshes = new HashSet<>();
     if (updateResult.isAdvanced()) {
       for (PValue outputPValue : toRefresh.getOutput().expand()) {
-        additionalRefreshes.addAll(consumers.get(outputPValue));
+        pendingRefreshes.addAll(consumers.get(outputPValue));
       }
     }
-    pendingRefreshes.addAll(additionalRefreshes);
   }
 
   /**
@@ -1040,6 +1072,99 @@ public class WatermarkManager {
     }
   }
 
+  /**
+   * The {@link CommittedBundle CommittedBundles} pending at an {@link AppliedPTransform}, each
+   * associated with the earliest timestamp it holds a watermark to.
+   *
+   * <p>The minimum timestamp across all pending bundles can be read without blocking concurrent
+   * additions and removals. A bundle may be pending more than once (for example, if a
+   * {@link PCollection} is consumed more than once by the same {@link AppliedPTransform}), in
+   * which case it must be removed an equal number of times.
+   */
+  private static class PendingBundles {
+    private final AtomicLong sequence;
+    private final Map<CommittedBundle<?>, Deque<PendingBundle>> bundles;
+    private final ConcurrentSkipListSet<PendingBundle> byTimestamp;
+
+    private PendingBundles() {
+      this.sequence = new AtomicLong();
+      this.bundles = new HashMap<>();
+      this.byTimestamp = new ConcurrentSkipListSet<>();
+    }
+
+    /**
+     * Returns the minimum timestamp across all pending bundles, or THE_END_OF_TIME if there are no
+     * pending bundles.
+     */
+    public Instant getMinimumTimestamp() {
+      try {
+        return byTimestamp.first().timestamp;
+      } catch (NoSuchElementException e) {
+        return THE_END_OF_TIME.get();
+      }
+    }
+
+    public synchronized void add(CommittedBundle<?> bundle, Instant timestamp) {
+      Deque<PendingBundle> pending = bundles.get(bundle);
+      if (pending == null) {
+        pending = new ArrayDeque<>(1);
+        bundles.put(bundle, pending);
+      }
+      PendingBundle pendingBundle =
+          new PendingBundle(bundle, timestamp, sequence.getAndIncrement());
+      pending.add(pendingBundle);
+      byTimestamp.add(pendingBundle);
+    }
+
+    public synchronized void remove(CommittedBundle<?> bundle) {
+      Deque<PendingBundle> pending = bundles.get(bundle);
+      if (pending == null) {
+        return;
+      }
+      byTimestamp.remove(pending.remove());
+      if (pending.isEmpty()) {
+        bundles.remove(bundle);
+      }
+    }
+
+    @Override
+    public String toString() {
+      return byTimestamp.toString();
+    }
+  }
+
+  /**
+   * A pending {@link CommittedBundle}, ordered by its timestamp. Ties are broken by the order in
+   * which bundles became pending.
+   */
+  private static final class PendingBundle implements Comparable<PendingBundle> {
+    private final CommittedBundle<?> bundle;
+    private final Instant timestamp;
+    private final long sequenceNumber;
+
+    private PendingBundle(CommittedBundle<?> bundle, Instant timestamp, long sequenceNumber) {
+      this.bundle = bundle;
+      this.timestamp = timestamp;
+      this.sequenceNumber = sequenceNumber;
+    }
+
+    @Override
+    public int compareTo(PendingBundle that) {
+      return ComparisonChain.start()
+          .compare(this.timestamp, that.timestamp)
+          .compare(this.sequenceNumber, that.sequenceNumber)
+          .result();
+    }
+
+    @Override
+    public String toString() {
+      return MoreObjects.toStringHelper(PendingBundle.class)
+          .add("bundle", bundle)
+          .add("timestamp", timestamp)
+          .toString();
+    }
+  }
+
   /**
    * A reference to the input and output watermarks of an {@link AppliedPTransform}.
    */
@@ -1107,7 +1232,12 @@ public class WatermarkManager {
       return latestSynchronizedOutputWm;
     }
 
-    private WatermarkUpdate refresh() {
+    /**
+     * Refreshes the watermarks of this transform. Synchronized so that the input and output
+     * watermarks of a transform are refreshed together, without serializing refreshes of other
+     * transforms.
+     */
+    private synchronized WatermarkUpdate refresh() {
       inputWatermark.refresh();
       synchronizedProcessingInputWatermark.refresh();
       WatermarkUpdate eventOutputUpdate = outputWatermark.refresh();
@@ -1120,19 +1250,15 @@ public class WatermarkManager {
     }
 
     private void removePending(CommittedBundle<?> bundle) {
-      inputWatermark.removePendingElements(elementsFromBundle(bundle));
+      inputWatermark.removePendingElements(bundle);
       synchronizedProcessingInputWatermark.removePending(bundle);
     }
 
     private void addPending(CommittedBundle<?> bundle) {
-      inputWatermark.addPendingElements(elementsFromBundle(bundle));
+      inputWatermark.addPendingElements(bundle);
       synchronizedProcessingInputWatermark.addPending(bundle);
     }
 
-    private Iterable<? extends WindowedValue<?>> elementsFromBundle(CommittedBundle<?> bundle) {
-      return FluentIterable.from(bundle.getElements()).transformAndConcat(EXPLODE_WINDOWS_FN);
-    }
-
     private Map<StructuralKey<?>, FiredTimers> extractFiredTimers() {
       Map<StructuralKey<?>, List<TimerData>> eventTimeTimers =
           inputWatermark.extractFiredEventTimeTimers();
@@ -1372,15 +1498,6 @@ public class WatermarkManager {
     }
   }
 
-  private static class WindowedValueByTimestampComparator extends Ordering<WindowedValue<?>> {
-    @Override
-    public int compare(WindowedValue<?> o1, WindowedValue<?> o2) {
-      return ComparisonChain.start()
-          .compare(o1.getTimestamp(), o2.getTimestamp())
-          .result();
-    }
-  }
-
   public Set<AppliedPTransform<?, ?, ?>> getCompletedTransforms() {
     Set<AppliedPTransform<?, ?, ?>> result = new HashSet<>();
     for (Map.Entry<AppliedPTransform<?, ?, ?>, TransformWatermarks> wms :
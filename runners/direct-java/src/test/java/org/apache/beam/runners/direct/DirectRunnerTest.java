@@ -17,6 +17,8 @@
  */
 package org.apache.beam.runners.direct;
 
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
 import static org.hamcrest.Matchers.is;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.fail;
@@ -34,6 +36,7 @@ import org.apache.beam.sdk.transforms.Count;
 import org.apache.beam.sdk.transforms.Create;
 import org.apache.beam.sdk.transforms.DoFn;
 import org.apache.beam.sdk.transforms.Flatten;
+import org.apache.beam.sdk.transforms.GroupByKey;
 import org.apache.beam.sdk.transforms.MapElements;
 import org.apache.beam.sdk.transforms.ParDo;
 import org.apache.beam.sdk.transforms.SerializableFunction;
@@ -85,6 +88,17 @@ public class DirectRunnerTest implements Serializable {
             .getRunner()));
   }
 
+  @Test
+  public void spillingGroupByKeyRequiresEncodedBundlesWithoutImmutabilityChecks() {
+    Pipeline p = getPipeline();
+    p.getOptions().as(DirectOptions.class).setGroupByKeySpillThresholdBytes(1024L);
+    p.apply(Create.of(KV.of("foo", 1))).apply(GroupByKey.<String, Integer>create());
+
+    thrown.expect(IllegalArgumentException.class);
+    thrown.expectMessage("encodeBundles");
+    p.run();
+  }
+
   @Test
   public void wordCountShouldSucceed() throws Throwable {
     Pipeline p = getPipeline();
@@ -113,6 +127,51 @@ public class DirectRunnerTest implements Serializable {
     result.awaitCompletion();
   }
 
+  @Test
+  public void wordCountWithWorkStealingSchedulerShouldSucceed() throws Throwable {
+    Pipeline p = getPipeline();
+    p.getOptions().as(DirectOptions.class).setWorkStealingScheduler(true);
+
+    PCollection<KV<String, Long>> counts =
+        p.apply(Create.of("foo", "bar", "foo", "baz", "bar", "foo"))
+            .apply(Count.<String>perElement());
+    PCollection<String> countStrs =
+        counts.apply(MapElements.via(new SimpleFunction<KV<String, Long>, String>() {
+          @Override
+          public String apply(KV<String, Long> input) {
+            return String.format("%s: %s", input.getKey(), input.getValue());
+          }
+        }));
+
+    PAssert.that(countStrs).containsInAnyOrder("baz: 1", "bar: 2", "foo: 3");
+
+    DirectPipelineResult result = ((DirectPipelineResult) p.run());
+    result.awaitCompletion();
+  }
+
+  @Test
+  public void enforcementSampleCountsReported() throws Throwable {
+    Pipeline p = getPipeline();
+    DirectOptions options = p.getOptions().as(DirectOptions.class);
+    options.setEnforcementFirstElements(0);
+    options.setEnforcementSampleInterval(0);
+
+    PCollection<Integer> doubled =
+        p.apply(Create.of(1, 2, 3, 4))
+            .apply(MapElements.via(new SimpleFunction<Integer, Integer>() {
+              @Override
+              public Integer apply(Integer input) {
+                return input * 2;
+              }
+            }));
+    PAssert.that(doubled).containsInAnyOrder(2, 4, 6, 8);
+
+    DirectPipelineResult result = ((DirectPipelineResult) p.run());
+    result.awaitCompletion();
+    assertThat(result.getEnforcementElementsVerified(), equalTo(0L));
+    assertThat(result.getEnforcementElementsSkipped(), greaterThan(0L));
+  }
+
   @Test(timeout = 5000L)
   public void byteArrayCountShouldSucceed() {
     Pipeline p = getPipeline();
@@ -0,0 +1,197 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.beam.runners.direct;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.emptyIterable;
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+import org.apache.beam.runners.direct.DirectRunner.CommittedBundle;
+import org.apache.beam.runners.direct.DirectRunner.UncommittedBundle;
+import org.apache.beam.sdk.coders.StringUtf8Coder;
+import org.apache.beam.sdk.coders.VoidCoder;
+import org.apache.beam.sdk.testing.TestPipeline;
+import org.apache.beam.sdk.transforms.Create;
+import org.apache.beam.sdk.transforms.windowing.FixedWindows;
+import org.apache.beam.sdk.transforms.windowing.IntervalWindow;
+import org.apache.beam.sdk.transforms.windowing.PaneInfo;
+import org.apache.beam.sdk.transforms.windowing.Window;
+import org.apache.beam.sdk.util.UserCodeException;
+import org.apache.beam.sdk.util.WindowedValue;
+import org.apache.beam.sdk.values.PCollection;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+
+import org.hamcrest.Matchers;
+import org.joda.time.Duration;
+import org.joda.time.Instant;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests for {@link EncodedBundleFactory}.
+ */
+@RunWith(JUnit4.class)
+public class EncodedBundleFactoryTest {
+  @Rule public ExpectedException thrown = ExpectedException.none();
+
+  private EncodedBundleFactory bundleFactory = EncodedBundleFactory.create();
+
+  private PCollection<String> created;
+
+  @Before
+  public void setup() {
+    TestPipeline p = TestPipeline.create();
+    created = p.apply(Create.of("foo", "bar"));
+  }
+
+  @Test
+  public void createRootBundleShouldCreateWithEmptyKey() {
+    CommittedBundle<String> bundle = bundleFactory.createRootBundle(created).commit(Instant.now());
+
+    assertThat(bundle.getKey(),
+        Matchers.<StructuralKey<?>>equalTo(StructuralKey.of(null, VoidCoder.of())));
+    assertThat(bundle.getElements(), emptyIterable());
+  }
+
+  @Test
+  public void createKeyedBundleKeyed() {
+    CommittedBundle<String> keyedBundle = bundleFactory.createKeyedBundle(
+        bundleFactory.createRootBundle(created).commit(Instant.now()),
+        StructuralKey.of("foo", StringUtf8Coder.of()),
+        created).commit(Instant.now());
+    assertThat(keyedBundle.getKey().getKey(), Matchers.<Object>equalTo("foo"));
+
+    CommittedBundle<String> downstream =
+        bundleFactory.createBundle(keyedBundle, created).commit(Instant.now());
+    assertThat(downstream.getKey().getKey(), Matchers.<Object>equalTo("foo"));
+  }
+
+  @Test
+  public void getElementsAfterAddShouldReturnAddedElements() {
+    WindowedValue<String> firstValue = WindowedValue.valueInGlobalWindow("foo");
+    WindowedValue<String> secondValue =
+        WindowedValue.timestampedValueInGlobalWindow("bar", new Instant(1000L));
+
+    CommittedBundle<String> committed =
+        bundleFactory.createRootBundle(created).add(firstValue).add(secondValue)
+            .commit(Instant.now());
+
+    assertThat(committed.getElements(), contains(firstValue, secondValue));
+    // Elements can be iterated over more than once
+    assertThat(committed.getElements(), contains(firstValue, secondValue));
+  }
+
+  @Test
+  public void getElementsSpanningSegmentsShouldReturnAddedElements() {
+    String large = Strings.repeat("abcdefgh", EncodedBundleFactory.SEGMENT_SIZE / 4);
+    List<WindowedValue<String>> elements = new ArrayList<>();
+    UncommittedBundle<String> bundle = bundleFactory.createRootBundle(created);
+    for (int i = 0; i < 5; i++) {
+      WindowedValue<String> element = WindowedValue.valueInGlobalWindow(large + i);
+      elements.add(element);
+      bundle.add(element);
+    }
+
+    CommittedBundle<String> committed = bundle.commit(Instant.now());
+    assertThat(committed.getElements(), Matchers.<WindowedValue<String>>contains(
+        elements.toArray(new WindowedValue[0])));
+  }
+
+  @Test
+  public void getElementsAfterLaterBundlesReuseSegmentsShouldReturnAddedElements() {
+    // The last, partially filled segment of a bundle is returned to the pool when the bundle is
+    // committed, and is overwritten by the bundles committed after it.
+    String large = Strings.repeat("abcdefgh", EncodedBundleFactory.SEGMENT_SIZE / 4);
+    WindowedValue<String> element = WindowedValue.valueInGlobalWindow(large);
+    CommittedBundle<String> retained =
+        bundleFactory.createRootBundle(created).add(element).add(element).commit(Instant.now());
+
+    List<CommittedBundle<String>> later = new ArrayList<>();
+    List<WindowedValue<String>> laterElements = new ArrayList<>();
+    for (int i = 0; i < 20; i++) {
+      WindowedValue<String> laterElement =
+          WindowedValue.valueInGlobalWindow(Strings.repeat(String.valueOf(i), large.length()));
+      laterElements.add(laterElement);
+      later.add(bundleFactory.createRootBundle(created).add(laterElement).commit(Instant.now()));
+    }
+
+    assertThat(retained.getElements(), contains(element, element));
+    for (int i = 0; i < later.size(); i++) {
+      assertThat(later.get(i).getElements(), contains(laterElements.get(i)));
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  public void withElementsShouldReturnIndependentBundle() {
+    PCollection<String> windowed =
+        created.apply(Window.<String>into(FixedWindows.of(Duration.millis(10L))));
+    IntervalWindow window = new IntervalWindow(new Instant(0L), new Instant(10L));
+    WindowedValue<String> firstValue =
+        WindowedValue.of("foo", new Instant(1L), window, PaneInfo.NO_FIRING);
+    WindowedValue<String> replacement =
+        WindowedValue.of("baz", new Instant(8L), window, PaneInfo.ON_TIME_AND_ONLY_FIRING);
+
+    CommittedBundle<String> committed =
+        bundleFactory.createRootBundle(windowed).add(firstValue).commit(Instant.now());
+    CommittedBundle<String> withed = committed.withElements(ImmutableList.of(replacement));
+
+    assertThat(withed.getElements(), containsInAnyOrder(replacement));
+    assertThat(committed.getElements(), containsInAnyOrder(firstValue));
+    assertThat(withed.getKey(), Matchers.<StructuralKey<?>>equalTo(committed.getKey()));
+    assertThat(withed.getPCollection(), equalTo(committed.getPCollection()));
+    assertThat(
+        withed.getSynchronizedProcessingOutputWatermark(),
+        equalTo(committed.getSynchronizedProcessingOutputWatermark()));
+  }
+
+  @Test
+  public void addUnencodableElementShouldThrow() {
+    UncommittedBundle<String> bundle = bundleFactory.createRootBundle(created);
+
+    thrown.expect(UserCodeException.class);
+    bundle.add(
+        WindowedValue.of(
+            "foo",
+            new Instant(0L),
+            new IntervalWindow(new Instant(0L), new Instant(10L)),
+            PaneInfo.NO_FIRING));
+  }
+
+  @Test
+  public void addAfterCommitShouldThrowException() {
+    UncommittedBundle<String> bundle = bundleFactory.createRootBundle(created);
+    bundle.add(WindowedValue.valueInGlobalWindow("foo"));
+    bundle.commit(Instant.now());
+
+    thrown.expect(IllegalStateException.class);
+    thrown.expectMessage("committed");
+    bundle.add(WindowedValue.valueInGlobalWindow("bar"));
+  }
+}
@@ -0,0 +1,91 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.beam.runners.direct;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+import org.apache.beam.runners.direct.EnforcementSampler.BundleSample;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests for {@link EnforcementSampler}.
+ */
+@RunWith(JUnit4.class)
+public class EnforcementSamplerTest {
+  @Rule public ExpectedException thrown = ExpectedException.none();
+
+  @Test
+  public void allSamplesEveryElement() {
+    assertThat(sampled(EnforcementSampler.all().forBundle(), 4), contains(0, 1, 2, 3));
+  }
+
+  @Test
+  public void firstElementsThenIntervalSamplesAndCounts() {
+    EnforcementSampler sampler = EnforcementSampler.create(2, 3);
+
+    assertThat(sampled(sampler.forBundle(), 10), contains(0, 1, 4, 7));
+    // Each bundle is sampled independently
+    assertThat(sampled(sampler.forBundle(), 3), contains(0, 1));
+    assertThat(sampler.getElementsVerified(), equalTo(6L));
+    assertThat(sampler.getElementsSkipped(), equalTo(7L));
+  }
+
+  @Test
+  public void zeroIntervalSamplesOnlyFirstElements() {
+    EnforcementSampler sampler = EnforcementSampler.create(2, 0);
+
+    assertThat(sampled(sampler.forBundle(), 10), contains(0, 1));
+    assertThat(sampler.getElementsVerified(), equalTo(2L));
+    assertThat(sampler.getElementsSkipped(), equalTo(8L));
+  }
+
+  @Test
+  public void isSamplingOnlyWhenElementsMayBeSkipped() {
+    assertThat(EnforcementSampler.all().isSampling(), equalTo(false));
+    assertThat(EnforcementSampler.create(5, 1).isSampling(), equalTo(false));
+    assertThat(EnforcementSampler.create(0, 3).isSampling(), equalTo(true));
+    assertThat(EnforcementSampler.create(2, 0).isSampling(), equalTo(true));
+  }
+
+  @Test
+  public void negativeIntervalThrows() {
+    thrown.expect(IllegalArgumentException.class);
+    thrown.expectMessage("nonnegative");
+    EnforcementSampler.create(0, -1);
+  }
+
+  private static List<Integer> sampled(BundleSample sample, int numElements) {
+    List<Integer> sampled = new ArrayList<>();
+    for (int i = 0; i < numElements; i++) {
+      if (sample.sampleNext()) {
+        sampled.add(i);
+      }
+    }
+    return sampled;
+  }
+}
@@ -28,6 +28,7 @@ import org.apache.beam.runners.direct.DirectRunner.UncommittedBundle;
 import org.apache.beam.sdk.coders.Coder;
 import org.apache.beam.sdk.coders.KvCoder;
 import org.apache.beam.sdk.coders.StringUtf8Coder;
+import org.apache.beam.sdk.options.PipelineOptionsFactory;
 import org.apache.beam.sdk.testing.TestPipeline;
 import org.apache.beam.sdk.transforms.Create;
 import org.apache.beam.sdk.util.KeyedWorkItem;
@@ -39,6 +40,7 @@ import org.apache.beam.sdk.values.PCollection;
 
 import com.google.common.collect.HashMultiset;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
 import com.google.common.collect.Multiset;
 
 import org.hamcrest.BaseMatcher;
@@ -48,6 +50,10 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 /**
  * Tests for {@link GroupByKeyOnlyEvaluatorFactory}.
  */
@@ -57,6 +63,21 @@ public class GroupByKeyOnlyEvaluatorFactoryTest {
 
   @Test
   public void testInMemoryEvaluator() throws Exception {
+    evaluateAndCheckGroups(PipelineOptionsFactory.as(DirectOptions.class), false);
+  }
+
+  @Test
+  public void testSpillingEvaluator() throws Exception {
+    DirectOptions options = PipelineOptionsFactory.as(DirectOptions.class);
+    // Spill after every element, and output each value of a key in its own KeyedWorkItem
+    options.setGroupByKeySpillThresholdBytes(1L);
+    options.setEncodeBundles(true);
+    options.setTestImmutability(false);
+    evaluateAndCheckGroups(options, true);
+  }
+
+  private void evaluateAndCheckGroups(DirectOptions options, boolean mergeWorkItems)
+      throws Exception {
     TestPipeline p = TestPipeline.create();
     KV<String, Integer> firstFoo = KV.of("foo", -1);
     KV<String, Integer> secondFoo = KV.of("foo", 1);
@@ -74,6 +95,7 @@ public class GroupByKeyOnlyEvaluatorFactoryTest {
     CommittedBundle<KV<String, WindowedValue<Integer>>> inputBundle =
         bundleFactory.createRootBundle(kvs).commit(Instant.now());
     EvaluationContext evaluationContext = mock(EvaluationContext.class);
+    when(evaluationContext.getPipelineOptions()).thenReturn(options);
 
     StructuralKey<String> fooKey = StructuralKey.of("foo", StringUtf8Coder.of());
     UncommittedBundle<KeyedWorkItem<String, Integer>> fooBundle = bundleFactory.createKeyedBundle(
@@ -117,7 +139,7 @@ public class GroupByKeyOnlyEvaluatorFactoryTest {
     evaluator.finishBundle();
 
     assertThat(
-        fooBundle.commit(Instant.now()).getElements(),
+        workItems(fooBundle, mergeWorkItems),
         contains(
             new KeyedWorkItemMatcher<String, Integer>(
                 KeyedWorkItems.elementsWorkItem(
@@ -128,7 +150,7 @@ public class GroupByKeyOnlyEvaluatorFactoryTest {
                         WindowedValue.valueInGlobalWindow(3))),
                 keyCoder)));
     assertThat(
-        barBundle.commit(Instant.now()).getElements(),
+        workItems(barBundle, mergeWorkItems),
         contains(
             new KeyedWorkItemMatcher<String, Integer>(
                 KeyedWorkItems.elementsWorkItem(
@@ -138,7 +160,7 @@ public class GroupByKeyOnlyEvaluatorFactoryTest {
                         WindowedValue.valueInGlobalWindow(22))),
                 keyCoder)));
     assertThat(
-        bazBundle.commit(Instant.now()).getElements(),
+        workItems(bazBundle, mergeWorkItems),
         contains(
             new KeyedWorkItemMatcher<String, Integer>(
                 KeyedWorkItems.elementsWorkItem(
@@ -147,6 +169,28 @@ public class GroupByKeyOnlyEvaluatorFactoryTest {
                 keyCoder)));
   }
 
+  /**
+   * Returns the elements of the bundle. If mergeWorkItems is true, the elements of all of the
+   * {@link KeyedWorkItem KeyedWorkItems} in the bundle, which must all have the same key, are
+   * returned as a single {@link KeyedWorkItem}.
+   */
+  private <K, V> Iterable<WindowedValue<KeyedWorkItem<K, V>>> workItems(
+      UncommittedBundle<KeyedWorkItem<K, V>> bundle, boolean mergeWorkItems) {
+    Iterable<WindowedValue<KeyedWorkItem<K, V>>> elements =
+        bundle.commit(Instant.now()).getElements();
+    if (!mergeWorkItems) {
+      return elements;
+    }
+    K key = null;
+    List<WindowedValue<V>> values = new ArrayList<>();
+    for (WindowedValue<KeyedWorkItem<K, V>> element : elements) {
+      key = element.getValue().key();
+      Iterables.addAll(values, element.getValue().elementsIterable());
+    }
+    return Collections.singletonList(
+        WindowedValue.valueInGlobalWindow(KeyedWorkItems.elementsWorkItem(key, values)));
+  }
+
   private <K, V> KV<K, WindowedValue<V>> gwValue(KV<K, V> kv) {
     return KV.of(kv.getKey(), WindowedValue.valueInGlobalWindow(kv.getValue()));
   }
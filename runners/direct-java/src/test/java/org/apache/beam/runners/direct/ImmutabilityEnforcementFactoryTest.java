@@ -17,6 +17,9 @@
  */
 package org.apache.beam.runners.direct;
 
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
+
 import org.apache.beam.runners.direct.DirectRunner.CommittedBundle;
 import org.apache.beam.sdk.testing.TestPipeline;
 import org.apache.beam.sdk.transforms.AppliedPTransform;
@@ -125,4 +128,45 @@ public class ImmutabilityEnforcementFactoryTest implements Serializable {
         StepTransformResult.withoutHold(consumer).build(),
         Collections.<CommittedBundle<?>>emptyList());
   }
+
+  @Test
+  public void mutatedWithHashComparisonFails() {
+    WindowedValue<byte[]> element = WindowedValue.valueInGlobalWindow("bar".getBytes());
+    CommittedBundle<byte[]> elements =
+        bundleFactory.createRootBundle(pcollection).add(element).commit(Instant.now());
+
+    ModelEnforcement<byte[]> enforcement =
+        ImmutabilityEnforcementFactory.create(EnforcementSampler.all(), true)
+            .forBundle(elements, consumer);
+    enforcement.beforeElement(element);
+    element.getValue()[0] = 'f';
+    thrown.expect(IllegalMutationException.class);
+    thrown.expectMessage(consumer.getFullName());
+    thrown.expectMessage("illegaly mutated");
+    enforcement.afterElement(element);
+  }
+
+  @Test
+  public void mutatedUnsampledElementSucceeds() {
+    WindowedValue<byte[]> first = WindowedValue.valueInGlobalWindow("bar".getBytes());
+    WindowedValue<byte[]> second = WindowedValue.valueInGlobalWindow("baz".getBytes());
+    CommittedBundle<byte[]> elements =
+        bundleFactory.createRootBundle(pcollection).add(first).add(second).commit(Instant.now());
+
+    EnforcementSampler sampler = EnforcementSampler.create(1, 0);
+    ModelEnforcement<byte[]> enforcement =
+        ImmutabilityEnforcementFactory.create(sampler, false).forBundle(elements, consumer);
+    enforcement.beforeElement(first);
+    enforcement.afterElement(first);
+    enforcement.beforeElement(second);
+    second.getValue()[0] = 'f';
+    enforcement.afterElement(second);
+    enforcement.afterFinish(
+        elements,
+        StepTransformResult.withoutHold(consumer).build(),
+        Collections.<CommittedBundle<?>>emptyList());
+
+    assertThat(sampler.getElementsVerified(), equalTo(1L));
+    assertThat(sampler.getElementsSkipped(), equalTo(1L));
+  }
 }
@@ -0,0 +1,142 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.beam.runners.direct;
+
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.junit.Assert.assertThat;
+
+import org.apache.beam.sdk.coders.StringUtf8Coder;
+import org.apache.beam.sdk.values.KV;
+
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ListMultimap;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+
+/**
+ * Tests for {@link SpillableGroupingTable}.
+ */
+@RunWith(JUnit4.class)
+public class SpillableGroupingTableTest {
+  @Rule public ExpectedException thrown = ExpectedException.none();
+
+  @Test
+  public void groupsWithinBudgetDoesNotSpill() throws Exception {
+    try (SpillableGroupingTable table = SpillableGroupingTable.create(Long.MAX_VALUE)) {
+      table.put(key("foo"), bytes("1"));
+      table.put(key("bar"), bytes("2"));
+      table.put(key("foo"), bytes("3"));
+
+      ListMultimap<String, String> groups = readGroups(table.groups());
+      assertThat(table.getNumSpilledRuns(), equalTo(0));
+      assertThat(groups.get("foo"), containsInAnyOrder("1", "3"));
+      assertThat(groups.get("bar"), containsInAnyOrder("2"));
+    }
+  }
+
+  @Test
+  public void groupsAcrossSpilledRunsMergesKeys() throws Exception {
+    try (SpillableGroupingTable table = SpillableGroupingTable.create(64L)) {
+      for (int i = 0; i < 100; i++) {
+        table.put(key("key" + (i % 7)), bytes(Integer.toString(i)));
+      }
+      assertThat(table.getNumSpilledRuns(), greaterThan(1));
+
+      ListMultimap<String, String> groups = readGroups(table.groups());
+      assertThat(groups.keySet().size(), equalTo(7));
+      assertThat(groups.size(), equalTo(100));
+      assertThat(groups.get("key3"), containsInAnyOrder(
+          "3", "10", "17", "24", "31", "38", "45", "52", "59", "66", "73", "80", "87", "94"));
+    }
+  }
+
+  @Test
+  public void groupsAcrossSpilledRunsStreamsValues() throws Exception {
+    try (SpillableGroupingTable table = SpillableGroupingTable.create(64L)) {
+      for (int i = 0; i < 1000; i++) {
+        table.put(key("key" + (i % 2)), bytes(Integer.toString(i)));
+      }
+
+      Iterator<KV<byte[], Iterator<byte[]>>> groups = table.groups();
+      KV<byte[], Iterator<byte[]>> first = groups.next();
+      // Values of a group that are not read are skipped
+      first.getValue().next();
+      KV<byte[], Iterator<byte[]>> second = groups.next();
+      int numSecondValues = 0;
+      while (second.getValue().hasNext()) {
+        second.getValue().next();
+        numSecondValues++;
+      }
+      assertThat(numSecondValues, equalTo(500));
+      assertThat(groups.hasNext(), equalTo(false));
+
+      thrown.expect(IllegalStateException.class);
+      first.getValue().next();
+    }
+  }
+
+  @Test
+  public void putAfterGroupsThrows() throws Exception {
+    try (SpillableGroupingTable table = SpillableGroupingTable.create(64L)) {
+      table.groups();
+
+      thrown.expect(IllegalStateException.class);
+      table.put(key("foo"), bytes("bar"));
+    }
+  }
+
+  @Test
+  public void createWithNonPositiveBudgetThrows() {
+    thrown.expect(IllegalArgumentException.class);
+    thrown.expectMessage("positive");
+    SpillableGroupingTable.create(0L);
+  }
+
+  private static ListMultimap<String, String> readGroups(
+      Iterator<KV<byte[], Iterator<byte[]>>> groups) {
+    ListMultimap<String, String> result = ArrayListMultimap.create();
+    while (groups.hasNext()) {
+      KV<byte[], Iterator<byte[]>> group = groups.next();
+      String key = new String(group.getKey(), StandardCharsets.UTF_8);
+      assertThat("Each key should be grouped exactly once", result.containsKey(key),
+          equalTo(false));
+      Iterator<byte[]> values = group.getValue();
+      while (values.hasNext()) {
+        result.put(key, new String(values.next(), StandardCharsets.UTF_8));
+      }
+    }
+    return result;
+  }
+
+  private static StructuralKey<String> key(String key) {
+    return StructuralKey.of(key, StringUtf8Coder.of());
+  }
+
+  private static byte[] bytes(String value) {
+    return value.getBytes(StandardCharsets.UTF_8);
+  }
+}
@@ -25,6 +25,7 @@ import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertThat;
 
 import org.apache.beam.sdk.coders.ByteArrayCoder;
+import org.apache.beam.sdk.coders.DoubleCoder;
 import org.apache.beam.sdk.coders.StringUtf8Coder;
 import org.apache.beam.sdk.coders.VarIntCoder;
 
@@ -78,4 +79,35 @@ public class StructuralKeyTest {
         StructuralKey.of(new byte[] {9, -128, 22}, ByteArrayCoder.of());
     assertThat(key, not(equalTo(otherKey)));
   }
+
+  @Test
+  public void ofDeterministicCoderInterned() {
+    StructuralKey<String> key = StructuralKey.of("foo", StringUtf8Coder.of());
+    assertThat(StructuralKey.of("foo", StringUtf8Coder.of()), theInstance(key));
+  }
+
+  @Test
+  public void getKeyConsistentWithEqualsDecodedOnce() {
+    StructuralKey<String> key = StructuralKey.of("foo", StringUtf8Coder.of());
+    assertThat(key.getKey(), theInstance(key.getKey()));
+  }
+
+  @Test
+  public void getKeyNotConsistentWithEqualsDecodesCopies() {
+    StructuralKey<byte[]> key = StructuralKey.of(new byte[] {1, 4, 9}, ByteArrayCoder.of());
+    byte[] decoded = key.getKey();
+    assertThat(key.getKey(), not(theInstance(decoded)));
+
+    decoded[0] = 22;
+    assertArrayEquals(new byte[] {1, 4, 9}, key.getKey());
+  }
+
+  @Test
+  public void nonDeterministicCoderStructuralEquality() {
+    StructuralKey<Double> key = StructuralKey.of(1.25, DoubleCoder.of());
+    StructuralKey<Double> otherKey = StructuralKey.of(1.25, DoubleCoder.of());
+    assertThat(key, equalTo(otherKey));
+    assertThat(key.hashCode(), equalTo(otherKey.hashCode()));
+    assertThat(key, not(equalTo(StructuralKey.of(-1.25, DoubleCoder.of()))));
+  }
 }
@@ -69,10 +69,17 @@ import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.annotation.Nullable;
 
@@ -177,6 +184,63 @@ public class WatermarkManagerTest implements Serializable {
     assertThat(updatedSourceWatermark.getOutputWatermark(), equalTo(new Instant(8000L)));
   }
 
+  /**
+   * Demonstrates that refreshing from multiple threads concurrently holds and advances watermarks
+   * in the same way as refreshing from a single thread.
+   */
+  @Test
+  public void concurrentRefreshesHoldAndAdvanceWatermarks() throws Exception {
+    CommittedBundle<Integer> createdBundle =
+        timestampedBundle(createdInts, TimestampedValue.of(1, new Instant(1000L)));
+    manager.updateWatermarks(null,
+        TimerUpdate.empty(),
+        result(createdInts.getProducingTransformInternal(),
+            null,
+            Collections.<CommittedBundle<?>>singleton(createdBundle)),
+        BoundedWindow.TIMESTAMP_MAX_VALUE);
+    refreshConcurrently(4);
+
+    TransformWatermarks filteredWms =
+        manager.getWatermarks(filtered.getProducingTransformInternal());
+    assertThat(filteredWms.getInputWatermark(), equalTo(new Instant(1000L)));
+    assertThat(filteredWms.getOutputWatermark(), equalTo(new Instant(1000L)));
+
+    manager.updateWatermarks(createdBundle,
+        TimerUpdate.empty(),
+        result(filtered.getProducingTransformInternal(),
+            createdBundle.withElements(Collections.<WindowedValue<Integer>>emptyList()),
+            Collections.<CommittedBundle<?>>emptyList()),
+        BoundedWindow.TIMESTAMP_MAX_VALUE);
+    refreshConcurrently(4);
+
+    assertThat(filteredWms.getInputWatermark(), equalTo(BoundedWindow.TIMESTAMP_MAX_VALUE));
+    assertThat(
+        manager.getWatermarks(filteredTimesTwo.getProducingTransformInternal())
+            .getInputWatermark(),
+        equalTo(BoundedWindow.TIMESTAMP_MAX_VALUE));
+  }
+
+  private void refreshConcurrently(int numThreads) throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+    final CountDownLatch startSignal = new CountDownLatch(1);
+    List<Future<?>> refreshes = new ArrayList<>();
+    for (int i = 0; i < numThreads; i++) {
+      refreshes.add(executor.submit(new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          startSignal.await();
+          manager.refreshAll();
+          return null;
+        }
+      }));
+    }
+    startSignal.countDown();
+    for (Future<?> refresh : refreshes) {
+      refresh.get();
+    }
+    executor.shutdown();
+  }
+
   /**
    * Demonstrates that getWatermark for a transform that takes multiple inputs is held to the
    * minimum watermark across all of its inputs.
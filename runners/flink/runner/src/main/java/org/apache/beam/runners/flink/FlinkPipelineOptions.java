@@ -96,6 +96,13 @@ public interface FlinkPipelineOptions extends PipelineOptions, ApplicationNameOp
   Long getExecutionRetryDelay();
   void setExecutionRetryDelay(Long delay);
 
+  @Description("Keep the per-key window state of streaming pipelines in the keyed state of the " +
+      "configured Flink state backend (e.g. RocksDB), instead of keeping it in memory and " +
+      "writing all of it on every checkpoint. Only the modified state is written to the state backend.")
+  @Default.Boolean(false)
+  Boolean getKeyedStateBackend();
+  void setKeyedStateBackend(Boolean keyedStateBackend);
+
 
   class JobNameFactory implements DefaultValueFactory<String> {
     private static final DateTimeFormatter FORMATTER =
@@ -19,6 +19,7 @@ package org.apache.beam.runners.flink.translation;
 
 import org.apache.beam.runners.flink.translation.functions.FlinkAssignWindows;
 import org.apache.beam.runners.flink.translation.functions.FlinkDoFnFunction;
+import org.apache.beam.runners.flink.translation.functions.FlinkGroupByKeyReduceFunction;
 import org.apache.beam.runners.flink.translation.functions.FlinkMergingNonShuffleReduceFunction;
 import org.apache.beam.runners.flink.translation.functions.FlinkMergingPartialReduceFunction;
 import org.apache.beam.runners.flink.translation.functions.FlinkMergingReduceFunction;
@@ -179,17 +180,41 @@ class FlinkBatchTransformTranslators {
         GroupByKey<K, InputT> transform,
         FlinkBatchTranslationContext context) {
 
-      // for now, this is copied from the Combine.PerKey translater. Once we have the new runner API
-      // we can replace GroupByKey by a Combine.PerKey with the Concatenate CombineFn
-
       DataSet<WindowedValue<KV<K, InputT>>> inputDataSet =
           context.getInputDataSet(context.getInput(transform));
 
+      KvCoder<K, InputT> inputCoder = (KvCoder<K, InputT>) context.getInput(transform).getCoder();
+
+      WindowingStrategy<?, ?> windowingStrategy =
+          context.getInput(transform).getWindowingStrategy();
+
+      if (windowingStrategy.getWindowFn().isNonMerging()) {
+        // shuffle and sort the elements on their encoded keys and group the values of
+        // each key in a single pass, without a partial combine into intermediate lists
+        Grouping<WindowedValue<KV<K, InputT>>> inputGrouping =
+            inputDataSet.groupBy(new KvKeySelector<InputT, K>(inputCoder.getKeyCoder()));
+
+        TypeInformation<WindowedValue<KV<K, Iterable<InputT>>>> outputTypeInfo =
+            context.getTypeInfo(context.getOutput(transform));
+
+        GroupReduceOperator<
+            WindowedValue<KV<K, InputT>>, WindowedValue<KV<K, Iterable<InputT>>>> outputDataSet =
+            new GroupReduceOperator<>(
+                inputGrouping,
+                outputTypeInfo,
+                new FlinkGroupByKeyReduceFunction<K, InputT>(windowingStrategy),
+                transform.getName());
+
+        context.setOutputDataSet(context.getOutput(transform), outputDataSet);
+        return;
+      }
+
+      // for now, this is copied from the Combine.PerKey translater. Once we have the new runner API
+      // we can replace GroupByKey by a Combine.PerKey with the Concatenate CombineFn
+
       Combine.KeyedCombineFn<K, InputT, List<InputT>, List<InputT>> combineFn =
           new Concatenate<InputT>().asKeyedFn();
 
-      KvCoder<K, InputT> inputCoder = (KvCoder<K, InputT>) context.getInput(transform).getCoder();
-
       Coder<List<InputT>> accumulatorCoder;
 
       try {
@@ -202,9 +227,6 @@ class FlinkBatchTransformTranslators {
         throw new RuntimeException(e);
       }
 
-      WindowingStrategy<?, ?> windowingStrategy =
-          context.getInput(transform).getWindowingStrategy();
-
       TypeInformation<WindowedValue<KV<K, List<InputT>>>> partialReduceTypeInfo =
           new CoderTypeInformation<>(
               WindowedValue.getFullCoder(
@@ -215,48 +237,30 @@ class FlinkBatchTransformTranslators {
       Grouping<WindowedValue<KV<K, InputT>>> inputGrouping =
           inputDataSet.groupBy(new KvKeySelector<InputT, K>(inputCoder.getKeyCoder()));
 
-      FlinkPartialReduceFunction<K, InputT, List<InputT>, ?> partialReduceFunction;
-      FlinkReduceFunction<K, List<InputT>, List<InputT>, ?> reduceFunction;
-
-      if (windowingStrategy.getWindowFn().isNonMerging()) {
-        @SuppressWarnings("unchecked")
-        WindowingStrategy<?, BoundedWindow> boundedStrategy =
-            (WindowingStrategy<?, BoundedWindow>) windowingStrategy;
-
-        partialReduceFunction = new FlinkPartialReduceFunction<>(
-            combineFn,
-            boundedStrategy,
-            Collections.<PCollectionView<?>, WindowingStrategy<?, ?>>emptyMap(),
-            context.getPipelineOptions());
-
-        reduceFunction = new FlinkReduceFunction<>(
-            combineFn,
-            boundedStrategy,
-            Collections.<PCollectionView<?>, WindowingStrategy<?, ?>>emptyMap(),
-            context.getPipelineOptions());
-
-      } else {
-        if (!windowingStrategy.getWindowFn().windowCoder().equals(IntervalWindow.getCoder())) {
-          throw new UnsupportedOperationException(
-              "Merging WindowFn with windows other than IntervalWindow are not supported.");
-        }
+      // merging windows are grouped by combining with the Concatenate CombineFn, which merges
+      // the windows of each key while combining
+      if (!windowingStrategy.getWindowFn().windowCoder().equals(IntervalWindow.getCoder())) {
+        throw new UnsupportedOperationException(
+            "Merging WindowFn with windows other than IntervalWindow are not supported.");
+      }
 
-        @SuppressWarnings("unchecked")
-        WindowingStrategy<?, IntervalWindow> intervalStrategy =
-            (WindowingStrategy<?, IntervalWindow>) windowingStrategy;
+      @SuppressWarnings("unchecked")
+      WindowingStrategy<?, IntervalWindow> intervalStrategy =
+          (WindowingStrategy<?, IntervalWindow>) windowingStrategy;
+
+      FlinkPartialReduceFunction<K, InputT, List<InputT>, ?> partialReduceFunction =
+          new FlinkMergingPartialReduceFunction<>(
+              combineFn,
+              intervalStrategy,
+              Collections.<PCollectionView<?>, WindowingStrategy<?, ?>>emptyMap(),
+              context.getPipelineOptions());
 
-        partialReduceFunction = new FlinkMergingPartialReduceFunction<>(
-            combineFn,
-            intervalStrategy,
-            Collections.<PCollectionView<?>, WindowingStrategy<?, ?>>emptyMap(),
-            context.getPipelineOptions());
-
-        reduceFunction = new FlinkMergingReduceFunction<>(
-            combineFn,
-            intervalStrategy,
-            Collections.<PCollectionView<?>, WindowingStrategy<?, ?>>emptyMap(),
-            context.getPipelineOptions());
-      }
+      FlinkReduceFunction<K, List<InputT>, List<InputT>, ?> reduceFunction =
+          new FlinkMergingReduceFunction<>(
+              combineFn,
+              intervalStrategy,
+              Collections.<PCollectionView<?>, WindowingStrategy<?, ?>>emptyMap(),
+              context.getPipelineOptions());
 
       // Partially GroupReduce the values into the intermediate format AccumT (combine)
       GroupCombineOperator<
@@ -293,7 +297,7 @@ class FlinkBatchTransformTranslators {
    *
    * @param <T> the type of elements to concatenate.
    */
-  private static class Concatenate<T> extends Combine.CombineFn<T, List<T>, List<T>> {
+  static class Concatenate<T> extends Combine.CombineFn<T, List<T>, List<T>> {
     @Override
     public List<T> createAccumulator() {
       return new ArrayList<>();
@@ -0,0 +1,107 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.beam.runners.flink.translation.functions;
+
+import org.apache.beam.sdk.transforms.windowing.BoundedWindow;
+import org.apache.beam.sdk.transforms.windowing.OutputTimeFn;
+import org.apache.beam.sdk.transforms.windowing.PaneInfo;
+import org.apache.beam.sdk.util.WindowedValue;
+import org.apache.beam.sdk.util.WindowingStrategy;
+import org.apache.beam.sdk.values.KV;
+
+import org.apache.flink.api.common.functions.GroupReduceFunction;
+import org.apache.flink.util.Collector;
+import org.joda.time.Instant;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Executes a {@link org.apache.beam.sdk.transforms.GroupByKey} with a non-merging
+ * {@link org.apache.beam.sdk.transforms.windowing.WindowFn} on Flink in a single
+ * {@link GroupReduceFunction}, after a shuffle that groups the elements on their encoded keys.
+ *
+ * <p>Unlike translating the {@link org.apache.beam.sdk.transforms.GroupByKey} as a
+ * {@link org.apache.beam.sdk.transforms.Combine.PerKey}, there is no partial combine before the
+ * shuffle: the elements are shuffled and sorted as they are, and the values of each key are
+ * appended to a single list per window, without intermediate lists that have to be encoded,
+ * decoded and merged.
+ */
+public class FlinkGroupByKeyReduceFunction<K, V>
+    implements GroupReduceFunction<WindowedValue<KV<K, V>>, WindowedValue<KV<K, Iterable<V>>>> {
+
+  private final WindowingStrategy<?, ?> windowingStrategy;
+
+  public FlinkGroupByKeyReduceFunction(WindowingStrategy<?, ?> windowingStrategy) {
+    this.windowingStrategy = windowingStrategy;
+  }
+
+  @Override
+  public void reduce(
+      Iterable<WindowedValue<KV<K, V>>> elements,
+      Collector<WindowedValue<KV<K, Iterable<V>>>> out) throws Exception {
+
+    @SuppressWarnings("unchecked")
+    OutputTimeFn<? super BoundedWindow> outputTimeFn =
+        (OutputTimeFn<? super BoundedWindow>) windowingStrategy.getOutputTimeFn();
+
+    // the windows of a key are usually few, so we keep the values of all of them in
+    // memory instead of sorting the values by window
+    Map<BoundedWindow, WindowGroup<V>> windowGroups = new LinkedHashMap<>();
+    K key = null;
+
+    for (WindowedValue<KV<K, V>> element : elements) {
+      key = element.getValue().getKey();
+      V value = element.getValue().getValue();
+      for (BoundedWindow window : element.getWindows()) {
+        Instant outputTime = outputTimeFn.assignOutputTime(element.getTimestamp(), window);
+        WindowGroup<V> windowGroup = windowGroups.get(window);
+        if (windowGroup == null) {
+          windowGroup = new WindowGroup<>(outputTime);
+          windowGroups.put(window, windowGroup);
+        } else {
+          windowGroup.outputTime = outputTimeFn.combine(windowGroup.outputTime, outputTime);
+        }
+        windowGroup.values.add(value);
+      }
+    }
+
+    for (Map.Entry<BoundedWindow, WindowGroup<V>> windowGroup : windowGroups.entrySet()) {
+      out.collect(
+          WindowedValue.of(
+              KV.<K, Iterable<V>>of(key, windowGroup.getValue().values),
+              windowGroup.getValue().outputTime,
+              windowGroup.getKey(),
+              PaneInfo.NO_FIRING));
+    }
+  }
+
+  /**
+   * The values of a key in a single window and the output timestamp of the window.
+   */
+  private static class WindowGroup<V> {
+    private final List<V> values = new ArrayList<>();
+    private Instant outputTime;
+
+    private WindowGroup(Instant outputTime) {
+      this.outputTime = outputTime;
+    }
+  }
+}
@@ -18,11 +18,14 @@
 package org.apache.beam.runners.flink.translation.wrappers.streaming;
 
 import org.apache.beam.runners.core.GroupAlsoByWindowViaWindowSetDoFn;
+import org.apache.beam.runners.flink.FlinkPipelineOptions;
 import org.apache.beam.runners.flink.translation.types.CoderTypeInformation;
 import org.apache.beam.runners.flink.translation.utils.SerializedPipelineOptions;
 import org.apache.beam.runners.flink.translation.wrappers.SerializableFnAggregatorWrapper;
 import org.apache.beam.runners.flink.translation.wrappers.streaming.state.AbstractFlinkTimerInternals;
+import org.apache.beam.runners.flink.translation.wrappers.streaming.state.FlinkKeyedStateInternals;
 import org.apache.beam.runners.flink.translation.wrappers.streaming.state.FlinkStateInternals;
+import org.apache.beam.runners.flink.translation.wrappers.streaming.state.KeyedWatermarkHolds;
 import org.apache.beam.runners.flink.translation.wrappers.streaming.state.StateCheckpointReader;
 import org.apache.beam.runners.flink.translation.wrappers.streaming.state.StateCheckpointUtils;
 import org.apache.beam.runners.flink.translation.wrappers.streaming.state.StateCheckpointWriter;
@@ -30,6 +33,7 @@ import org.apache.beam.sdk.coders.Coder;
 import org.apache.beam.sdk.coders.CoderRegistry;
 import org.apache.beam.sdk.coders.IterableCoder;
 import org.apache.beam.sdk.coders.KvCoder;
+import org.apache.beam.sdk.coders.VoidCoder;
 import org.apache.beam.sdk.options.PipelineOptions;
 import org.apache.beam.sdk.transforms.Aggregator;
 import org.apache.beam.sdk.transforms.Combine;
@@ -45,6 +49,7 @@ import org.apache.beam.sdk.util.TimerInternals;
 import org.apache.beam.sdk.util.WindowedValue;
 import org.apache.beam.sdk.util.WindowingInternals;
 import org.apache.beam.sdk.util.WindowingStrategy;
+import org.apache.beam.sdk.util.state.StateInternals;
 import org.apache.beam.sdk.values.KV;
 import org.apache.beam.sdk.values.PCollection;
 import org.apache.beam.sdk.values.PCollectionView;
@@ -118,6 +123,19 @@ public class FlinkGroupAlsoByWindowWrapper<K, VIN, VACC, VOUT>
 
   private final KvCoder<K, VIN> inputKvCoder;
 
+  /**
+   * Whether the state is kept in the keyed state of the Flink state backend (see
+   * {@link FlinkPipelineOptions#getKeyedStateBackend()}), rather than in
+   * {@link #perKeyStateInternals}.
+   */
+  private final boolean keyedStateBackend;
+
+  /**
+   * The watermark holds of all keys, if the state is kept in the keyed state of the Flink state
+   * backend.
+   */
+  private transient KeyedWatermarkHolds<K> watermarkHolds;
+
   /**
    * State is kept <b>per-key</b>. This data structure keeps this mapping between an active key, i.e. a
    * key whose elements are currently waiting to be processed, and its associated state.
@@ -241,6 +259,8 @@ public class FlinkGroupAlsoByWindowWrapper<K, VIN, VACC, VOUT>
     this.inputKvCoder = Preconditions.checkNotNull(inputCoder);//(KvCoder<K, VIN>) input.getCoder();
     this.windowingStrategy = Preconditions.checkNotNull(windowingStrategy);//input.getWindowingStrategy();
     this.combineFn = combiner;
+    this.keyedStateBackend = Boolean.TRUE.equals(
+        options.as(FlinkPipelineOptions.class).getKeyedStateBackend());
     this.operator = createGroupAlsoByWindowOperator();
     this.chainingStrategy = ChainingStrategy.ALWAYS;
   }
@@ -281,8 +301,34 @@ public class FlinkGroupAlsoByWindowWrapper<K, VIN, VACC, VOUT>
   }
 
   private void processKeyedWorkItem(KeyedWorkItem<K, VIN> workItem) throws Exception {
-    context.setElement(workItem, getStateInternalsForKey(workItem.key()));
-    operator.processElement(context);
+    if (keyedStateBackend) {
+      // timers are fired outside the key context of an input element
+      setKeyContext(flinkKey(workItem.key()));
+      FlinkKeyedStateInternals<K> stateInternals =
+          new FlinkKeyedStateInternals<>(workItem.key(), getStateBackend(), getWatermarkHolds());
+      context.setElement(workItem, stateInternals);
+      operator.processElement(context);
+      stateInternals.commit();
+    } else {
+      context.setElement(workItem, getStateInternalsForKey(workItem.key()));
+      operator.processElement(context);
+    }
+  }
+
+  private KeyedWatermarkHolds<K> getWatermarkHolds() {
+    if (watermarkHolds == null) {
+      watermarkHolds = new KeyedWatermarkHolds<>(inputKvCoder.getKeyCoder());
+    }
+    return watermarkHolds;
+  }
+
+  /**
+   * Returns the key of the Flink state backend for the provided key, as extracted by the key
+   * selector of {@link FlinkGroupByKeyWrapper}.
+   */
+  private Object flinkKey(K key) {
+    return inputKvCoder.getKeyCoder() instanceof VoidCoder
+        ? FlinkGroupByKeyWrapper.VoidValue.INSTANCE : key;
   }
 
   @Override
@@ -319,6 +365,12 @@ public class FlinkGroupAlsoByWindowWrapper<K, VIN, VACC, VOUT>
      * {@link WatermarkHold#addHold(ReduceFn.ProcessValueContext, boolean)}
      * */
     long millis = Long.MAX_VALUE;
+    if (keyedStateBackend) {
+      Instant watermarkHold = getWatermarkHolds().getMinimumHold();
+      if (watermarkHold != null) {
+        millis = watermarkHold.getMillis();
+      }
+    }
     for (FlinkStateInternals state : perKeyStateInternals.values()) {
       Instant watermarkHold = state.getWatermarkHold();
       if (watermarkHold != null && watermarkHold.getMillis() < millis) {
@@ -437,7 +489,7 @@ public class FlinkGroupAlsoByWindowWrapper<K, VIN, VACC, VOUT>
 
     private final TimestampedCollector<WindowedValue<KV<K, VOUT>>> collector;
 
-    private FlinkStateInternals<K> stateInternals;
+    private StateInternals<K> stateInternals;
 
     private KeyedWorkItem<K, VIN> element;
 
@@ -452,7 +504,7 @@ public class FlinkGroupAlsoByWindowWrapper<K, VIN, VACC, VOUT>
     }
 
     public void setElement(KeyedWorkItem<K, VIN> element,
-                           FlinkStateInternals<K> stateForKey) {
+                           StateInternals<K> stateForKey) {
       this.element = element;
       this.stateInternals = stateForKey;
     }
@@ -592,8 +644,12 @@ public class FlinkGroupAlsoByWindowWrapper<K, VIN, VACC, VOUT>
     // checkpoint the timers
     StateCheckpointUtils.encodeTimers(activeTimers, writer, keyCoder);
 
-    // checkpoint the state
-    StateCheckpointUtils.encodeState(perKeyStateInternals, writer, keyCoder);
+    // checkpoint the state; keyed state is checkpointed by the state backend
+    if (keyedStateBackend) {
+      getWatermarkHolds().persistHolds(writer);
+    } else {
+      StateCheckpointUtils.encodeState(perKeyStateInternals, writer, keyCoder);
+    }
 
     // checkpoint the timerInternals
     context.timerInternals.encodeTimerInternals(context, writer,
@@ -621,8 +677,12 @@ public class FlinkGroupAlsoByWindowWrapper<K, VIN, VACC, VOUT>
     this.activeTimers = StateCheckpointUtils.decodeTimers(reader, windowCoder, keyCoder);
 
     // restore the state
-    this.perKeyStateInternals = StateCheckpointUtils.decodeState(
-        reader, windowingStrategy.getOutputTimeFn(), keyCoder, windowCoder, userClassloader);
+    if (keyedStateBackend) {
+      getWatermarkHolds().restoreHolds(reader);
+    } else {
+      this.perKeyStateInternals = StateCheckpointUtils.decodeState(
+          reader, windowingStrategy.getOutputTimeFn(), keyCoder, windowCoder, userClassloader);
+    }
 
     // restore the timerInternals.
     this.timerInternals.restoreTimerInternals(reader, inputKvCoder, windowCoder);
@@ -0,0 +1,590 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.beam.runners.flink.translation.wrappers.streaming.state;
+
+import org.apache.beam.runners.flink.translation.types.CoderTypeSerializer;
+import org.apache.beam.sdk.coders.Coder;
+import org.apache.beam.sdk.coders.InstantCoder;
+import org.apache.beam.sdk.options.PipelineOptions;
+import org.apache.beam.sdk.transforms.Combine;
+import org.apache.beam.sdk.transforms.CombineWithContext;
+import org.apache.beam.sdk.transforms.windowing.BoundedWindow;
+import org.apache.beam.sdk.transforms.windowing.OutputTimeFn;
+import org.apache.beam.sdk.util.CombineFnUtil;
+import org.apache.beam.sdk.util.state.AccumulatorCombiningState;
+import org.apache.beam.sdk.util.state.BagState;
+import org.apache.beam.sdk.util.state.ReadableState;
+import org.apache.beam.sdk.util.state.State;
+import org.apache.beam.sdk.util.state.StateContext;
+import org.apache.beam.sdk.util.state.StateInternals;
+import org.apache.beam.sdk.util.state.StateNamespace;
+import org.apache.beam.sdk.util.state.StateTable;
+import org.apache.beam.sdk.util.state.StateTag;
+import org.apache.beam.sdk.util.state.ValueState;
+import org.apache.beam.sdk.util.state.WatermarkHoldState;
+import org.apache.beam.sdk.values.PCollectionView;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Iterables;
+
+import org.apache.flink.api.common.state.ListState;
+import org.apache.flink.api.common.state.ListStateDescriptor;
+import org.apache.flink.api.common.state.StateDescriptor;
+import org.apache.flink.api.common.state.ValueStateDescriptor;
+import org.apache.flink.api.common.typeutils.base.StringSerializer;
+import org.apache.flink.runtime.state.AbstractStateBackend;
+import org.joda.time.Instant;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An implementation of the Beam {@link StateInternals} that keeps state in the partitioned
+ * (keyed) state of a Flink {@link AbstractStateBackend}, such as the RocksDB state backend, so
+ * that state is not bounded by the heap and is checkpointed by the state backend.
+ *
+ * <p>Each state cell is stored in the Flink state named by its {@link StateTag}, within the
+ * Flink namespace of its {@link StateNamespace}, for the current key of the state backend. The
+ * current key of the state backend must be the key of this {@link StateInternals} for as long as
+ * it is in use.
+ *
+ * <p>A {@link FlinkKeyedStateInternals} is meant to be used to process a single work item.
+ * State is read from the state backend the first time it is accessed, and modifications are
+ * buffered until {@link #commit()} is called, at which point only the modified cells are written
+ * to the state backend. Appending to a bag never reads the existing contents of the bag.
+ */
+public class FlinkKeyedStateInternals<K> implements StateInternals<K> {
+
+  private final K key;
+
+  private final AbstractStateBackend stateBackend;
+
+  private final KeyedWatermarkHolds<K> watermarkHolds;
+
+  public FlinkKeyedStateInternals(K key,
+                                  AbstractStateBackend stateBackend,
+                                  KeyedWatermarkHolds<K> watermarkHolds) {
+    this.key = key;
+    this.stateBackend = Preconditions.checkNotNull(stateBackend);
+    this.watermarkHolds = Preconditions.checkNotNull(watermarkHolds);
+  }
+
+  /**
+   * This is the interface state has to implement so that its modifications can be written to the
+   * state backend by {@link #commit()}.
+   */
+  private interface CommittableIF {
+
+    boolean isDirty();
+
+    void commit() throws Exception;
+  }
+
+  private final StateTable<K> stateTable = new StateTable<K>() {
+    @Override
+    protected StateTag.StateBinder binderForNamespace(final StateNamespace namespace, final StateContext<?> c) {
+      return new StateTag.StateBinder<K>() {
+
+        @Override
+        public <T> ValueState<T> bindValue(StateTag<? super K, ValueState<T>> address, Coder<T> coder) {
+          return new FlinkKeyedValue<>(namespace, address, coder);
+        }
+
+        @Override
+        public <T> BagState<T> bindBag(StateTag<? super K, BagState<T>> address, Coder<T> elemCoder) {
+          return new FlinkKeyedBag<>(namespace, address, elemCoder);
+        }
+
+        @Override
+        public <InputT, AccumT, OutputT> AccumulatorCombiningState<InputT, AccumT, OutputT> bindCombiningValue(
+            StateTag<? super K, AccumulatorCombiningState<InputT, AccumT, OutputT>> address,
+            Coder<AccumT> accumCoder, Combine.CombineFn<InputT, AccumT, OutputT> combineFn) {
+          return new FlinkKeyedCombiningValue<>(namespace, address,
+              CombineFnUtil.toFnWithContext(combineFn.<K>asKeyedFn()),
+              accumCoder, c);
+        }
+
+        @Override
+        public <InputT, AccumT, OutputT> AccumulatorCombiningState<InputT, AccumT, OutputT> bindKeyedCombiningValue(
+            StateTag<? super K, AccumulatorCombiningState<InputT, AccumT, OutputT>> address,
+            Coder<AccumT> accumCoder,
+            Combine.KeyedCombineFn<? super K, InputT, AccumT, OutputT> combineFn) {
+          return new FlinkKeyedCombiningValue<>(namespace, address,
+              CombineFnUtil.toFnWithContext(combineFn), accumCoder, c);
+        }
+
+        @Override
+        public <InputT, AccumT, OutputT> AccumulatorCombiningState<InputT, AccumT, OutputT> bindKeyedCombiningValueWithContext(
+            StateTag<? super K, AccumulatorCombiningState<InputT, AccumT, OutputT>> address,
+            Coder<AccumT> accumCoder,
+            CombineWithContext.KeyedCombineFnWithContext<? super K, InputT, AccumT, OutputT> combineFn) {
+          return new FlinkKeyedCombiningValue<>(namespace, address, combineFn, accumCoder, c);
+        }
+
+        @Override
+        public <W extends BoundedWindow> WatermarkHoldState<W> bindWatermark(StateTag<? super K, WatermarkHoldState<W>> address, OutputTimeFn<? super W> outputTimeFn) {
+          return new FlinkKeyedWatermarkHold<>(namespace, address, outputTimeFn);
+        }
+      };
+    }
+  };
+
+  @Override
+  public K getKey() {
+    return key;
+  }
+
+  @Override
+  public <StateT extends State> StateT state(StateNamespace namespace, StateTag<? super K, StateT> address) {
+    return stateTable.get(namespace, address, null);
+  }
+
+  @Override
+  public <T extends State> T state(StateNamespace namespace, StateTag<? super K, T> address, StateContext<?> c) {
+    return stateTable.get(namespace, address, c);
+  }
+
+  /**
+   * Writes the state cells modified since they were read to the state backend. The current key of
+   * the state backend must be the key of this {@link StateInternals}.
+   */
+  public void commit() throws Exception {
+    for (State state : stateTable.values()) {
+      if (!(state instanceof CommittableIF)) {
+        throw new IllegalStateException(String.format(
+            "%s wasn't created by %s -- unable to commit it",
+            state.getClass().getSimpleName(),
+            getClass().getSimpleName()));
+      }
+      CommittableIF committable = (CommittableIF) state;
+      if (committable.isDirty()) {
+        committable.commit();
+      }
+    }
+  }
+
+  private static String stateName(StateTag<?, ?> address) {
+    StringBuilder sb = new StringBuilder();
+    try {
+      address.appendTo(sb);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    return sb.toString();
+  }
+
+  private <S extends org.apache.flink.api.common.state.State> S partitionedState(
+      StateNamespace namespace, StateDescriptor<S, ?> descriptor) {
+    try {
+      return stateBackend.getPartitionedState(
+          namespace.stringKey(), StringSerializer.INSTANCE, descriptor);
+    } catch (Exception e) {
+      throw new RuntimeException(
+          "Unable to access state " + descriptor.getName() + " in namespace " + namespace, e);
+    }
+  }
+
+  private final class FlinkKeyedValue<T> implements ValueState<T>, CommittableIF {
+
+    private final StateNamespace namespace;
+    private final StateDescriptor<org.apache.flink.api.common.state.ValueState<T>, ?> descriptor;
+
+    private boolean isRead = false;
+    private boolean isDirty = false;
+    private T value = null;
+
+    public FlinkKeyedValue(StateNamespace namespace, StateTag<?, ?> address, Coder<T> coder) {
+      this.namespace = namespace;
+      this.descriptor = new ValueStateDescriptor<>(stateName(address), new CoderTypeSerializer<>(coder), null);
+    }
+
+    @Override
+    public void clear() {
+      write(null);
+    }
+
+    @Override
+    public void write(T input) {
+      value = input;
+      isRead = true;
+      isDirty = true;
+    }
+
+    @Override
+    public T read() {
+      if (!isRead) {
+        try {
+          value = flinkState().value();
+        } catch (IOException e) {
+          throw new RuntimeException("Unable to read value state", e);
+        }
+        isRead = true;
+      }
+      return value;
+    }
+
+    @Override
+    public ValueState<T> readLater() {
+      // Ignore
+      return this;
+    }
+
+    private org.apache.flink.api.common.state.ValueState<T> flinkState() {
+      return partitionedState(namespace, descriptor);
+    }
+
+    @Override
+    public boolean isDirty() {
+      return isDirty;
+    }
+
+    @Override
+    public void commit() throws Exception {
+      if (value == null) {
+        flinkState().clear();
+      } else {
+        flinkState().update(value);
+      }
+      isDirty = false;
+    }
+  }
+
+  private final class FlinkKeyedWatermarkHold<W extends BoundedWindow>
+      implements WatermarkHoldState<W>, CommittableIF {
+
+    private final String stateKey;
+    private final StateNamespace namespace;
+    private final StateDescriptor<org.apache.flink.api.common.state.ValueState<Instant>, ?> descriptor;
+    private final OutputTimeFn<? super W> outputTimeFn;
+
+    private boolean isRead = false;
+    private boolean isDirty = false;
+    private Instant hold = null;
+
+    public FlinkKeyedWatermarkHold(StateNamespace namespace,
+                                   StateTag<?, ?> address,
+                                   OutputTimeFn<? super W> outputTimeFn) {
+      this.stateKey = namespace.stringKey() + '+' + stateName(address);
+      this.namespace = namespace;
+      this.descriptor = new ValueStateDescriptor<>(stateName(address),
+              new CoderTypeSerializer<>(InstantCoder.of()), null);
+      this.outputTimeFn = outputTimeFn;
+    }
+
+    @Override
+    public void clear() {
+      hold = null;
+      isRead = true;
+      isDirty = true;
+    }
+
+    @Override
+    public void add(Instant outputTime) {
+      Instant current = read();
+      hold = current == null ? outputTime : outputTimeFn.combine(current, outputTime);
+      isDirty = true;
+    }
+
+    @Override
+    public ReadableState<Boolean> isEmpty() {
+      return new ReadableState<Boolean>() {
+        @Override
+        public Boolean read() {
+          return FlinkKeyedWatermarkHold.this.read() == null;
+        }
+
+        @Override
+        public ReadableState<Boolean> readLater() {
+          // Ignore
+          return this;
+        }
+      };
+    }
+
+    @Override
+    public OutputTimeFn<? super W> getOutputTimeFn() {
+      return outputTimeFn;
+    }
+
+    @Override
+    public Instant read() {
+      if (!isRead) {
+        try {
+          hold = flinkState().value();
+        } catch (IOException e) {
+          throw new RuntimeException("Unable to read watermark hold state", e);
+        }
+        isRead = true;
+      }
+      return hold;
+    }
+
+    @Override
+    public WatermarkHoldState<W> readLater() {
+      // Ignore
+      return this;
+    }
+
+    private org.apache.flink.api.common.state.ValueState<Instant> flinkState() {
+      return partitionedState(namespace, descriptor);
+    }
+
+    @Override
+    public boolean isDirty() {
+      return isDirty;
+    }
+
+    @Override
+    public void commit() throws Exception {
+      if (hold == null) {
+        flinkState().clear();
+      } else {
+        flinkState().update(hold);
+      }
+      watermarkHolds.setHold(key, stateKey, hold);
+      isDirty = false;
+    }
+  }
+
+  private final class FlinkKeyedCombiningValue<InputT, AccumT, OutputT>
+      implements AccumulatorCombiningState<InputT, AccumT, OutputT>, CommittableIF {
+
+    private final StateNamespace namespace;
+    private final StateDescriptor<org.apache.flink.api.common.state.ValueState<AccumT>, ?> descriptor;
+    private final CombineWithContext.KeyedCombineFnWithContext<? super K, InputT, AccumT, OutputT> combineFn;
+    private final CombineWithContext.Context context;
+
+    private boolean isRead = false;
+    private boolean isDirty = false;
+    private boolean isClear = true;
+    private AccumT accum = null;
+
+    private FlinkKeyedCombiningValue(StateNamespace namespace,
+                                     StateTag<?, ?> address,
+                                     CombineWithContext.KeyedCombineFnWithContext<? super K, InputT, AccumT, OutputT> combineFn,
+                                     Coder<AccumT> accumCoder,
+                                     final StateContext<?> stateContext) {
+      Preconditions.checkNotNull(combineFn);
+      Preconditions.checkNotNull(accumCoder);
+
+      this.namespace = namespace;
+      this.descriptor = new ValueStateDescriptor<>(stateName(address), new CoderTypeSerializer<>(accumCoder), null);
+      this.combineFn = combineFn;
+      this.context = new CombineWithContext.Context() {
+        @Override
+        public PipelineOptions getPipelineOptions() {
+          return stateContext.getPipelineOptions();
+        }
+
+        @Override
+        public <T> T sideInput(PCollectionView<T> view) {
+          return stateContext.sideInput(view);
+        }
+      };
+    }
+
+    private void readAccum() {
+      if (!isRead) {
+        try {
+          accum = flinkState().value();
+        } catch (IOException e) {
+          throw new RuntimeException("Unable to read combining state", e);
+        }
+        isClear = accum == null;
+        if (isClear) {
+          accum = combineFn.createAccumulator(key, context);
+        }
+        isRead = true;
+      }
+    }
+
+    @Override
+    public void clear() {
+      accum = combineFn.createAccumulator(key, context);
+      isClear = true;
+      isRead = true;
+      isDirty = true;
+    }
+
+    @Override
+    public void add(InputT input) {
+      readAccum();
+      accum = combineFn.addInput(key, accum, input, context);
+      isClear = false;
+      isDirty = true;
+    }
+
+    @Override
+    public AccumT getAccum() {
+      readAccum();
+      return accum;
+    }
+
+    @Override
+    public ReadableState<Boolean> isEmpty() {
+      return new ReadableState<Boolean>() {
+        @Override
+        public ReadableState<Boolean> readLater() {
+          // Ignore
+          return this;
+        }
+
+        @Override
+        public Boolean read() {
+          readAccum();
+          return isClear;
+        }
+      };
+    }
+
+    @Override
+    public void addAccum(AccumT accum) {
+      readAccum();
+      this.accum = combineFn.mergeAccumulators(key, Arrays.asList(this.accum, accum), context);
+      isClear = false;
+      isDirty = true;
+    }
+
+    @Override
+    public AccumT mergeAccumulators(Iterable<AccumT> accumulators) {
+      return combineFn.mergeAccumulators(key, accumulators, context);
+    }
+
+    @Override
+    public OutputT read() {
+      readAccum();
+      return combineFn.extractOutput(key, accum, context);
+    }
+
+    @Override
+    public AccumulatorCombiningState<InputT, AccumT, OutputT> readLater() {
+      // Ignore
+      return this;
+    }
+
+    private org.apache.flink.api.common.state.ValueState<AccumT> flinkState() {
+      return partitionedState(namespace, descriptor);
+    }
+
+    @Override
+    public boolean isDirty() {
+      return isDirty;
+    }
+
+    @Override
+    public void commit() throws Exception {
+      if (isClear) {
+        flinkState().clear();
+      } else {
+        flinkState().update(accum);
+      }
+      isDirty = false;
+    }
+  }
+
+  private final class FlinkKeyedBag<T> implements BagState<T>, CommittableIF {
+
+    private final StateNamespace namespace;
+    private final StateDescriptor<ListState<T>, ?> descriptor;
+
+    /** Elements added since the contents were last written to the state backend. */
+    private final List<T> added = new ArrayList<>();
+
+    /** Whether the contents in the state backend must be cleared before adding elements. */
+    private boolean isCleared = false;
+
+    public FlinkKeyedBag(StateNamespace namespace, StateTag<?, ?> address, Coder<T> elemCoder) {
+      this.namespace = namespace;
+      this.descriptor = new ListStateDescriptor<>(stateName(address), new CoderTypeSerializer<>(elemCoder));
+    }
+
+    @Override
+    public void clear() {
+      added.clear();
+      isCleared = true;
+    }
+
+    @Override
+    public Iterable<T> read() {
+      if (isCleared) {
+        return Collections.unmodifiableList(added);
+      }
+      Iterable<T> stored;
+      try {
+        stored = flinkState().get();
+      } catch (Exception e) {
+        throw new RuntimeException("Unable to read bag state", e);
+      }
+      if (stored == null) {
+        return Collections.unmodifiableList(added);
+      }
+      return Iterables.concat(stored, Collections.unmodifiableList(added));
+    }
+
+    @Override
+    public BagState<T> readLater() {
+      // Ignore
+      return this;
+    }
+
+    @Override
+    public void add(T input) {
+      added.add(input);
+    }
+
+    @Override
+    public ReadableState<Boolean> isEmpty() {
+      return new ReadableState<Boolean>() {
+        @Override
+        public ReadableState<Boolean> readLater() {
+          // Ignore
+          return this;
+        }
+
+        @Override
+        public Boolean read() {
+          return Iterables.isEmpty(FlinkKeyedBag.this.read());
+        }
+      };
+    }
+
+    private ListState<T> flinkState() {
+      return partitionedState(namespace, descriptor);
+    }
+
+    @Override
+    public boolean isDirty() {
+      return isCleared || !added.isEmpty();
+    }
+
+    @Override
+    public void commit() throws Exception {
+      if (isCleared) {
+        flinkState().clear();
+      }
+      for (T element : added) {
+        flinkState().add(element);
+      }
+      added.clear();
+      isCleared = false;
+    }
+  }
+}
@@ -0,0 +1,151 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.beam.runners.flink.translation.wrappers.streaming.state;
+
+import org.apache.beam.runners.flink.translation.types.CoderTypeSerializer;
+import org.apache.beam.sdk.coders.Coder;
+
+import com.google.common.collect.TreeMultiset;
+
+import org.joda.time.Instant;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The watermark holds of all keys whose state is kept in the keyed state of a Flink state backend
+ * by {@link FlinkKeyedStateInternals}.
+ *
+ * <p>The state backend can not be scanned across keys, so each hold is also kept here, so that
+ * the output watermark of an operator can be computed. A hold is a single timestamp per key and
+ * state cell, so the holds are much smaller than the state they hold, and are checkpointed with
+ * the operator state.
+ *
+ * <p>Keys are compared by their structural value under the key coder, so that keys such as
+ * {@code byte[]}, which do not implement {@link Object#equals}, share their holds. All holds are
+ * also kept sorted, so that the minimum hold is found without visiting every key.
+ */
+public class KeyedWatermarkHolds<K> {
+
+  private final Coder<K> keyCoder;
+
+  /**
+   * The holds of each key, by the structural value of the key. A {@link HashMap} is used as the
+   * structural value may be {@code null}.
+   */
+  private final Map<Object, KeyHolds<K>> holds = new HashMap<>();
+
+  /** The holds of all keys and state cells. */
+  private final TreeMultiset<Instant> allHolds = TreeMultiset.create();
+
+  public KeyedWatermarkHolds(Coder<K> keyCoder) {
+    this.keyCoder = keyCoder;
+  }
+
+  /**
+   * Sets the hold of the provided state cell of the provided key. A {@code null} hold removes
+   * the hold.
+   */
+  public void setHold(K key, String stateKey, Instant hold) {
+    Object structuralKey = structuralValue(key);
+    KeyHolds<K> keyHolds = holds.get(structuralKey);
+    if (hold == null) {
+      if (keyHolds != null) {
+        removeFromAllHolds(keyHolds.holds.remove(stateKey));
+        if (keyHolds.holds.isEmpty()) {
+          holds.remove(structuralKey);
+        }
+      }
+    } else {
+      if (keyHolds == null) {
+        keyHolds = new KeyHolds<>(key);
+        holds.put(structuralKey, keyHolds);
+      }
+      removeFromAllHolds(keyHolds.holds.put(stateKey, hold));
+      allHolds.add(hold);
+    }
+  }
+
+  /**
+   * Returns the minimum of all the holds, or {@code null} if there are no holds.
+   */
+  public Instant getMinimumHold() {
+    return allHolds.isEmpty() ? null : allHolds.firstEntry().getElement();
+  }
+
+  public void persistHolds(StateCheckpointWriter writer) throws IOException {
+    CoderTypeSerializer<K> keySerializer = new CoderTypeSerializer<>(keyCoder);
+
+    writer.writeInt(holds.size());
+    for (KeyHolds<K> keyHolds : holds.values()) {
+      // encode the key
+      writer.serializeKey(keyHolds.key, keySerializer);
+
+      // write the holds of the key
+      writer.writeInt(keyHolds.holds.size());
+      for (Map.Entry<String, Instant> hold : keyHolds.holds.entrySet()) {
+        writer.setTag(hold.getKey());
+        writer.setTimestamp(hold.getValue());
+      }
+    }
+  }
+
+  public void restoreHolds(StateCheckpointReader reader) throws IOException {
+    CoderTypeSerializer<K> keySerializer = new CoderTypeSerializer<>(keyCoder);
+
+    holds.clear();
+    allHolds.clear();
+    int noOfKeys = reader.getInt();
+    for (int i = 0; i < noOfKeys; i++) {
+      K key = reader.deserializeKey(keySerializer);
+      int noOfHolds = reader.getInt();
+      for (int j = 0; j < noOfHolds; j++) {
+        String stateKey = reader.getTagToString();
+        Instant hold = reader.getTimestamp();
+        setHold(key, stateKey, hold);
+      }
+    }
+  }
+
+  private void removeFromAllHolds(Instant hold) {
+    if (hold != null) {
+      allHolds.remove(hold);
+    }
+  }
+
+  private Object structuralValue(K key) {
+    try {
+      return keyCoder.structuralValue(key);
+    } catch (Exception e) {
+      throw new RuntimeException("Unable to compute the structural value of key " + key, e);
+    }
+  }
+
+  /**
+   * A key and the holds of its state cells.
+   */
+  private static class KeyHolds<K> {
+    private final K key;
+    private final Map<String, Instant> holds = new HashMap<>();
+
+    private KeyHolds(K key) {
+      this.key = key;
+    }
+  }
+}
@@ -0,0 +1,76 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.beam.runners.flink.streaming;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.apache.beam.runners.flink.translation.wrappers.streaming.state.KeyedWatermarkHolds;
+import org.apache.beam.sdk.coders.ByteArrayCoder;
+import org.apache.beam.sdk.coders.StringUtf8Coder;
+
+import org.joda.time.Instant;
+import org.junit.Test;
+
+/**
+ * Tests for {@link KeyedWatermarkHolds}.
+ */
+public class KeyedWatermarkHoldsTest {
+
+  @Test
+  public void testMinimumHoldAfterReleases() {
+    KeyedWatermarkHolds<String> holds = new KeyedWatermarkHolds<>(StringUtf8Coder.of());
+    assertNull(holds.getMinimumHold());
+
+    holds.setHold("k1", "a", new Instant(10));
+    holds.setHold("k2", "a", new Instant(20));
+    holds.setHold("k1", "b", new Instant(5));
+    holds.setHold("k2", "b", new Instant(10));
+    assertEquals(new Instant(5), holds.getMinimumHold());
+
+    holds.setHold("k1", "b", null);
+    assertEquals(new Instant(10), holds.getMinimumHold());
+
+    // The same hold of another key still holds the minimum.
+    holds.setHold("k1", "a", null);
+    assertEquals(new Instant(10), holds.getMinimumHold());
+
+    holds.setHold("k2", "b", new Instant(30));
+    assertEquals(new Instant(20), holds.getMinimumHold());
+
+    holds.setHold("k2", "a", null);
+    holds.setHold("k2", "b", null);
+    assertNull(holds.getMinimumHold());
+  }
+
+  @Test
+  public void testByteArrayKeysShareHolds() {
+    KeyedWatermarkHolds<byte[]> holds = new KeyedWatermarkHolds<>(ByteArrayCoder.of());
+
+    holds.setHold(new byte[] {1, 2}, "a", new Instant(10));
+    holds.setHold(new byte[] {1, 2}, "a", new Instant(20));
+    holds.setHold(new byte[] {3}, "a", new Instant(30));
+    assertEquals(new Instant(20), holds.getMinimumHold());
+
+    holds.setHold(new byte[] {1, 2}, "a", null);
+    assertEquals(new Instant(30), holds.getMinimumHold());
+
+    holds.setHold(new byte[] {3}, "a", null);
+    assertNull(holds.getMinimumHold());
+  }
+}
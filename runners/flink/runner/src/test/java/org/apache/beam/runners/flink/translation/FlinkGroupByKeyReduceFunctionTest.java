@@ -0,0 +1,191 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.beam.runners.flink.translation;
+
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+
+import org.apache.beam.runners.flink.translation.functions.FlinkGroupByKeyReduceFunction;
+import org.apache.beam.runners.flink.translation.functions.FlinkPartialReduceFunction;
+import org.apache.beam.runners.flink.translation.functions.FlinkReduceFunction;
+import org.apache.beam.sdk.options.PipelineOptionsFactory;
+import org.apache.beam.sdk.transforms.Combine;
+import org.apache.beam.sdk.transforms.windowing.BoundedWindow;
+import org.apache.beam.sdk.transforms.windowing.IntervalWindow;
+import org.apache.beam.sdk.transforms.windowing.OutputTimeFns;
+import org.apache.beam.sdk.transforms.windowing.PaneInfo;
+import org.apache.beam.sdk.transforms.windowing.SlidingWindows;
+import org.apache.beam.sdk.util.WindowedValue;
+import org.apache.beam.sdk.util.WindowingStrategy;
+import org.apache.beam.sdk.values.KV;
+import org.apache.beam.sdk.values.PCollectionView;
+
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Ordering;
+
+import org.apache.flink.api.common.functions.RuntimeContext;
+import org.apache.flink.util.Collector;
+import org.joda.time.Duration;
+import org.joda.time.Instant;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tests for {@link FlinkGroupByKeyReduceFunction}, comparing it with the translation of a
+ * {@link org.apache.beam.sdk.transforms.GroupByKey} as a {@link Combine.PerKey} with the
+ * {@link FlinkBatchTransformTranslators.Concatenate} CombineFn.
+ */
+public class FlinkGroupByKeyReduceFunctionTest {
+
+  private static final Duration WINDOW_SIZE = Duration.millis(10);
+  private static final Duration WINDOW_PERIOD = Duration.millis(5);
+
+  @Test
+  public void testSameGroupsAsCombinePerKeyWithEarliestOutputTime() throws Exception {
+    verifySameGroups(
+        WindowingStrategy.of(SlidingWindows.of(WINDOW_SIZE).every(WINDOW_PERIOD))
+            .withOutputTimeFn(OutputTimeFns.outputAtEarliestInputTimestamp()));
+  }
+
+  @Test
+  public void testSameGroupsAsCombinePerKeyWithEndOfWindowOutputTime() throws Exception {
+    verifySameGroups(
+        WindowingStrategy.of(SlidingWindows.of(WINDOW_SIZE).every(WINDOW_PERIOD))
+            .withOutputTimeFn(OutputTimeFns.outputAtEndOfWindow()));
+  }
+
+  private void verifySameGroups(WindowingStrategy<?, ?> windowingStrategy) throws Exception {
+    Map<String, List<WindowedValue<KV<String, Integer>>>> elementsByKey = new LinkedHashMap<>();
+    for (String key : Arrays.asList("a", "b", "c")) {
+      List<WindowedValue<KV<String, Integer>>> elements = new ArrayList<>();
+      for (int i = 0; i < 20; i++) {
+        // timestamps out of order, with several elements in each window
+        long timestamp = (i * 7 + key.charAt(0)) % 40;
+        elements.add(WindowedValue.of(
+            KV.of(key, i), new Instant(timestamp), windows(timestamp), PaneInfo.NO_FIRING));
+      }
+      elementsByKey.put(key, elements);
+    }
+
+    List<String> groups = new ArrayList<>();
+    List<String> combinedGroups = new ArrayList<>();
+    for (List<WindowedValue<KV<String, Integer>>> elements : elementsByKey.values()) {
+      groups.addAll(groupByKey(windowingStrategy, elements));
+      combinedGroups.addAll(combinePerKey(windowingStrategy, elements));
+    }
+
+    // 3 keys with elements in 9 windows each
+    assertEquals(27, groups.size());
+    assertThat(groups, containsInAnyOrder(combinedGroups.toArray()));
+  }
+
+  /** Returns the groups of the elements of a key, as output by the function under test. */
+  private static List<String> groupByKey(
+      WindowingStrategy<?, ?> windowingStrategy,
+      List<WindowedValue<KV<String, Integer>>> elements) throws Exception {
+    ListCollector<WindowedValue<KV<String, Iterable<Integer>>>> out = new ListCollector<>();
+    new FlinkGroupByKeyReduceFunction<String, Integer>(windowingStrategy).reduce(elements, out);
+    List<String> groups = new ArrayList<>();
+    for (WindowedValue<KV<String, Iterable<Integer>>> group : out.values) {
+      groups.add(describe(group));
+    }
+    return groups;
+  }
+
+  /**
+   * Returns the groups of the elements of a key, as output by a partial combine of each half of
+   * the elements followed by a final combine with the Concatenate CombineFn.
+   */
+  private static List<String> combinePerKey(
+      WindowingStrategy<?, ?> windowingStrategy,
+      List<WindowedValue<KV<String, Integer>>> elements) throws Exception {
+    @SuppressWarnings("unchecked")
+    WindowingStrategy<?, BoundedWindow> boundedStrategy =
+        (WindowingStrategy<?, BoundedWindow>) windowingStrategy;
+    Combine.KeyedCombineFn<String, Integer, List<Integer>, List<Integer>> combineFn =
+        new FlinkBatchTransformTranslators.Concatenate<Integer>().asKeyedFn();
+    Map<PCollectionView<?>, WindowingStrategy<?, ?>> sideInputs = Collections.emptyMap();
+
+    FlinkPartialReduceFunction<String, Integer, List<Integer>, BoundedWindow> partialReduce =
+        new FlinkPartialReduceFunction<>(
+            combineFn, boundedStrategy, sideInputs, PipelineOptionsFactory.create());
+    partialReduce.setRuntimeContext(mock(RuntimeContext.class));
+    ListCollector<WindowedValue<KV<String, List<Integer>>>> partials = new ListCollector<>();
+    int half = elements.size() / 2;
+    partialReduce.combine(elements.subList(0, half), partials);
+    partialReduce.combine(elements.subList(half, elements.size()), partials);
+
+    FlinkReduceFunction<String, List<Integer>, List<Integer>, BoundedWindow> reduce =
+        new FlinkReduceFunction<>(
+            combineFn, boundedStrategy, sideInputs, PipelineOptionsFactory.create());
+    reduce.setRuntimeContext(mock(RuntimeContext.class));
+    ListCollector<WindowedValue<KV<String, List<Integer>>>> out = new ListCollector<>();
+    reduce.reduce(partials.values, out);
+
+    List<String> groups = new ArrayList<>();
+    for (WindowedValue<KV<String, List<Integer>>> group : out.values) {
+      groups.add(describe(group));
+    }
+    return groups;
+  }
+
+  /** Returns the windows of {@link SlidingWindows} that contain the provided timestamp. */
+  private static List<IntervalWindow> windows(long timestamp) {
+    long lastStart = timestamp - timestamp % WINDOW_PERIOD.getMillis();
+    List<IntervalWindow> windows = new ArrayList<>();
+    for (long start = lastStart; start > timestamp - WINDOW_SIZE.getMillis();
+        start -= WINDOW_PERIOD.getMillis()) {
+      windows.add(new IntervalWindow(new Instant(start), WINDOW_SIZE));
+    }
+    return windows;
+  }
+
+  /**
+   * Describes a group by its key, window, timestamp, pane and values, in an order independent of
+   * the order in which the values were grouped.
+   */
+  private static String describe(
+      WindowedValue<? extends KV<String, ? extends Iterable<Integer>>> group) {
+    return group.getValue().getKey()
+        + " " + Iterables.getOnlyElement(group.getWindows())
+        + " " + group.getTimestamp()
+        + " " + group.getPane()
+        + " " + Ordering.natural().sortedCopy(group.getValue().getValue());
+  }
+
+  private static class ListCollector<T> implements Collector<T> {
+    private final List<T> values = new ArrayList<>();
+
+    @Override
+    public void collect(T record) {
+      values.add(record);
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+}
@@ -0,0 +1,133 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.beam.runners.dataflow.internal;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import org.apache.beam.runners.dataflow.util.RandomAccessData;
+import org.apache.beam.sdk.util.VarInt;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * A bloom filter over the encoded keys of a single shard of an Ism file written by
+ * {@link IsmWriter}, used by {@link IsmReader} to answer lookups of absent keys without reading
+ * the shard.
+ *
+ * <p>Keys are hashed with the 128-bit murmur3 algorithm, and the bit positions of a key are
+ * derived from the two 32-bit halves of the lower 64 bits of the hash. A filter is encoded as:
+ * <ul>
+ *   <li>number of hash functions (variable length integer coding)</li>
+ *   <li>number of bytes of the bit set (variable length integer coding)</li>
+ *   <li>the bit set, where bit {@code i} is bit {@code i % 8} of byte {@code i / 8}</li>
+ * </ul>
+ */
+class IsmBloomFilter {
+  private static final HashFunction HASH_FUNCTION = Hashing.murmur3_128(1225801234);
+  /** About 1% false positives with {@link #NUM_HASH_FUNCTIONS} hash functions. */
+  private static final int BITS_PER_KEY = 10;
+  private static final int NUM_HASH_FUNCTIONS = 7;
+
+  private final int numHashFunctions;
+  private final ByteBuffer bits;
+  private final long numBits;
+
+  private IsmBloomFilter(int numHashFunctions, ByteBuffer bits) {
+    checkArgument(bits.remaining() > 0, "Expected a non-empty bloom filter.");
+    this.numHashFunctions = numHashFunctions;
+    this.bits = bits;
+    this.numBits = 8L * bits.remaining();
+  }
+
+  /** Returns the hash of the provided encoded key. */
+  static long hash(RandomAccessData key) {
+    return HASH_FUNCTION.hashBytes(key.array(), 0, key.size()).asLong();
+  }
+
+  /** Returns a filter containing the keys with the first {@code numKeys} provided hashes. */
+  static IsmBloomFilter of(long[] keyHashes, int numKeys) {
+    int numBytes =
+        (int) Math.min(Integer.MAX_VALUE, Math.max(8, (long) numKeys * BITS_PER_KEY / 8));
+    IsmBloomFilter filter =
+        new IsmBloomFilter(NUM_HASH_FUNCTIONS, ByteBuffer.wrap(new byte[numBytes]));
+    for (int i = 0; i < numKeys; i++) {
+      filter.put(keyHashes[i]);
+    }
+    return filter;
+  }
+
+  /**
+   * Reads the header of a filter from the provided stream and returns the filter over the
+   * following bytes of {@code buffer}, which must be the bytes backing {@code inStream}. The bit
+   * set is not copied, and {@code buffer} is positioned after it.
+   */
+  static IsmBloomFilter readFrom(InputStream inStream, ByteBuffer buffer) throws IOException {
+    int numHashFunctions = VarInt.decodeInt(inStream);
+    int numBytes = VarInt.decodeInt(inStream);
+    ByteBuffer bits = buffer.slice();
+    bits.limit(numBytes);
+    buffer.position(buffer.position() + numBytes);
+    return new IsmBloomFilter(numHashFunctions, bits);
+  }
+
+  /** Writes this filter to the provided stream. */
+  void writeTo(OutputStream outStream) throws IOException {
+    VarInt.encode(numHashFunctions, outStream);
+    VarInt.encode(bits.remaining(), outStream);
+    ByteBuffer toWrite = bits.duplicate();
+    byte[] bytes = new byte[toWrite.remaining()];
+    toWrite.get(bytes);
+    outStream.write(bytes);
+  }
+
+  /**
+   * Returns {@code false} if the key with the provided hash is definitely not in the filter.
+   */
+  boolean mightContain(long keyHash) {
+    int hash1 = (int) keyHash;
+    int hash2 = (int) (keyHash >>> 32);
+    for (int i = 1; i <= numHashFunctions; i++) {
+      long bit = bitIndex(hash1 + i * hash2);
+      if ((bits.get(bits.position() + (int) (bit >>> 3)) & (1 << (bit & 7))) == 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void put(long keyHash) {
+    int hash1 = (int) keyHash;
+    int hash2 = (int) (keyHash >>> 32);
+    for (int i = 1; i <= numHashFunctions; i++) {
+      long bit = bitIndex(hash1 + i * hash2);
+      int index = bits.position() + (int) (bit >>> 3);
+      bits.put(index, (byte) (bits.get(index) | (1 << (bit & 7))));
+    }
+  }
+
+  private long bitIndex(int combinedHash) {
+    // Flip all the bits if it's negative (guaranteed positive number)
+    return (combinedHash < 0 ? ~combinedHash : combinedHash) % numBits;
+  }
+}
@@ -0,0 +1,354 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.beam.runners.dataflow.internal;
+
+import static org.apache.beam.runners.dataflow.util.RandomAccessData.UNSIGNED_LEXICOGRAPHICAL_COMPARATOR;
+
+import static com.google.common.base.Preconditions.checkState;
+
+import org.apache.beam.runners.dataflow.internal.IsmFormat.Footer;
+import org.apache.beam.runners.dataflow.internal.IsmFormat.IsmRecord;
+import org.apache.beam.runners.dataflow.internal.IsmFormat.IsmRecordCoder;
+import org.apache.beam.runners.dataflow.internal.IsmFormat.IsmShard;
+import org.apache.beam.runners.dataflow.internal.IsmFormat.KeyPrefix;
+import org.apache.beam.runners.dataflow.internal.IsmFormat.KeyPrefixCoder;
+import org.apache.beam.runners.dataflow.util.RandomAccessData;
+import org.apache.beam.sdk.coders.Coder;
+import org.apache.beam.sdk.util.VarInt;
+
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Iterators;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+/**
+ * A reader of a local Ism file written by {@link IsmWriter}, which looks up records by key
+ * without reading the whole file.
+ *
+ * <p>The footer, the bloom filters and the shard index are read when the file is opened. Each
+ * shard is memory-mapped when it is first accessed, and its data index is read into memory at
+ * that time. A lookup then hashes the key to find its shard, checks the bloom filter of the shard,
+ * finds the block that may contain the key by a binary search of the data index, and only scans
+ * that block. Only the value of the record that is found is decoded.
+ *
+ * <p>A reader may be used by multiple threads. Each shard must be smaller than 2 GiB.
+ */
+public class IsmReader<V> implements Closeable, Iterable<IsmRecord<V>> {
+  private final IsmRecordCoder<V> coder;
+  private final FileChannel channel;
+  private final long numberOfKeys;
+  private final Map<Integer, ShardReader> shards = new LinkedHashMap<>();
+  private final Map<Integer, IsmBloomFilter> bloomFilters = new HashMap<>();
+
+  /** Opens the provided Ism file. */
+  public static <V> IsmReader<V> open(File file, IsmRecordCoder<V> coder) throws IOException {
+    FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+    try {
+      return new IsmReader<>(coder, channel);
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  private IsmReader(IsmRecordCoder<V> coder, FileChannel channel) throws IOException {
+    this.coder = coder;
+    this.channel = channel;
+
+    long size = channel.size();
+    if (size < Footer.FIXED_LENGTH) {
+      throw new IOException(
+          String.format("Ism file of %s bytes is too small to contain a footer.", size));
+    }
+    ByteBuffer footerBytes =
+        channel.map(MapMode.READ_ONLY, size - Footer.FIXED_LENGTH, Footer.FIXED_LENGTH);
+    long indexPosition = footerBytes.getLong();
+    long bloomFilterPosition = footerBytes.getLong();
+    this.numberOfKeys = footerBytes.getLong();
+    byte version = footerBytes.get();
+    if (version != IsmWriter.LOCAL_VERSION) {
+      throw new IOException(String.format(
+          "Expected a local Ism file of version %s written by IsmWriter, got version %s.",
+          IsmWriter.LOCAL_VERSION, version));
+    }
+
+    // The bloom filters are read straight from the mapped file.
+    ByteBuffer metadata = channel.map(MapMode.READ_ONLY, bloomFilterPosition,
+        size - Footer.FIXED_LENGTH - bloomFilterPosition);
+    InputStream metadataIn = new ByteBufferInputStream(metadata);
+    int numBloomFilters = VarInt.decodeInt(metadataIn);
+    for (int i = 0; i < numBloomFilters; i++) {
+      int shardId = VarInt.decodeInt(metadataIn);
+      bloomFilters.put(shardId, IsmBloomFilter.readFrom(metadataIn, metadata));
+    }
+    checkState(metadata.position() == indexPosition - bloomFilterPosition,
+        "Expected the shard index at position %s, but the bloom filters end at position %s.",
+        indexPosition, bloomFilterPosition + metadata.position());
+
+    // The shards are written in order, and the data of a shard ends where the next one begins.
+    List<IsmShard> shardIndex =
+        IsmFormat.ISM_SHARD_INDEX_CODER.decode(metadataIn, Coder.Context.NESTED);
+    for (int i = 0; i < shardIndex.size(); i++) {
+      long end = i + 1 < shardIndex.size()
+          ? shardIndex.get(i + 1).getBlockOffset() : bloomFilterPosition;
+      shards.put(shardIndex.get(i).getId(), new ShardReader(shardIndex.get(i), end));
+    }
+  }
+
+  /** Returns the number of records in the file. */
+  public long getNumberOfKeys() {
+    return numberOfKeys;
+  }
+
+  /**
+   * Returns the record with the provided key components, or {@code null} if there is none.
+   */
+  @Nullable
+  public IsmRecord<V> get(List<?> keyComponents) throws IOException {
+    RandomAccessData key = new RandomAccessData();
+    int shardId = coder.encodeAndHash(keyComponents, key);
+    ShardReader shard = shards.get(shardId);
+    if (shard == null) {
+      return null;
+    }
+    IsmBloomFilter bloomFilter = bloomFilters.get(shardId);
+    if (bloomFilter != null && !bloomFilter.mightContain(IsmBloomFilter.hash(key))) {
+      return null;
+    }
+    return shard.get(keyComponents, key);
+  }
+
+  /**
+   * Returns an iterator over all records of the file, in the order they were written.
+   */
+  @Override
+  public Iterator<IsmRecord<V>> iterator() {
+    List<Iterator<IsmRecord<V>>> shardIterators = new ArrayList<>();
+    for (ShardReader shard : shards.values()) {
+      shardIterators.add(shard.iterator());
+    }
+    return Iterators.concat(shardIterators.iterator());
+  }
+
+  @Override
+  public void close() throws IOException {
+    // Mapped shards stay valid after the channel is closed.
+    channel.close();
+  }
+
+  /** Reads the prefix encoded key at the current position into {@code key}. */
+  private static void readKey(InputStream inStream, RandomAccessData key) throws IOException {
+    KeyPrefix prefix = KeyPrefixCoder.of().decode(inStream, Coder.Context.NESTED);
+    key.resetTo(prefix.getSharedKeySize());
+    key.readFrom(inStream, prefix.getSharedKeySize(), prefix.getUnsharedKeySize());
+  }
+
+  /**
+   * Returns the record with the provided key components and the {@code valueLength} bytes of the
+   * buffer at its current position as the value or metadata.
+   */
+  private IsmRecord<V> decodeRecord(List<?> keyComponents, ByteBuffer buffer, int valueLength)
+      throws IOException {
+    ByteBuffer value = buffer.slice();
+    value.limit(valueLength);
+    if (IsmFormat.isMetadataKey(keyComponents)) {
+      byte[] metadata = new byte[valueLength];
+      value.get(metadata);
+      return IsmRecord.meta(keyComponents, metadata);
+    }
+    return IsmRecord.of(keyComponents,
+        coder.getValueCoder().decode(new ByteBufferInputStream(value), Coder.Context.OUTER));
+  }
+
+  /**
+   * Reads a single shard of the file.
+   */
+  private class ShardReader {
+    private final IsmShard shard;
+    private final long end;
+    /** The data block and data index of the shard. */
+    private ByteBuffer data;
+    private int indexStart;
+    /** The first key of each block and the offset of the block within the data block. */
+    private List<RandomAccessData> blockKeys;
+    private int[] blockOffsets;
+
+    private ShardReader(IsmShard shard, long end) {
+      this.shard = shard;
+      this.end = end;
+    }
+
+    /** Maps the shard and reads its data index, if not done yet. */
+    private synchronized ByteBuffer getData() throws IOException {
+      if (data != null) {
+        return data;
+      }
+      long size = end - shard.getBlockOffset();
+      checkState(size <= Integer.MAX_VALUE,
+          "Shard %s of %s bytes is too large to be mapped.", shard.getId(), size);
+      ByteBuffer mapped = channel.map(MapMode.READ_ONLY, shard.getBlockOffset(), size);
+
+      indexStart = (int) (shard.getIndexOffset() - shard.getBlockOffset());
+      ByteBuffer index = mapped.duplicate();
+      index.position(indexStart);
+      InputStream indexIn = new ByteBufferInputStream(index);
+      List<RandomAccessData> keys = new ArrayList<>();
+      List<Integer> offsets = new ArrayList<>();
+      RandomAccessData key = new RandomAccessData();
+      while (index.hasRemaining()) {
+        readKey(indexIn, key);
+        keys.add(key.copy());
+        offsets.add((int) VarInt.decodeLong(indexIn));
+      }
+      blockKeys = keys;
+      blockOffsets = new int[offsets.size()];
+      for (int i = 0; i < blockOffsets.length; i++) {
+        blockOffsets[i] = offsets.get(i);
+      }
+      data = mapped;
+      return data;
+    }
+
+    private IsmRecord<V> get(List<?> keyComponents, RandomAccessData key) throws IOException {
+      ByteBuffer buffer = getData().duplicate();
+      int block = Collections.binarySearch(blockKeys, key, UNSIGNED_LEXICOGRAPHICAL_COMPARATOR);
+      if (block < 0) {
+        // the key is in the block before the first block key that is greater, if any
+        block = -block - 2;
+        if (block < 0) {
+          return null;
+        }
+      }
+      buffer.limit(block + 1 < blockOffsets.length ? blockOffsets[block + 1] : indexStart);
+      buffer.position(blockOffsets[block]);
+
+      InputStream inStream = new ByteBufferInputStream(buffer);
+      RandomAccessData currentKey = new RandomAccessData();
+      while (buffer.hasRemaining()) {
+        readKey(inStream, currentKey);
+        int valueLength = VarInt.decodeInt(inStream);
+        int comparison = UNSIGNED_LEXICOGRAPHICAL_COMPARATOR.compare(currentKey, key);
+        if (comparison == 0) {
+          return decodeRecord(keyComponents, buffer, valueLength);
+        } else if (comparison > 0) {
+          return null;
+        }
+        buffer.position(buffer.position() + valueLength);
+      }
+      return null;
+    }
+
+    private Iterator<IsmRecord<V>> iterator() {
+      return new AbstractIterator<IsmRecord<V>>() {
+        private ByteBuffer buffer;
+        private InputStream inStream;
+        private final RandomAccessData currentKey = new RandomAccessData();
+
+        @Override
+        protected IsmRecord<V> computeNext() {
+          try {
+            if (buffer == null) {
+              buffer = getData().duplicate();
+              buffer.limit(indexStart);
+              inStream = new ByteBufferInputStream(buffer);
+            }
+            if (!buffer.hasRemaining()) {
+              return endOfData();
+            }
+            readKey(inStream, currentKey);
+            int valueLength = VarInt.decodeInt(inStream);
+            IsmRecord<V> record =
+                decodeRecord(decodeKeyComponents(currentKey), buffer, valueLength);
+            buffer.position(buffer.position() + valueLength);
+            return record;
+          } catch (IOException e) {
+            throw new RuntimeException("Unable to read shard " + shard.getId(), e);
+          }
+        }
+      };
+    }
+
+    private List<?> decodeKeyComponents(RandomAccessData key) throws IOException {
+      List<Object> keyComponents = new ArrayList<>();
+      InputStream keyIn = key.asInputStream(0, key.size());
+      while (keyIn.available() > 0) {
+        keyComponents.add(coder.getKeyComponentCoder(keyComponents.size())
+            .decode(keyIn, Coder.Context.NESTED));
+      }
+      return keyComponents;
+    }
+  }
+
+  /**
+   * An {@link InputStream} over the remaining bytes of a {@link ByteBuffer}, which advances the
+   * position of the buffer.
+   */
+  private static class ByteBufferInputStream extends InputStream {
+    private final ByteBuffer buffer;
+
+    private ByteBufferInputStream(ByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+
+    @Override
+    public int read() {
+      return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+      if (len == 0) {
+        return 0;
+      }
+      if (!buffer.hasRemaining()) {
+        return -1;
+      }
+      int toRead = Math.min(len, buffer.remaining());
+      buffer.get(b, off, toRead);
+      return toRead;
+    }
+
+    @Override
+    public long skip(long n) {
+      int toSkip = (int) Math.max(0, Math.min(n, buffer.remaining()));
+      buffer.position(buffer.position() + toSkip);
+      return toSkip;
+    }
+
+    @Override
+    public int available() {
+      return buffer.remaining();
+    }
+  }
+}
@@ -0,0 +1,262 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.beam.runners.dataflow.internal;
+
+import static org.apache.beam.runners.dataflow.util.RandomAccessData.UNSIGNED_LEXICOGRAPHICAL_COMPARATOR;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+import org.apache.beam.runners.dataflow.internal.IsmFormat.Footer;
+import org.apache.beam.runners.dataflow.internal.IsmFormat.IsmRecord;
+import org.apache.beam.runners.dataflow.internal.IsmFormat.IsmRecordCoder;
+import org.apache.beam.runners.dataflow.internal.IsmFormat.IsmShard;
+import org.apache.beam.runners.dataflow.internal.IsmFormat.KeyPrefix;
+import org.apache.beam.runners.dataflow.internal.IsmFormat.KeyPrefixCoder;
+import org.apache.beam.runners.dataflow.util.RandomAccessData;
+import org.apache.beam.sdk.coders.Coder;
+import org.apache.beam.sdk.util.VarInt;
+
+import com.google.common.io.CountingOutputStream;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes {@link IsmRecord}s to a local Ism file that can be read with {@link IsmReader}. A local
+ * file has the sections described in {@link IsmFormat}, but it is not in that format and cannot be
+ * read by the Dataflow service: the values are length prefixed, metadata records are written
+ * without the 0x00 0x00 marker, the bloom filters are per shard {@link IsmBloomFilter}s and the
+ * footer has {@link #LOCAL_VERSION} as its version. The footer is otherwise encoded as a
+ * {@link Footer}.
+ *
+ * <p>Records must be written grouped by shard in increasing order of shard id, and within a shard
+ * in strictly increasing unsigned lexicographical order of their encoded keys, see
+ * {@link IsmRecordCoder#encodeAndHash}.
+ *
+ * <p>The data block of a shard is split into blocks of about {@code blockSize} bytes. The first
+ * key of a block is written without a shared prefix, so a block can be read without the blocks
+ * before it, and the data index of the shard has an entry for the first key of every block. The
+ * value of a record is written as its length (variable length integer coding) followed by the
+ * value encoded with the value coder, or by the metadata bytes of a metadata record, so that the
+ * values of other keys can be skipped without decoding them.
+ *
+ * <p>The bloom filter section is composed of the number of filters (variable length integer
+ * coding) followed by that many pairs of shard id (variable length integer coding) and
+ * {@link IsmBloomFilter} over the encoded keys of the shard. Without bloom filters, the section
+ * is only composed of the number of filters, zero.
+ */
+public class IsmWriter<V> implements Closeable {
+  /** The default size of a block of the data block of a shard. */
+  public static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
+
+  /** The version in the footer of a local Ism file, which differs from {@link Footer#VERSION}. */
+  static final byte LOCAL_VERSION = 0x7F;
+
+  private final IsmRecordCoder<V> coder;
+  private final CountingOutputStream out;
+  private final int blockSize;
+  private final boolean withBloomFilters;
+
+  private final List<IsmShard> shards = new ArrayList<>();
+  private final Map<Integer, IsmBloomFilter> bloomFilters = new LinkedHashMap<>();
+  private long numberOfKeys;
+  private boolean closed;
+
+  // The shard currently being written.
+  private int shardId = -1;
+  private long shardBlockOffset;
+  private long currentBlockOffset;
+  private final RandomAccessData shardIndex = new RandomAccessData();
+  private RandomAccessData previousIndexKey = new RandomAccessData();
+  private RandomAccessData previousKey = new RandomAccessData();
+  private RandomAccessData currentKey = new RandomAccessData();
+  private final RandomAccessData value = new RandomAccessData();
+  private long[] keyHashes = new long[1024];
+  private int numKeysInShard;
+
+  /**
+   * Returns a writer of an Ism file with bloom filters and blocks of
+   * {@link #DEFAULT_BLOCK_SIZE} bytes to the provided channel.
+   */
+  public static <V> IsmWriter<V> of(WritableByteChannel channel, IsmRecordCoder<V> coder) {
+    return new IsmWriter<>(channel, coder, DEFAULT_BLOCK_SIZE, true);
+  }
+
+  /**
+   * Returns a writer of an Ism file to the provided channel, with the provided size of the blocks
+   * of a shard and with or without a bloom filter per shard.
+   */
+  public static <V> IsmWriter<V> of(
+      WritableByteChannel channel,
+      IsmRecordCoder<V> coder,
+      int blockSize,
+      boolean withBloomFilters) {
+    checkArgument(blockSize > 0, "Expected a positive block size, got %s.", blockSize);
+    return new IsmWriter<>(channel, coder, blockSize, withBloomFilters);
+  }
+
+  private IsmWriter(
+      WritableByteChannel channel,
+      IsmRecordCoder<V> coder,
+      int blockSize,
+      boolean withBloomFilters) {
+    IsmFormat.validateCoderIsCompatible(coder);
+    this.coder = coder;
+    this.out = new CountingOutputStream(
+        new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16));
+    this.blockSize = blockSize;
+    this.withBloomFilters = withBloomFilters;
+  }
+
+  /**
+   * Writes the provided record.
+   *
+   * @throws IllegalArgumentException if the record is not after the previous record in the
+   *     order described in the class documentation
+   */
+  public void write(IsmRecord<V> record) throws IOException {
+    checkState(!closed, "Writer is closed.");
+    currentKey.resetTo(0);
+    int recordShardId = coder.encodeAndHash(record.getKeyComponents(), currentKey);
+    if (recordShardId != shardId) {
+      checkArgument(recordShardId > shardId,
+          "Expected records in increasing shard order, got shard %s after shard %s for %s.",
+          recordShardId, shardId, record);
+      finishShard();
+      startShard(recordShardId);
+    } else {
+      checkArgument(UNSIGNED_LEXICOGRAPHICAL_COMPARATOR.compare(previousKey, currentKey) < 0,
+          "Expected keys in strictly increasing order within shard %s, got %s after %s.",
+          shardId, currentKey, previousKey);
+    }
+
+    long position = out.getCount();
+    int sharedKeySize;
+    if (numKeysInShard == 0 || position - currentBlockOffset >= blockSize) {
+      currentBlockOffset = position;
+      sharedKeySize = 0;
+      addIndexEntry(currentKey, position - shardBlockOffset);
+    } else {
+      sharedKeySize = UNSIGNED_LEXICOGRAPHICAL_COMPARATOR.commonPrefixLength(
+          previousKey, currentKey);
+    }
+    int unsharedKeySize = currentKey.size() - sharedKeySize;
+    KeyPrefixCoder.of().encode(
+        KeyPrefix.of(sharedKeySize, unsharedKeySize), out, Coder.Context.NESTED);
+    currentKey.writeTo(out, sharedKeySize, unsharedKeySize);
+
+    if (IsmFormat.isMetadataKey(record.getKeyComponents())) {
+      byte[] metadata = record.getMetadata();
+      VarInt.encode(metadata.length, out);
+      out.write(metadata);
+    } else {
+      value.resetTo(0);
+      coder.getValueCoder().encode(record.getValue(), value.asOutputStream(), Coder.Context.OUTER);
+      VarInt.encode(value.size(), out);
+      value.writeTo(out, 0, value.size());
+    }
+
+    if (withBloomFilters) {
+      if (numKeysInShard == keyHashes.length) {
+        keyHashes = Arrays.copyOf(keyHashes, 2 * keyHashes.length);
+      }
+      keyHashes[numKeysInShard] = IsmBloomFilter.hash(currentKey);
+    }
+    numKeysInShard++;
+    numberOfKeys++;
+
+    RandomAccessData swap = previousKey;
+    previousKey = currentKey;
+    currentKey = swap;
+  }
+
+  /**
+   * Writes the data index of the last shard, the bloom filters, the shard index and the footer,
+   * and closes the channel.
+   */
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    finishShard();
+
+    long bloomFilterPosition = out.getCount();
+    VarInt.encode(bloomFilters.size(), out);
+    for (Map.Entry<Integer, IsmBloomFilter> bloomFilter : bloomFilters.entrySet()) {
+      VarInt.encode(bloomFilter.getKey(), out);
+      bloomFilter.getValue().writeTo(out);
+    }
+
+    long indexPosition = out.getCount();
+    IsmFormat.ISM_SHARD_INDEX_CODER.encode(shards, out, Coder.Context.NESTED);
+    DataOutputStream dataOut = new DataOutputStream(out);
+    dataOut.writeLong(indexPosition);
+    dataOut.writeLong(bloomFilterPosition);
+    dataOut.writeLong(numberOfKeys);
+    dataOut.write(LOCAL_VERSION);
+    dataOut.close();
+  }
+
+  private void startShard(int newShardId) {
+    shardId = newShardId;
+    shardBlockOffset = out.getCount();
+    shardIndex.resetTo(0);
+    previousIndexKey.resetTo(0);
+    numKeysInShard = 0;
+  }
+
+  /**
+   * Adds an entry for the first key of a block, at the provided offset within the data block of
+   * the shard, to the data index of the shard.
+   */
+  private void addIndexEntry(RandomAccessData key, long offset) throws IOException {
+    int sharedKeySize = shardIndex.size() == 0
+        ? 0 : UNSIGNED_LEXICOGRAPHICAL_COMPARATOR.commonPrefixLength(previousIndexKey, key);
+    int unsharedKeySize = key.size() - sharedKeySize;
+    KeyPrefixCoder.of().encode(KeyPrefix.of(sharedKeySize, unsharedKeySize),
+        shardIndex.asOutputStream(), Coder.Context.NESTED);
+    key.writeTo(shardIndex.asOutputStream(), sharedKeySize, unsharedKeySize);
+    VarInt.encode(offset, shardIndex.asOutputStream());
+    previousIndexKey.resetTo(0);
+    key.writeTo(previousIndexKey.asOutputStream(), 0, key.size());
+  }
+
+  private void finishShard() throws IOException {
+    if (shardId < 0) {
+      return;
+    }
+    long indexOffset = out.getCount();
+    shardIndex.writeTo(out, 0, shardIndex.size());
+    shards.add(IsmShard.of(shardId, shardBlockOffset, indexOffset));
+    if (withBloomFilters) {
+      bloomFilters.put(shardId, IsmBloomFilter.of(keyHashes, numKeysInShard));
+    }
+  }
+}
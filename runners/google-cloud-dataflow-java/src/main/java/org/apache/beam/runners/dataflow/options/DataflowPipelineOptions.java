@@ -72,6 +72,18 @@ public interface DataflowPipelineOptions
   String getStagingLocation();
   void setStagingLocation(String value);
 
+  /**
+   * Local file in which the sizes and hashes of staged files are recorded, so that files that did
+   * not change since an earlier run are not read and hashed again.
+   *
+   * <p>If not set, all files to stage are hashed on every run.
+   */
+  @Description("Local file in which to record the sizes and hashes of staged files, so that files "
+      + "that did not change since an earlier run are not hashed again. If unset, all files to "
+      + "stage are hashed on every run.")
+  String getStagedContentHashesFile();
+  void setStagedContentHashesFile(String value);
+
   /**
    * The Dataflow job name is used as an idempotence key within the Dataflow service.
    * If there is an existing job that is currently active, another active job with the same
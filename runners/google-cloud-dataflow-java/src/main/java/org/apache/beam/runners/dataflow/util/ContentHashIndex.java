@@ -0,0 +1,166 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.beam.runners.dataflow.util;
+
+import org.apache.beam.runners.dataflow.util.PackageUtil.ContentHash;
+
+import com.google.common.base.Splitter;
+import com.google.common.io.Files;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+/**
+ * An index of the sizes and hashes of the contents of classpath elements, persisted in a local
+ * file so that elements that have not changed are not hashed again by later runs, which usually
+ * run in a new JVM.
+ *
+ * <p>Entries are keyed by a fingerprint of the path of a classpath element and of the sizes and
+ * modification times of its files. The file holds one entry per line, and new entries are appended
+ * to it. Lines that cannot be parsed, for example because of concurrent writers, are ignored, so a
+ * damaged index only causes elements to be hashed again. When the file holds many more lines than
+ * {@link #MAX_ENTRIES}, it is rewritten with the most recent entries when it is loaded.
+ */
+class ContentHashIndex {
+  private static final Logger LOG = LoggerFactory.getLogger(ContentHashIndex.class);
+
+  /**
+   * The maximum number of entries kept when the index is rewritten.
+   */
+  static final int MAX_ENTRIES = 10000;
+
+  private static final char SEPARATOR = ' ';
+
+  private final File file;
+  @Nullable private Map<String, ContentHash> entries;
+
+  /**
+   * Returns the index persisted in the provided file.
+   */
+  static ContentHashIndex at(File file) {
+    return new ContentHashIndex(file);
+  }
+
+  private ContentHashIndex(File file) {
+    this.file = file;
+  }
+
+  /**
+   * Returns the size and hash recorded for the provided fingerprint, or {@code null} if there is
+   * none.
+   */
+  @Nullable
+  synchronized ContentHash get(String fingerprint) {
+    return getEntries().get(fingerprint);
+  }
+
+  /**
+   * Records the size and hash of the contents with the provided fingerprint. Failures to persist
+   * the entry are logged and otherwise ignored.
+   */
+  synchronized void put(String fingerprint, ContentHash contentHash) {
+    Map<String, ContentHash> loaded = getEntries();
+    loaded.remove(fingerprint);
+    loaded.put(fingerprint, contentHash);
+    try {
+      Files.createParentDirs(file);
+      try (Writer writer =
+          new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8)) {
+        writer.write(toLine(fingerprint, contentHash));
+      }
+    } catch (IOException e) {
+      LOG.debug("Unable to record the hash of staged contents in {}", file, e);
+    }
+  }
+
+  private Map<String, ContentHash> getEntries() {
+    if (entries == null) {
+      entries = new LinkedHashMap<>();
+      int numLines = 0;
+      if (file.isFile()) {
+        try {
+          for (String line : Files.readLines(file, StandardCharsets.UTF_8)) {
+            numLines++;
+            parseLine(line, entries);
+          }
+        } catch (IOException e) {
+          LOG.debug("Unable to read the hashes of staged contents from {}", file, e);
+        }
+      }
+      if (numLines > 2 * MAX_ENTRIES) {
+        compact();
+      }
+    }
+    return entries;
+  }
+
+  /**
+   * Keeps the {@link #MAX_ENTRIES} most recently added entries, and rewrites the file with them.
+   */
+  private void compact() {
+    Iterator<String> fingerprints = entries.keySet().iterator();
+    for (int i = entries.size(); i > MAX_ENTRIES; i--) {
+      fingerprints.next();
+      fingerprints.remove();
+    }
+    StringBuilder contents = new StringBuilder();
+    for (Map.Entry<String, ContentHash> entry : entries.entrySet()) {
+      contents.append(toLine(entry.getKey(), entry.getValue()));
+    }
+    File tmpFile = new File(file.getPath() + ".tmp");
+    try {
+      Files.write(contents, tmpFile, StandardCharsets.UTF_8);
+      Files.move(tmpFile, file);
+    } catch (IOException e) {
+      LOG.debug("Unable to rewrite the hashes of staged contents in {}", file, e);
+    }
+  }
+
+  private static String toLine(String fingerprint, ContentHash contentHash) {
+    return fingerprint + SEPARATOR + contentHash.size + SEPARATOR + contentHash.hash + "\n";
+  }
+
+  private static void parseLine(String line, Map<String, ContentHash> entries) {
+    List<String> fields = Splitter.on(SEPARATOR).splitToList(line);
+    if (fields.size() != 3 || fields.get(0).isEmpty() || fields.get(2).isEmpty()) {
+      return;
+    }
+    long size;
+    try {
+      size = Long.parseLong(fields.get(1));
+    } catch (NumberFormatException e) {
+      return;
+    }
+    // Re-insert, so that the entries stay in the order they were last added.
+    entries.remove(fields.get(0));
+    entries.put(fields.get(0), new ContentHash(size, fields.get(2)));
+  }
+}
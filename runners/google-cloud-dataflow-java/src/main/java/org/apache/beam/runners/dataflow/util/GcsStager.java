@@ -50,6 +50,7 @@ public class GcsStager implements Stager {
       filesToStage.add("windmill_main=" + windmillBinary);
     }
     return PackageUtil.stageClasspathElements(
-        options.getFilesToStage(), options.getStagingLocation());
+        options.getFilesToStage(), options.getStagingLocation(),
+        options.getStagedContentHashesFile());
   }
 }
@@ -26,11 +26,16 @@ import com.google.api.client.util.BackOffUtils;
 import com.google.api.client.util.Sleeper;
 import com.google.api.services.dataflow.model.DataflowPackage;
 import com.google.cloud.hadoop.util.ApiErrorExtractor;
+import com.google.common.base.Throwables;
 import com.google.common.hash.Funnels;
 import com.google.common.hash.Hasher;
 import com.google.common.hash.Hashing;
 import com.google.common.io.CountingOutputStream;
 import com.google.common.io.Files;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
 
 import com.fasterxml.jackson.core.Base64Variants;
 
@@ -43,10 +48,18 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.channels.Channels;
 import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nullable;
 
 /** Helper routines for packages. */
 public class PackageUtil {
@@ -64,6 +77,16 @@ public class PackageUtil {
    */
   private static final int MAX_ATTEMPTS = 5;
 
+  /**
+   * The maximum number of classpath elements that are hashed and uploaded concurrently.
+   */
+  static final int THREAD_POOL_SIZE = 32;
+  /**
+   * Files modified less than this long before they are hashed are not cached, as a later
+   * modification within the timestamp granularity of the file system would go unnoticed.
+   */
+  private static final long CACHE_GRANULARITY_MS = 2000L;
+
   /**
    * Translates exceptions from API calls.
    */
@@ -82,7 +105,7 @@ public class PackageUtil {
   @Deprecated
   public static DataflowPackage createPackage(File classpathElement,
       String stagingPath, String overridePackageName) {
-    return createPackageAttributes(classpathElement, stagingPath, overridePackageName)
+    return createPackageAttributes(classpathElement, stagingPath, overridePackageName, null)
         .getDataflowPackage();
   }
 
@@ -93,28 +116,18 @@ public class PackageUtil {
    * @param stagingPath The base location for staged classpath elements.
    * @param overridePackageName If non-null, use the given value as the package name
    *                            instead of generating one automatically.
+   * @param contentHashIndex If non-null, the index of the sizes and hashes of the contents of
+   *                         classpath elements that were staged before.
    * @return a {@link PackageAttributes} that containing metadata about the object to be staged.
    */
   static PackageAttributes createPackageAttributes(File classpathElement,
-      String stagingPath, String overridePackageName) {
+      String stagingPath, String overridePackageName,
+      @Nullable ContentHashIndex contentHashIndex) {
     try {
       boolean directory = classpathElement.isDirectory();
-
-      // Compute size and hash in one pass over file or directory.
-      Hasher hasher = Hashing.md5().newHasher();
-      OutputStream hashStream = Funnels.asOutputStream(hasher);
-      CountingOutputStream countingOutputStream = new CountingOutputStream(hashStream);
-
-      if (!directory) {
-        // Files are staged as-is.
-        Files.asByteSource(classpathElement).copyTo(countingOutputStream);
-      } else {
-        // Directories are recursively zipped.
-        ZipFiles.zipDirectory(classpathElement, countingOutputStream);
-      }
-
-      long size = countingOutputStream.getCount();
-      String hash = Base64Variants.MODIFIED_FOR_URL.encode(hasher.hash().asBytes());
+      ContentHash contentHash = getContentHash(classpathElement, directory, contentHashIndex);
+      long size = contentHash.size;
+      String hash = contentHash.hash;
 
       // Create the DataflowPackage with staging name and location.
       String uniqueName = getUniqueContentName(classpathElement, hash);
@@ -129,6 +142,74 @@ public class PackageUtil {
     }
   }
 
+  /**
+   * Returns the size and hash of the contents of a classpath element, from the index if there is
+   * one and the element has not changed since it was last hashed.
+   */
+  private static ContentHash getContentHash(
+      File classpathElement, boolean directory, @Nullable ContentHashIndex index)
+      throws IOException {
+    long hashTimeMillis = System.currentTimeMillis();
+    String fingerprint = null;
+    long lastModified = Long.MAX_VALUE;
+    if (index != null) {
+      Hasher fingerprintHasher = Hashing.md5().newHasher()
+          .putString(classpathElement.getAbsolutePath(), StandardCharsets.UTF_8);
+      lastModified = fingerprint(classpathElement, "", fingerprintHasher);
+      fingerprint = fingerprintHasher.hash().toString();
+      ContentHash contentHash = index.get(fingerprint);
+      if (contentHash != null) {
+        return contentHash;
+      }
+    }
+
+    // Compute size and hash in one pass over file or directory.
+    Hasher hasher = Hashing.md5().newHasher();
+    OutputStream hashStream = Funnels.asOutputStream(hasher);
+    CountingOutputStream countingOutputStream = new CountingOutputStream(hashStream);
+
+    if (!directory) {
+      // Files are staged as-is.
+      Files.asByteSource(classpathElement).copyTo(countingOutputStream);
+    } else {
+      // Directories are recursively zipped.
+      ZipFiles.zipDirectory(classpathElement, countingOutputStream);
+    }
+
+    ContentHash contentHash = new ContentHash(
+        countingOutputStream.getCount(),
+        Base64Variants.MODIFIED_FOR_URL.encode(hasher.hash().asBytes()));
+    if (index != null && lastModified < hashTimeMillis - CACHE_GRANULARITY_MS) {
+      index.put(fingerprint, contentHash);
+    }
+    return contentHash;
+  }
+
+  /**
+   * Adds the relative paths, sizes and modification times of a file, or of a directory and
+   * everything below it, to {@code hasher}, in the order in which
+   * {@link ZipFiles#zipDirectory} visits them. Returns the latest modification time.
+   */
+  private static long fingerprint(File file, String relativePath, Hasher hasher) {
+    long lastModified = file.lastModified();
+    hasher
+        .putString(relativePath, StandardCharsets.UTF_8)
+        .putBoolean(file.isDirectory())
+        .putLong(file.length())
+        .putLong(lastModified);
+    if (file.isDirectory()) {
+      File[] childFiles = file.listFiles();
+      if (childFiles != null) {
+        Arrays.sort(childFiles);
+        for (File childFile : childFiles) {
+          lastModified = Math.max(lastModified,
+              fingerprint(childFile, relativePath + "/" + childFile.getName(), hasher));
+        }
+      }
+    }
+    return lastModified;
+  }
+
   /**
    * Transfers the classpath elements to the staging location.
    *
@@ -138,13 +219,40 @@ public class PackageUtil {
    */
   public static List<DataflowPackage> stageClasspathElements(
       Collection<String> classpathElements, String stagingPath) {
-    return stageClasspathElements(classpathElements, stagingPath, Sleeper.DEFAULT);
+    return stageClasspathElements(classpathElements, stagingPath, (String) null);
+  }
+
+  /**
+   * Transfers the classpath elements to the staging location.
+   *
+   * @param classpathElements The elements to stage.
+   * @param stagingPath The base location to stage the elements to.
+   * @param stagedContentHashesFile If non-null, a local file in which the sizes and hashes of the
+   *                                elements are recorded, so that elements that did not change
+   *                                since an earlier run are not hashed again.
+   * @return A list of cloud workflow packages, each representing a classpath element.
+   */
+  public static List<DataflowPackage> stageClasspathElements(
+      Collection<String> classpathElements, String stagingPath,
+      @Nullable String stagedContentHashesFile) {
+    ContentHashIndex contentHashIndex = stagedContentHashesFile == null
+        ? null
+        : ContentHashIndex.at(new File(stagedContentHashesFile));
+    return stageClasspathElements(
+        classpathElements, stagingPath, contentHashIndex, Sleeper.DEFAULT);
   }
 
   // Visible for testing.
   static List<DataflowPackage> stageClasspathElements(
       Collection<String> classpathElements, String stagingPath,
       Sleeper retrySleeper) {
+    return stageClasspathElements(classpathElements, stagingPath, null, retrySleeper);
+  }
+
+  // Visible for testing.
+  static List<DataflowPackage> stageClasspathElements(
+      Collection<String> classpathElements, String stagingPath,
+      @Nullable ContentHashIndex contentHashIndex, Sleeper retrySleeper) {
     LOG.info("Uploading {} files from PipelineOptions.filesToStage to staging location to "
         + "prepare for execution.", classpathElements.size());
 
@@ -164,87 +272,134 @@ public class PackageUtil {
           "Can't stage classpath elements on because no staging location has been provided");
     }
 
-    int numUploaded = 0;
-    int numCached = 0;
-    for (String classpathElement : classpathElements) {
-      String packageName = null;
-      if (classpathElement.contains("=")) {
-        String[] components = classpathElement.split("=", 2);
-        packageName = components[0];
-        classpathElement = components[1];
-      }
+    final AtomicInteger numUploaded = new AtomicInteger();
+    final AtomicInteger numCached = new AtomicInteger();
+    List<ListenableFuture<DataflowPackage>> futures = new ArrayList<>();
+    ListeningExecutorService service =
+        MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(THREAD_POOL_SIZE));
+    try {
+      for (String classpathElement : classpathElements) {
+        String packageName = null;
+        if (classpathElement.contains("=")) {
+          String[] components = classpathElement.split("=", 2);
+          packageName = components[0];
+          classpathElement = components[1];
+        }
 
-      File file = new File(classpathElement);
-      if (!file.exists()) {
-        LOG.warn("Skipping non-existent classpath element {} that was specified.",
-            classpathElement);
-        continue;
+        File file = new File(classpathElement);
+        if (!file.exists()) {
+          LOG.warn("Skipping non-existent classpath element {} that was specified.",
+              classpathElement);
+          continue;
+        }
+
+        futures.add(createFutureForStaging(
+            file, stagingPath, packageName, contentHashIndex, retrySleeper, numUploaded, numCached,
+            service));
       }
 
-      PackageAttributes attributes = createPackageAttributes(file, stagingPath, packageName);
+      packages.addAll(Futures.allAsList(futures).get());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted while staging classpath elements", e);
+    } catch (ExecutionException e) {
+      Throwables.propagateIfPossible(e.getCause());
+      throw new RuntimeException(e.getCause());
+    } finally {
+      service.shutdown();
+    }
 
-      DataflowPackage workflowPackage = attributes.getDataflowPackage();
-      packages.add(workflowPackage);
-      String target = workflowPackage.getLocation();
+    LOG.info("Uploading PipelineOptions.filesToStage complete: {} files newly uploaded, "
+        + "{} files cached",
+        numUploaded.get(), numCached.get());
 
-      // TODO: Should we attempt to detect the Mime type rather than
-      // always using MimeTypes.BINARY?
-      try {
-        try {
-          long remoteLength = IOChannelUtils.getSizeBytes(target);
-          if (remoteLength == attributes.getSize()) {
-            LOG.debug("Skipping classpath element already staged: {} at {}",
-                classpathElement, target);
-            numCached++;
-            continue;
-          }
-        } catch (FileNotFoundException expected) {
-          // If the file doesn't exist, it means we need to upload it.
-        }
+    return packages;
+  }
 
-        // Upload file, retrying on failure.
-        AttemptBoundedExponentialBackOff backoff = new AttemptBoundedExponentialBackOff(
-            MAX_ATTEMPTS,
-            INITIAL_BACKOFF_INTERVAL_MS);
-        while (true) {
-          try {
-            LOG.debug("Uploading classpath element {} to {}", classpathElement, target);
-            try (WritableByteChannel writer = IOChannelUtils.create(target, MimeTypes.BINARY)) {
-              copyContent(classpathElement, writer);
-            }
-            numUploaded++;
-            break;
-          } catch (IOException e) {
-            if (ERROR_EXTRACTOR.accessDenied(e)) {
-              String errorMessage = String.format(
-                  "Uploaded failed due to permissions error, will NOT retry staging "
-                  + "of classpath %s. Please verify credentials are valid and that you have "
-                  + "write access to %s. Stale credentials can be resolved by executing "
-                  + "'gcloud auth login'.", classpathElement, target);
-              LOG.error(errorMessage);
-              throw new IOException(errorMessage, e);
-            } else if (!backoff.atMaxAttempts()) {
-              LOG.warn("Upload attempt failed, sleeping before retrying staging of classpath: {}",
-                  classpathElement, e);
-              BackOffUtils.next(retrySleeper, backoff);
+  private static ListenableFuture<DataflowPackage> createFutureForStaging(
+      final File file,
+      final String stagingPath,
+      final String packageName,
+      @Nullable final ContentHashIndex contentHashIndex,
+      final Sleeper retrySleeper,
+      final AtomicInteger numUploaded,
+      final AtomicInteger numCached,
+      ListeningExecutorService service) {
+    return service.submit(
+        new Callable<DataflowPackage>() {
+          @Override
+          public DataflowPackage call() {
+            PackageAttributes attributes =
+                createPackageAttributes(file, stagingPath, packageName, contentHashIndex);
+            if (stagePackage(attributes, file.getPath(), retrySleeper)) {
+              numUploaded.incrementAndGet();
             } else {
-              // Rethrow last error, to be included as a cause in the catch below.
-              LOG.error("Upload failed, will NOT retry staging of classpath: {}",
-                  classpathElement, e);
-              throw e;
+              numCached.incrementAndGet();
             }
+            return attributes.getDataflowPackage();
           }
+        });
+  }
+
+  /**
+   * Uploads a classpath element to the location of its package, unless a file of the same size
+   * is already there.
+   *
+   * @return whether the classpath element was uploaded
+   */
+  private static boolean stagePackage(
+      PackageAttributes attributes, String classpathElement, Sleeper retrySleeper) {
+    String target = attributes.getDataflowPackage().getLocation();
+
+    // TODO: Should we attempt to detect the Mime type rather than
+    // always using MimeTypes.BINARY?
+    try {
+      try {
+        long remoteLength = IOChannelUtils.getSizeBytes(target);
+        if (remoteLength == attributes.getSize()) {
+          LOG.debug("Skipping classpath element already staged: {} at {}",
+              classpathElement, target);
+          return false;
         }
-      } catch (Exception e) {
-        throw new RuntimeException("Could not stage classpath element: " + classpathElement, e);
+      } catch (FileNotFoundException expected) {
+        // If the file doesn't exist, it means we need to upload it.
       }
-    }
 
-    LOG.info("Uploading PipelineOptions.filesToStage complete: {} files newly uploaded, "
-        + "{} files cached",
-        numUploaded, numCached);
-
-    return packages;
+      // Upload file, retrying on failure.
+      AttemptBoundedExponentialBackOff backoff = new AttemptBoundedExponentialBackOff(
+          MAX_ATTEMPTS,
+          INITIAL_BACKOFF_INTERVAL_MS);
+      while (true) {
+        try {
+          LOG.debug("Uploading classpath element {} to {}", classpathElement, target);
+          try (WritableByteChannel writer = IOChannelUtils.create(target, MimeTypes.BINARY)) {
+            copyContent(classpathElement, writer);
+          }
+          return true;
+        } catch (IOException e) {
+          if (ERROR_EXTRACTOR.accessDenied(e)) {
+            String errorMessage = String.format(
+                "Uploaded failed due to permissions error, will NOT retry staging "
+                + "of classpath %s. Please verify credentials are valid and that you have "
+                + "write access to %s. Stale credentials can be resolved by executing "
+                + "'gcloud auth login'.", classpathElement, target);
+            LOG.error(errorMessage);
+            throw new IOException(errorMessage, e);
+          } else if (!backoff.atMaxAttempts()) {
+            LOG.warn("Upload attempt failed, sleeping before retrying staging of classpath: {}",
+                classpathElement, e);
+            BackOffUtils.next(retrySleeper, backoff);
+          } else {
+            // Rethrow last error, to be included as a cause in the catch below.
+            LOG.error("Upload failed, will NOT retry staging of classpath: {}",
+                classpathElement, e);
+            throw e;
+          }
+        }
+      }
+    } catch (Exception e) {
+      throw new RuntimeException("Could not stage classpath element: " + classpathElement, e);
+    }
   }
 
   /**
@@ -285,6 +440,19 @@ public class PackageUtil {
       Files.asByteSource(classpathElementFile).copyTo(Channels.newOutputStream(outputChannel));
     }
   }
+  /**
+   * The size and hash of the contents of a classpath element, as staged.
+   */
+  static class ContentHash {
+    final long size;
+    final String hash;
+
+    ContentHash(long size, String hash) {
+      this.size = size;
+      this.hash = hash;
+    }
+  }
+
   /**
    * Holds the metadata necessary to stage a file or confirm that a staged file has not changed.
    */
@@ -0,0 +1,230 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.beam.runners.dataflow.internal;
+
+import static org.apache.beam.runners.dataflow.util.RandomAccessData.UNSIGNED_LEXICOGRAPHICAL_COMPARATOR;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.emptyIterable;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThat;
+
+import org.apache.beam.runners.dataflow.internal.IsmFormat.Footer;
+import org.apache.beam.runners.dataflow.internal.IsmFormat.FooterCoder;
+import org.apache.beam.runners.dataflow.internal.IsmFormat.IsmRecord;
+import org.apache.beam.runners.dataflow.internal.IsmFormat.IsmRecordCoder;
+import org.apache.beam.runners.dataflow.internal.IsmFormat.MetadataKeyCoder;
+import org.apache.beam.runners.dataflow.util.RandomAccessData;
+import org.apache.beam.sdk.coders.ByteArrayCoder;
+import org.apache.beam.sdk.coders.Coder;
+import org.apache.beam.sdk.coders.StringUtf8Coder;
+import org.apache.beam.sdk.coders.VarLongCoder;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Tests for {@link IsmReader} reading files written by {@link IsmWriter}.
+ */
+@RunWith(JUnit4.class)
+public class IsmReaderTest {
+  @Rule public TemporaryFolder tmpFolder = new TemporaryFolder();
+  @Rule public ExpectedException thrown = ExpectedException.none();
+
+  private static final IsmRecordCoder<Long> CODER = IsmRecordCoder.of(
+      1, 0, ImmutableList.<Coder<?>>of(StringUtf8Coder.of(), VarLongCoder.of()), VarLongCoder.of());
+
+  /** Returns records for {@code numKeys} keys with 3 records each, in the order to write them. */
+  private static List<IsmRecord<Long>> sortedRecords(int numKeys) {
+    List<IsmRecord<Long>> records = new ArrayList<>();
+    for (int i = 0; i < numKeys; i++) {
+      for (long j = 0; j < 3; j++) {
+        records.add(IsmRecord.of(ImmutableList.of("key" + i, j), i * 3 + j));
+      }
+    }
+    sort(records, CODER);
+    return records;
+  }
+
+  /** Sorts the provided records in the order to write them with the provided coder. */
+  private static <V> void sort(List<IsmRecord<V>> records, final IsmRecordCoder<V> coder) {
+    Collections.sort(records, new Comparator<IsmRecord<V>>() {
+      @Override
+      public int compare(IsmRecord<V> a, IsmRecord<V> b) {
+        RandomAccessData aKey = new RandomAccessData();
+        RandomAccessData bKey = new RandomAccessData();
+        int aShard = coder.encodeAndHash(a.getKeyComponents(), aKey);
+        int bShard = coder.encodeAndHash(b.getKeyComponents(), bKey);
+        return aShard != bShard
+            ? Integer.compare(aShard, bShard)
+            : UNSIGNED_LEXICOGRAPHICAL_COMPARATOR.compare(aKey, bKey);
+      }
+    });
+  }
+
+  private File write(List<IsmRecord<Long>> records, int blockSize, boolean withBloomFilters)
+      throws Exception {
+    File file = tmpFolder.newFile();
+    try (IsmWriter<Long> writer = IsmWriter.of(
+        new FileOutputStream(file).getChannel(), CODER, blockSize, withBloomFilters)) {
+      for (IsmRecord<Long> record : records) {
+        writer.write(record);
+      }
+    }
+    return file;
+  }
+
+  private void verifyReadBack(boolean withBloomFilters) throws Exception {
+    List<IsmRecord<Long>> records = sortedRecords(500);
+    // small blocks so that shards have several blocks each
+    File file = write(records, 128, withBloomFilters);
+
+    try (IsmReader<Long> reader = IsmReader.open(file, CODER)) {
+      assertEquals(records.size(), reader.getNumberOfKeys());
+      for (IsmRecord<Long> record : records) {
+        assertEquals(record, reader.get(record.getKeyComponents()));
+      }
+      assertNull(reader.get(ImmutableList.of("key0", 3L)));
+      assertNull(reader.get(ImmutableList.of("missing", 0L)));
+      assertNull(reader.get(ImmutableList.of("", 0L)));
+      assertEquals(records, Lists.newArrayList(reader));
+    }
+  }
+
+  @Test
+  public void testReadWithBloomFilters() throws Exception {
+    verifyReadBack(true);
+  }
+
+  @Test
+  public void testReadWithoutBloomFilters() throws Exception {
+    verifyReadBack(false);
+  }
+
+  @Test
+  public void testReadEmptyFile() throws Exception {
+    File file = write(Collections.<IsmRecord<Long>>emptyList(), 128, true);
+
+    try (IsmReader<Long> reader = IsmReader.open(file, CODER)) {
+      assertEquals(0, reader.getNumberOfKeys());
+      assertNull(reader.get(ImmutableList.of("key0", 0L)));
+      assertThat(reader, emptyIterable());
+    }
+  }
+
+  @Test
+  public void testReadSingleRecordWithDefaults() throws Exception {
+    File file = tmpFolder.newFile();
+    IsmRecord<Long> record = IsmRecord.of(ImmutableList.of("key", 1L), 42L);
+    try (IsmWriter<Long> writer =
+        IsmWriter.of(new FileOutputStream(file).getChannel(), CODER)) {
+      writer.write(record);
+    }
+
+    try (IsmReader<Long> reader = IsmReader.open(file, CODER)) {
+      assertEquals(record, reader.get(ImmutableList.of("key", 1L)));
+      assertThat(reader, contains(record));
+    }
+  }
+
+  @Test
+  public void testReadMetadataRecords() throws Exception {
+    IsmRecordCoder<byte[]> coder = IsmRecordCoder.of(
+        1,
+        0,
+        ImmutableList.<Coder<?>>of(MetadataKeyCoder.of(StringUtf8Coder.of()), VarLongCoder.of()),
+        ByteArrayCoder.of());
+    List<IsmRecord<byte[]>> records = new ArrayList<>();
+    for (long i = 0; i < 10; i++) {
+      records.add(IsmRecord.<byte[]>meta(
+          ImmutableList.of(IsmFormat.getMetadataKey(), i), new byte[] {(byte) i, 1, 2}));
+      records.add(IsmRecord.of(ImmutableList.of("key" + i, i), new byte[] {(byte) i}));
+    }
+    sort(records, coder);
+
+    File file = tmpFolder.newFile();
+    try (IsmWriter<byte[]> writer =
+        IsmWriter.of(new FileOutputStream(file).getChannel(), coder, 16, true)) {
+      for (IsmRecord<byte[]> record : records) {
+        writer.write(record);
+      }
+    }
+
+    try (IsmReader<byte[]> reader = IsmReader.open(file, coder)) {
+      assertEquals(records.size(), reader.getNumberOfKeys());
+      for (long i = 0; i < 10; i++) {
+        IsmRecord<byte[]> metadata =
+            reader.get(ImmutableList.of(IsmFormat.getMetadataKey(), i));
+        assertArrayEquals(new byte[] {(byte) i, 1, 2}, metadata.getMetadata());
+        assertArrayEquals(
+            new byte[] {(byte) i}, reader.get(ImmutableList.of("key" + i, i)).getValue());
+      }
+      assertNull(reader.get(ImmutableList.of(IsmFormat.getMetadataKey(), 10L)));
+
+      List<IsmRecord<byte[]>> readRecords = Lists.newArrayList(reader);
+      assertEquals(records.size(), readRecords.size());
+      for (int i = 0; i < records.size(); i++) {
+        assertEquals(records.get(i).getKeyComponents(), readRecords.get(i).getKeyComponents());
+        if (IsmFormat.isMetadataKey(records.get(i).getKeyComponents())) {
+          assertArrayEquals(records.get(i).getMetadata(), readRecords.get(i).getMetadata());
+        } else {
+          assertArrayEquals(records.get(i).getValue(), readRecords.get(i).getValue());
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testReadServiceVersionFails() throws Exception {
+    File file = tmpFolder.newFile();
+    try (FileOutputStream out = new FileOutputStream(file)) {
+      FooterCoder.of().encode(Footer.of(0, 0, 0), out, Coder.Context.OUTER);
+    }
+
+    thrown.expect(IOException.class);
+    thrown.expectMessage("Expected a local Ism file");
+    IsmReader.open(file, CODER);
+  }
+
+  @Test
+  public void testWriteOutOfOrderFails() throws Exception {
+    List<IsmRecord<Long>> records = sortedRecords(1);
+    Collections.reverse(records);
+
+    thrown.expect(IllegalArgumentException.class);
+    thrown.expectMessage("increasing order");
+    write(records, 128, true);
+  }
+}
@@ -0,0 +1,80 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.beam.runners.dataflow.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.apache.beam.runners.dataflow.util.PackageUtil.ContentHash;
+
+import com.google.common.io.Files;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+
+/** Tests for {@link ContentHashIndex}. */
+@RunWith(JUnit4.class)
+public class ContentHashIndexTest {
+  @Rule public TemporaryFolder tmpFolder = new TemporaryFolder();
+
+  @Test
+  public void testEntriesArePersisted() throws Exception {
+    File file = new File(tmpFolder.getRoot(), "cache/hashes");
+    ContentHashIndex.at(file).put("fingerprint", new ContentHash(15L, "hash"));
+
+    ContentHash contentHash = ContentHashIndex.at(file).get("fingerprint");
+    assertEquals(15L, contentHash.size);
+    assertEquals("hash", contentHash.hash);
+    assertNull(ContentHashIndex.at(file).get("otherFingerprint"));
+  }
+
+  @Test
+  public void testMalformedLinesAreIgnored() throws Exception {
+    File file = tmpFolder.newFile("hashes");
+    Files.write("fingerprint 15 hash\nbroken 1\nother notANumber hash\nlast 3 h",
+        file, StandardCharsets.UTF_8);
+    ContentHashIndex index = ContentHashIndex.at(file);
+
+    assertEquals("hash", index.get("fingerprint").hash);
+    assertNull(index.get("broken"));
+    assertNull(index.get("other"));
+    assertEquals(3L, index.get("last").size);
+  }
+
+  @Test
+  public void testLargeIndexIsCompacted() throws Exception {
+    File file = tmpFolder.newFile("hashes");
+    ContentHashIndex index = ContentHashIndex.at(file);
+    int numEntries = 2 * ContentHashIndex.MAX_ENTRIES + 1;
+    for (int i = 0; i < numEntries; i++) {
+      index.put("fingerprint" + i, new ContentHash(i, "hash"));
+    }
+
+    ContentHashIndex reloaded = ContentHashIndex.at(file);
+    assertNull(reloaded.get("fingerprint0"));
+    assertEquals(numEntries - 1, reloaded.get("fingerprint" + (numEntries - 1)).size);
+    assertEquals(ContentHashIndex.MAX_ENTRIES,
+        Files.readLines(file, StandardCharsets.UTF_8).size());
+  }
+}
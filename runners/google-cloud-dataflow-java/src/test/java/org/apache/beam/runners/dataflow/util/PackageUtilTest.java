@@ -150,7 +150,15 @@ public class PackageUtilTest {
 
   static final String STAGING_PATH = GcsPath.fromComponents("somebucket", "base/path").toString();
   private static PackageAttributes makePackageAttributes(File file, String overridePackageName) {
-    return PackageUtil.createPackageAttributes(file, STAGING_PATH, overridePackageName);
+    return PackageUtil.createPackageAttributes(file, STAGING_PATH, overridePackageName, null);
+  }
+
+  private File contentHashesFile() {
+    return new File(tmpFolder.getRoot(), "staged-content-hashes");
+  }
+
+  private PackageAttributes makeIndexedPackageAttributes(File file, ContentHashIndex index) {
+    return PackageUtil.createPackageAttributes(file, STAGING_PATH, null, index);
   }
 
   @Test
@@ -226,6 +234,105 @@ public class PackageUtilTest {
     assertNotEquals(target1.getLocation(), target2.getLocation());
   }
 
+  @Test
+  public void testPackageAttributesAreCachedForUnchangedFiles() throws Exception {
+    ContentHashIndex index = ContentHashIndex.at(contentHashesFile());
+    File tmpFile = makeFileWithContents("file.txt", "This is a test!");
+    String hash = makeIndexedPackageAttributes(tmpFile, index).getHash();
+
+    // Contents of the same size and with the same modification time are not hashed again.
+    Files.write("This is a tent!", tmpFile, StandardCharsets.UTF_8);
+    tmpFile.setLastModified(0);
+    assertEquals(hash, makeIndexedPackageAttributes(tmpFile, index).getHash());
+
+    tmpFile.setLastModified(1000);
+    assertNotEquals(hash, makeIndexedPackageAttributes(tmpFile, index).getHash());
+  }
+
+  @Test
+  public void testPackageAttributesAreNotCachedWithoutIndex() throws Exception {
+    File tmpFile = makeFileWithContents("file.txt", "This is a test!");
+    String hash = makePackageAttributes(tmpFile, null).getHash();
+
+    Files.write("This is a tent!", tmpFile, StandardCharsets.UTF_8);
+    tmpFile.setLastModified(0);
+    assertNotEquals(hash, makePackageAttributes(tmpFile, null).getHash());
+  }
+
+  @Test
+  public void testPackageAttributesAreCachedAcrossRuns() throws Exception {
+    File tmpFile = makeFileWithContents("file.txt", "This is a test!");
+    String hash = makeIndexedPackageAttributes(tmpFile, ContentHashIndex.at(contentHashesFile()))
+        .getHash();
+
+    // A new index over the same file, as in a later run, still knows the hash of the contents.
+    Files.write("This is a tent!", tmpFile, StandardCharsets.UTF_8);
+    tmpFile.setLastModified(0);
+    assertEquals(hash,
+        makeIndexedPackageAttributes(tmpFile, ContentHashIndex.at(contentHashesFile())).getHash());
+  }
+
+  @Test
+  public void testPackageAttributesAreNotCachedForRecentlyModifiedFiles() throws Exception {
+    ContentHashIndex index = ContentHashIndex.at(contentHashesFile());
+    File tmpFile = tmpFolder.newFile("file.txt");
+    Files.write("This is a test!", tmpFile, StandardCharsets.UTF_8);
+    long lastModified = tmpFile.lastModified();
+    String hash = makeIndexedPackageAttributes(tmpFile, index).getHash();
+
+    Files.write("This is a tent!", tmpFile, StandardCharsets.UTF_8);
+    tmpFile.setLastModified(lastModified);
+    assertNotEquals(hash, makeIndexedPackageAttributes(tmpFile, index).getHash());
+  }
+
+  @Test
+  public void testPackageAttributesOfDirectoriesChangeWithTheirFiles() throws Exception {
+    ContentHashIndex index = ContentHashIndex.at(contentHashesFile());
+    File tmpDirectory = tmpFolder.newFolder("folder");
+    File tmpFile = makeFileWithContents("folder/file.txt", "This is a test!");
+    tmpDirectory.setLastModified(0);
+    String hash = makeIndexedPackageAttributes(tmpDirectory, index).getHash();
+    assertEquals(hash, makeIndexedPackageAttributes(tmpDirectory, index).getHash());
+
+    tmpFile.setLastModified(1000);
+    assertNotEquals(hash, makeIndexedPackageAttributes(tmpDirectory, index).getHash());
+  }
+
+  @Test
+  public void testPackageUploadRecordsContentHashesInProvidedFile() throws Exception {
+    File tmpFile = makeFileWithContents("file.txt", "This is a test!");
+    // the file will be present and cached so no upload needed.
+    when(mockGcsUtil.fileSize(any(GcsPath.class))).thenReturn((long) "This is a test!".length());
+
+    List<DataflowPackage> targets = PackageUtil.stageClasspathElements(
+        ImmutableList.of(tmpFile.getAbsolutePath()), STAGING_PATH,
+        contentHashesFile().getAbsolutePath());
+
+    String hash = makePackageAttributes(tmpFile, null).getHash();
+    assertThat(targets.get(0).getName(), RegexMatcher.matches("file-" + hash + ".txt"));
+    assertTrue(contentHashesFile().isFile());
+  }
+
+  @Test
+  public void testPackageUploadOfManyElementsKeepsTheirOrder() throws Exception {
+    List<String> classpathElements = new ArrayList<>();
+    for (int i = 0; i < 3 * PackageUtil.THREAD_POOL_SIZE; i++) {
+      classpathElements.add(
+          makeFileWithContents("file" + i + ".txt", String.format("This is test %03d", i))
+              .getAbsolutePath());
+    }
+    // all files will be present and cached so no upload needed.
+    when(mockGcsUtil.fileSize(any(GcsPath.class))).thenReturn((long) "This is test 000".length());
+
+    List<DataflowPackage> targets =
+        PackageUtil.stageClasspathElements(classpathElements, STAGING_PATH);
+
+    assertEquals(classpathElements.size(), targets.size());
+    for (int i = 0; i < targets.size(); i++) {
+      assertThat(targets.get(i).getName(), RegexMatcher.matches("file" + i + "-.*"));
+    }
+  }
+
   @Test
   public void testPackageUploadWithLargeClasspathLogsWarning() throws Exception {
     File tmpFile = makeFileWithContents("file.txt", "This is a test!");
@@ -56,8 +56,8 @@ import org.apache.beam.sdk.values.PCollectionTuple;
 import org.apache.beam.sdk.values.PCollectionView;
 import org.apache.beam.sdk.values.TupleTag;
 
+import com.google.common.collect.AbstractIterator;
 import com.google.common.collect.ImmutableMap;
-import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 
 import org.apache.avro.mapred.AvroKey;
@@ -72,6 +72,7 @@ import org.apache.spark.api.java.JavaPairRDD;
 import org.apache.spark.api.java.JavaRDD;
 import org.apache.spark.api.java.JavaRDDLike;
 import org.apache.spark.api.java.JavaSparkContext;
+import org.apache.spark.api.java.function.FlatMapFunction;
 import org.apache.spark.api.java.function.Function;
 import org.apache.spark.api.java.function.Function2;
 import org.apache.spark.api.java.function.PairFlatMapFunction;
@@ -79,8 +80,11 @@ import org.apache.spark.api.java.function.PairFunction;
 
 import java.io.IOException;
 import java.lang.reflect.Field;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -203,37 +207,34 @@ public final class TransformTranslator {
           throw new IllegalStateException("Could not determine coder for accumulator", e);
         }
 
-        // Use coders to convert objects in the PCollection to byte arrays, so they
-        // can be transferred over the network for the shuffle.
-        JavaRDD<byte[]> inRddBytes = inRdd
+        // Accumulate the inputs of each partition in memory, and only convert the accumulator of
+        // each partition to a byte array, so it can be transferred over the network.
+        List</*AccumT*/ byte[]> partialAccumulators = inRdd
             .map(WindowingHelpers.<InputT>unwindowFunction())
-            .map(CoderHelpers.toByteFunction(iCoder));
-
-        /*AccumT*/ byte[] acc = inRddBytes.aggregate(
-            CoderHelpers.toByteArray(globally.createAccumulator(), aCoder),
-            new Function2</*AccumT*/ byte[], /*InputT*/ byte[], /*AccumT*/ byte[]>() {
+            .mapPartitions(new FlatMapFunction<Iterator<InputT>, /*AccumT*/ byte[]>() {
               @Override
-              public /*AccumT*/ byte[] call(/*AccumT*/ byte[] ab, /*InputT*/ byte[] ib)
-                  throws Exception {
-                AccumT a = CoderHelpers.fromByteArray(ab, aCoder);
-                InputT i = CoderHelpers.fromByteArray(ib, iCoder);
-                return CoderHelpers.toByteArray(globally.addInput(a, i), aCoder);
+              public Iterable</*AccumT*/ byte[]> call(Iterator<InputT> inputs) throws Exception {
+                AccumT a = globally.createAccumulator();
+                while (inputs.hasNext()) {
+                  a = globally.addInput(a, inputs.next());
+                }
+                return Collections.singletonList(CoderHelpers.toByteArray(a, aCoder));
               }
-            },
-            new Function2</*AccumT*/ byte[], /*AccumT*/ byte[], /*AccumT*/ byte[]>() {
-              @Override
-              public /*AccumT*/ byte[] call(/*AccumT*/ byte[] a1b, /*AccumT*/ byte[] a2b)
-                  throws Exception {
-                AccumT a1 = CoderHelpers.fromByteArray(a1b, aCoder);
-                AccumT a2 = CoderHelpers.fromByteArray(a2b, aCoder);
-                // don't use Guava's ImmutableList.of as values may be null
-                List<AccumT> accumulators = Collections.unmodifiableList(Arrays.asList(a1, a2));
-                AccumT merged = globally.mergeAccumulators(accumulators);
-                return CoderHelpers.toByteArray(merged, aCoder);
-              }
-            }
-        );
-        OutputT output = globally.extractOutput(CoderHelpers.fromByteArray(acc, aCoder));
+            })
+            .collect();
+
+        AccumT acc;
+        if (partialAccumulators.isEmpty()) {
+          acc = globally.createAccumulator();
+        } else {
+          // don't use Guava's ImmutableList as accumulators may be null
+          List<AccumT> accumulators = new ArrayList<>(partialAccumulators.size());
+          for (byte[] partialAccumulator : partialAccumulators) {
+            accumulators.add(CoderHelpers.fromByteArray(partialAccumulator, aCoder));
+          }
+          acc = globally.mergeAccumulators(accumulators);
+        }
+        OutputT output = globally.extractOutput(acc);
 
         Coder<OutputT> coder = context.getOutput(transform).getCoder();
         JavaRDD<byte[]> outRdd = context.getSparkContext().parallelize(
@@ -271,138 +272,157 @@ public final class TransformTranslator {
         } catch (CannotProvideCoderException e) {
           throw new IllegalStateException("Could not determine coder for accumulator", e);
         }
-        Coder<KV<K, InputT>> kviCoder = KvCoder.of(keyCoder, viCoder);
         Coder<KV<K, AccumT>> kvaCoder = KvCoder.of(keyCoder, vaCoder);
 
-        // We need to duplicate K as both the key of the JavaPairRDD as well as inside the value,
-        // since the functions passed to combineByKey don't receive the associated key of each
-        // value, and we need to map back into methods in Combine.KeyedCombineFn, which each
-        // require the key in addition to the InputT's and AccumT's being merged/accumulated.
-        // Once Spark provides a way to include keys in the arguments of combine/merge functions,
-        // we won't need to duplicate the keys anymore.
-
-        // Key has to bw windowed in order to group by window as well
-        JavaPairRDD<WindowedValue<K>, WindowedValue<KV<K, InputT>>> inRddDuplicatedKeyPair =
-            inRdd.flatMapToPair(
-                new PairFlatMapFunction<WindowedValue<KV<K, InputT>>, WindowedValue<K>,
-                    WindowedValue<KV<K, InputT>>>() {
-                  @Override
-                  public Iterable<Tuple2<WindowedValue<K>,
-                      WindowedValue<KV<K, InputT>>>>
-                  call(WindowedValue<KV<K, InputT>> kv) {
-                      List<Tuple2<WindowedValue<K>,
-                          WindowedValue<KV<K, InputT>>>> tuple2s =
-                          Lists.newArrayListWithCapacity(kv.getWindows().size());
-                      for (BoundedWindow boundedWindow: kv.getWindows()) {
-                        WindowedValue<K> wk = WindowedValue.of(kv.getValue().getKey(),
-                            boundedWindow.maxTimestamp(), boundedWindow, kv.getPane());
-                        tuple2s.add(new Tuple2<>(wk, kv));
-                      }
-                    return tuple2s;
-                  }
-                });
         //-- windowed coders
         final WindowedValue.FullWindowedValueCoder<K> wkCoder =
                 WindowedValue.FullWindowedValueCoder.of(keyCoder,
                 context.getInput(transform).getWindowingStrategy().getWindowFn().windowCoder());
-        final WindowedValue.FullWindowedValueCoder<KV<K, InputT>> wkviCoder =
-                WindowedValue.FullWindowedValueCoder.of(kviCoder,
-                context.getInput(transform).getWindowingStrategy().getWindowFn().windowCoder());
         final WindowedValue.FullWindowedValueCoder<KV<K, AccumT>> wkvaCoder =
                 WindowedValue.FullWindowedValueCoder.of(kvaCoder,
                 context.getInput(transform).getWindowingStrategy().getWindowFn().windowCoder());
 
-        // Use coders to convert objects in the PCollection to byte arrays, so they
-        // can be transferred over the network for the shuffle.
-        JavaPairRDD<ByteArray, byte[]> inRddDuplicatedKeyPairBytes = inRddDuplicatedKeyPair
-            .mapToPair(CoderHelpers.toByteFunction(wkCoder, wkviCoder));
-
-        // The output of combineByKey will be "AccumT" (accumulator)
-        // types rather than "OutputT" (final output types) since Combine.CombineFn
-        // only provides ways to merge VAs, and no way to merge VOs.
-        JavaPairRDD</*K*/ ByteArray, /*KV<K, AccumT>*/ byte[]> accumulatedBytes =
-            inRddDuplicatedKeyPairBytes.combineByKey(
-            new Function</*KV<K, InputT>*/ byte[], /*KV<K, AccumT>*/ byte[]>() {
+        // Combine the values of each key and window of a partition into accumulators kept in
+        // memory. Only the accumulators are converted to byte arrays, so they can be transferred
+        // over the network for the shuffle, which then holds at most one accumulator per key and
+        // window for each partition.
+        JavaPairRDD</*WindowedValue<K>*/ ByteArray, /*WindowedValue<KV<K, AccumT>>*/ byte[]>
+            partialAccumulatedBytes = inRdd.mapPartitionsToPair(
+                new PartialCombinePerKeyFunction<>(keyed, wkCoder, wkvaCoder));
+
+        // Merge the encoded accumulators of each key and window, both before the shuffle, which
+        // then only holds a single accumulator per key and window for each partition, and after
+        // it, without holding all the accumulators of a key and window in memory at once.
+        JavaRDD<WindowedValue<KV<K, OutputT>>> outRdd = partialAccumulatedBytes
+            .reduceByKey(new Function2</*WindowedValue<KV<K, AccumT>>*/ byte[],
+                /*WindowedValue<KV<K, AccumT>>*/ byte[],
+                /*WindowedValue<KV<K, AccumT>>*/ byte[]>() {
               @Override
-              public /*KV<K, AccumT>*/ byte[] call(/*KV<K, InputT>*/ byte[] input) {
-                WindowedValue<KV<K, InputT>> wkvi =
-                    CoderHelpers.fromByteArray(input, wkviCoder);
-                AccumT va = keyed.createAccumulator(wkvi.getValue().getKey());
-                va = keyed.addInput(wkvi.getValue().getKey(), va, wkvi.getValue().getValue());
-                WindowedValue<KV<K, AccumT>> wkva =
-                    WindowedValue.of(KV.of(wkvi.getValue().getKey(), va), wkvi.getTimestamp(),
-                    wkvi.getWindows(), wkvi.getPane());
-                return CoderHelpers.toByteArray(wkva, wkvaCoder);
-              }
-            },
-            new Function2</*KV<K, AccumT>*/ byte[],
-                /*KV<K, InputT>*/ byte[],
-                /*KV<K, AccumT>*/ byte[]>() {
-              @Override
-              public /*KV<K, AccumT>*/ byte[] call(/*KV<K, AccumT>*/ byte[] acc,
-                  /*KV<K, InputT>*/ byte[] input) {
-                WindowedValue<KV<K, AccumT>> wkva =
-                    CoderHelpers.fromByteArray(acc, wkvaCoder);
-                WindowedValue<KV<K, InputT>> wkvi =
-                    CoderHelpers.fromByteArray(input, wkviCoder);
-                AccumT va =
-                    keyed.addInput(wkva.getValue().getKey(), wkva.getValue().getValue(),
-                    wkvi.getValue().getValue());
-                wkva = WindowedValue.of(KV.of(wkva.getValue().getKey(), va), wkva.getTimestamp(),
-                    wkva.getWindows(), wkva.getPane());
-                return CoderHelpers.toByteArray(wkva, wkvaCoder);
+              public /*WindowedValue<KV<K, AccumT>>*/ byte[] call(
+                  /*WindowedValue<KV<K, AccumT>>*/ byte[] acc1,
+                  /*WindowedValue<KV<K, AccumT>>*/ byte[] acc2) {
+                WindowedValue<KV<K, AccumT>> wkva1 = CoderHelpers.fromByteArray(acc1, wkvaCoder);
+                WindowedValue<KV<K, AccumT>> wkva2 = CoderHelpers.fromByteArray(acc2, wkvaCoder);
+                K key = wkva1.getValue().getKey();
+                AccumT va = keyed.mergeAccumulators(key,
+                    // don't use Guava's ImmutableList.of as values may be null
+                    Collections.unmodifiableList(Arrays.asList(
+                        wkva1.getValue().getValue(), wkva2.getValue().getValue())));
+                return CoderHelpers.toByteArray(
+                    WindowedValue.of(KV.of(key, va), wkva1.getTimestamp(), wkva1.getWindows(),
+                        wkva1.getPane()),
+                    wkvaCoder);
               }
-            },
-            new Function2</*KV<K, AccumT>*/ byte[],
-                /*KV<K, AccumT>*/ byte[],
-                /*KV<K, AccumT>*/ byte[]>() {
+            })
+            .map(new Function<Tuple2</*WindowedValue<K>*/ ByteArray,
+                /*WindowedValue<KV<K, AccumT>>*/ byte[]>, WindowedValue<KV<K, OutputT>>>() {
               @Override
-              public /*KV<K, AccumT>*/ byte[] call(/*KV<K, AccumT>*/ byte[] acc1,
-                  /*KV<K, AccumT>*/ byte[] acc2) {
-                WindowedValue<KV<K, AccumT>> wkva1 =
-                    CoderHelpers.fromByteArray(acc1, wkvaCoder);
-                WindowedValue<KV<K, AccumT>> wkva2 =
-                    CoderHelpers.fromByteArray(acc2, wkvaCoder);
-                AccumT va = keyed.mergeAccumulators(wkva1.getValue().getKey(),
-                    // don't use Guava's ImmutableList.of as values may be null
-                    Collections.unmodifiableList(Arrays.asList(wkva1.getValue().getValue(),
-                    wkva2.getValue().getValue())));
+              public WindowedValue<KV<K, OutputT>> call(Tuple2<ByteArray, byte[]> accumulator) {
                 WindowedValue<KV<K, AccumT>> wkva =
-                    WindowedValue.of(KV.of(wkva1.getValue().getKey(),
-                    va), wkva1.getTimestamp(), wkva1.getWindows(), wkva1.getPane());
-                return CoderHelpers.toByteArray(wkva, wkvaCoder);
+                    CoderHelpers.fromByteArray(accumulator._2(), wkvaCoder);
+                K key = wkva.getValue().getKey();
+                return WindowedValue.of(
+                    KV.of(key, keyed.extractOutput(key, wkva.getValue().getValue())),
+                    wkva.getTimestamp(), wkva.getWindows(), wkva.getPane());
               }
             });
 
-        JavaPairRDD<WindowedValue<K>, WindowedValue<OutputT>> extracted = accumulatedBytes
-            .mapToPair(CoderHelpers.fromByteFunction(wkCoder, wkvaCoder))
-            .mapValues(
-                new Function<WindowedValue<KV<K, AccumT>>, WindowedValue<OutputT>>() {
-                  @Override
-                  public WindowedValue<OutputT> call(WindowedValue<KV<K, AccumT>> acc) {
-                    return WindowedValue.of(keyed.extractOutput(acc.getValue().getKey(),
-                        acc.getValue().getValue()), acc.getTimestamp(),
-                        acc.getWindows(), acc.getPane());
-                  }
-                });
-
-        context.setOutputRDD(transform,
-            fromPair(extracted)
-            .map(new Function<KV<WindowedValue<K>, WindowedValue<OutputT>>,
-                WindowedValue<KV<K, OutputT>>>() {
-              @Override
-              public WindowedValue<KV<K, OutputT>> call(KV<WindowedValue<K>,
-                  WindowedValue<OutputT>> kwvo)
-                  throws Exception {
-                WindowedValue<OutputT> wvo = kwvo.getValue();
-                KV<K, OutputT> kvo = KV.of(kwvo.getKey().getValue(), wvo.getValue());
-                return WindowedValue.of(kvo, wvo.getTimestamp(), wvo.getWindows(), wvo.getPane());
-              }
-            }));
+        context.setOutputRDD(transform, outRdd);
       }
     };
   }
 
+  /**
+   * Combines the inputs of a partition into an accumulator per key and window, which are kept in
+   * memory until the partition, or {@link #MAX_PARTIAL_ACCUMULATORS} keys and windows, have been
+   * combined, and are then emitted as encoded {@code WindowedValue<KV<K, AccumT>>}, keyed by the
+   * encoded {@code WindowedValue<K>}.
+   */
+  private static final class PartialCombinePerKeyFunction<K, InputT, AccumT>
+      implements PairFlatMapFunction<Iterator<WindowedValue<KV<K, InputT>>>, ByteArray, byte[]> {
+    /**
+     * The maximum number of accumulators that are kept in memory before they are emitted, which
+     * bounds the memory used by partitions with many distinct keys.
+     */
+    private static final int MAX_PARTIAL_ACCUMULATORS = 100000;
+
+    private final Combine.KeyedCombineFn<K, InputT, AccumT, ?> keyed;
+    private final Coder<WindowedValue<K>> wkCoder;
+    private final Coder<WindowedValue<KV<K, AccumT>>> wkvaCoder;
+
+    PartialCombinePerKeyFunction(
+        Combine.KeyedCombineFn<K, InputT, AccumT, ?> keyed,
+        Coder<WindowedValue<K>> wkCoder,
+        Coder<WindowedValue<KV<K, AccumT>>> wkvaCoder) {
+      this.keyed = keyed;
+      this.wkCoder = wkCoder;
+      this.wkvaCoder = wkvaCoder;
+    }
+
+    @Override
+    public Iterable<Tuple2<ByteArray, byte[]>> call(
+        final Iterator<WindowedValue<KV<K, InputT>>> inputs) {
+      return new Iterable<Tuple2<ByteArray, byte[]>>() {
+        @Override
+        public Iterator<Tuple2<ByteArray, byte[]>> iterator() {
+          return new PartialAccumulatorIterator(inputs);
+        }
+      };
+    }
+
+    private class PartialAccumulatorIterator
+        extends AbstractIterator<Tuple2<ByteArray, byte[]>> {
+      private final Iterator<WindowedValue<KV<K, InputT>>> inputs;
+      private final Map<ByteArray, WindowedValue<KV<K, AccumT>>> accumulators =
+          new LinkedHashMap<>();
+      private Iterator<Map.Entry<ByteArray, WindowedValue<KV<K, AccumT>>>> emitting =
+          Collections.emptyIterator();
+
+      private PartialAccumulatorIterator(Iterator<WindowedValue<KV<K, InputT>>> inputs) {
+        this.inputs = inputs;
+      }
+
+      @Override
+      protected Tuple2<ByteArray, byte[]> computeNext() {
+        if (!emitting.hasNext()) {
+          accumulators.clear();
+          while (inputs.hasNext() && accumulators.size() < MAX_PARTIAL_ACCUMULATORS) {
+            addInput(inputs.next());
+          }
+          if (accumulators.isEmpty()) {
+            return endOfData();
+          }
+          emitting = accumulators.entrySet().iterator();
+        }
+        Map.Entry<ByteArray, WindowedValue<KV<K, AccumT>>> accumulator = emitting.next();
+        return new Tuple2<>(
+            accumulator.getKey(), CoderHelpers.toByteArray(accumulator.getValue(), wkvaCoder));
+      }
+
+      private void addInput(WindowedValue<KV<K, InputT>> wkvi) {
+        K key = wkvi.getValue().getKey();
+        InputT vi = wkvi.getValue().getValue();
+        // Key has to be windowed in order to group by window as well
+        for (BoundedWindow window : wkvi.getWindows()) {
+          ByteArray wk = new ByteArray(CoderHelpers.toByteArray(
+              WindowedValue.of(key, window.maxTimestamp(), window, wkvi.getPane()), wkCoder));
+          WindowedValue<KV<K, AccumT>> wkva = accumulators.get(wk);
+          AccumT va;
+          if (wkva == null) {
+            va = keyed.addInput(key, keyed.createAccumulator(key), vi);
+            wkva = WindowedValue.of(
+                KV.of(key, va), wkvi.getTimestamp(), window, wkvi.getPane());
+          } else {
+            va = keyed.addInput(key, wkva.getValue().getValue(), vi);
+            wkva = WindowedValue.of(
+                KV.of(key, va), wkva.getTimestamp(), wkva.getWindows(), wkva.getPane());
+          }
+          accumulators.put(wk, wkva);
+        }
+      }
+    }
+  }
+
   private static final class KVFunction<K, InputT, OutputT>
       implements Function<WindowedValue<KV<K, Iterable<InputT>>>,
       WindowedValue<KV<K, OutputT>>> {
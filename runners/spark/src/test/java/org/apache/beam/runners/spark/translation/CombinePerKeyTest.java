@@ -38,6 +38,7 @@ import com.google.common.collect.ImmutableList;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -64,6 +65,27 @@ public class CombinePerKeyTest {
         Assert.assertEquals(Long.valueOf(2L), actualCnts.get("the"));
     }
 
+    @Test
+    public void testRunWithRepeatedKeys() {
+        List<String> words = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            words.add("word" + (i % 7));
+        }
+        Pipeline p = Pipeline.create(PipelineOptionsFactory.create());
+        PCollection<String> inputWords = p.apply(Create.of(words).withCoder(StringUtf8Coder.of()));
+        PCollection<KV<String, Long>> cnts = inputWords.apply(new SumPerKey<String>());
+        EvaluationResult res = SparkRunner.create().run(p);
+        Map<String, Long> actualCnts = new HashMap<>();
+        for (KV<String, Long> kv : res.get(cnts)) {
+            Assert.assertNull("Each key should be combined once", actualCnts.get(kv.getKey()));
+            actualCnts.put(kv.getKey(), kv.getValue());
+        }
+        res.close();
+        Assert.assertEquals(7, actualCnts.size());
+        Assert.assertEquals(Long.valueOf(143L), actualCnts.get("word0"));
+        Assert.assertEquals(Long.valueOf(142L), actualCnts.get("word6"));
+    }
+
     private static class SumPerKey<T> extends PTransform<PCollection<T>, PCollection<KV<T, Long>>> {
       @Override
       public PCollection<KV<T, Long>> apply(PCollection<T> pcol) {
@@ -40,6 +40,7 @@ import org.apache.beam.sdk.runners.PipelineRunner;
 import org.apache.beam.sdk.transforms.Aggregator;
 import org.apache.beam.sdk.transforms.Create;
 import org.apache.beam.sdk.transforms.DoFn;
+import org.apache.beam.sdk.transforms.Max;
 import org.apache.beam.sdk.transforms.PTransform;
 import org.apache.beam.sdk.transforms.ParDo;
 import org.apache.beam.sdk.transforms.SerializableFunction;
@@ -94,6 +95,8 @@ import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Function;
 import com.google.common.base.MoreObjects;
 import com.google.common.base.Strings;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 
@@ -123,6 +126,7 @@ import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
@@ -2048,10 +2052,37 @@ public class BigQueryIO {
     private static Set<String> createdTables =
         Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
 
+    /**
+     * The BigQuery clients in use, by pipeline options (compared by identity). Sharing a client
+     * between all instances of this DoFn running with the same options reuses its connections,
+     * and lets rows of concurrent bundles for the same table be coalesced into the same requests
+     * by {@link BigQueryTableInserter}.
+     */
+    private static final Cache<PipelineOptions, Bigquery> clients =
+        CacheBuilder.newBuilder().weakKeys().build();
+
+    /** The client of this instance, shared through {@link #clients}. */
+    private transient Bigquery client;
+
     /** Tracks bytes written, exposed as "ByteCount" Counter. */
     private Aggregator<Long, Long> byteCountAggregator =
         createAggregator("ByteCount", new Sum.SumLongFn());
 
+    /** Tracks time spent inserting rows, exposed as "InsertLatencyMs" Counter. */
+    private Aggregator<Long, Long> insertLatencyAggregator =
+        createAggregator("InsertLatencyMs", new Sum.SumLongFn());
+
+    /** Tracks the longest insert, exposed as "MaxInsertLatencyMs" Counter. */
+    private Aggregator<Long, Long> maxInsertLatencyAggregator =
+        createAggregator("MaxInsertLatencyMs", new Max.MaxLongFn());
+
+    /**
+     * Tracks the most rows waiting to be inserted or being inserted into a table, exposed as
+     * "MaxRowsInFlight" Counter.
+     */
+    private Aggregator<Long, Long> maxRowsInFlightAggregator =
+        createAggregator("MaxRowsInFlight", new Max.MaxLongFn());
+
     /** Constructor. */
     StreamingWriteFn(TableSchema schema) {
       jsonTableSchema = toJsonString(schema);
@@ -2078,8 +2109,15 @@ public class BigQueryIO {
     /** Writes the accumulated rows into BigQuery with streaming API. */
     @Override
     public void finishBundle(Context context) throws Exception {
-      BigQueryOptions options = context.getPipelineOptions().as(BigQueryOptions.class);
-      Bigquery client = Transport.newBigQueryClient(options).build();
+      final BigQueryOptions options = context.getPipelineOptions().as(BigQueryOptions.class);
+      if (client == null) {
+        client = clients.get(context.getPipelineOptions(), new Callable<Bigquery>() {
+          @Override
+          public Bigquery call() {
+            return Transport.newBigQueryClient(options).build();
+          }
+        });
+      }
 
       for (String tableSpec : tableRows.keySet()) {
         TableReference tableReference = getOrCreateTable(options, tableSpec);
@@ -2125,7 +2163,12 @@ public class BigQueryIO {
       if (!tableRows.isEmpty()) {
         try {
           BigQueryTableInserter inserter = new BigQueryTableInserter(client);
-          inserter.insertAll(tableReference, tableRows, uniqueIds, byteCountAggregator);
+          long startMs = System.currentTimeMillis();
+          inserter.insertAll(tableReference, tableRows, uniqueIds, byteCountAggregator,
+              maxRowsInFlightAggregator);
+          long latencyMs = System.currentTimeMillis() - startMs;
+          insertLatencyAggregator.addValue(latencyMs);
+          maxInsertLatencyAggregator.addValue(latencyMs);
         } catch (IOException e) {
           throw new RuntimeException(e);
         }
@@ -29,15 +29,24 @@ import com.google.common.primitives.Ints;
 import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
 import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PushbackInputStream;
 import java.io.Serializable;
 import java.nio.ByteBuffer;
 import java.nio.channels.Channels;
+import java.nio.channels.NonWritableChannelException;
 import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
 import java.util.NoSuchElementException;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
 import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 
@@ -56,15 +65,21 @@ import javax.annotation.concurrent.GuardedBy;
  *     .withDecompression(CompressedSource.CompressionMode.GZIP)));
  * } </pre>
  *
- * <p>Supported compression algorithms are {@link CompressionMode#GZIP} and
- * {@link CompressionMode#BZIP2}. User-defined compression types are supported by implementing
+ * <p>Supported compression algorithms are {@link CompressionMode#GZIP},
+ * {@link CompressionMode#BZIP2}, {@link CompressionMode#ZIP} and {@link CompressionMode#BGZIP}.
+ * User-defined compression types are supported by implementing
  * {@link DecompressingChannelFactory}.
  *
  * <p>By default, the compression algorithm is selected from those supported in
  * {@link CompressionMode} based on the file name provided to the source, namely
- * {@code ".bz2"} indicates {@link CompressionMode#BZIP2} and {@code ".gz"} indicates
- * {@link CompressionMode#GZIP}. If the file name does not match any of the supported
- * algorithms, it is assumed to be uncompressed data.
+ * {@code ".bz2"} indicates {@link CompressionMode#BZIP2}, {@code ".gz"} indicates
+ * {@link CompressionMode#GZIP}, {@code ".zip"} indicates {@link CompressionMode#ZIP} and
+ * {@code ".bgz"} indicates {@link CompressionMode#BGZIP}. If the file name does not match any of
+ * the supported algorithms, it is assumed to be uncompressed data.
+ *
+ * <p>Compressed files can only be read as a whole, except for files in the blocked gzip format
+ * ({@link CompressionMode#BGZIP}), which are split at the boundaries of their blocks like
+ * uncompressed files are split at record boundaries.
  *
  * @param <T> The type to read from the compressed file.
  */
@@ -169,6 +184,29 @@ public class CompressedSource<T> extends FileBasedSource<T> {
         FullZipInputStream zip = new FullZipInputStream(Channels.newInputStream(channel));
         return Channels.newChannel(zip);
       }
+    },
+
+    /**
+     * Reads a byte channel assuming it is compressed in the blocked gzip format (BGZF) written by
+     * {@code bgzip}. Unlike the other compression modes, files in this format can be split at
+     * the boundaries of their blocks.
+     */
+    BGZIP {
+      @Override
+      public boolean matches(String fileName) {
+        return fileName.toLowerCase().endsWith(".bgz");
+      }
+
+      @Override
+      public ReadableByteChannel createDecompressingChannel(ReadableByteChannel channel)
+          throws IOException {
+        return new BlockedGzipChannel(channel, 0);
+      }
+
+      @Override
+      boolean isBlocked() {
+        return true;
+      }
     };
 
     /**
@@ -224,6 +262,14 @@ public class CompressedSource<T> extends FileBasedSource<T> {
     @Override
     public abstract ReadableByteChannel createDecompressingChannel(ReadableByteChannel channel)
         throws IOException;
+
+    /**
+     * Returns {@code true} if files compressed this way consist of independently compressed
+     * blocks, whose boundaries a {@link CompressedSource} can split them at.
+     */
+    boolean isBlocked() {
+      return false;
+    }
   }
 
   /**
@@ -265,6 +311,19 @@ public class CompressedSource<T> extends FileBasedSource<T> {
       }
       return false;
     }
+
+    /**
+     * Returns true if the file name implies a compression mode whose blocks can be read
+     * independently.
+     */
+    private boolean isBlocked(String fileName) {
+      for (CompressionMode type : CompressionMode.values()) {
+        if (type.matches(fileName)) {
+          return type.isBlocked();
+        }
+      }
+      return false;
+    }
   }
 
   private final FileBasedSource<T> sourceDelegate;
@@ -316,11 +375,11 @@ public class CompressedSource<T> extends FileBasedSource<T> {
       DecompressingChannelFactory channelFactory, String filePatternOrSpec, long minBundleSize,
       long startOffset, long endOffset) {
     super(filePatternOrSpec, minBundleSize, startOffset, endOffset);
-    Preconditions.checkArgument(
-        startOffset == 0,
-        "CompressedSources must start reading at offset 0. Requested offset: " + startOffset);
     this.sourceDelegate = sourceDelegate;
     this.channelFactory = channelFactory;
+    Preconditions.checkArgument(
+        startOffset == 0 || isBlocked(),
+        "CompressedSources must start reading at offset 0. Requested offset: " + startOffset);
   }
 
   /**
@@ -337,9 +396,21 @@ public class CompressedSource<T> extends FileBasedSource<T> {
   /**
    * Creates a {@code CompressedSource} for a subrange of a file. Called by superclass to create a
    * source for a single file.
+   *
+   * <p>The offsets of a source for a blocked compression mode are offsets in the compressed file,
+   * and its reader decompresses the blocks from the first one that starts in its range. The
+   * delegate source does not see these offsets: its reader reads the decompressed blocks as if
+   * they were a file, and it is given the range starting at offset {@code 1} of that file unless
+   * the first block is the start of the actual file, so that it skips a record that started in an
+   * earlier block.
    */
   @Override
   protected FileBasedSource<T> createForSubrangeOfFile(String fileName, long start, long end) {
+    if (isBlocked(channelFactory, fileName)) {
+      return new CompressedSource<>(
+          sourceDelegate.createForSubrangeOfFile(fileName, start == 0 ? 0 : 1, Long.MAX_VALUE),
+          channelFactory, fileName, sourceDelegate.getMinBundleSize(), start, end);
+    }
     return new CompressedSource<>(sourceDelegate.createForSubrangeOfFile(fileName, start, end),
         channelFactory, fileName, Long.MAX_VALUE, start, end);
   }
@@ -347,10 +418,14 @@ public class CompressedSource<T> extends FileBasedSource<T> {
   /**
    * Determines whether a single file represented by this source is splittable. Returns true
    * if we are using the default decompression factory and and it determines
-   * from the requested file name that the file is not compressed.
+   * from the requested file name that the file is not compressed, or if the file is compressed
+   * in a blocked compression mode and can be read efficiently from any offset.
    */
   @Override
   protected final boolean isSplittable() throws Exception {
+    if (isBlocked()) {
+      return super.isSplittable();
+    }
     if (channelFactory instanceof FileNameBasedDecompressingChannelFactory) {
       FileNameBasedDecompressingChannelFactory fileNameBasedChannelFactory =
           (FileNameBasedDecompressingChannelFactory) channelFactory;
@@ -359,6 +434,22 @@ public class CompressedSource<T> extends FileBasedSource<T> {
     return false;
   }
 
+  /**
+   * Returns true if the files represented by this source are compressed in a blocked compression
+   * mode.
+   */
+  private boolean isBlocked() {
+    return isBlocked(channelFactory, getFileOrPatternSpec());
+  }
+
+  private static boolean isBlocked(DecompressingChannelFactory channelFactory, String fileName) {
+    if (channelFactory instanceof DecompressAccordingToFilename) {
+      return ((DecompressAccordingToFilename) channelFactory).isBlocked(fileName);
+    }
+    return channelFactory instanceof CompressionMode
+        && ((CompressionMode) channelFactory).isBlocked();
+  }
+
   /**
    * Creates a {@code FileBasedReader} to read a single file.
    *
@@ -419,6 +510,280 @@ public class CompressedSource<T> extends FileBasedSource<T> {
     return channelFactory;
   }
 
+  /**
+   * A channel that decompresses a file in the blocked gzip format (BGZF) used by {@code bgzip}.
+   *
+   * <p>A BGZF file is a series of gzip members, each of which holds at most 64 KB of
+   * uncompressed data and records its own compressed size in a {@code BC} subfield of the gzip
+   * header. Decompression can therefore start at any block boundary, and the compressed offset of
+   * the block that holds any uncompressed position is known, which is what allows a
+   * {@link CompressedSource} to split these files at block boundaries.
+   *
+   * <p>Positions of this channel are uncompressed positions relative to the first block it reads.
+   * It can be positioned forward, and backward within the current block.
+   */
+  private static class BlockedGzipChannel implements SeekableByteChannel {
+    private static final int MAX_BLOCK_SIZE = 1 << 16;
+    private static final int FIXED_HEADER_SIZE = 12;
+    private static final int TRAILER_SIZE = 8;
+    private static final int GZIP_ID1 = 0x1f;
+    private static final int GZIP_ID2 = 0x8b;
+    private static final int GZIP_CM_DEFLATE = 8;
+    private static final int GZIP_FLG_FEXTRA = 4;
+
+    private final ReadableByteChannel inner;
+    private final Inflater inflater = new Inflater(true);
+    private final CRC32 crc = new CRC32();
+    private final byte[] compressed = new byte[MAX_BLOCK_SIZE];
+    private final byte[] uncompressed = new byte[MAX_BLOCK_SIZE];
+    // The compressed offset and uncompressed start position of the blocks that were read and that
+    // may still contain positions passed to getBlockOffset.
+    private final Deque<long[]> blocks = new ArrayDeque<>();
+    private long nextBlockOffset;
+    private long position;
+    private int positionInBlock;
+    private int blockSize;
+    private boolean eof;
+
+    /**
+     * Creates a channel that decompresses the blocks of {@code inner}, where the next byte of
+     * {@code inner} is the first byte of the block at compressed offset {@code blockOffset}.
+     */
+    public BlockedGzipChannel(ReadableByteChannel inner, long blockOffset) {
+      this.inner = inner;
+      this.nextBlockOffset = blockOffset;
+    }
+
+    /**
+     * Returns the offset of the first block that starts at or after {@code offset}, or {@code -1}
+     * if there is none. Leaves the channel at an unspecified position.
+     *
+     * <p>A block is recognized by a BGZF header whose block size leads to another BGZF header or
+     * to the end of the file, so that compressed data that happens to look like a header is not
+     * mistaken for a block boundary.
+     */
+    public static long findBlockStart(SeekableByteChannel channel, long offset)
+        throws IOException {
+      // The block boundary is within the first MAX_BLOCK_SIZE bytes, and the header of the block
+      // after it within the next MAX_BLOCK_SIZE bytes.
+      ByteBuffer window = ByteBuffer.allocate(2 * MAX_BLOCK_SIZE + 1024);
+      channel.position(offset);
+      while (window.hasRemaining() && channel.read(window) != -1) {
+        // Fill the window or read until the end of the file.
+      }
+      byte[] bytes = window.array();
+      int length = window.position();
+      long size = channel.size();
+      for (int candidate = 0; candidate < Math.min(length, MAX_BLOCK_SIZE); candidate++) {
+        int totalSize = getTotalBlockSize(bytes, candidate, length);
+        if (totalSize > 0) {
+          int next = candidate + totalSize;
+          if (offset + next == size || getTotalBlockSize(bytes, next, length) > 0) {
+            return offset + candidate;
+          }
+        }
+      }
+      return -1;
+    }
+
+    /**
+     * Returns the total size of the block whose header starts at {@code start}, or {@code -1} if
+     * there is no complete BGZF header at {@code start}.
+     */
+    private static int getTotalBlockSize(byte[] bytes, int start, int length) {
+      if (start + FIXED_HEADER_SIZE > length
+          || (bytes[start] & 0xff) != GZIP_ID1
+          || (bytes[start + 1] & 0xff) != GZIP_ID2
+          || bytes[start + 2] != GZIP_CM_DEFLATE
+          || (bytes[start + 3] & GZIP_FLG_FEXTRA) == 0) {
+        return -1;
+      }
+      int extraLength = readUnsignedShort(bytes, start + 10);
+      if (start + FIXED_HEADER_SIZE + extraLength > length) {
+        return -1;
+      }
+      // Look for the BC subfield among the extra subfields.
+      int subfield = start + FIXED_HEADER_SIZE;
+      int extraEnd = subfield + extraLength;
+      while (subfield + 4 <= extraEnd) {
+        int subfieldLength = readUnsignedShort(bytes, subfield + 2);
+        if (bytes[subfield] == 'B' && bytes[subfield + 1] == 'C' && subfieldLength == 2
+            && subfield + 6 <= extraEnd) {
+          int totalSize = readUnsignedShort(bytes, subfield + 4) + 1;
+          return totalSize >= FIXED_HEADER_SIZE + extraLength + TRAILER_SIZE ? totalSize : -1;
+        }
+        subfield += 4 + subfieldLength;
+      }
+      return -1;
+    }
+
+    private static int readUnsignedShort(byte[] bytes, int offset) {
+      return (bytes[offset] & 0xff) | ((bytes[offset + 1] & 0xff) << 8);
+    }
+
+    private static int readInt(byte[] bytes, int offset) {
+      return readUnsignedShort(bytes, offset) | (readUnsignedShort(bytes, offset + 2) << 16);
+    }
+
+    /**
+     * Returns the compressed offset of the block that holds the uncompressed byte at
+     * {@code uncompressedPosition}. The position must have been read already, and must not be
+     * less than a position passed to a previous call.
+     */
+    public long getBlockOffset(long uncompressedPosition) {
+      Preconditions.checkArgument(uncompressedPosition < position,
+          "Position %s has not been read yet", uncompressedPosition);
+      Iterator<long[]> iterator = blocks.iterator();
+      long[] block = iterator.next();
+      while (iterator.hasNext()) {
+        long[] nextBlock = iterator.next();
+        if (nextBlock[1] > uncompressedPosition) {
+          break;
+        }
+        // Earlier blocks will not be needed anymore.
+        blocks.removeFirst();
+        block = nextBlock;
+      }
+      Preconditions.checkArgument(block[1] <= uncompressedPosition,
+          "Position %s precedes the retained blocks", uncompressedPosition);
+      return block[0];
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+      if (!dst.hasRemaining()) {
+        return 0;
+      }
+      while (positionInBlock == blockSize) {
+        if (eof || !readBlock()) {
+          eof = true;
+          return -1;
+        }
+      }
+      int bytes = Math.min(dst.remaining(), blockSize - positionInBlock);
+      dst.put(uncompressed, positionInBlock, bytes);
+      positionInBlock += bytes;
+      position += bytes;
+      return bytes;
+    }
+
+    /**
+     * Reads and decompresses the next block, returning false at the end of the file.
+     */
+    private boolean readBlock() throws IOException {
+      ByteBuffer header = ByteBuffer.wrap(compressed, 0, FIXED_HEADER_SIZE);
+      if (!readFully(header)) {
+        if (header.position() == 0) {
+          return false;
+        }
+        throw new EOFException("Truncated BGZF block header at offset " + nextBlockOffset);
+      }
+      int extraLength = readUnsignedShort(compressed, 10);
+      if (!readFully(ByteBuffer.wrap(compressed, FIXED_HEADER_SIZE, extraLength))) {
+        throw new EOFException("Truncated BGZF block header at offset " + nextBlockOffset);
+      }
+      int totalSize = getTotalBlockSize(compressed, 0, FIXED_HEADER_SIZE + extraLength);
+      if (totalSize < 0) {
+        throw new IOException("Not a BGZF block at offset " + nextBlockOffset);
+      }
+      int headerSize = FIXED_HEADER_SIZE + extraLength;
+      if (!readFully(ByteBuffer.wrap(compressed, headerSize, totalSize - headerSize))) {
+        throw new EOFException("Truncated BGZF block at offset " + nextBlockOffset);
+      }
+
+      int expectedCrc = readInt(compressed, totalSize - TRAILER_SIZE);
+      int expectedSize = readInt(compressed, totalSize - 4);
+      if (expectedSize < 0 || expectedSize > MAX_BLOCK_SIZE) {
+        throw new IOException("Invalid BGZF block size at offset " + nextBlockOffset);
+      }
+      inflater.reset();
+      inflater.setInput(compressed, headerSize, totalSize - headerSize - TRAILER_SIZE);
+      try {
+        blockSize = expectedSize == 0 ? 0 : inflater.inflate(uncompressed, 0, expectedSize);
+      } catch (DataFormatException e) {
+        throw new IOException("Corrupt BGZF block at offset " + nextBlockOffset, e);
+      }
+      crc.reset();
+      crc.update(uncompressed, 0, blockSize);
+      if (blockSize != expectedSize || (int) crc.getValue() != expectedCrc) {
+        throw new IOException("Corrupt BGZF block at offset " + nextBlockOffset);
+      }
+
+      if (blockSize > 0) {
+        blocks.addLast(new long[] {nextBlockOffset, position});
+      }
+      positionInBlock = 0;
+      nextBlockOffset += totalSize;
+      return true;
+    }
+
+    private boolean readFully(ByteBuffer buffer) throws IOException {
+      while (buffer.hasRemaining()) {
+        if (inner.read(buffer) == -1) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    @Override
+    public long position() {
+      return position;
+    }
+
+    /**
+     * Skips forward to the given uncompressed position, or back to it if it is in the current
+     * block.
+     */
+    @Override
+    public SeekableByteChannel position(long newPosition) throws IOException {
+      if (newPosition < position) {
+        Preconditions.checkArgument(position - newPosition <= positionInBlock,
+            "%s can only be positioned back within the current block, not from %s to %s",
+            getClass().getSimpleName(), position, newPosition);
+        positionInBlock -= (int) (position - newPosition);
+        position = newPosition;
+        return this;
+      }
+      ByteBuffer skipped = ByteBuffer.allocate((int) Math.min(newPosition - position, 8192));
+      while (position < newPosition) {
+        skipped.clear();
+        skipped.limit((int) Math.min(skipped.capacity(), newPosition - position));
+        if (read(skipped) == -1) {
+          break;
+        }
+      }
+      return this;
+    }
+
+    @Override
+    public long size() {
+      throw new UnsupportedOperationException(
+          "The uncompressed size of a BGZF channel is not known");
+    }
+
+    @Override
+    public int write(ByteBuffer src) {
+      throw new NonWritableChannelException();
+    }
+
+    @Override
+    public SeekableByteChannel truncate(long size) {
+      throw new NonWritableChannelException();
+    }
+
+    @Override
+    public boolean isOpen() {
+      return inner.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+      inflater.end();
+      inner.close();
+    }
+  }
+
   /**
    * Reader for a {@link CompressedSource}. Decompresses its input and uses a delegate
    * reader to read elements from the decompressed input.
@@ -429,11 +794,18 @@ public class CompressedSource<T> extends FileBasedSource<T> {
     private final FileBasedReader<T> readerDelegate;
     private final CompressedSource<T> source;
     private final boolean splittable;
+    private final boolean blocked;
     private final Object progressLock = new Object();
     @GuardedBy("progressLock")
     private int numRecordsRead;
     @GuardedBy("progressLock")
     private CountingChannel channel;
+    // For blocked compression modes: the channel that decompresses the blocks, or null if there
+    // is no block starting in the range of the source, and the compressed offset of the block
+    // that the current record belongs to.
+    private BlockedGzipChannel blockedChannel;
+    private long currentBlockOffset = -1;
+    private boolean atNewBlock;
 
     /**
      * Create a {@code CompressedReader} from a {@code CompressedSource} and delegate reader.
@@ -448,6 +820,7 @@ public class CompressedSource<T> extends FileBasedSource<T> {
         throw new RuntimeException("Unable to tell whether source " + source + " is splittable", e);
       }
       this.splittable = splittable;
+      this.blocked = source.isBlocked();
       this.readerDelegate = readerDelegate;
     }
 
@@ -466,7 +839,9 @@ public class CompressedSource<T> extends FileBasedSource<T> {
 
     @Override
     public final long getSplitPointsConsumed() {
-      if (splittable) {
+      if (blocked) {
+        return super.getSplitPointsConsumed();
+      } else if (splittable) {
         return readerDelegate.getSplitPointsConsumed();
       } else {
         synchronized (progressLock) {
@@ -477,7 +852,9 @@ public class CompressedSource<T> extends FileBasedSource<T> {
 
     @Override
     public final long getSplitPointsRemaining() {
-      if (splittable) {
+      if (blocked) {
+        return super.getSplitPointsRemaining();
+      } else if (splittable) {
         return readerDelegate.getSplitPointsRemaining();
       } else {
         return isDone() ? 0 : 1;
@@ -485,11 +862,15 @@ public class CompressedSource<T> extends FileBasedSource<T> {
     }
 
     /**
-     * Returns true only for the first record; compressed sources cannot be split.
+     * Returns true only for the first record; compressed sources cannot be split, unless they are
+     * compressed in a blocked compression mode, in which case every block that a record belongs
+     * to is a split point.
      */
     @Override
     protected final boolean isAtSplitPoint() {
-      if (splittable) {
+      if (blocked) {
+        return atNewBlock;
+      } else if (splittable) {
         return readerDelegate.isAtSplitPoint();
       } else {
         // We have to return true for the first record, but not for the state before reading it,
@@ -544,6 +925,24 @@ public class CompressedSource<T> extends FileBasedSource<T> {
      */
     @Override
     protected final void startReading(ReadableByteChannel channel) throws IOException {
+      if (blocked) {
+        long startOffset = getCurrentSource().getStartOffset();
+        long blockOffset = startOffset;
+        if (startOffset > 0) {
+          SeekableByteChannel seekChannel = (SeekableByteChannel) channel;
+          blockOffset = BlockedGzipChannel.findBlockStart(seekChannel, startOffset);
+          if (blockOffset < 0) {
+            return;
+          }
+          seekChannel.position(blockOffset);
+        }
+        blockedChannel = new BlockedGzipChannel(channel, blockOffset);
+        // Like FileBasedReader, start the delegate reader at the start offset of its source.
+        blockedChannel.position(readerDelegate.getCurrentSource().getStartOffset());
+        readerDelegate.startReading(blockedChannel);
+        return;
+      }
+
       if (splittable) {
         // No-op. We will always delegate to the inner reader, so this.channel and this.progressLock
         // will never be used.
@@ -571,7 +970,21 @@ public class CompressedSource<T> extends FileBasedSource<T> {
      */
     @Override
     protected final boolean readNextRecord() throws IOException {
-      if (!readerDelegate.readNextRecord()) {
+      if (blocked) {
+        if (blockedChannel == null || !readerDelegate.readNextRecord()) {
+          return false;
+        }
+        // A record belongs to the block holding the byte before it, which for the delegate
+        // readers ends the previous record (e.g., the line separator preceding a line). The
+        // reader of the next range reads from that block on and skips everything up to the
+        // first record boundary, so it reads exactly the records that this reader leaves out.
+        long delegateOffset = readerDelegate.getCurrentOffset();
+        long blockOffset = delegateOffset == 0
+            ? getCurrentSource().getStartOffset()
+            : blockedChannel.getBlockOffset(delegateOffset - 1);
+        atNewBlock = blockOffset != currentBlockOffset;
+        currentBlockOffset = blockOffset;
+      } else if (!readerDelegate.readNextRecord()) {
         return false;
       }
       synchronized (progressLock) {
@@ -588,7 +1001,12 @@ public class CompressedSource<T> extends FileBasedSource<T> {
     // start) but both of these provide better data than e.g., reporting the start of the file.
     @Override
     protected final long getCurrentOffset() throws NoSuchElementException {
-      if (splittable) {
+      if (blocked) {
+        if (currentBlockOffset < 0) {
+          throw new NoSuchElementException();
+        }
+        return currentBlockOffset;
+      } else if (splittable) {
         return readerDelegate.getCurrentOffset();
       } else {
         synchronized (progressLock) {
@@ -30,7 +30,12 @@ import org.apache.beam.sdk.util.IOChannelUtils;
 import org.apache.beam.sdk.util.MimeTypes;
 
 import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
 import com.google.common.collect.Ordering;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -38,14 +43,21 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.io.Serializable;
 import java.nio.channels.WritableByteChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Abstract {@link Sink} for file-based output. An implementation of FileBasedSink writes file-based
@@ -288,7 +300,8 @@ public abstract class FileBasedSink<T> extends Sink<T> {
 
     /**
      * Finalizes writing by copying temporary output files to their final location and optionally
-     * removing temporary files.
+     * removing temporary files. If temporary files are removed anyway, they are moved to their
+     * final location rather than copied.
      *
      * <p>Finalization may be overridden by subclass implementations to perform customized
      * finalization (e.g., initiating some operation on output bundles, merging them, etc.).
@@ -306,14 +319,17 @@ public abstract class FileBasedSink<T> extends Sink<T> {
       // Collect names of temporary files and rename them.
       List<String> files = new ArrayList<>();
       for (FileResult result : writerResults) {
-        LOG.debug("Temporary bundle output file {} will be copied.", result.getFilename());
+        LOG.debug("Temporary bundle output file {} will be moved.", result.getFilename());
         files.add(result.getFilename());
       }
-      copyToOutputFiles(files, options);
 
-      // Optionally remove temporary files.
+      // Optionally remove temporary files, including any that were not moved (e.g., those of
+      // failed bundles).
       if (temporaryFileRetention == TemporaryFileRetention.REMOVE) {
+        moveToOutputFiles(files, options);
         removeTemporaryFiles(options);
+      } else {
+        copyToOutputFiles(files, options);
       }
     }
 
@@ -333,16 +349,42 @@ public abstract class FileBasedSink<T> extends Sink<T> {
      */
     protected final List<String> copyToOutputFiles(List<String> filenames, PipelineOptions options)
         throws IOException {
+      return transferToOutputFiles(filenames, false, options);
+    }
+
+    /**
+     * Move temporary files to final output filenames using the file naming template, like
+     * {@link #copyToOutputFiles}, but without leaving the temporary files behind. Files are
+     * renamed where the file system supports it.
+     *
+     * <p>Can be called from subclasses that override {@link FileBasedWriteOperation#finalize}.
+     * Temporary files that do not exist are assumed to have been moved by a previous attempt, so
+     * that this method is idempotent.
+     *
+     * @param filenames the filenames of temporary files.
+     * @return a list containing the names of final output files.
+     */
+    protected final List<String> moveToOutputFiles(List<String> filenames, PipelineOptions options)
+        throws IOException {
+      return transferToOutputFiles(filenames, true, options);
+    }
+
+    private List<String> transferToOutputFiles(
+        List<String> filenames, boolean move, PipelineOptions options) throws IOException {
       int numFiles = filenames.size();
       // Sort files for idempotence.
       List<String> srcFilenames = Ordering.natural().sortedCopy(filenames);
       List<String> destFilenames = generateDestinationFilenames(numFiles);
 
       if (numFiles > 0) {
-        LOG.debug("Copying {} files.", numFiles);
+        LOG.debug("{} {} files.", move ? "Moving" : "Copying", numFiles);
         FileOperations fileOperations =
             FileOperationsFactory.getFileOperations(destFilenames.get(0), options);
-        fileOperations.copy(srcFilenames, destFilenames);
+        if (move) {
+          fileOperations.rename(srcFilenames, destFilenames);
+        } else {
+          fileOperations.copy(srcFilenames, destFilenames);
+        }
       } else {
         LOG.info("No output files to write.");
       }
@@ -593,6 +635,17 @@ public abstract class FileBasedSink<T> extends Sink<T> {
      */
     public void copy(List<String> srcFilenames, List<String> destFilenames) throws IOException;
 
+    /**
+     * Rename a collection of files, replacing existing destination files. Source files that do
+     * not exist are skipped.
+     *
+     * <p>The number of source filenames must equal the number of destination filenames.
+     *
+     * @param srcFilenames the source filenames.
+     * @param destFilenames the destination filenames.
+     */
+    public void rename(List<String> srcFilenames, List<String> destFilenames) throws IOException;
+
     /**
      * Remove a collection of files.
      */
@@ -614,6 +667,15 @@ public abstract class FileBasedSink<T> extends Sink<T> {
       gcsUtil.copy(srcFilenames, destFilenames);
     }
 
+    /**
+     * GCS has no rename, so files are copied and the sources are removed afterwards.
+     */
+    @Override
+    public void rename(List<String> srcFilenames, List<String> destFilenames) throws IOException {
+      gcsUtil.copy(srcFilenames, destFilenames);
+      gcsUtil.remove(srcFilenames);
+    }
+
     @Override
     public void remove(Collection<String> filenames) throws IOException {
       gcsUtil.remove(filenames);
@@ -622,50 +684,167 @@ public abstract class FileBasedSink<T> extends Sink<T> {
 
   /**
    * File systems supported by {@link Files}.
+   *
+   * <p>Operations on many files are spread over a bounded pool of threads, as the time of each
+   * operation is spent waiting for the file system rather than in this process.
    */
   private static class LocalFileOperations implements FileOperations {
     private static final Logger LOG = LoggerFactory.getLogger(LocalFileOperations.class);
 
+    // The maximum number of files that are copied, renamed or removed concurrently.
+    static final int THREAD_POOL_SIZE = 16;
+
+    // Progress of operations on many files is logged each time this many files are done.
+    private static final int PROGRESS_LOGGING_INTERVAL = 1000;
+
     @Override
     public void copy(List<String> srcFilenames, List<String> destFilenames) throws IOException {
-      Preconditions.checkArgument(
-          srcFilenames.size() == destFilenames.size(),
-          "Number of source files %s must equal number of destination files %s",
-          srcFilenames.size(),
-          destFilenames.size());
-      int numFiles = srcFilenames.size();
-      for (int i = 0; i < numFiles; i++) {
-        String src = srcFilenames.get(i);
-        String dst = destFilenames.get(i);
-        LOG.debug("Copying {} to {}", src, dst);
-        copyOne(src, dst);
+      checkSameNumberOfFiles(srcFilenames, destFilenames);
+      List<Callable<Boolean>> operations = new ArrayList<>();
+      for (int i = 0; i < srcFilenames.size(); i++) {
+        final String src = srcFilenames.get(i);
+        final String dst = destFilenames.get(i);
+        operations.add(new Callable<Boolean>() {
+          @Override
+          public Boolean call() throws IOException {
+            LOG.debug("Copying {} to {}", src, dst);
+            return copyOne(src, dst);
+          }
+        });
       }
+      runAll("Copied", operations);
     }
 
-    private void copyOne(String source, String destination) throws IOException {
+    private boolean copyOne(String source, String destination) throws IOException {
       try {
         // Copy the source file, replacing the existing destination.
         Files.copy(Paths.get(source), Paths.get(destination), StandardCopyOption.REPLACE_EXISTING);
+        return true;
       } catch (NoSuchFileException e) {
         LOG.debug("{} does not exist.", source);
         // Suppress exception if file does not exist.
+        return false;
+      }
+    }
+
+    @Override
+    public void rename(List<String> srcFilenames, List<String> destFilenames) throws IOException {
+      checkSameNumberOfFiles(srcFilenames, destFilenames);
+      List<Callable<Boolean>> operations = new ArrayList<>();
+      for (int i = 0; i < srcFilenames.size(); i++) {
+        final String src = srcFilenames.get(i);
+        final String dst = destFilenames.get(i);
+        operations.add(new Callable<Boolean>() {
+          @Override
+          public Boolean call() throws IOException {
+            LOG.debug("Renaming {} to {}", src, dst);
+            return renameOne(src, dst);
+          }
+        });
+      }
+      runAll("Renamed", operations);
+    }
+
+    private boolean renameOne(String source, String destination) throws IOException {
+      Path sourcePath = Paths.get(source);
+      Path destinationPath = Paths.get(destination);
+      try {
+        try {
+          // An atomic move replaces an existing destination on the file systems that support it,
+          // and readers never see a partially written destination.
+          Files.move(sourcePath, destinationPath, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException | FileAlreadyExistsException e) {
+          // The move is not atomic on this file system (e.g., the source and destination are on
+          // different file systems), or it can't replace an existing destination. Copy and delete
+          // the source instead, as finalize did before.
+          Files.copy(sourcePath, destinationPath, StandardCopyOption.REPLACE_EXISTING);
+          Files.deleteIfExists(sourcePath);
+        }
+        return true;
+      } catch (NoSuchFileException e) {
+        LOG.debug("{} does not exist.", source);
+        // Suppress exception if file does not exist, e.g., because it was moved by a previous
+        // attempt.
+        return false;
       }
     }
 
     @Override
     public void remove(Collection<String> filenames) throws IOException {
-      for (String filename : filenames) {
-        LOG.debug("Removing file {}", filename);
-        removeOne(filename);
+      List<Callable<Boolean>> operations = new ArrayList<>();
+      for (final String filename : filenames) {
+        operations.add(new Callable<Boolean>() {
+          @Override
+          public Boolean call() throws IOException {
+            LOG.debug("Removing file {}", filename);
+            return removeOne(filename);
+          }
+        });
       }
+      runAll("Removed", operations);
     }
 
-    private void removeOne(String filename) throws IOException {
+    private boolean removeOne(String filename) throws IOException {
       // Delete the file if it exists.
       boolean exists = Files.deleteIfExists(Paths.get(filename));
       if (!exists) {
         LOG.debug("{} does not exist.", filename);
       }
+      return exists;
+    }
+
+    private static void checkSameNumberOfFiles(
+        List<String> srcFilenames, List<String> destFilenames) {
+      Preconditions.checkArgument(
+          srcFilenames.size() == destFilenames.size(),
+          "Number of source files %s must equal number of destination files %s",
+          srcFilenames.size(),
+          destFilenames.size());
+    }
+
+    /**
+     * Runs the operations on a bounded pool of threads and waits for all of them to complete,
+     * logging the progress. Each operation returns whether the file it operated on existed.
+     */
+    private static void runAll(final String action, List<Callable<Boolean>> operations)
+        throws IOException {
+      if (operations.isEmpty()) {
+        return;
+      }
+      final int numFiles = operations.size();
+      final AtomicInteger numDone = new AtomicInteger();
+      final AtomicInteger numMissing = new AtomicInteger();
+      ListeningExecutorService service = MoreExecutors.listeningDecorator(
+          Executors.newFixedThreadPool(Math.min(THREAD_POOL_SIZE, numFiles)));
+      try {
+        List<ListenableFuture<Boolean>> futures = new ArrayList<>();
+        for (final Callable<Boolean> operation : operations) {
+          futures.add(service.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+              boolean existed = operation.call();
+              if (!existed) {
+                numMissing.incrementAndGet();
+              }
+              int done = numDone.incrementAndGet();
+              if (done % PROGRESS_LOGGING_INTERVAL == 0) {
+                LOG.info("{} {} of {} files.", action, done, numFiles);
+              }
+              return existed;
+            }
+          }));
+        }
+        Futures.allAsList(futures).get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while operating on files", e);
+      } catch (ExecutionException e) {
+        Throwables.propagateIfPossible(e.getCause(), IOException.class);
+        throw new IOException(e.getCause());
+      } finally {
+        service.shutdown();
+      }
+      LOG.info("{} {} files, {} of which did not exist.", action, numFiles, numMissing.get());
     }
   }
 }
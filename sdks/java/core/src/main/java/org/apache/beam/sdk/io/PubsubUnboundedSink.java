@@ -18,6 +18,8 @@
 
 package org.apache.beam.sdk.io;
 
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 
 import org.apache.beam.sdk.coders.BigEndianLongCoder;
@@ -33,6 +35,7 @@ import org.apache.beam.sdk.options.PubsubOptions;
 import org.apache.beam.sdk.transforms.Aggregator;
 import org.apache.beam.sdk.transforms.DoFn;
 import org.apache.beam.sdk.transforms.GroupByKey;
+import org.apache.beam.sdk.transforms.Max;
 import org.apache.beam.sdk.transforms.PTransform;
 import org.apache.beam.sdk.transforms.ParDo;
 import org.apache.beam.sdk.transforms.Sum;
@@ -55,16 +58,27 @@ import org.apache.beam.sdk.values.PDone;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 import org.joda.time.Duration;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Queue;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import javax.annotation.Nullable;
 
@@ -76,10 +90,15 @@ import javax.annotation.Nullable;
  * {@code UnboundedSink} implementation so as to gain access to system watermark and
  * end-of-pipeline cleanup.)
  * <li>We try to send messages in batches while also limiting send latency.
- * <li>No stats are logged. Rather some counters are used to keep track of elements and batches.
- * <li>Though some background threads are used by the underlying netty system all actual Pubsub
- * calls are blocking. We rely on the underlying runner to allow multiple {@link DoFn} instances
- * to execute concurrently and hide latency.
+ * <li>No stats are logged. Rather some counters are used to keep track of elements, batches
+ * and publish latencies.
+ * <li>Each shard keeps several publish calls in flight on background threads, see
+ * {@link #withMaxOutstandingPublishes}, and waits for them all to complete before finishing a
+ * bundle. We also rely on the underlying runner to allow multiple {@link DoFn} instances to
+ * execute concurrently and hide latency.
+ * <li>With {@link #withAdaptiveBatchSize} the number of messages per publish is halved whenever
+ * a publish fails or is slower than a target latency, down to a minimum, and otherwise slowly
+ * grows back to the maximum.
  * <li>A failed bundle will cause messages to be resent. Thus we rely on the Pubsub consumer
  * to dedup messages.
  * </ul>
@@ -102,6 +121,17 @@ public class PubsubUnboundedSink<T> extends PTransform<PCollection<T>, PDone> {
    */
   private static final Duration DEFAULT_MAX_LATENCY = Duration.standardSeconds(2);
 
+  /**
+   * Default maximum number of publish calls in flight per shard.
+   */
+  private static final int DEFAULT_MAX_OUTSTANDING_PUBLISHES = 4;
+
+  /**
+   * Upper bounds, in ms, of the buckets of the publish latency histogram. The last bucket has
+   * no upper bound.
+   */
+  private static final long[] PUBLISH_LATENCY_BUCKETS_MS = {10, 100, 1000};
+
   /**
    * Coder for conveying outgoing messages between internal stages.
    */
@@ -204,7 +234,54 @@ public class PubsubUnboundedSink<T> extends PTransform<PCollection<T>, PDone> {
   // ================================================================================
 
   /**
-   * Publish messages to Pubsub in batches.
+   * Adapts the number of messages per publish to the observed publish latency and failures:
+   * halve it whenever a publish fails or takes longer than the target latency, down to the
+   * minimum, otherwise grow it by a tenth of the maximum, up to the maximum.
+   */
+  @VisibleForTesting
+  static class PublishBatchSizer {
+    private final int minBatchSize;
+    private final int maxBatchSize;
+    private final long targetLatencyMs;
+    private int batchSize;
+
+    PublishBatchSizer(int minBatchSize, int maxBatchSize, long targetLatencyMs) {
+      this.minBatchSize = minBatchSize;
+      this.maxBatchSize = maxBatchSize;
+      this.targetLatencyMs = targetLatencyMs;
+      this.batchSize = maxBatchSize;
+    }
+
+    /**
+     * Return a sizer which always uses {@code batchSize} messages per publish.
+     */
+    static PublishBatchSizer fixed(int batchSize) {
+      return new PublishBatchSizer(batchSize, batchSize, Long.MAX_VALUE);
+    }
+
+    /**
+     * Return the current maximum number of messages per publish.
+     */
+    int getBatchSize() {
+      return batchSize;
+    }
+
+    void succeeded(long latencyMs) {
+      if (latencyMs > targetLatencyMs) {
+        batchSize = Math.max(minBatchSize, batchSize / 2);
+      } else {
+        batchSize = Math.min(maxBatchSize, batchSize + Math.max(1, maxBatchSize / 10));
+      }
+    }
+
+    void failed() {
+      batchSize = Math.max(minBatchSize, batchSize / 2);
+    }
+  }
+
+  /**
+   * Publish messages to Pubsub in batches, with up to {@code maxOutstandingPublishes}
+   * batches in flight.
    */
   private static class WriterFn
       extends DoFn<KV<Integer, Iterable<OutgoingMessage>>, Void> {
@@ -214,6 +291,23 @@ public class PubsubUnboundedSink<T> extends PTransform<PCollection<T>, PDone> {
     private final String idLabel;
     private final int publishBatchSize;
     private final int publishBatchBytes;
+    private final int maxOutstandingPublishes;
+    @Nullable
+    private final Duration targetPublishLatency;
+    private final int minPublishBatchSize;
+
+    /**
+     * Executor for publish calls, shared by all writers. Threads are only created for publishes
+     * in flight and are discarded when idle.
+     */
+    private static final ListeningExecutorService PUBLISH_EXECUTOR =
+        MoreExecutors.listeningDecorator(MoreExecutors.getExitingExecutorService(
+            (ThreadPoolExecutor) Executors.newCachedThreadPool(
+                new ThreadFactoryBuilder()
+                    .setDaemon(true)
+                    .setNameFormat("PubsubUnboundedSink-publish-%d")
+                    .build()),
+            10, TimeUnit.SECONDS));
 
     /**
      * Client on which to talk to Pubsub. Null until created by {@link #startBundle}.
@@ -221,36 +315,153 @@ public class PubsubUnboundedSink<T> extends PTransform<PCollection<T>, PDone> {
     @Nullable
     private transient PubsubClient pubsubClient;
 
+    /**
+     * Publish calls in flight, from oldest to newest. Null until created by the first
+     * {@link #startBundle}.
+     */
+    @Nullable
+    private transient Queue<ListenableFuture<PublishResult>> outstandingPublishes;
+
+    /**
+     * Current number of messages per publish. Null until created by the first
+     * {@link #startBundle}, then kept across bundles.
+     */
+    @Nullable
+    private transient PublishBatchSizer batchSizer;
+
     private final Aggregator<Long, Long> batchCounter =
         createAggregator("batches", new Sum.SumLongFn());
     private final Aggregator<Long, Long> elementCounter =
         createAggregator("elements", new Sum.SumLongFn());
     private final Aggregator<Long, Long> byteCounter =
         createAggregator("bytes", new Sum.SumLongFn());
+    private final Aggregator<Long, Long> failedBatchCounter =
+        createAggregator("failedBatches", new Sum.SumLongFn());
+    private final Aggregator<Long, Long> latencyMsCounter =
+        createAggregator("publishLatencyMs", new Sum.SumLongFn());
+    private final Aggregator<Long, Long> maxLatencyMs =
+        createAggregator("maxPublishLatencyMs", new Max.MaxLongFn());
+    /**
+     * Histogram of publish latencies, one counter per bucket of
+     * {@link #PUBLISH_LATENCY_BUCKETS_MS}.
+     */
+    private final List<Aggregator<Long, Long>> latencyHistogram = new ArrayList<>();
 
     WriterFn(
         PubsubClientFactory pubsubFactory, TopicPath topic, String timestampLabel,
-        String idLabel, int publishBatchSize, int publishBatchBytes) {
+        String idLabel, int publishBatchSize, int publishBatchBytes,
+        int maxOutstandingPublishes, @Nullable Duration targetPublishLatency,
+        int minPublishBatchSize) {
       this.pubsubFactory = pubsubFactory;
       this.topic = topic;
       this.timestampLabel = timestampLabel;
       this.idLabel = idLabel;
       this.publishBatchSize = publishBatchSize;
       this.publishBatchBytes = publishBatchBytes;
+      this.maxOutstandingPublishes = maxOutstandingPublishes;
+      this.targetPublishLatency = targetPublishLatency;
+      this.minPublishBatchSize = minPublishBatchSize;
+      for (long bucketMs : PUBLISH_LATENCY_BUCKETS_MS) {
+        latencyHistogram.add(
+            createAggregator("publishesUnder" + bucketMs + "ms", new Sum.SumLongFn()));
+      }
+      latencyHistogram.add(createAggregator(
+          "publishesOver" + PUBLISH_LATENCY_BUCKETS_MS[PUBLISH_LATENCY_BUCKETS_MS.length - 1]
+          + "ms", new Sum.SumLongFn()));
     }
 
     /**
-     * BLOCKING
-     * Send {@code messages} as a batch to Pubsub.
+     * Outcome of a successful publish call.
+     */
+    private static class PublishResult {
+      final int numMessages;
+      final int bytes;
+      final long latencyMs;
+
+      PublishResult(int numMessages, int bytes, long latencyMs) {
+        this.numMessages = numMessages;
+        this.bytes = bytes;
+        this.latencyMs = latencyMs;
+      }
+    }
+
+    /**
+     * BLOCKING only if {@code maxOutstandingPublishes} publishes are already in flight.
+     * Send {@code messages} as a batch to Pubsub in the background. Retains {@code messages}.
      */
-    private void publishBatch(List<OutgoingMessage> messages, int bytes)
+    private void publishBatch(final List<OutgoingMessage> messages, final int bytes)
         throws IOException {
-      int n = pubsubClient.publish(topic, messages);
-      checkState(n == messages.size(), "Attempted to publish %s messages but %s were successful",
-                 messages.size(), n);
+      while (outstandingPublishes.size() >= maxOutstandingPublishes) {
+        // BLOCKS until published.
+        awaitOldestPublish();
+      }
+      final PubsubClient client = pubsubClient;
+      outstandingPublishes.add(PUBLISH_EXECUTOR.submit(new Callable<PublishResult>() {
+        @Override
+        public PublishResult call() throws IOException {
+          long startNanos = System.nanoTime();
+          int n = client.publish(topic, messages);
+          checkState(n == messages.size(),
+                     "Attempted to publish %s messages but %s were successful",
+                     messages.size(), n);
+          return new PublishResult(
+              n, bytes, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+        }
+      }));
+    }
+
+    /**
+     * BLOCKING
+     * Wait for the oldest publish in flight and account for it. If it failed, wait for all
+     * other publishes in flight before throwing.
+     */
+    private void awaitOldestPublish() throws IOException {
+      ListenableFuture<PublishResult> publish = outstandingPublishes.remove();
+      PublishResult result;
+      try {
+        result = publish.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        abandonOutstandingPublishes();
+        throw new IOException("Interrupted while publishing to " + topic, e);
+      } catch (ExecutionException e) {
+        failedBatchCounter.addValue(1L);
+        batchSizer.failed();
+        while (!outstandingPublishes.isEmpty()) {
+          try {
+            outstandingPublishes.remove().get();
+          } catch (InterruptedException e2) {
+            Thread.currentThread().interrupt();
+            abandonOutstandingPublishes();
+            break;
+          } catch (ExecutionException e2) {
+            failedBatchCounter.addValue(1L);
+          }
+        }
+        throw new IOException("Unable to publish to " + topic, e.getCause());
+      }
+      batchSizer.succeeded(result.latencyMs);
       batchCounter.addValue(1L);
-      elementCounter.addValue((long) messages.size());
-      byteCounter.addValue((long) bytes);
+      elementCounter.addValue((long) result.numMessages);
+      byteCounter.addValue((long) result.bytes);
+      latencyMsCounter.addValue(result.latencyMs);
+      maxLatencyMs.addValue(result.latencyMs);
+      int bucket = 0;
+      while (bucket < PUBLISH_LATENCY_BUCKETS_MS.length
+             && result.latencyMs >= PUBLISH_LATENCY_BUCKETS_MS[bucket]) {
+        bucket++;
+      }
+      latencyHistogram.get(bucket).addValue(1L);
+    }
+
+    /**
+     * Cancel and forget all publishes in flight, so that none of them is awaited or accounted for
+     * by a later bundle. The bundle is failed, so its messages will be published again.
+     */
+    private void abandonOutstandingPublishes() {
+      while (!outstandingPublishes.isEmpty()) {
+        outstandingPublishes.remove().cancel(true);
+      }
     }
 
     @Override
@@ -258,37 +469,54 @@ public class PubsubUnboundedSink<T> extends PTransform<PCollection<T>, PDone> {
       checkState(pubsubClient == null, "startBundle invoked without prior finishBundle");
       pubsubClient = pubsubFactory.newClient(timestampLabel, idLabel,
                                              c.getPipelineOptions().as(PubsubOptions.class));
+      if (outstandingPublishes == null) {
+        outstandingPublishes = new ArrayDeque<>();
+        batchSizer = targetPublishLatency == null
+            ? PublishBatchSizer.fixed(publishBatchSize)
+            : new PublishBatchSizer(
+                minPublishBatchSize, publishBatchSize, targetPublishLatency.getMillis());
+      }
     }
 
     @Override
     public void processElement(ProcessContext c) throws Exception {
-      List<OutgoingMessage> pubsubMessages = new ArrayList<>(publishBatchSize);
+      List<OutgoingMessage> pubsubMessages = new ArrayList<>(batchSizer.getBatchSize());
       int bytes = 0;
       for (OutgoingMessage message : c.element().getValue()) {
         if (!pubsubMessages.isEmpty()
-            && bytes + message.elementBytes.length > publishBatchBytes) {
-          // Break large (in bytes) batches into smaller.
+            && (bytes + message.elementBytes.length > publishBatchBytes
+                || pubsubMessages.size() >= batchSizer.getBatchSize())) {
+          // Break large (in bytes) batches into smaller, and break batches down to the
+          // current adaptive batch size.
           // (We've already broken by batch size using the trigger below, though that may
           // run slightly over the actual PUBLISH_BATCH_SIZE. We'll consider that ok since
           // the hard limit from Pubsub is by bytes rather than number of messages.)
-          // BLOCKS until published.
+          // BLOCKS only if too many publishes are in flight.
           publishBatch(pubsubMessages, bytes);
-          pubsubMessages.clear();
+          // CAUTION: Don't reuse the same list since publishBatch holds on to it.
+          pubsubMessages = new ArrayList<>(batchSizer.getBatchSize());
           bytes = 0;
         }
         pubsubMessages.add(message);
         bytes += message.elementBytes.length;
       }
       if (!pubsubMessages.isEmpty()) {
-        // BLOCKS until published.
+        // BLOCKS only if too many publishes are in flight.
         publishBatch(pubsubMessages, bytes);
       }
     }
 
     @Override
     public void finishBundle(Context c) throws Exception {
-      pubsubClient.close();
-      pubsubClient = null;
+      try {
+        while (!outstandingPublishes.isEmpty()) {
+          // BLOCKS until published.
+          awaitOldestPublish();
+        }
+      } finally {
+        pubsubClient.close();
+        pubsubClient = null;
+      }
     }
 
     @Override
@@ -298,6 +526,8 @@ public class PubsubUnboundedSink<T> extends PTransform<PCollection<T>, PDone> {
       builder.add(DisplayData.item("transport", pubsubFactory.getKind()));
       builder.addIfNotNull(DisplayData.item("timestampLabel", timestampLabel));
       builder.addIfNotNull(DisplayData.item("idLabel", idLabel));
+      builder.add(DisplayData.item("maxOutstandingPublishes", maxOutstandingPublishes));
+      builder.addIfNotNull(DisplayData.item("targetPublishLatency", targetPublishLatency));
     }
   }
 
@@ -358,6 +588,23 @@ public class PubsubUnboundedSink<T> extends PTransform<PCollection<T>, PDone> {
    */
   private final Duration maxLatency;
 
+  /**
+   * Maximum number of publish calls in flight per shard.
+   */
+  private final int maxOutstandingPublishes;
+
+  /**
+   * Publishes slower than this cause the number of messages per publish to be reduced, or
+   * {@literal null} if the number of messages per publish is not adapted.
+   */
+  @Nullable
+  private final Duration targetPublishLatency;
+
+  /**
+   * Smallest number of messages per publish the adaptive batch size may be reduced to.
+   */
+  private final int minPublishBatchSize;
+
   /**
    * How record ids should be generated for each record (if {@link #idLabel} is non-{@literal
    * null}).
@@ -376,6 +623,25 @@ public class PubsubUnboundedSink<T> extends PTransform<PCollection<T>, PDone> {
       int publishBatchBytes,
       Duration maxLatency,
       RecordIdMethod recordIdMethod) {
+    this(pubsubFactory, topic, elementCoder, timestampLabel, idLabel, numShards,
+         publishBatchSize, publishBatchBytes, maxLatency, recordIdMethod,
+         DEFAULT_MAX_OUTSTANDING_PUBLISHES, null, publishBatchSize);
+  }
+
+  private PubsubUnboundedSink(
+      PubsubClientFactory pubsubFactory,
+      TopicPath topic,
+      Coder<T> elementCoder,
+      String timestampLabel,
+      String idLabel,
+      int numShards,
+      int publishBatchSize,
+      int publishBatchBytes,
+      Duration maxLatency,
+      RecordIdMethod recordIdMethod,
+      int maxOutstandingPublishes,
+      @Nullable Duration targetPublishLatency,
+      int minPublishBatchSize) {
     this.pubsubFactory = pubsubFactory;
     this.topic = topic;
     this.elementCoder = elementCoder;
@@ -386,6 +652,9 @@ public class PubsubUnboundedSink<T> extends PTransform<PCollection<T>, PDone> {
     this.publishBatchBytes = publishBatchBytes;
     this.maxLatency = maxLatency;
     this.recordIdMethod = idLabel == null ? RecordIdMethod.NONE : recordIdMethod;
+    this.maxOutstandingPublishes = maxOutstandingPublishes;
+    this.targetPublishLatency = targetPublishLatency;
+    this.minPublishBatchSize = minPublishBatchSize;
   }
 
   public PubsubUnboundedSink(
@@ -400,6 +669,36 @@ public class PubsubUnboundedSink<T> extends PTransform<PCollection<T>, PDone> {
          RecordIdMethod.RANDOM);
   }
 
+  /**
+   * Return a sink like this one, but whose writers keep up to {@code maxOutstandingPublishes}
+   * publish calls in flight per shard.
+   */
+  public PubsubUnboundedSink<T> withMaxOutstandingPublishes(int maxOutstandingPublishes) {
+    checkArgument(maxOutstandingPublishes > 0, "maxOutstandingPublishes must be positive");
+    return new PubsubUnboundedSink<>(
+        pubsubFactory, topic, elementCoder, timestampLabel, idLabel, numShards, publishBatchSize,
+        publishBatchBytes, maxLatency, recordIdMethod, maxOutstandingPublishes,
+        targetPublishLatency, minPublishBatchSize);
+  }
+
+  /**
+   * Return a sink like this one, but whose writers halve the number of messages per publish
+   * whenever a publish fails or takes longer than {@code targetPublishLatency}, down to
+   * {@code minPublishBatchSize} messages, and otherwise grow it back up to the maximum number
+   * of messages per publish.
+   */
+  public PubsubUnboundedSink<T> withAdaptiveBatchSize(
+      Duration targetPublishLatency, int minPublishBatchSize) {
+    checkNotNull(targetPublishLatency, "targetPublishLatency");
+    checkArgument(minPublishBatchSize > 0 && minPublishBatchSize <= publishBatchSize,
+        "minPublishBatchSize must be between 1 and %s, got %s",
+        publishBatchSize, minPublishBatchSize);
+    return new PubsubUnboundedSink<>(
+        pubsubFactory, topic, elementCoder, timestampLabel, idLabel, numShards, publishBatchSize,
+        publishBatchBytes, maxLatency, recordIdMethod, maxOutstandingPublishes,
+        targetPublishLatency, minPublishBatchSize);
+  }
+
   public TopicPath getTopic() {
     return topic;
   }
@@ -433,7 +732,8 @@ public class PubsubUnboundedSink<T> extends PTransform<PCollection<T>, PDone> {
          .apply(GroupByKey.<Integer, OutgoingMessage>create())
          .apply("PubsubUnboundedSink.Writer",
              ParDo.of(new WriterFn(pubsubFactory, topic, timestampLabel, idLabel,
-                 publishBatchSize, publishBatchBytes)));
+                 publishBatchSize, publishBatchBytes, maxOutstandingPublishes,
+                 targetPublishLatency, minPublishBatchSize)));
     return PDone.in(input.getPipeline());
   }
 }
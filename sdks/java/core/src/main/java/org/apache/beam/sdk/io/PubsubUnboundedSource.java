@@ -55,6 +55,10 @@ import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Charsets;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 import org.joda.time.Duration;
 import org.joda.time.Instant;
@@ -75,7 +79,11 @@ import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.annotation.Nullable;
@@ -103,8 +111,11 @@ import javax.annotation.Nullable;
  * checked thereafter despite the timeout being user-changeable on-the-fly.
  * <li>We log vital stats every 30 seconds.
  * <li>Though some background threads may be used by the underlying transport all Pubsub calls
- * are blocking. We rely on the underlying runner to allow multiple
+ * are blocking. By default we rely on the underlying runner to allow multiple
  * {@link UnboundedSource.UnboundedReader} instances to execute concurrently and thus hide latency.
+ * <li>With {@link #withPipelinedPulls} each reader instead keeps several pulls outstanding
+ * in the background, bounded by the number and bytes of messages which have been pulled but not
+ * yet read, and ACKs and extends ACK deadlines in the background.
  * </ul>
  *
  * <p>NOTE: This is not the implementation used when running on the Google Cloud Dataflow service.
@@ -137,6 +148,11 @@ public class PubsubUnboundedSource<T> extends PTransform<PBegin, PCollection<T>>
    */
   private static final int MAX_IN_FLIGHT = 20000;
 
+  /**
+   * Maximum time to wait for background pulls and ACKs to complete when closing a reader.
+   */
+  private static final Duration CLOSE_TIMEOUT = Duration.standardSeconds(30);
+
   /**
    * Timeout for round trip from receiving a message to finally ACKing it back to Pubsub.
    */
@@ -374,7 +390,8 @@ public class PubsubUnboundedSource<T> extends PTransform<PBegin, PCollection<T>>
     private final PubsubSource<T> outer;
 
     /**
-     * Client on which to talk to Pubsub. Null if closed.
+     * Client on which to talk to Pubsub. Null if closed. When pulls are pipelined, the client
+     * is used concurrently by the reader thread, {@link #pullExecutor} and {@link #ackExecutor}.
      */
     @Nullable
     private PubsubClient pubsubClient;
@@ -421,7 +438,9 @@ public class PubsubUnboundedSource<T> extends PTransform<PBegin, PCollection<T>>
     private final LinkedHashMap<String, InFlightState> inFlight;
 
     /**
-     * Batches of successfully ACKed ids which need to be pruned from the above.
+     * Batches of successfully ACKed ids which need to be pruned from the above. If pulls are
+     * pipelined: batches of ids whose ACKs have been submitted to {@link #ackExecutor}, so that
+     * they are not ACKed again by a later checkpoint.
      * CAUTION: Accessed by both reader and checkpointing threads.
      */
     private final Queue<List<String>> ackedIds;
@@ -431,6 +450,56 @@ public class PubsubUnboundedSource<T> extends PTransform<PBegin, PCollection<T>>
      */
     private long notYetReadBytes;
 
+    /**
+     * A pull which has been issued in the background but whose messages have not yet been
+     * captured.
+     */
+    private static class OutstandingPull {
+      /**
+       * When the pull was issued.
+       */
+      final long requestTimeMsSinceEpoch;
+
+      /**
+       * Maximum number of messages the pull may return.
+       */
+      final int batchSize;
+
+      final ListenableFuture<List<PubsubClient.IncomingMessage>> messages;
+
+      public OutstandingPull(
+          long requestTimeMsSinceEpoch, int batchSize,
+          ListenableFuture<List<PubsubClient.IncomingMessage>> messages) {
+        this.requestTimeMsSinceEpoch = requestTimeMsSinceEpoch;
+        this.batchSize = batchSize;
+        this.messages = messages;
+      }
+    }
+
+    /**
+     * Executor for background pulls, or {@literal null} if pulls are not pipelined.
+     */
+    @Nullable
+    private final ListeningExecutorService pullExecutor;
+
+    /**
+     * Executor for background ACKs and ACK extensions, or {@literal null} if pulls are not
+     * pipelined. Has a single thread so calls are made in the order they are submitted.
+     */
+    @Nullable
+    private final ListeningExecutorService ackExecutor;
+
+    /**
+     * Pulls issued in the background, in the order they were issued. Their messages are
+     * captured into {@link #notYetRead} in that same order.
+     */
+    private final Queue<OutstandingPull> outstandingPulls;
+
+    /**
+     * Sum of the batch sizes of {@link #outstandingPulls}.
+     */
+    private int outstandingPullMessages;
+
     /**
      * Bucketed map from received time (as system time, ms since epoch) to message
      * timestamps (mssince epoch) of all received but not-yet read messages.
@@ -571,6 +640,15 @@ public class PubsubUnboundedSource<T> extends PTransform<PBegin, PCollection<T>>
       inFlight = new LinkedHashMap<>();
       ackedIds = new ConcurrentLinkedQueue<>();
       notYetReadBytes = 0;
+      if (outer.outer.maxOutstandingPulls > 0) {
+        pullExecutor = newExecutor(outer.outer.maxOutstandingPulls, "pull");
+        ackExecutor = newExecutor(1, "ack");
+      } else {
+        pullExecutor = null;
+        ackExecutor = null;
+      }
+      outstandingPulls = new ArrayDeque<>();
+      outstandingPullMessages = 0;
       minUnreadTimestampMsSinceEpoch = new BucketingFunction(SAMPLE_UPDATE.getMillis(),
                                                              MIN_WATERMARK_SPREAD,
                                                              MIN_WATERMARK_MESSAGES,
@@ -597,20 +675,47 @@ public class PubsubUnboundedSource<T> extends PTransform<PBegin, PCollection<T>>
       maxInFlightCheckpoints = 0;
     }
 
+    private ListeningExecutorService newExecutor(int numThreads, String kind) {
+      return MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(
+          numThreads,
+          new ThreadFactoryBuilder()
+              .setDaemon(true)
+              .setNameFormat("PubsubReader-" + kind + "-%d")
+              .build()));
+    }
+
     @VisibleForTesting
     PubsubClient getPubsubClient() {
       return pubsubClient;
     }
 
     /**
-     * BLOCKING
+     * BLOCKING unless pulls are pipelined, in which case the ACK is made in the background
+     * and a failure to ACK is only logged.
      * ACK {@code ackIds} back to Pubsub.
      * CAUTION: May be invoked from a separate checkpointing thread.
      * CAUTION: Retains {@code ackIds}.
      */
-    void ackBatch(List<String> ackIds) throws IOException {
-      pubsubClient.acknowledge(outer.outer.subscription, ackIds);
+    void ackBatch(final List<String> ackIds) throws IOException {
+      if (ackExecutor == null) {
+        pubsubClient.acknowledge(outer.outer.subscription, ackIds);
+        ackedIds.add(ackIds);
+        return;
+      }
+      final PubsubClient client = pubsubClient;
       ackedIds.add(ackIds);
+      ackExecutor.submit(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            client.acknowledge(outer.outer.subscription, ackIds);
+          } catch (IOException | RuntimeException e) {
+            // The messages will be redelivered once their ACK deadlines expire.
+            LOG.warn("Pubsub {} cannot have {} messages ACKed, ignoring: {}",
+                     outer.outer.subscription, ackIds.size(), e);
+          }
+        }
+      });
     }
 
     /**
@@ -624,14 +729,32 @@ public class PubsubUnboundedSource<T> extends PTransform<PBegin, PCollection<T>>
     }
 
     /**
-     * BLOCKING
+     * BLOCKING unless pulls are pipelined, in which case the extension is made in the background
+     * and a failure to extend is only logged.
      * Extend the processing deadline for messages from Pubsub with the given {@code ackIds}.
-     * Does not retain {@code ackIds}.
+     * Retains {@code ackIds} only if pulls are pipelined.
      */
-    private void extendBatch(long nowMsSinceEpoch, List<String> ackIds) throws IOException {
-      int extensionSec = (ackTimeoutMs * ACK_EXTENSION_PCT) / (100 * 1000);
-      pubsubClient.modifyAckDeadline(outer.outer.subscription, ackIds, extensionSec);
+    private void extendBatch(long nowMsSinceEpoch, final List<String> ackIds)
+        throws IOException {
+      final int extensionSec = (ackTimeoutMs * ACK_EXTENSION_PCT) / (100 * 1000);
       numExtendedDeadlines.add(nowMsSinceEpoch, ackIds.size());
+      if (ackExecutor == null) {
+        pubsubClient.modifyAckDeadline(outer.outer.subscription, ackIds, extensionSec);
+        return;
+      }
+      final PubsubClient client = pubsubClient;
+      ackExecutor.submit(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            client.modifyAckDeadline(outer.outer.subscription, ackIds, extensionSec);
+          } catch (IOException | RuntimeException e) {
+            // If the deadlines do expire the messages will be redelivered.
+            LOG.warn("Pubsub {} cannot have {} ACK deadlines extended, ignoring: {}",
+                     outer.outer.subscription, ackIds.size(), e);
+          }
+        }
+      });
     }
 
     /**
@@ -740,7 +863,7 @@ public class PubsubUnboundedSource<T> extends PTransform<PBegin, PCollection<T>>
             inFlight.put(ackId,
                          new InFlightState(state.requestTimeMsSinceEpoch, newDeadlineMsSinceEpoch));
           }
-          // BLOCKs until extended.
+          // BLOCKs until extended, unless pulls are pipelined.
           extendBatch(nowMsSinceEpoch, toBeExtended);
         }
       }
@@ -760,7 +883,6 @@ public class PubsubUnboundedSource<T> extends PTransform<PBegin, PCollection<T>>
       }
 
       long requestTimeMsSinceEpoch = now();
-      long deadlineMsSinceEpoch = requestTimeMsSinceEpoch + ackTimeoutMs;
 
       // Pull the next batch.
       // BLOCKs until received.
@@ -768,11 +890,84 @@ public class PubsubUnboundedSource<T> extends PTransform<PBegin, PCollection<T>>
           pubsubClient.pull(requestTimeMsSinceEpoch,
                             outer.outer.subscription,
                             PULL_BATCH_SIZE, true);
+      receive(requestTimeMsSinceEpoch, receivedMessages);
+    }
+
+    /**
+     * BLOCKING only if there are no unread messages.
+     * Capture the messages of all completed background pulls, then issue more background pulls
+     * until either {@code maxOutstandingPulls} pulls are outstanding or the unread and
+     * outstanding messages would exceed the flow control limits. If there are still no unread
+     * messages wait for the oldest outstanding pull.
+     */
+    private void pipelinedPull() throws IOException {
+      while (!outstandingPulls.isEmpty() && outstandingPulls.peek().messages.isDone()) {
+        captureOldestPull();
+      }
+
+      while (outstandingPulls.size() < outer.outer.maxOutstandingPulls
+             && inFlight.size() + outstandingPullMessages < MAX_IN_FLIGHT
+             && notYetReadBytes < outer.outer.maxUnreadBytes) {
+        int batchSize = Math.min(
+            PULL_BATCH_SIZE,
+            outer.outer.maxUnreadMessages - notYetRead.size() - outstandingPullMessages);
+        if (batchSize <= 0) {
+          // Wait for the unread messages to be read before pulling anymore.
+          break;
+        }
+        final long requestTimeMsSinceEpoch = now();
+        final PubsubClient client = pubsubClient;
+        final int clientBatchSize = batchSize;
+        ListenableFuture<List<PubsubClient.IncomingMessage>> messages = pullExecutor.submit(
+            new Callable<List<PubsubClient.IncomingMessage>>() {
+              @Override
+              public List<PubsubClient.IncomingMessage> call() throws IOException {
+                return client.pull(requestTimeMsSinceEpoch, outer.outer.subscription,
+                                   clientBatchSize, true);
+              }
+            });
+        outstandingPulls.add(new OutstandingPull(requestTimeMsSinceEpoch, batchSize, messages));
+        outstandingPullMessages += batchSize;
+      }
+
+      if (notYetRead.isEmpty() && !outstandingPulls.isEmpty()) {
+        // BLOCKs until received, but will not block until a message is available.
+        captureOldestPull();
+      }
+    }
+
+    /**
+     * BLOCKING
+     * Wait for the oldest outstanding background pull and capture its messages.
+     */
+    private void captureOldestPull() throws IOException {
+      OutstandingPull pull = outstandingPulls.remove();
+      outstandingPullMessages -= pull.batchSize;
+      List<PubsubClient.IncomingMessage> receivedMessages;
+      try {
+        receivedMessages = pull.messages.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while pulling from " + outer.outer.subscription, e);
+      } catch (ExecutionException e) {
+        throw new IOException("Unable to pull from " + outer.outer.subscription, e.getCause());
+      }
+      receive(pull.requestTimeMsSinceEpoch, receivedMessages);
+    }
+
+    /**
+     * Capture {@code receivedMessages}, which were returned by a pull issued at
+     * {@code requestTimeMsSinceEpoch}.
+     */
+    private void receive(
+        long requestTimeMsSinceEpoch, Collection<PubsubClient.IncomingMessage> receivedMessages) {
       if (receivedMessages.isEmpty()) {
         // Nothing available yet. Try again later.
         return;
       }
 
+      long deadlineMsSinceEpoch = requestTimeMsSinceEpoch + ackTimeoutMs;
+
       lastReceivedMsSinceEpoch = requestTimeMsSinceEpoch;
 
       // Capture the received messages.
@@ -904,7 +1099,11 @@ public class PubsubUnboundedSource<T> extends PTransform<PBegin, PCollection<T>>
       // the work to extend ACKs would be better done in the background.
       extend();
 
-      if (notYetRead.isEmpty()) {
+      if (pullExecutor != null) {
+        // Keep pulls outstanding in the background.
+        // Will BLOCK only if there are no unread messages.
+        pipelinedPull();
+      } else if (notYetRead.isEmpty()) {
         // Pull another batch.
         // Will BLOCK until fetch returns, but will not block until a message is available.
         pull();
@@ -962,8 +1161,37 @@ public class PubsubUnboundedSource<T> extends PTransform<PBegin, PCollection<T>>
     @Override
     public void close() throws IOException {
       if (pubsubClient != null) {
-        pubsubClient.close();
-        pubsubClient = null;
+        // Wait for background pulls, ACKs and ACK extensions before closing the client.
+        // Messages of outstanding pulls are never read and will be redelivered once their
+        // ACK deadlines expire.
+        try {
+          shutdownAndAwait(pullExecutor);
+          shutdownAndAwait(ackExecutor);
+        } finally {
+          pubsubClient.close();
+          pubsubClient = null;
+        }
+      }
+    }
+
+    /**
+     * BLOCKING
+     * Shut down {@code executor}, if any, and wait for its calls to complete.
+     */
+    private void shutdownAndAwait(@Nullable ListeningExecutorService executor)
+        throws IOException {
+      if (executor == null) {
+        return;
+      }
+      executor.shutdown();
+      try {
+        if (!executor.awaitTermination(CLOSE_TIMEOUT.getMillis(), TimeUnit.MILLISECONDS)) {
+          LOG.warn("Pubsub {} background calls did not complete within {}, ignoring",
+                   outer.outer.subscription, CLOSE_TIMEOUT);
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while closing " + outer.outer.subscription, e);
       }
     }
 
@@ -1207,6 +1435,25 @@ public class PubsubUnboundedSource<T> extends PTransform<PBegin, PCollection<T>>
   @Nullable
   private final String idLabel;
 
+  /**
+   * Maximum number of pulls each reader keeps outstanding in the background. If 0, pulls are not
+   * pipelined: each reader pulls only when it has no unread messages, and blocks on all Pubsub
+   * calls.
+   */
+  private final int maxOutstandingPulls;
+
+  /**
+   * If pulls are pipelined: Maximum number of messages pulled but not yet read by each reader,
+   * including the messages which may be returned by its outstanding pulls.
+   */
+  private final int maxUnreadMessages;
+
+  /**
+   * If pulls are pipelined: No more pulls are issued by a reader while the bytes of its
+   * messages pulled but not yet read are at or above this.
+   */
+  private final long maxUnreadBytes;
+
   @VisibleForTesting
   PubsubUnboundedSource(
       Clock clock,
@@ -1217,10 +1464,29 @@ public class PubsubUnboundedSource<T> extends PTransform<PBegin, PCollection<T>>
       Coder<T> elementCoder,
       @Nullable String timestampLabel,
       @Nullable String idLabel) {
+    this(clock, pubsubFactory, project, topic, subscription, elementCoder, timestampLabel, idLabel,
+         0, PULL_BATCH_SIZE, Long.MAX_VALUE);
+  }
+
+  private PubsubUnboundedSource(
+      Clock clock,
+      PubsubClientFactory pubsubFactory,
+      @Nullable ProjectPath project,
+      @Nullable TopicPath topic,
+      @Nullable SubscriptionPath subscription,
+      Coder<T> elementCoder,
+      @Nullable String timestampLabel,
+      @Nullable String idLabel,
+      int maxOutstandingPulls,
+      int maxUnreadMessages,
+      long maxUnreadBytes) {
     checkArgument((topic == null) != (subscription == null),
                   "Exactly one of topic and subscription must be given");
     checkArgument((topic == null) == (project == null),
                   "Project must be given if topic is given");
+    checkArgument(maxOutstandingPulls >= 0, "maxOutstandingPulls must not be negative");
+    checkArgument(maxUnreadMessages > 0, "maxUnreadMessages must be positive");
+    checkArgument(maxUnreadBytes > 0, "maxUnreadBytes must be positive");
     this.clock = clock;
     this.pubsubFactory = checkNotNull(pubsubFactory);
     this.project = project;
@@ -1229,6 +1495,9 @@ public class PubsubUnboundedSource<T> extends PTransform<PBegin, PCollection<T>>
     this.elementCoder = checkNotNull(elementCoder);
     this.timestampLabel = timestampLabel;
     this.idLabel = idLabel;
+    this.maxOutstandingPulls = maxOutstandingPulls;
+    this.maxUnreadMessages = maxUnreadMessages;
+    this.maxUnreadBytes = maxUnreadBytes;
   }
 
   /**
@@ -1245,6 +1514,22 @@ public class PubsubUnboundedSource<T> extends PTransform<PBegin, PCollection<T>>
     this(null, pubsubFactory, project, topic, subscription, elementCoder, timestampLabel, idLabel);
   }
 
+  /**
+   * Return a source like this one, but whose readers keep up to {@code maxOutstandingPulls}
+   * pulls outstanding in the background, and ACK and extend ACK deadlines in the background.
+   *
+   * <p>A reader issues no more pulls while it has {@code maxUnreadMessages} messages pulled or
+   * being pulled but not yet read, or while the bytes of its messages pulled but not yet read
+   * are at or above {@code maxUnreadBytes}.
+   */
+  public PubsubUnboundedSource<T> withPipelinedPulls(
+      int maxOutstandingPulls, int maxUnreadMessages, long maxUnreadBytes) {
+    checkArgument(maxOutstandingPulls > 0, "maxOutstandingPulls must be positive");
+    return new PubsubUnboundedSource<>(
+        clock, pubsubFactory, project, topic, subscription, elementCoder, timestampLabel, idLabel,
+        maxOutstandingPulls, maxUnreadMessages, maxUnreadBytes);
+  }
+
   public Coder<T> getElementCoder() {
     return elementCoder;
   }
@@ -35,8 +35,8 @@ import org.apache.beam.sdk.values.PInput;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
-import com.google.protobuf.ByteString;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
@@ -315,6 +315,11 @@ public class TextIO {
                 CompressedSource.from(new TextSource<T>(filepattern, coder))
                                 .withDecompression(CompressedSource.CompressionMode.ZIP));
             break;
+          case BGZIP:
+            read = org.apache.beam.sdk.io.Read.from(
+                CompressedSource.from(new TextSource<T>(filepattern, coder))
+                                .withDecompression(CompressedSource.CompressionMode.BGZIP));
+            break;
           default:
             throw new IllegalArgumentException("Unknown compression mode: " + compressionType);
         }
@@ -695,7 +700,11 @@ public class TextIO {
     /**
      * Zipped.
      */
-    ZIP(".zip");
+    ZIP(".zip"),
+    /**
+     * Compressed in the blocked gzip format of {@code bgzip} (i.e., may be split).
+     */
+    BGZIP(".bgz");
 
     private String filenameSuffix;
 
@@ -786,8 +795,12 @@ public class TextIO {
     static class TextBasedReader<T> extends FileBasedReader<T> {
       private static final int READ_BUFFER_SIZE = 8192;
       private final Coder<T> coder;
-      private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
-      private ByteString buffer;
+      private final boolean decodeAsUtf8String;
+      // The bytes read from the channel and not consumed yet are buffer[bufferStart, bufferEnd).
+      // The buffer is reused for all records and only grows to fit the longest record.
+      private byte[] buffer = new byte[READ_BUFFER_SIZE];
+      private int bufferStart;
+      private int bufferEnd;
       private int startOfSeparatorInBuffer;
       private int endOfSeparatorInBuffer;
       private long startOfRecord;
@@ -800,7 +813,7 @@ public class TextIO {
       private TextBasedReader(TextSource<T> source) {
         super(source);
         coder = source.coder;
-        buffer = ByteString.EMPTY;
+        decodeAsUtf8String = coder.getClass() == StringUtf8Coder.class;
       }
 
       @Override
@@ -839,7 +852,7 @@ public class TextIO {
           long requiredPosition = getCurrentSource().getStartOffset() - 1;
           ((SeekableByteChannel) channel).position(requiredPosition);
           findSeparatorBounds();
-          buffer = buffer.substring(endOfSeparatorInBuffer);
+          bufferStart += endOfSeparatorInBuffer;
           startOfNextRecord = requiredPosition + endOfSeparatorInBuffer;
           endOfSeparatorInBuffer = 0;
           startOfSeparatorInBuffer = 0;
@@ -850,7 +863,8 @@ public class TextIO {
        * Locates the start position and end position of the next delimiter. Will
        * consume the channel till either EOF or the delimiter bounds are found.
        *
-       * <p>This fills the buffer and updates the positions as follows:
+       * <p>This fills the buffer and updates the positions, relative to {@code bufferStart},
+       * as follows:
        * <pre>{@code
        * ------------------------------------------------------
        * | element bytes | delimiter bytes | unconsumed bytes |
@@ -868,27 +882,30 @@ public class TextIO {
             break;
           }
 
-          byte currentByte = buffer.byteAt(bytePositionInBuffer);
-
-          if (currentByte == '\n') {
-            startOfSeparatorInBuffer = bytePositionInBuffer;
-            endOfSeparatorInBuffer = startOfSeparatorInBuffer + 1;
-            break;
-          } else if (currentByte == '\r') {
-            startOfSeparatorInBuffer = bytePositionInBuffer;
-            endOfSeparatorInBuffer = startOfSeparatorInBuffer + 1;
-
-            if (tryToEnsureNumberOfBytesInBuffer(bytePositionInBuffer + 2)) {
-              currentByte = buffer.byteAt(bytePositionInBuffer + 1);
-              if (currentByte == '\n') {
-                endOfSeparatorInBuffer += 1;
-              }
+          // Scan all of the bytes already in the buffer before reading more from the channel.
+          byte[] bytes = buffer;
+          int end = bufferEnd - bufferStart;
+          int position = bytePositionInBuffer;
+          while (position < end) {
+            byte currentByte = bytes[bufferStart + position];
+            if (currentByte == '\n' || currentByte == '\r') {
+              break;
             }
-            break;
+            position++;
+          }
+          bytePositionInBuffer = position;
+          if (position == end) {
+            continue;
           }
 
-          // Move to the next byte in buffer.
-          bytePositionInBuffer += 1;
+          startOfSeparatorInBuffer = bytePositionInBuffer;
+          endOfSeparatorInBuffer = startOfSeparatorInBuffer + 1;
+          if (buffer[bufferStart + bytePositionInBuffer] == '\r'
+              && tryToEnsureNumberOfBytesInBuffer(bytePositionInBuffer + 2)
+              && buffer[bufferStart + bytePositionInBuffer + 1] == '\n') {
+            endOfSeparatorInBuffer += 1;
+          }
+          break;
         }
       }
 
@@ -899,7 +916,7 @@ public class TextIO {
 
         // If we have reached EOF file and consumed all of the buffer then we know
         // that there are no more records.
-        if (eof && buffer.size() == 0) {
+        if (eof && bufferEnd == bufferStart) {
           elementIsPresent = false;
           return false;
         }
@@ -910,16 +927,26 @@ public class TextIO {
       }
 
       /**
-       * Decodes the current element updating the buffer to only contain the unconsumed bytes.
+       * Decodes the current element directly from the buffer, and moves the start of the buffer
+       * past the element and its separator.
        *
-       * This invalidates the currently stored {@code startOfSeparatorInBuffer} and
+       * <p>This invalidates the currently stored {@code startOfSeparatorInBuffer} and
        * {@code endOfSeparatorInBuffer}.
        */
+      @SuppressWarnings("unchecked")
       private void decodeCurrentElement() throws IOException {
-        ByteString dataToDecode = buffer.substring(0, startOfSeparatorInBuffer);
-        currentValue = coder.decode(dataToDecode.newInput(), Context.OUTER);
+        if (decodeAsUtf8String) {
+          // Same result as StringUtf8Coder.decode in the outer context, without copying the bytes
+          // of the element out of the buffer first.
+          currentValue = (T) new String(
+              buffer, bufferStart, startOfSeparatorInBuffer, StandardCharsets.UTF_8);
+        } else {
+          currentValue = coder.decode(
+              new ByteArrayInputStream(buffer, bufferStart, startOfSeparatorInBuffer),
+              Context.OUTER);
+        }
         elementIsPresent = true;
-        buffer = buffer.substring(endOfSeparatorInBuffer);
+        bufferStart += endOfSeparatorInBuffer;
       }
 
       /**
@@ -928,14 +955,33 @@ public class TextIO {
       private boolean tryToEnsureNumberOfBytesInBuffer(int minCapacity) throws IOException {
         // While we aren't at EOF or haven't fulfilled the minimum buffer capacity,
         // attempt to read more bytes.
-        while (buffer.size() <= minCapacity && !eof) {
-          eof = inChannel.read(readBuffer) == -1;
-          readBuffer.flip();
-          buffer = buffer.concat(ByteString.copyFrom(readBuffer));
-          readBuffer.clear();
+        while (bufferEnd - bufferStart <= minCapacity && !eof) {
+          if (bufferEnd == buffer.length) {
+            makeRoomInBuffer();
+          }
+          int bytesRead =
+              inChannel.read(ByteBuffer.wrap(buffer, bufferEnd, buffer.length - bufferEnd));
+          if (bytesRead == -1) {
+            eof = true;
+          } else {
+            bufferEnd += bytesRead;
+          }
         }
         // Return true if we were able to honor the minimum buffer capacity request
-        return buffer.size() >= minCapacity;
+        return bufferEnd - bufferStart >= minCapacity;
+      }
+
+      /**
+       * Moves the unconsumed bytes to the start of the buffer, growing the buffer if they take up
+       * more than half of it, so that the same buffer keeps being reused for subsequent reads.
+       */
+      private void makeRoomInBuffer() {
+        int unconsumed = bufferEnd - bufferStart;
+        byte[] target = unconsumed > buffer.length / 2 ? new byte[buffer.length * 2] : buffer;
+        System.arraycopy(buffer, bufferStart, target, 0, unconsumed);
+        buffer = target;
+        bufferStart = 0;
+        bufferEnd = unconsumed;
       }
     }
   }
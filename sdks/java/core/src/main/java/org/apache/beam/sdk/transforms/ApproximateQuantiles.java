@@ -26,6 +26,7 @@ import org.apache.beam.sdk.coders.ListCoder;
 import org.apache.beam.sdk.transforms.Combine.AccumulatingCombineFn;
 import org.apache.beam.sdk.transforms.Combine.AccumulatingCombineFn.Accumulator;
 import org.apache.beam.sdk.transforms.display.DisplayData;
+import org.apache.beam.sdk.util.VarInt;
 import org.apache.beam.sdk.util.WeightedValue;
 import org.apache.beam.sdk.util.common.ElementByteSizeObserver;
 import org.apache.beam.sdk.values.KV;
@@ -43,6 +44,7 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
@@ -180,6 +182,47 @@ public class ApproximateQuantiles {
         .<K>asKeyedFn());
   }
 
+  /**
+   * Like {@link #globally(int)}, but for numeric elements, which are
+   * summarized as {@code double}s in a {@link NumericQuantilesCombineFn}
+   * sketch of bounded size.
+   *
+   * <p>Example of use:
+   * <pre> {@code
+   * PCollection<Long> latencies = ...;
+   * PCollection<List<Double>> percentiles =
+   *     latencies.apply(ApproximateQuantiles.<Long>numericGlobally(101));
+   * } </pre>
+   *
+   * @param <NumT> the type of the elements in the input {@code PCollection}
+   * @param numQuantiles the number of elements in the resulting
+   *        quantile values {@code List}
+   */
+  public static <NumT extends Number>
+      PTransform<PCollection<NumT>, PCollection<List<Double>>> numericGlobally(
+          int numQuantiles) {
+    return Combine.globally(NumericQuantilesCombineFn.<NumT>create(numQuantiles));
+  }
+
+  /**
+   * Like {@link #perKey(int)}, but for numeric values, which are
+   * summarized as {@code double}s in a {@link NumericQuantilesCombineFn}
+   * sketch of bounded size per key.
+   *
+   * @param <K> the type of the keys in the input and output
+   *        {@code PCollection}s
+   * @param <NumT> the type of the values in the input {@code PCollection}
+   * @param numQuantiles the number of elements in the resulting
+   *        quantile values {@code List}
+   */
+  public static <K, NumT extends Number>
+      PTransform<PCollection<KV<K, NumT>>, PCollection<KV<K, List<Double>>>>
+      numericPerKey(int numQuantiles) {
+    return Combine.perKey(
+        NumericQuantilesCombineFn.<NumT>create(numQuantiles)
+        .<K>asKeyedFn());
+  }
+
 
   /////////////////////////////////////////////////////////////////////////////
 
@@ -776,4 +819,411 @@ public class ApproximateQuantiles {
           elementListCoder);
     }
   }
+
+  /////////////////////////////////////////////////////////////////////////////
+
+  /**
+   * The {@code NumericQuantilesCombineFn} combiner gives an idea of the
+   * distribution of a collection of numbers using approximate
+   * {@code N}-tiles, like {@link ApproximateQuantilesCombineFn}, but
+   * summarizes the numbers as {@code double}s in a sketch whose size does
+   * not depend on the number of values combined.
+   *
+   * <p>The output of this combiner is a {@code List} of size
+   * {@code numQuantiles}, containing the input values' minimum value,
+   * {@code numQuantiles-2} intermediate values, and maximum value, in
+   * sorted order.
+   *
+   * <p>To evaluate the quantiles we use the sketch described here:
+   * <pre>
+   *   [KLL16] Karnin, Lang &amp; Liberty, "Optimal Quantile Approximation in
+   *   Streams", Proc. 2016 IEEE FOCS, p 71-78, October 2016.
+   *   https://arxiv.org/abs/1603.05346
+   * </pre>
+   *
+   * <p>The sketch keeps a stack of {@code double[]} compactors. Values are
+   * added to the lowest compactor, and whenever the sketch is full, the
+   * lowest compactor over its capacity is sorted and every other value of
+   * it is promoted to the next compactor, with twice the weight. The
+   * capacity of the top compactor is {@code k} and the capacities shrink by
+   * a factor of {@code 2/3} towards the bottom, so that the sketch holds at
+   * most about {@code 3 * k} values no matter how many values were combined.
+   * The rank error of the quantiles is about {@code 1.7 / k}; the default
+   * {@code k} of {@value #DEFAULT_K} gives an error of less than 1%.
+   *
+   * <p>Sketches are merged by concatenating their compactors level by level
+   * and compacting until the merged sketch fits again, so the error bound
+   * holds regardless of how the input was split into bundles.
+   *
+   * @param <NumT> the type of the values being combined
+   */
+  public static class NumericQuantilesCombineFn<NumT extends Number>
+      extends AccumulatingCombineFn<NumT, QuantileSketch<NumT>, List<Double>> {
+
+    /**
+     * The default capacity of the top compactor of the sketch.
+     */
+    public static final int DEFAULT_K = 200;
+
+    /**
+     * Number of quantiles to produce.  The size of the final output
+     * list, including the minimum and maximum, is numQuantiles.
+     */
+    private final int numQuantiles;
+
+    /** The capacity of the top compactor, corresponding to k in the referenced paper. */
+    private final int k;
+
+    private NumericQuantilesCombineFn(int numQuantiles, int k) {
+      Preconditions.checkArgument(numQuantiles >= 2);
+      Preconditions.checkArgument(k >= QuantileSketch.MIN_CAPACITY);
+      this.numQuantiles = numQuantiles;
+      this.k = k;
+    }
+
+    /**
+     * Returns a numeric approximate quantiles combiner with the desired
+     * number of quantiles.  A total of {@code numQuantiles} elements will
+     * appear in the output list, including the minimum and maximum.
+     */
+    public static <NumT extends Number> NumericQuantilesCombineFn<NumT> create(
+        int numQuantiles) {
+      return create(numQuantiles, DEFAULT_K);
+    }
+
+    /**
+     * Like {@link #create(int)}, but with a capacity of {@code k} values for the
+     * top compactor of the sketch.  The sketch holds about {@code 3 * k} values
+     * and has a rank error of about {@code 1.7 / k}.
+     */
+    public static <NumT extends Number> NumericQuantilesCombineFn<NumT> create(
+        int numQuantiles, int k) {
+      return new NumericQuantilesCombineFn<>(numQuantiles, k);
+    }
+
+    @Override
+    public QuantileSketch<NumT> createAccumulator() {
+      return QuantileSketch.empty(numQuantiles, k);
+    }
+
+    @Override
+    public Coder<QuantileSketch<NumT>> getAccumulatorCoder(
+        CoderRegistry registry, Coder<NumT> elementCoder) {
+      return new QuantileSketchCoder<>();
+    }
+
+    @Override
+    public void populateDisplayData(DisplayData.Builder builder) {
+      super.populateDisplayData(builder);
+      builder
+          .add(DisplayData.item("numQuantiles", numQuantiles)
+            .withLabel("Quantile Count"))
+          .add(DisplayData.item("k", k)
+            .withLabel("Sketch Compactor Capacity"));
+    }
+  }
+
+  /**
+   * Summarization of a collection of numbers on which quantiles can be
+   * estimated, in a bounded number of {@code double}s.
+   */
+  static class QuantileSketch<NumT extends Number>
+      implements Accumulator<NumT, QuantileSketch<NumT>, List<Double>> {
+
+    /** The smallest capacity of a compactor. */
+    static final int MIN_CAPACITY = 2;
+
+    private final int numQuantiles;
+    private final int k;
+
+    /** The number of values summarized by this sketch. */
+    private long count;
+
+    private double min = Double.NaN;
+    private double max = Double.NaN;
+
+    /**
+     * The compactors, from the lowest level to the highest.  The values at
+     * level {@code h} stand for {@code 2^h} values each.
+     */
+    private final List<double[]> levels;
+
+    /** The number of values in each of the {@link #levels}. */
+    private int[] levelSizes;
+
+    /** The total number of values in all {@link #levels}. */
+    private int size;
+
+    /**
+     * The capacity of each of the {@link #levels}, which only changes when a level is added.
+     */
+    private int[] capacities;
+
+    /** The sum of the {@link #capacities}. */
+    private int totalCapacity;
+
+    /** For alternating between promoting the odd and the even values of a compactor. */
+    private int offsetJitter = 0;
+
+    private QuantileSketch(
+        int numQuantiles, int k, long count, double min, double max,
+        List<double[]> levels, int[] levelSizes) {
+      this.numQuantiles = numQuantiles;
+      this.k = k;
+      this.count = count;
+      this.min = min;
+      this.max = max;
+      this.levels = levels;
+      this.levelSizes = levelSizes;
+      for (int levelSize : levelSizes) {
+        size += levelSize;
+      }
+      updateCapacities();
+    }
+
+    public static <NumT extends Number> QuantileSketch<NumT> empty(int numQuantiles, int k) {
+      List<double[]> levels = new ArrayList<>();
+      levels.add(new double[capacity(k, 0, 1)]);
+      return new QuantileSketch<>(
+          numQuantiles, k, 0, Double.NaN, Double.NaN, levels, new int[1]);
+    }
+
+    /**
+     * Add a new element to the collection being summarized by this sketch.
+     */
+    @Override
+    public void addInput(NumT elem) {
+      double value = elem.doubleValue();
+      if (isEmpty()) {
+        min = max = value;
+      } else if (value < min) {
+        min = value;
+      } else if (value > max) {
+        max = value;
+      }
+      count++;
+      append(0, value);
+      compactIfNeeded();
+    }
+
+    /**
+     * Updates this as if adding all elements seen by other. Both sketches must have been created
+     * with the same {@code k}.
+     */
+    @Override
+    public void mergeAccumulator(QuantileSketch<NumT> other) {
+      Preconditions.checkArgument(
+          other.k == k,
+          "Can't merge a sketch with k = %s into a sketch with k = %s",
+          other.k,
+          k);
+      if (other.isEmpty()) {
+        return;
+      }
+      if (isEmpty() || other.min < min) {
+        min = other.min;
+      }
+      if (isEmpty() || other.max > max) {
+        max = other.max;
+      }
+      count += other.count;
+      for (int level = 0; level < other.levels.size(); level++) {
+        if (level == levels.size()) {
+          addLevel();
+        }
+        double[] otherValues = other.levels.get(level);
+        for (int i = 0; i < other.levelSizes[level]; i++) {
+          append(level, otherValues[i]);
+        }
+      }
+      compactIfNeeded();
+    }
+
+    public boolean isEmpty() {
+      return count == 0;
+    }
+
+    private void append(int level, double value) {
+      double[] values = levels.get(level);
+      if (levelSizes[level] == values.length) {
+        values = Arrays.copyOf(values, Math.max(MIN_CAPACITY, values.length * 2));
+        levels.set(level, values);
+      }
+      values[levelSizes[level]++] = value;
+      size++;
+    }
+
+    private void addLevel() {
+      levels.add(new double[MIN_CAPACITY]);
+      levelSizes = Arrays.copyOf(levelSizes, levelSizes.length + 1);
+      updateCapacities();
+    }
+
+    private void updateCapacities() {
+      int numLevels = levels.size();
+      capacities = new int[numLevels];
+      totalCapacity = 0;
+      for (int level = 0; level < numLevels; level++) {
+        capacities[level] = capacity(k, level, numLevels);
+        totalCapacity += capacities[level];
+      }
+    }
+
+    /**
+     * Returns the capacity of the compactor at {@code level} in a sketch of
+     * {@code numLevels} levels.
+     */
+    private static int capacity(int k, int level, int numLevels) {
+      int depth = numLevels - level - 1;
+      return Math.max(MIN_CAPACITY, (int) Math.ceil(k * Math.pow(2.0 / 3.0, depth)));
+    }
+
+    private void compactIfNeeded() {
+      while (size >= totalCapacity) {
+        // Compact the lowest level that is over capacity, there is at least one.
+        for (int level = 0; level < levels.size(); level++) {
+          if (levelSizes[level] >= capacities[level]) {
+            compact(level);
+            break;
+          }
+        }
+      }
+    }
+
+    /**
+     * Sorts the values of a level and promotes every other one of them to the
+     * next level.  If the number of values is odd, the largest value stays
+     * at this level.
+     */
+    private void compact(int level) {
+      if (level + 1 == levels.size()) {
+        addLevel();
+      }
+      double[] values = levels.get(level);
+      int levelSize = levelSizes[level];
+      Arrays.sort(values, 0, levelSize);
+      offsetJitter = 1 - offsetJitter;
+      int numPairs = levelSize / 2;
+      for (int i = 0; i < numPairs; i++) {
+        append(level + 1, values[2 * i + offsetJitter]);
+      }
+      if (levelSize % 2 == 1) {
+        values[0] = values[levelSize - 1];
+        levelSizes[level] = 1;
+      } else {
+        levelSizes[level] = 0;
+      }
+      size -= 2 * numPairs;
+    }
+
+    /**
+     * Outputs numQuantiles elements consisting of the minimum, maximum, and
+     * numQuantiles - 2 evenly spaced intermediate elements.
+     *
+     * <p>Returns the empty list if no elements have been added.
+     */
+    @Override
+    public List<Double> extractOutput() {
+      if (isEmpty()) {
+        return Lists.newArrayList();
+      }
+      // The sorted values of each level, merged in order of value below.
+      int numLevels = levels.size();
+      double[][] sortedLevels = new double[numLevels][];
+      int[] positions = new int[numLevels];
+      for (int level = 0; level < numLevels; level++) {
+        sortedLevels[level] = Arrays.copyOf(levels.get(level), levelSizes[level]);
+        Arrays.sort(sortedLevels[level]);
+      }
+
+      double step = 1.0 * count / (numQuantiles - 1);
+      double offset = (1.0 * count - 1) / (numQuantiles - 1);
+
+      List<Double> quantiles = Lists.newArrayListWithCapacity(numQuantiles);
+      quantiles.add(min);
+      int level = nextLevel(sortedLevels, positions);
+      double value = sortedLevels[level][positions[level]++];
+      double current = 1L << level;
+      for (int j = 0; j < numQuantiles - 2; j++) {
+        double target = j * step + offset;
+        while (current <= target && (level = nextLevel(sortedLevels, positions)) >= 0) {
+          value = sortedLevels[level][positions[level]++];
+          current += 1L << level;
+        }
+        quantiles.add(value);
+      }
+      quantiles.add(max);
+      return quantiles;
+    }
+
+    /**
+     * Returns the level whose next value is the smallest, or -1 if all values were consumed.
+     */
+    private static int nextLevel(double[][] sortedLevels, int[] positions) {
+      int next = -1;
+      for (int level = 0; level < sortedLevels.length; level++) {
+        if (positions[level] < sortedLevels[level].length
+            && (next < 0
+                || sortedLevels[level][positions[level]]
+                    < sortedLevels[next][positions[next]])) {
+          next = level;
+        }
+      }
+      return next;
+    }
+  }
+
+  /**
+   * Coder for QuantileSketch.
+   */
+  private static class QuantileSketchCoder<NumT extends Number>
+      extends CustomCoder<QuantileSketch<NumT>> {
+
+    @Override
+    public void encode(
+        QuantileSketch<NumT> sketch, OutputStream outStream, Coder.Context context)
+        throws CoderException, IOException {
+      DataOutputStream outData = new DataOutputStream(outStream);
+      VarInt.encode(sketch.numQuantiles, outStream);
+      VarInt.encode(sketch.k, outStream);
+      VarInt.encode(sketch.count, outStream);
+      outData.writeDouble(sketch.min);
+      outData.writeDouble(sketch.max);
+      VarInt.encode(sketch.levels.size(), outStream);
+      for (int level = 0; level < sketch.levels.size(); level++) {
+        double[] values = sketch.levels.get(level);
+        VarInt.encode(sketch.levelSizes[level], outStream);
+        for (int i = 0; i < sketch.levelSizes[level]; i++) {
+          outData.writeDouble(values[i]);
+        }
+      }
+      outData.flush();
+    }
+
+    @Override
+    public QuantileSketch<NumT> decode(InputStream inStream, Coder.Context context)
+        throws CoderException, IOException {
+      DataInputStream inData = new DataInputStream(inStream);
+      int numQuantiles = VarInt.decodeInt(inStream);
+      int k = VarInt.decodeInt(inStream);
+      long count = VarInt.decodeLong(inStream);
+      double min = inData.readDouble();
+      double max = inData.readDouble();
+      int numLevels = VarInt.decodeInt(inStream);
+      List<double[]> levels = new ArrayList<>(numLevels);
+      int[] levelSizes = new int[numLevels];
+      for (int level = 0; level < numLevels; level++) {
+        levelSizes[level] = VarInt.decodeInt(inStream);
+        double[] values = new double[Math.max(QuantileSketch.MIN_CAPACITY, levelSizes[level])];
+        for (int i = 0; i < levelSizes[level]; i++) {
+          values[i] = inData.readDouble();
+        }
+        levels.add(values);
+      }
+      return new QuantileSketch<>(numQuantiles, k, count, min, max, levels, levelSizes);
+    }
+
+    @Override
+    public void verifyDeterministic() {}
+  }
 }
@@ -17,6 +17,9 @@
  */
 package org.apache.beam.sdk.transforms;
 
+import static com.google.common.base.Preconditions.checkArgument;
+
+import org.apache.beam.sdk.coders.AtomicCoder;
 import org.apache.beam.sdk.coders.Coder;
 import org.apache.beam.sdk.coders.Coder.Context;
 import org.apache.beam.sdk.coders.CoderException;
@@ -25,6 +28,7 @@ import org.apache.beam.sdk.coders.KvCoder;
 import org.apache.beam.sdk.coders.SerializableCoder;
 import org.apache.beam.sdk.transforms.Combine.CombineFn;
 import org.apache.beam.sdk.transforms.display.DisplayData;
+import org.apache.beam.sdk.util.VarInt;
 import org.apache.beam.sdk.values.KV;
 import org.apache.beam.sdk.values.PCollection;
 
@@ -35,6 +39,8 @@ import com.google.common.io.ByteStreams;
 import org.apache.avro.reflect.Nullable;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.Serializable;
 import java.util.Arrays;
 import java.util.Iterator;
@@ -69,7 +75,8 @@ public class ApproximateUnique {
    * assuming the rest of the hash values are as densely distributed
    * as the top {@code sampleSize}.
    *
-   * <p>See also {@link #globally(double)}.
+   * <p>See also {@link #globally(double)}, and {@link Globally#withHyperLogLog()} for an
+   * estimator with a smaller, fixed-size accumulator.
    *
    * <p>Example of use:
    * <pre> {@code
@@ -162,7 +169,7 @@ public class ApproximateUnique {
    *
    * @param <T> the type of the elements in the input {@code PCollection}
    */
-  static class Globally<T> extends PTransform<PCollection<T>, PCollection<Long>> {
+  public static class Globally<T> extends PTransform<PCollection<T>, PCollection<Long>> {
 
     /**
      * The number of entries in the statistical sample; the higher this number,
@@ -176,6 +183,12 @@ public class ApproximateUnique {
     @Nullable
     private final Double maximumEstimationError;
 
+    /**
+     * Whether to estimate with {@link HyperLogLogCombineFn} instead of
+     * {@link ApproximateUniqueCombineFn}.
+     */
+    private final boolean useHyperLogLog;
+
     /**
      * @see ApproximateUnique#globally(int)
      */
@@ -190,6 +203,7 @@ public class ApproximateUnique {
 
       this.sampleSize = sampleSize;
       this.maximumEstimationError = null;
+      this.useHyperLogLog = false;
     }
 
     /**
@@ -204,20 +218,42 @@ public class ApproximateUnique {
 
       this.sampleSize = sampleSizeFromEstimationError(maximumEstimationError);
       this.maximumEstimationError = maximumEstimationError;
+      this.useHyperLogLog = false;
+    }
+
+    private Globally(
+        long sampleSize, @Nullable Double maximumEstimationError, boolean useHyperLogLog) {
+      this.sampleSize = sampleSize;
+      this.maximumEstimationError = maximumEstimationError;
+      this.useHyperLogLog = useHyperLogLog;
+    }
+
+    /**
+     * Returns a {@code PTransform} like this one that estimates with a
+     * {@link HyperLogLogCombineFn} of about the same estimation error instead
+     * of sampling the largest hash values.
+     *
+     * <p>The accumulators of the returned transform take a small constant
+     * multiple of {@code 2^precision} bytes, where the precision is derived
+     * from the sample size, and are much cheaper to update, merge and encode
+     * than the sample of hash values.
+     */
+    public Globally<T> withHyperLogLog() {
+      return new Globally<>(sampleSize, maximumEstimationError, true);
     }
 
     @Override
     public PCollection<Long> apply(PCollection<T> input) {
       Coder<T> coder = input.getCoder();
       return input.apply(
-          Combine.globally(
-              new ApproximateUniqueCombineFn<>(sampleSize, coder)));
+          Combine.globally(combineFn(sampleSize, useHyperLogLog, coder)));
     }
 
     @Override
     public void populateDisplayData(DisplayData.Builder builder) {
       super.populateDisplayData(builder);
-      ApproximateUnique.populateDisplayData(builder, sampleSize, maximumEstimationError);
+      ApproximateUnique.populateDisplayData(
+          builder, sampleSize, maximumEstimationError, useHyperLogLog);
     }
   }
 
@@ -229,7 +265,7 @@ public class ApproximateUnique {
    *        {@code PCollection}s
    * @param <V> the type of the values in the input {@code PCollection}
    */
-  static class PerKey<K, V>
+  public static class PerKey<K, V>
       extends PTransform<PCollection<KV<K, V>>, PCollection<KV<K, Long>>> {
 
     /**
@@ -244,6 +280,12 @@ public class ApproximateUnique {
     @Nullable
     private final Double maximumEstimationError;
 
+    /**
+     * Whether to estimate with {@link HyperLogLogCombineFn} instead of
+     * {@link ApproximateUniqueCombineFn}.
+     */
+    private final boolean useHyperLogLog;
+
     /**
      * @see ApproximateUnique#perKey(int)
      */
@@ -257,6 +299,7 @@ public class ApproximateUnique {
 
       this.sampleSize = sampleSize;
       this.maximumEstimationError = null;
+      this.useHyperLogLog = false;
     }
 
     /**
@@ -271,6 +314,24 @@ public class ApproximateUnique {
 
       this.sampleSize = sampleSizeFromEstimationError(estimationError);
       this.maximumEstimationError = estimationError;
+      this.useHyperLogLog = false;
+    }
+
+    private PerKey(
+        long sampleSize, @Nullable Double maximumEstimationError, boolean useHyperLogLog) {
+      this.sampleSize = sampleSize;
+      this.maximumEstimationError = maximumEstimationError;
+      this.useHyperLogLog = useHyperLogLog;
+    }
+
+    /**
+     * Returns a {@code PTransform} like this one that estimates with a
+     * {@link HyperLogLogCombineFn} of about the same estimation error per key.
+     *
+     * @see Globally#withHyperLogLog()
+     */
+    public PerKey<K, V> withHyperLogLog() {
+      return new PerKey<>(sampleSize, maximumEstimationError, true);
     }
 
     @Override
@@ -284,14 +345,14 @@ public class ApproximateUnique {
       final Coder<V> coder = ((KvCoder<K, V>) inputCoder).getValueCoder();
 
       return input.apply(
-          Combine.perKey(new ApproximateUniqueCombineFn<>(
-              sampleSize, coder).<K>asKeyedFn()));
+          Combine.perKey(combineFn(sampleSize, useHyperLogLog, coder).<K>asKeyedFn()));
     }
 
     @Override
     public void populateDisplayData(DisplayData.Builder builder) {
       super.populateDisplayData(builder);
-      ApproximateUnique.populateDisplayData(builder, sampleSize, maximumEstimationError);
+      ApproximateUnique.populateDisplayData(
+          builder, sampleSize, maximumEstimationError, useHyperLogLog);
     }
   }
 
@@ -343,7 +404,10 @@ public class ApproximateUnique {
        * to be) in the heap.
        */
       public boolean add(Long value) {
-        if (heap.contains(value)) {
+        if (heap.size() >= sampleSize && value < heap.element()) {
+          // Most values are smaller than all of a full heap, don't search it for them.
+          return false;
+        } else if (heap.contains(value)) {
           return true;
         } else if (heap.size() < sampleSize) {
           heap.add(value);
@@ -448,6 +512,412 @@ public class ApproximateUnique {
     }
   }
 
+  /**
+   * {@code CombineFn} that computes an estimate of the number of
+   * distinct values that were combined, using the HyperLogLog++
+   * algorithm of Heule, Nunkesser and Hall.
+   *
+   * <p>Hashes input elements, and keeps the maximum number of leading
+   * zeros, plus one, of the hashes that fall into each of
+   * {@code 2^precision} buckets. The estimation error is about
+   * {@code 1.04 / sqrt(2^precision)}.
+   *
+   * <p>As long as few distinct values were combined, the accumulator
+   * keeps a sorted array of the buckets of a much higher precision that
+   * were hit, which gives close to exact estimates for small inputs. Once
+   * that array would take more space than the buckets of the requested
+   * precision, it is converted to an array of one byte per bucket. The
+   * sorted entries of the sparse representation thus take at most
+   * {@code 2^precision} bytes in memory, plus a small buffer of entries that
+   * were not sorted yet, and somewhat more when encoded as variable-length
+   * integers. The dense representation takes {@code 2^precision} bytes no
+   * matter how many values were combined, and merging two dense accumulators
+   * only takes the maximum of their buckets.
+   *
+   * <p>Unlike the original algorithm, there is no empirical bias
+   * correction of the raw estimate; linear counting is used instead
+   * for estimates of up to {@code 2.5 * 2^precision}.
+   *
+   * <p>Used to implement {@link Globally#withHyperLogLog()} and
+   * {@link PerKey#withHyperLogLog()}.
+   *
+   * @param <T> the type of the values being combined
+   */
+  public static class HyperLogLogCombineFn<T>
+      extends CombineFn<T, HyperLogLogCombineFn.Sketch, Long> {
+
+    /**
+     * The smallest supported precision.
+     */
+    public static final int MIN_PRECISION = 4;
+
+    /**
+     * The largest supported precision.
+     */
+    public static final int MAX_PRECISION = 18;
+
+    /**
+     * The precision of the buckets kept while few distinct values were combined.
+     */
+    static final int SPARSE_PRECISION = 25;
+
+    /**
+     * The buckets of a {@link HyperLogLogCombineFn}.
+     */
+    public static class Sketch {
+      private final int precision;
+
+      /**
+       * The bucket values of the dense representation, or null while the sketch is sparse.
+       */
+      @Nullable
+      private byte[] registers;
+
+      /**
+       * The sorted entries of the sparse representation, each with the index of a bucket of
+       * {@code SPARSE_PRECISION} in its upper bits and the bucket value in its lowest 6 bits.
+       */
+      private int[] sparse;
+      private int sparseSize;
+
+      /**
+       * The unsorted entries that were added since the sparse entries were last sorted.
+       */
+      private int[] buffer;
+      private int bufferSize;
+
+      private Sketch(int precision) {
+        this(precision, null, new int[0], 0);
+      }
+
+      private Sketch(int precision, @Nullable byte[] registers, int[] sparse, int sparseSize) {
+        this.precision = precision;
+        this.registers = registers;
+        this.sparse = sparse;
+        this.sparseSize = sparseSize;
+      }
+
+      private void add(long hash) {
+        if (registers != null) {
+          int index = (int) (hash >>> (64 - precision));
+          int rank = Long.numberOfLeadingZeros((hash << precision) | (1L << (precision - 1))) + 1;
+          if (rank > registers[index]) {
+            registers[index] = (byte) rank;
+          }
+          return;
+        }
+
+        if (buffer == null) {
+          buffer = new int[Math.max(16, 1 << (precision - 4))];
+        }
+        int sparseIndex = (int) (hash >>> (64 - SPARSE_PRECISION));
+        int sparseRank = Long.numberOfLeadingZeros(
+            (hash << SPARSE_PRECISION) | (1L << (SPARSE_PRECISION - 1))) + 1;
+        buffer[bufferSize++] = (sparseIndex << 6) | sparseRank;
+        if (bufferSize == buffer.length) {
+          flushBuffer();
+          if (sparseSize > maxSparseSize()) {
+            toDense();
+          }
+        }
+      }
+
+      private void merge(Sketch other) {
+        checkArgument(precision == other.precision,
+            "Cannot merge sketches of precision %s and %s", precision, other.precision);
+        if (registers == null && other.registers == null) {
+          flushBuffer();
+          other.flushBuffer();
+          mergeSparse(other.sparse, other.sparseSize);
+          if (sparseSize > maxSparseSize()) {
+            toDense();
+          }
+          return;
+        }
+
+        toDense();
+        if (other.registers != null) {
+          for (int i = 0; i < registers.length; i++) {
+            if (other.registers[i] > registers[i]) {
+              registers[i] = other.registers[i];
+            }
+          }
+        } else {
+          for (int i = 0; i < other.sparseSize; i++) {
+            addSparseToRegisters(other.sparse[i]);
+          }
+          for (int i = 0; i < other.bufferSize; i++) {
+            addSparseToRegisters(other.buffer[i]);
+          }
+        }
+      }
+
+      private long estimate() {
+        if (registers == null) {
+          flushBuffer();
+          int numBuckets = 1 << SPARSE_PRECISION;
+          return Math.round(linearCounting(numBuckets, numBuckets - sparseSize));
+        }
+
+        int numBuckets = registers.length;
+        double sum = 0;
+        int numZeros = 0;
+        for (byte register : registers) {
+          sum += 1.0 / (1L << register);
+          if (register == 0) {
+            numZeros++;
+          }
+        }
+        double estimate = alpha(numBuckets) * numBuckets * numBuckets / sum;
+        if (numZeros != 0 && estimate <= 2.5 * numBuckets) {
+          estimate = linearCounting(numBuckets, numZeros);
+        }
+        return Math.round(estimate);
+      }
+
+      private int maxSparseSize() {
+        // The sparse entries take 4 bytes each, the registers one byte per bucket.
+        return 1 << (precision - 2);
+      }
+
+      private void flushBuffer() {
+        if (bufferSize > 0) {
+          Arrays.sort(buffer, 0, bufferSize);
+          mergeSparse(buffer, bufferSize);
+          bufferSize = 0;
+        }
+      }
+
+      /**
+       * Merges sorted sparse entries into the sparse entries of this sketch, keeping only the
+       * largest value of each bucket.
+       */
+      private void mergeSparse(int[] entries, int numEntries) {
+        sparse = mergeSorted(sparse, sparseSize, entries, numEntries);
+        sparseSize = sparse.length;
+      }
+
+      /**
+       * Returns the sparse entries of this sketch merged with its buffered entries, without
+       * changing the sketch.
+       */
+      private int[] sortedSparseEntries() {
+        int[] buffered = Arrays.copyOf(buffer, bufferSize);
+        Arrays.sort(buffered);
+        return mergeSorted(sparse, sparseSize, buffered, bufferSize);
+      }
+
+      /**
+       * Merges two arrays of sorted sparse entries, keeping only the largest value of each
+       * bucket.
+       */
+      private static int[] mergeSorted(int[] left, int leftSize, int[] right, int rightSize) {
+        int[] merged = new int[leftSize + rightSize];
+        int size = 0;
+        int i = 0;
+        int j = 0;
+        while (i < leftSize || j < rightSize) {
+          int entry;
+          if (j == rightSize || (i < leftSize && left[i] <= right[j])) {
+            entry = left[i++];
+          } else {
+            entry = right[j++];
+          }
+          // Entries of the same bucket are ordered by their value, so a later one is larger.
+          if (size > 0 && (merged[size - 1] >>> 6) == (entry >>> 6)) {
+            merged[size - 1] = entry;
+          } else {
+            merged[size++] = entry;
+          }
+        }
+        return size == merged.length ? merged : Arrays.copyOf(merged, size);
+      }
+
+      private void toDense() {
+        if (registers != null) {
+          return;
+        }
+        registers = new byte[1 << precision];
+        for (int i = 0; i < sparseSize; i++) {
+          addSparseToRegisters(sparse[i]);
+        }
+        for (int i = 0; i < bufferSize; i++) {
+          addSparseToRegisters(buffer[i]);
+        }
+        sparse = null;
+        sparseSize = 0;
+        buffer = null;
+        bufferSize = 0;
+      }
+
+      private void addSparseToRegisters(int entry) {
+        int sparseIndex = entry >>> 6;
+        int sparseRank = entry & 0x3f;
+        int extraBits = SPARSE_PRECISION - precision;
+        int index = sparseIndex >>> extraBits;
+        int lowBits = sparseIndex & ((1 << extraBits) - 1);
+        // The bits of the sparse index beyond the precision are the first bits counted by the
+        // rank of the dense representation.
+        int rank = lowBits == 0
+            ? extraBits + sparseRank
+            : Integer.numberOfLeadingZeros(lowBits) - (32 - extraBits) + 1;
+        if (rank > registers[index]) {
+          registers[index] = (byte) rank;
+        }
+      }
+
+      private static double alpha(int numBuckets) {
+        switch (numBuckets) {
+          case 16:
+            return 0.673;
+          case 32:
+            return 0.697;
+          case 64:
+            return 0.709;
+          default:
+            return 0.7213 / (1 + 1.079 / numBuckets);
+        }
+      }
+
+      private static double linearCounting(int numBuckets, int numZeros) {
+        return numBuckets * Math.log((double) numBuckets / numZeros);
+      }
+    }
+
+    /**
+     * A compact {@link Coder} for {@link Sketch Sketches}. Sparse sketches are encoded as the
+     * variable-length differences of their sorted entries, dense sketches as their registers.
+     */
+    static class SketchCoder extends AtomicCoder<Sketch> {
+      private static final int SPARSE = 0;
+      private static final int DENSE = 1;
+
+      @Override
+      public void encode(Sketch value, OutputStream outStream, Context context)
+          throws CoderException, IOException {
+        VarInt.encode(value.precision, outStream);
+        if (value.registers != null) {
+          outStream.write(DENSE);
+          outStream.write(value.registers);
+        } else {
+          // Encode the buffered entries along with the sorted ones, but leave the sketch as is.
+          int[] entries = value.bufferSize == 0 ? value.sparse : value.sortedSparseEntries();
+          int numEntries = value.bufferSize == 0 ? value.sparseSize : entries.length;
+          outStream.write(SPARSE);
+          VarInt.encode(numEntries, outStream);
+          int previous = 0;
+          for (int i = 0; i < numEntries; i++) {
+            VarInt.encode(entries[i] - previous, outStream);
+            previous = entries[i];
+          }
+        }
+      }
+
+      @Override
+      public Sketch decode(InputStream inStream, Context context)
+          throws CoderException, IOException {
+        int precision = VarInt.decodeInt(inStream);
+        if (precision < MIN_PRECISION || precision > MAX_PRECISION) {
+          throw new CoderException("Invalid HyperLogLog precision " + precision);
+        }
+        int mode = inStream.read();
+        if (mode == DENSE) {
+          byte[] registers = new byte[1 << precision];
+          ByteStreams.readFully(inStream, registers);
+          return new Sketch(precision, registers, null, 0);
+        } else if (mode == SPARSE) {
+          int sparseSize = VarInt.decodeInt(inStream);
+          int[] sparse = new int[sparseSize];
+          int previous = 0;
+          for (int i = 0; i < sparseSize; i++) {
+            previous += VarInt.decodeInt(inStream);
+            sparse[i] = previous;
+          }
+          return new Sketch(precision, null, sparse, sparseSize);
+        } else {
+          throw new CoderException("Invalid HyperLogLog sketch mode " + mode);
+        }
+      }
+    }
+
+    private final int precision;
+    private final Coder<T> coder;
+
+    /**
+     * Creates a {@code HyperLogLogCombineFn} that hashes elements with the
+     * given coder into {@code 2^precision} buckets.
+     *
+     * @param precision the number of bits of the hash that select a bucket,
+     *        between {@link #MIN_PRECISION} and {@link #MAX_PRECISION}
+     */
+    public HyperLogLogCombineFn(int precision, Coder<T> coder) {
+      checkArgument(precision >= MIN_PRECISION && precision <= MAX_PRECISION,
+          "HyperLogLog precision must be between %s and %s, was %s",
+          MIN_PRECISION, MAX_PRECISION, precision);
+      this.precision = precision;
+      this.coder = coder;
+    }
+
+    /**
+     * Returns the smallest precision with an estimation error of at most
+     * {@code 2 / sqrt(sampleSize)}, the error of an
+     * {@link ApproximateUniqueCombineFn} with the same sample size.
+     */
+    static int precisionForSampleSize(long sampleSize) {
+      // 1.04 / sqrt(2^precision) <= 2 / sqrt(sampleSize)
+      long numBuckets = (long) Math.ceil(0.2704 * sampleSize);
+      int precision = 64 - Long.numberOfLeadingZeros(numBuckets - 1);
+      return Math.max(MIN_PRECISION, Math.min(MAX_PRECISION, precision));
+    }
+
+    @Override
+    public Sketch createAccumulator() {
+      return new Sketch(precision);
+    }
+
+    @Override
+    public Sketch addInput(Sketch sketch, T input) {
+      try {
+        sketch.add(ApproximateUniqueCombineFn.hash(input, coder));
+        return sketch;
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    }
+
+    @Override
+    public Sketch mergeAccumulators(Iterable<Sketch> sketches) {
+      Iterator<Sketch> iterator = sketches.iterator();
+      Sketch sketch = iterator.next();
+      while (iterator.hasNext()) {
+        sketch.merge(iterator.next());
+      }
+      return sketch;
+    }
+
+    @Override
+    public Long extractOutput(Sketch sketch) {
+      return sketch.estimate();
+    }
+
+    @Override
+    public Coder<Sketch> getAccumulatorCoder(CoderRegistry registry, Coder<T> inputCoder) {
+      return new SketchCoder();
+    }
+  }
+
+  /**
+   * Returns the {@code CombineFn} of an {@code ApproximateUnique} transform.
+   */
+  private static <T> CombineFn<T, ?, Long> combineFn(
+      long sampleSize, boolean useHyperLogLog, Coder<T> coder) {
+    if (useHyperLogLog) {
+      return new HyperLogLogCombineFn<>(
+          HyperLogLogCombineFn.precisionForSampleSize(sampleSize), coder);
+    }
+    return new ApproximateUniqueCombineFn<>(sampleSize, coder);
+  }
+
   /**
    * Computes the sampleSize based on the desired estimation error.
    *
@@ -459,11 +929,17 @@ public class ApproximateUnique {
   }
 
   private static void populateDisplayData(
-      DisplayData.Builder builder, long sampleSize, Double maxEstimationError) {
+      DisplayData.Builder builder, long sampleSize, Double maxEstimationError,
+      boolean useHyperLogLog) {
     builder
         .add(DisplayData.item("sampleSize", sampleSize)
           .withLabel("Sample Size"))
         .addIfNotNull(DisplayData.item("maximumEstimationError", maxEstimationError)
           .withLabel("Maximum Estimation Error"));
+    if (useHyperLogLog) {
+      builder.add(DisplayData.item(
+          "hyperLogLogPrecision", HyperLogLogCombineFn.precisionForSampleSize(sampleSize))
+          .withLabel("HyperLogLog Precision"));
+    }
   }
 }
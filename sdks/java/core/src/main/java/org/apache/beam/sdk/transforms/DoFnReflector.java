@@ -52,9 +52,9 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.annotation.Nullable;
 
@@ -155,7 +155,7 @@ public abstract class DoFnReflector {
       ExtraContextFactory<InputT, OutputT> extra);
 
   private static final Map<Class<?>, DoFnReflector> REFLECTOR_CACHE =
-      new LinkedHashMap<Class<?>, DoFnReflector>();
+      new ConcurrentHashMap<Class<?>, DoFnReflector>();
 
   /**
    * @return the {@link DoFnReflector} for the given {@link DoFnWithContext}.
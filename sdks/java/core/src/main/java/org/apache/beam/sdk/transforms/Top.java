@@ -17,17 +17,23 @@
  */
 package org.apache.beam.sdk.transforms;
 
+import org.apache.beam.sdk.coders.BigEndianIntegerCoder;
+import org.apache.beam.sdk.coders.BigEndianLongCoder;
 import org.apache.beam.sdk.coders.Coder;
 import org.apache.beam.sdk.coders.CoderException;
 import org.apache.beam.sdk.coders.CoderRegistry;
 import org.apache.beam.sdk.coders.CustomCoder;
+import org.apache.beam.sdk.coders.DoubleCoder;
 import org.apache.beam.sdk.coders.ListCoder;
+import org.apache.beam.sdk.coders.VarIntCoder;
+import org.apache.beam.sdk.coders.VarLongCoder;
 import org.apache.beam.sdk.transforms.Combine.AccumulatingCombineFn;
 import org.apache.beam.sdk.transforms.Combine.AccumulatingCombineFn.Accumulator;
 import org.apache.beam.sdk.transforms.Combine.PerKey;
 import org.apache.beam.sdk.transforms.display.DisplayData;
 import org.apache.beam.sdk.transforms.windowing.GlobalWindow;
 import org.apache.beam.sdk.transforms.windowing.GlobalWindows;
+import org.apache.beam.sdk.util.VarInt;
 import org.apache.beam.sdk.util.common.ElementByteSizeObserver;
 import org.apache.beam.sdk.values.KV;
 import org.apache.beam.sdk.values.PCollection;
@@ -35,15 +41,20 @@ import org.apache.beam.sdk.values.PCollection;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.Lists;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Comparator;
 import java.util.List;
 import java.util.PriorityQueue;
 
+import javax.annotation.Nullable;
+
 /**
  * {@code PTransform}s for finding the largest (or smallest) set
  * of elements in a {@code PCollection}, or the largest (or smallest)
@@ -373,13 +384,32 @@ new TopCombineFn<>(count, new Largest<V>()).<K>asKeyedFn())
 
     private final int count;
     private final ComparatorT compareFn;
+    private final boolean numericAccumulatorCoder;
 
     public TopCombineFn(int count, ComparatorT compareFn) {
+      this(count, compareFn, false);
+    }
+
+    private TopCombineFn(int count, ComparatorT compareFn, boolean numericAccumulatorCoder) {
       Preconditions.checkArgument(
           count >= 0,
           "count must be >= 0");
       this.count = count;
       this.compareFn = compareFn;
+      this.numericAccumulatorCoder = numericAccumulatorCoder;
+    }
+
+    /**
+     * Returns a {@link TopCombineFn} like this one which encodes its accumulators with a
+     * fixed-width {@link NumericBoundedHeapCoder} when the elements are ordered by
+     * {@link Largest} or {@link Smallest} and are encoded with one of the standard {@link Long},
+     * {@link Integer} or {@link Double} coders.
+     *
+     * <p>The fixed-width encoding is not compatible with the default accumulator encoding, so a
+     * running pipeline cannot be updated to switch between the two.
+     */
+    public TopCombineFn<T, ComparatorT> withNumericAccumulatorCoder() {
+      return new TopCombineFn<>(count, compareFn, true);
     }
 
     @Override
@@ -387,9 +417,19 @@ new TopCombineFn<>(count, new Largest<V>()).<K>asKeyedFn())
       return new BoundedHeap<>(count, compareFn, new ArrayList<T>());
     }
 
+    /**
+     * Returns a {@link BoundedHeapCoder}, or a fixed-width {@link NumericBoundedHeapCoder} if this
+     * {@link TopCombineFn} was created by {@link #withNumericAccumulatorCoder()} and the elements
+     * are ordered by {@link Largest} or {@link Smallest} and are encoded with one of the standard
+     * {@link Long}, {@link Integer} or {@link Double} coders.
+     */
     @Override
     public Coder<BoundedHeap<T, ComparatorT>> getAccumulatorCoder(
         CoderRegistry registry, Coder<T> inputCoder) {
+      NumericKind kind = numericAccumulatorCoder ? NumericKind.forCoder(inputCoder) : null;
+      if (kind != null && naturalDirection(compareFn) != 0) {
+        return new NumericBoundedHeapCoder<>(count, compareFn, kind);
+      }
       return new BoundedHeapCoder<>(count, compareFn, inputCoder);
     }
 
@@ -413,11 +453,157 @@ new TopCombineFn<>(count, new Largest<V>()).<K>asKeyedFn())
     }
   }
 
+  /**
+   * Returns {@code 1} if {@code compareFn} is {@link Largest}, {@code -1} if it is
+   * {@link Smallest}, and {@code 0} if it is any other {@code Comparator}.
+   */
+  private static int naturalDirection(Comparator<?> compareFn) {
+    if (compareFn.getClass() == Largest.class) {
+      return 1;
+    } else if (compareFn.getClass() == Smallest.class) {
+      return -1;
+    } else {
+      return 0;
+    }
+  }
+
+  /**
+   * Negates the order of {@link NumericKind} keys for a negative direction. Flipping all bits
+   * reverses the order without overflowing.
+   */
+  private static long orientKey(long key, int direction) {
+    return direction < 0 ? ~key : key;
+  }
+
+  /**
+   * The numeric types of elements that a {@link BoundedHeap} in natural or reverse natural
+   * order keeps as primitive {@code long} keys, which are ordered like the elements.
+   */
+  enum NumericKind {
+    LONG(Long.class) {
+      @Override
+      long toKey(Object value) {
+        return (Long) value;
+      }
+
+      @Override
+      Object fromKey(long key) {
+        return key;
+      }
+
+      @Override
+      void writeKey(long key, DataOutputStream out) throws IOException {
+        out.writeLong(key);
+      }
+
+      @Override
+      long readKey(DataInputStream in) throws IOException {
+        return in.readLong();
+      }
+    },
+    INTEGER(Integer.class) {
+      @Override
+      long toKey(Object value) {
+        return (Integer) value;
+      }
+
+      @Override
+      Object fromKey(long key) {
+        return (int) key;
+      }
+
+      @Override
+      void writeKey(long key, DataOutputStream out) throws IOException {
+        out.writeInt((int) key);
+      }
+
+      @Override
+      long readKey(DataInputStream in) throws IOException {
+        return in.readInt();
+      }
+    },
+    DOUBLE(Double.class) {
+      @Override
+      long toKey(Object value) {
+        // Flipping all but the sign bit of negative values orders the bits like
+        // Double.compare, including negative zero and NaN.
+        long bits = Double.doubleToLongBits((Double) value);
+        return bits ^ ((bits >> 63) & Long.MAX_VALUE);
+      }
+
+      @Override
+      Object fromKey(long key) {
+        return Double.longBitsToDouble(key ^ ((key >> 63) & Long.MAX_VALUE));
+      }
+
+      @Override
+      void writeKey(long key, DataOutputStream out) throws IOException {
+        out.writeLong(key);
+      }
+
+      @Override
+      long readKey(DataInputStream in) throws IOException {
+        return in.readLong();
+      }
+    };
+
+    private final Class<?> type;
+
+    NumericKind(Class<?> type) {
+      this.type = type;
+    }
+
+    /** Returns the key of a value of this kind, ordered like the values. */
+    abstract long toKey(Object value);
+
+    /** Returns the value of a key returned by {@link #toKey}. */
+    abstract Object fromKey(long key);
+
+    abstract void writeKey(long key, DataOutputStream out) throws IOException;
+
+    abstract long readKey(DataInputStream in) throws IOException;
+
+    /**
+     * Returns the kind of values of exactly the class of {@code value}, or {@code null}.
+     */
+    @Nullable
+    static NumericKind forValue(Object value) {
+      for (NumericKind kind : values()) {
+        if (value.getClass() == kind.type) {
+          return kind;
+        }
+      }
+      return null;
+    }
+
+    /**
+     * Returns the kind of values encoded by {@code coder}, or {@code null} if it is not one of
+     * the standard numeric coders.
+     */
+    @Nullable
+    static NumericKind forCoder(Coder<?> coder) {
+      if (coder instanceof VarLongCoder || coder instanceof BigEndianLongCoder) {
+        return LONG;
+      } else if (coder instanceof VarIntCoder || coder instanceof BigEndianIntegerCoder) {
+        return INTEGER;
+      } else if (coder instanceof DoubleCoder) {
+        return DOUBLE;
+      } else {
+        return null;
+      }
+    }
+  }
+
   /**
    * A heap that stores only a finite number of top elements according to its provided
    * {@code Comparator}. Implemented as an {@link Accumulator} to facilitate implementation of
    * {@link Top}.
    *
+   * <p>If the {@code Comparator} is {@link Largest} or {@link Smallest} and the elements are
+   * {@link Long Longs}, {@link Integer Integers} or {@link Double Doubles}, the heap keeps their
+   * {@link NumericKind} keys in a {@code long[]}, so that adding an element neither keeps the
+   * boxed element nor calls the {@code Comparator}.
+   *
    * <p>This class is <i>not</i> safe for multithreaded use, except read-only.
    */
   static class BoundedHeap<T, ComparatorT extends Comparator<T> & Serializable>
@@ -426,20 +612,38 @@ new TopCombineFn<>(count, new Largest<V>()).<K>asKeyedFn())
     /**
      * A queue with smallest at the head, for quick adds.
      *
-     * <p>Only one of asList and asQueue may be non-null.
+     * <p>Only one of asList, asQueue and asKeys may be non-null.
      */
     private PriorityQueue<T> asQueue;
 
     /**
      * A list in with largest first, the form of extractOutput().
      *
-     * <p>Only one of asList and asQueue may be non-null.
+     * <p>Only one of asList, asQueue and asKeys may be non-null.
      */
     private List<T> asList;
 
+    /**
+     * A binary heap of the keys of numeric elements with the smallest key at index 0, where the
+     * keys are negated for {@link Smallest}.
+     *
+     * <p>Only one of asList, asQueue and asKeys may be non-null.
+     */
+    private long[] asKeys;
+
+    /** The number of keys in asKeys. */
+    private int numKeys;
+
+    /** The kind of the elements while they are kept in asKeys. */
+    @Nullable
+    private NumericKind kind;
+
     /** The user-provided Comparator. */
     private final ComparatorT compareFn;
 
+    /** The natural direction of compareFn, or 0 if it is not a natural order. */
+    private final int direction;
+
     /** The maximum size of the heap. */
     private final int maximumSize;
 
@@ -450,6 +654,25 @@ new TopCombineFn<>(count, new Largest<V>()).<K>asKeyedFn())
       this.maximumSize = maximumSize;
       this.asList = asList;
       this.compareFn = compareFn;
+      this.direction = naturalDirection(compareFn);
+    }
+
+    /**
+     * Creates a new heap with the provided size and comparator, and the elements of the provided
+     * keys, which are sorted largest first.
+     */
+    private BoundedHeap(
+        int maximumSize, ComparatorT compareFn, NumericKind kind, long[] sortedKeys) {
+      this.maximumSize = maximumSize;
+      this.compareFn = compareFn;
+      this.direction = naturalDirection(compareFn);
+      this.kind = kind;
+      // Keys sorted smallest first form a valid heap.
+      this.asKeys = new long[Math.max(maximumSize, sortedKeys.length)];
+      for (int i = 0; i < sortedKeys.length; i++) {
+        asKeys[i] = sortedKeys[sortedKeys.length - 1 - i];
+      }
+      this.numKeys = sortedKeys.length;
     }
 
     @Override
@@ -467,17 +690,28 @@ new TopCombineFn<>(count, new Largest<V>()).<K>asKeyedFn())
         return false;
       }
 
-      // If asQueue == null, then this is the first add after the latest call to the
-      // constructor or asList().
-      if (asQueue == null) {
-        asQueue = new PriorityQueue<>(maximumSize, compareFn);
-        for (T item : asList) {
-          asQueue.add(item);
+      // If asQueue == null and asKeys == null, then this is the first add after the latest call
+      // to the constructor or asList().
+      if (asQueue == null && asKeys == null) {
+        NumericKind valueKind = direction == 0 ? null : NumericKind.forValue(value);
+        if (valueKind != null) {
+          kind = valueKind;
+          asKeys = new long[maximumSize];
+          for (T item : asList) {
+            addKey(toKey(item));
+          }
+        } else {
+          asQueue = new PriorityQueue<>(maximumSize, compareFn);
+          for (T item : asList) {
+            asQueue.add(item);
+          }
         }
         asList = null;
       }
 
-      if (asQueue.size() < maximumSize) {
+      if (asKeys != null) {
+        return addKey(toKey(value));
+      } else if (asQueue.size() < maximumSize) {
         asQueue.add(value);
         return true;
       } else if (compareFn.compare(value, asQueue.peek()) > 0) {
@@ -491,6 +725,17 @@ new TopCombineFn<>(count, new Largest<V>()).<K>asKeyedFn())
 
     @Override
     public void mergeAccumulator(BoundedHeap<T, ComparatorT> accumulator) {
+      if (asKeys != null && accumulator.asKeys != null && kind == accumulator.kind) {
+        for (long key : accumulator.sortedKeys()) {
+          if (!addKey(key)) {
+            // If this element of accumulator does not make the top N, neither
+            // will the rest, which are all smaller.
+            break;
+          }
+        }
+        return;
+      }
+
       for (T value : accumulator.asList()) {
         if (!maybeAddInput(value)) {
           // If this element of accumulator does not make the top N, neither
@@ -509,7 +754,16 @@ new TopCombineFn<>(count, new Largest<V>()).<K>asKeyedFn())
      * Returns the contents of this Heap as a List sorted largest-to-smallest.
      */
     private List<T> asList() {
-      if (asList == null) {
+      if (asKeys != null) {
+        long[] sortedKeys = sortedKeys();
+        List<T> largestFirstList = Lists.newArrayListWithCapacity(sortedKeys.length);
+        for (long key : sortedKeys) {
+          largestFirstList.add(fromKey(key));
+        }
+        asList = largestFirstList;
+        asKeys = null;
+        numKeys = 0;
+      } else if (asList == null) {
         List<T> smallestFirstList = Lists.newArrayListWithCapacity(asQueue.size());
         while (!asQueue.isEmpty()) {
           smallestFirstList.add(asQueue.poll());
@@ -519,6 +773,83 @@ new TopCombineFn<>(count, new Largest<V>()).<K>asKeyedFn())
       }
       return asList;
     }
+
+    /**
+     * Returns the keys of the elements of this heap of numbers of the given kind, sorted
+     * largest first.
+     */
+    private long[] keysOfKind(NumericKind keyKind) {
+      if (asKeys != null && kind == keyKind) {
+        return sortedKeys();
+      }
+      List<T> values = asList();
+      long[] keys = new long[values.size()];
+      for (int i = 0; i < keys.length; i++) {
+        keys[i] = orientKey(keyKind.toKey(values.get(i)), direction);
+      }
+      return keys;
+    }
+
+    /**
+     * Returns a copy of asKeys, sorted largest first.
+     */
+    private long[] sortedKeys() {
+      long[] sortedKeys = Arrays.copyOf(asKeys, numKeys);
+      Arrays.sort(sortedKeys);
+      for (int i = 0, j = numKeys - 1; i < j; i++, j--) {
+        long key = sortedKeys[i];
+        sortedKeys[i] = sortedKeys[j];
+        sortedKeys[j] = key;
+      }
+      return sortedKeys;
+    }
+
+    private boolean addKey(long key) {
+      if (numKeys < maximumSize) {
+        // Sift the new key up from the end.
+        int index = numKeys++;
+        while (index > 0) {
+          int parent = (index - 1) >>> 1;
+          if (asKeys[parent] <= key) {
+            break;
+          }
+          asKeys[index] = asKeys[parent];
+          index = parent;
+        }
+        asKeys[index] = key;
+        return true;
+      } else if (key > asKeys[0]) {
+        // Replace the smallest key and sift it down.
+        int index = 0;
+        while (true) {
+          int child = 2 * index + 1;
+          if (child >= numKeys) {
+            break;
+          }
+          if (child + 1 < numKeys && asKeys[child + 1] < asKeys[child]) {
+            child++;
+          }
+          if (key <= asKeys[child]) {
+            break;
+          }
+          asKeys[index] = asKeys[child];
+          index = child;
+        }
+        asKeys[index] = key;
+        return true;
+      } else {
+        return false;
+      }
+    }
+
+    private long toKey(T value) {
+      return orientKey(kind.toKey(value), direction);
+    }
+
+    @SuppressWarnings("unchecked")
+    private T fromKey(long key) {
+      return (T) kind.fromKey(orientKey(key, direction));
+    }
   }
 
   /**
@@ -569,4 +900,56 @@ new TopCombineFn<>(count, new Largest<V>()).<K>asKeyedFn())
       listCoder.registerByteSizeObserver(value.asList(), observer, context);
     }
   }
+
+  /**
+   * A {@link Coder} for {@link BoundedHeap BoundedHeaps} of numbers in natural or reverse natural
+   * order, which encodes the number of elements followed by the fixed-width key of each
+   * element.
+   */
+  private static class NumericBoundedHeapCoder<T, ComparatorT extends Comparator<T> & Serializable>
+      extends CustomCoder<BoundedHeap<T, ComparatorT>> {
+    private final ComparatorT compareFn;
+    private final int direction;
+    private final int maximumSize;
+    private final NumericKind kind;
+
+    public NumericBoundedHeapCoder(int maximumSize, ComparatorT compareFn, NumericKind kind) {
+      this.compareFn = compareFn;
+      this.direction = naturalDirection(compareFn);
+      this.maximumSize = maximumSize;
+      this.kind = kind;
+    }
+
+    @Override
+    public void encode(
+        BoundedHeap<T, ComparatorT> value, OutputStream outStream, Context context)
+        throws CoderException, IOException {
+      long[] keys = value.keysOfKind(kind);
+      DataOutputStream dataStream = new DataOutputStream(outStream);
+      VarInt.encode(keys.length, dataStream);
+      for (long key : keys) {
+        kind.writeKey(orientKey(key, direction), dataStream);
+      }
+      dataStream.flush();
+    }
+
+    @Override
+    public BoundedHeap<T, ComparatorT> decode(InputStream inStream, Coder.Context context)
+        throws CoderException, IOException {
+      DataInputStream dataStream = new DataInputStream(inStream);
+      long[] keys = new long[VarInt.decodeInt(dataStream)];
+      for (int i = 0; i < keys.length; i++) {
+        keys[i] = orientKey(kind.readKey(dataStream), direction);
+      }
+      return new BoundedHeap<>(maximumSize, compareFn, kind, keys);
+    }
+
+    @Override
+    public void verifyDeterministic() throws NonDeterministicException {
+      if (kind == NumericKind.DOUBLE) {
+        throw new NonDeterministicException(this,
+            "Floating point encodings are not guaranteed to be deterministic.");
+      }
+    }
+  }
 }
@@ -37,22 +37,34 @@ import com.google.api.services.bigquery.model.TableSchema;
 import com.google.cloud.hadoop.util.ApiErrorExtractor;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.Sets;
 import com.google.common.util.concurrent.MoreExecutors;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.LinkedList;
+import java.util.HashMap;
 import java.util.List;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutionException;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.annotation.Nullable;
 
@@ -82,8 +94,39 @@ public class BigQueryTableInserter {
   private final TableReference defaultRef;
   private final long maxRowsPerBatch;
 
+  // The maximum number of InsertAll requests in flight per table and client.
+  private static final int MAX_INSERTS_IN_FLIGHT_PER_TABLE = 16;
+
+  // The maximum number of InsertAll requests in flight across all tables and clients.
+  private static final int MAX_INSERT_THREADS = 100;
+
+  // Requests wait for a thread once MAX_INSERT_THREADS are in flight. Idle threads are discarded.
   private static final ExecutorService executor = MoreExecutors.getExitingExecutorService(
-      (ThreadPoolExecutor) Executors.newFixedThreadPool(100), 10, TimeUnit.SECONDS);
+      newInsertThreadPool(), 10, TimeUnit.SECONDS);
+
+  // Queues failed rows again after their backoff.
+  private static final ScheduledExecutorService retryExecutor =
+      MoreExecutors.getExitingScheduledExecutorService(
+          new ScheduledThreadPoolExecutor(1), 10, TimeUnit.SECONDS);
+
+  // The insert queues of each table, by client. Clients are compared by identity, and their
+  // queues are dropped once they are no longer used.
+  private static final LoadingCache<Bigquery, ConcurrentMap<TableReference, InsertQueue>> queues =
+      CacheBuilder.newBuilder().weakKeys().build(
+          new CacheLoader<Bigquery, ConcurrentMap<TableReference, InsertQueue>>() {
+            @Override
+            public ConcurrentMap<TableReference, InsertQueue> load(Bigquery client) {
+              return new ConcurrentHashMap<>();
+            }
+          });
+
+  private static ThreadPoolExecutor newInsertThreadPool() {
+    ThreadPoolExecutor pool = new ThreadPoolExecutor(
+        MAX_INSERT_THREADS, MAX_INSERT_THREADS, 60L, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>());
+    pool.allowCoreThreadTimeOut(true);
+    return pool;
+  }
 
   /**
    * Constructs a new row inserter.
@@ -166,134 +209,347 @@ public class BigQueryTableInserter {
   /**
    * Insert all rows from the given list using specified insertIds if not null. Track count of
    * bytes written with the Aggregator.
+   *
+   * <p>Rows are queued for the table, and are sent in requests of at most
+   * {@code maxRowsPerBatch} rows and about 64 KiB, with at most 16 requests in flight per table
+   * and client, and at most 100 in total. Rows inserted concurrently into the same table through
+   * the same client, for instance by several bundles, may be sent together in the same request.
+   * Failed rows are retried with exponential backoff, up to 5 attempts, while other rows keep
+   * being sent. Blocks until all rows have been inserted or have failed.
    */
   public void insertAll(TableReference ref, List<TableRow> rowList,
       @Nullable List<String> insertIdList, Aggregator<Long, Long> byteCountAggregator)
       throws IOException {
+    insertAll(ref, rowList, insertIdList, byteCountAggregator, null);
+  }
+
+  /**
+   * Like {@link #insertAll(TableReference, List, List, Aggregator)}, and also adds to
+   * {@code rowsInFlightAggregator} the number of rows waiting to be inserted or being inserted
+   * into the table through the client of this inserter once the given rows have been queued.
+   */
+  public void insertAll(TableReference ref, List<TableRow> rowList,
+      @Nullable List<String> insertIdList, Aggregator<Long, Long> byteCountAggregator,
+      @Nullable Aggregator<Long, Long> rowsInFlightAggregator) throws IOException {
     Preconditions.checkNotNull(ref, "ref");
     if (insertIdList != null && rowList.size() != insertIdList.size()) {
       throw new AssertionError("If insertIdList is not null it needs to have at least "
           + "as many elements as rowList");
     }
+    if (rowList.isEmpty()) {
+      return;
+    }
 
-    AttemptBoundedExponentialBackOff backoff = new AttemptBoundedExponentialBackOff(
-        MAX_INSERT_ATTEMPTS,
-        INITIAL_INSERT_BACKOFF_INTERVAL_MS);
+    InsertCall call = new InsertCall(client, maxRowsPerBatch, rowList.size());
+    List<PendingRow> rows = new ArrayList<>(rowList.size());
+    for (int i = 0; i < rowList.size(); ++i) {
+      TableRow row = rowList.get(i);
+      TableDataInsertAllRequest.Rows out = new TableDataInsertAllRequest.Rows();
+      if (insertIdList != null) {
+        out.setInsertId(insertIdList.get(i));
+      }
+      out.setJson(row.getUnknownKeys());
+      rows.add(new PendingRow(call, out, row.toString().length()));
+    }
 
-    List<TableDataInsertAllResponse.InsertErrors> allErrors = new ArrayList<>();
-    // These lists contain the rows to publish. Initially the contain the entire list. If there are
-    // failures, they will contain only the failed rows to be retried.
-    List<TableRow> rowsToPublish = rowList;
-    List<String> idsToPublish = insertIdList;
-    while (true) {
-      List<TableRow> retryRows = new ArrayList<>();
-      List<String> retryIds = (idsToPublish != null) ? new ArrayList<String>() : null;
-
-      int strideIndex = 0;
-      // Upload in batches.
-      List<TableDataInsertAllRequest.Rows> rows = new LinkedList<>();
-      int dataSize = 0;
-
-      List<Future<List<TableDataInsertAllResponse.InsertErrors>>> futures = new ArrayList<>();
-      List<Integer> strideIndices = new ArrayList<>();
-
-      for (int i = 0; i < rowsToPublish.size(); ++i) {
-        TableRow row = rowsToPublish.get(i);
-        TableDataInsertAllRequest.Rows out = new TableDataInsertAllRequest.Rows();
-        if (idsToPublish != null) {
-          out.setInsertId(idsToPublish.get(i));
+    long rowsInFlight = getQueue(ref).add(rows);
+    if (rowsInFlightAggregator != null) {
+      rowsInFlightAggregator.addValue(rowsInFlight);
+    }
+    try {
+      call.done.await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while inserting " + rowList);
+    } finally {
+      if (byteCountAggregator != null) {
+        byteCountAggregator.addValue(call.bytesSent.get());
+      }
+    }
+
+    if (call.failure != null) {
+      throw new RuntimeException(call.failure);
+    }
+    if (!call.errors.isEmpty()) {
+      throw new IOException("Insert failed: " + call.errors);
+    }
+  }
+
+  /**
+   * Returns the number of rows waiting to be inserted or being inserted into the given table
+   * through the client of this inserter.
+   */
+  public long getRowsInFlight(TableReference ref) {
+    InsertQueue queue = queues.getUnchecked(client).get(ref);
+    return queue == null ? 0 : queue.rowsInFlight.get();
+  }
+
+  private InsertQueue getQueue(TableReference ref) {
+    ConcurrentMap<TableReference, InsertQueue> tableQueues = queues.getUnchecked(client);
+    InsertQueue queue = tableQueues.get(ref);
+    if (queue == null) {
+      InsertQueue newQueue = new InsertQueue(ref.clone());
+      queue = tableQueues.putIfAbsent(newQueue.ref, newQueue);
+      if (queue == null) {
+        queue = newQueue;
+      }
+    }
+    return queue;
+  }
+
+  /**
+   * The state of a single call to {@link #insertAll}.
+   */
+  private static class InsertCall {
+    private final Bigquery client;
+    /** The maximum number of rows per request that may contain rows of this call. */
+    private final long maxRowsPerBatch;
+    /** Counted down once for each row that has been inserted or has failed. */
+    private final CountDownLatch done;
+    /** The errors of the rows which failed every attempt. */
+    private final Queue<TableDataInsertAllResponse.InsertErrors> errors =
+        new ConcurrentLinkedQueue<>();
+    /** The first exception thrown by a request for any of the rows, if any. */
+    @Nullable
+    private volatile Throwable failure;
+    /** Approximate bytes of all requests for the rows, including retries. */
+    private final AtomicLong bytesSent = new AtomicLong();
+
+    private InsertCall(Bigquery client, long maxRowsPerBatch, int numRows) {
+      this.client = client;
+      this.maxRowsPerBatch = maxRowsPerBatch;
+      this.done = new CountDownLatch(numRows);
+    }
+  }
+
+  /**
+   * A row waiting to be inserted.
+   */
+  private static class PendingRow {
+    private final InsertCall call;
+    private final TableDataInsertAllRequest.Rows row;
+    private final int size;
+    /** The number of attempts made to insert this row. */
+    private int attempts;
+    /** Whether this row has been inserted or has failed. */
+    private boolean completed;
+
+    private PendingRow(InsertCall call, TableDataInsertAllRequest.Rows row, int size) {
+      this.call = call;
+      this.row = row;
+      this.size = size;
+    }
+  }
+
+  /**
+   * The rows waiting to be inserted into a table through a client, and the requests in flight to
+   * that table through that client.
+   *
+   * <p>Rows are sent as soon as fewer than {@link #MAX_INSERTS_IN_FLIGHT_PER_TABLE} requests are
+   * in flight, so rows only accumulate, and are coalesced into larger requests, while the table
+   * is busy.
+   *
+   * <p>The queue does not reference the client itself, so that it does not keep the client
+   * alive, but its rows do.
+   */
+  private static class InsertQueue {
+    private final TableReference ref;
+    /** Rows waiting to be inserted, guarded by this. */
+    private final Queue<PendingRow> pending = new ArrayDeque<>();
+    /** The number of requests in flight, guarded by this. */
+    private int requestsInFlight;
+    /** The number of rows waiting to be inserted or in requests in flight. */
+    private final AtomicLong rowsInFlight = new AtomicLong();
+
+    private InsertQueue(TableReference ref) {
+      this.ref = ref;
+    }
+
+    /**
+     * Queues the given rows, and sends as many requests as allowed. Returns the number of rows in
+     * flight once the given rows have been queued.
+     */
+    private long add(List<PendingRow> rows) {
+      long result = rowsInFlight.addAndGet(rows.size());
+      List<List<PendingRow>> batches;
+      synchronized (this) {
+        pending.addAll(rows);
+        batches = takeBatches();
+      }
+      for (List<PendingRow> batch : batches) {
+        send(batch);
+      }
+      return result;
+    }
+
+    /**
+     * Takes a batch of waiting rows for every request that may now be sent. A batch has no more
+     * rows than the {@code maxRowsPerBatch} of any of the calls its rows belong to.
+     */
+    private synchronized List<List<PendingRow>> takeBatches() {
+      List<List<PendingRow>> batches = new ArrayList<>();
+      while (!pending.isEmpty() && requestsInFlight < MAX_INSERTS_IN_FLIGHT_PER_TABLE) {
+        List<PendingRow> batch = new ArrayList<>();
+        long dataSize = 0;
+        long maxRows = Long.MAX_VALUE;
+        while (!pending.isEmpty() && dataSize < UPLOAD_BATCH_SIZE_BYTES
+            && batch.size() < Math.min(maxRows, pending.peek().call.maxRowsPerBatch)) {
+          PendingRow row = pending.remove();
+          batch.add(row);
+          dataSize += row.size;
+          maxRows = Math.min(maxRows, row.call.maxRowsPerBatch);
         }
-        out.setJson(row.getUnknownKeys());
-        rows.add(out);
-
-        dataSize += row.toString().length();
-        if (dataSize >= UPLOAD_BATCH_SIZE_BYTES || rows.size() >= maxRowsPerBatch
-            || i == rowsToPublish.size() - 1) {
-          TableDataInsertAllRequest content = new TableDataInsertAllRequest();
-          content.setRows(rows);
-
-          final Bigquery.Tabledata.InsertAll insert = client.tabledata()
-              .insertAll(ref.getProjectId(), ref.getDatasetId(), ref.getTableId(),
-                  content);
-
-          futures.add(
-              executor.submit(new Callable<List<TableDataInsertAllResponse.InsertErrors>>() {
-                @Override
-                public List<TableDataInsertAllResponse.InsertErrors> call() throws IOException {
-                  BackOff backoff = new IntervalBoundedExponentialBackOff(
-                      MAX_RATE_LIMIT_EXCEEDED_BACKOFF_MS, INITIAL_RATE_LIMIT_EXCEEDED_BACKOFF_MS);
-                  while (true) {
-                    try {
-                      return insert.execute().getInsertErrors();
-                    } catch (IOException e) {
-                      if (new ApiErrorExtractor().rateLimited(e)) {
-                        LOG.info("BigQuery insertAll exceeded rate limit, retrying");
-                        try {
-                          Thread.sleep(backoff.nextBackOffMillis());
-                        } catch (InterruptedException interrupted) {
-                          throw new IOException(
-                              "Interrupted while waiting before retrying insertAll");
-                        }
-                      } else {
-                        throw e;
-                      }
-                    }
-                  }
-                }
-              }));
-          strideIndices.add(strideIndex);
-
-          if (byteCountAggregator != null) {
-            byteCountAggregator.addValue(Long.valueOf(dataSize));
+        batches.add(batch);
+        requestsInFlight++;
+      }
+      return batches;
+    }
+
+    /** Sends a request for the given rows in the background. */
+    private void send(final List<PendingRow> batch) {
+      executor.submit(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            insert(batch);
+          } catch (Throwable t) {
+            // Release the callers of any rows that were not completed or handed to a retry.
+            for (PendingRow row : batch) {
+              fail(row, t);
+            }
+            throw t;
+          } finally {
+            List<List<PendingRow>> batches;
+            synchronized (InsertQueue.this) {
+              requestsInFlight--;
+              batches = takeBatches();
+            }
+            for (List<PendingRow> next : batches) {
+              send(next);
+            }
           }
-          dataSize = 0;
-          strideIndex = i + 1;
-          rows = new LinkedList<>();
         }
+      });
+    }
+
+    /** Inserts the given rows, and completes or retries each of them. */
+    private void insert(List<PendingRow> batch) {
+      List<TableDataInsertAllRequest.Rows> rows = new ArrayList<>(batch.size());
+      for (PendingRow row : batch) {
+        rows.add(row.row);
+        row.attempts++;
+        row.call.bytesSent.addAndGet(row.size);
       }
 
+      List<TableDataInsertAllResponse.InsertErrors> errors;
       try {
-        for (int i = 0; i < futures.size(); i++) {
-          List<TableDataInsertAllResponse.InsertErrors> errors = futures.get(i).get();
-          if (errors != null) {
-            for (TableDataInsertAllResponse.InsertErrors error : errors) {
-              allErrors.add(error);
-              if (error.getIndex() == null) {
-                throw new IOException("Insert failed: " + allErrors);
-              }
+        errors = execute(batch.get(0).call.client, new TableDataInsertAllRequest().setRows(rows));
+      } catch (IOException | RuntimeException e) {
+        for (PendingRow row : batch) {
+          fail(row, e);
+        }
+        return;
+      }
 
-              int errorIndex = error.getIndex().intValue() + strideIndices.get(i);
-              retryRows.add(rowsToPublish.get(errorIndex));
-              if (retryIds != null) {
-                retryIds.add(idsToPublish.get(errorIndex));
+      Map<Integer, TableDataInsertAllResponse.InsertErrors> errorsByIndex = new HashMap<>();
+      if (errors != null) {
+        for (TableDataInsertAllResponse.InsertErrors error : errors) {
+          if (error.getIndex() == null) {
+            // Not attributable to any row, so fail them all, reporting the error once per call.
+            Set<InsertCall> calls = Sets.newIdentityHashSet();
+            for (PendingRow row : batch) {
+              if (calls.add(row.call)) {
+                row.call.errors.add(error);
               }
+              complete(row);
             }
+            return;
           }
+          errorsByIndex.put(error.getIndex().intValue(), error);
+        }
+      }
+
+      List<PendingRow> retryRows = new ArrayList<>();
+      for (int i = 0; i < batch.size(); i++) {
+        PendingRow row = batch.get(i);
+        TableDataInsertAllResponse.InsertErrors error = errorsByIndex.get(i);
+        if (error == null) {
+          complete(row);
+        } else if (row.attempts >= MAX_INSERT_ATTEMPTS) {
+          row.call.errors.add(error);
+          complete(row);
+        } else {
+          retryRows.add(row);
         }
-      } catch (InterruptedException e) {
-        Thread.currentThread().interrupt();
-        throw new IOException("Interrupted while inserting " + rowsToPublish);
-      } catch (ExecutionException e) {
-        throw new RuntimeException(e.getCause());
       }
+      if (!retryRows.isEmpty()) {
+        retry(retryRows);
+      }
+    }
 
-      if (!allErrors.isEmpty() && !backoff.atMaxAttempts()) {
+    /**
+     * BLOCKING
+     * Executes a request, retrying while the rate limit is exceeded.
+     */
+    private List<TableDataInsertAllResponse.InsertErrors> execute(
+        Bigquery client, TableDataInsertAllRequest content) throws IOException {
+      Bigquery.Tabledata.InsertAll insert = client.tabledata()
+          .insertAll(ref.getProjectId(), ref.getDatasetId(), ref.getTableId(), content);
+      BackOff backoff = new IntervalBoundedExponentialBackOff(
+          MAX_RATE_LIMIT_EXCEEDED_BACKOFF_MS, INITIAL_RATE_LIMIT_EXCEEDED_BACKOFF_MS);
+      while (true) {
         try {
-          Thread.sleep(backoff.nextBackOffMillis());
-        } catch (InterruptedException e) {
-          Thread.currentThread().interrupt();
-          throw new IOException("Interrupted while waiting before retrying insert of " + retryRows);
+          return insert.execute().getInsertErrors();
+        } catch (IOException e) {
+          if (new ApiErrorExtractor().rateLimited(e)) {
+            LOG.info("BigQuery insertAll exceeded rate limit, retrying");
+            try {
+              Thread.sleep(backoff.nextBackOffMillis());
+            } catch (InterruptedException interrupted) {
+              throw new IOException(
+                  "Interrupted while waiting before retrying insertAll");
+            }
+          } else {
+            throw e;
+          }
+        }
+      }
+    }
+
+    /** Queues the given rows again once their backoff has elapsed. */
+    private void retry(final List<PendingRow> rows) {
+      // The backoff grows with the number of attempts already made.
+      AttemptBoundedExponentialBackOff backoff = new AttemptBoundedExponentialBackOff(
+          MAX_INSERT_ATTEMPTS, INITIAL_INSERT_BACKOFF_INTERVAL_MS);
+      long backoffMillis = 0;
+      for (int i = 0; i < rows.get(0).attempts; i++) {
+        backoffMillis = backoff.nextBackOffMillis();
+      }
+      LOG.info("Retrying {} failed inserts to BigQuery", rows.size());
+      retryExecutor.schedule(new Runnable() {
+        @Override
+        public void run() {
+          add(rows);
         }
-        LOG.info("Retrying failed inserts to BigQuery");
-        rowsToPublish = retryRows;
-        idsToPublish = retryIds;
-        allErrors.clear();
-      } else {
-        break;
+      }, backoffMillis, TimeUnit.MILLISECONDS);
+      // The rows are added again once scheduled, so they are no longer in flight until then.
+      rowsInFlight.addAndGet(-rows.size());
+    }
+
+    private void fail(PendingRow row, Throwable failure) {
+      if (row.call.failure == null) {
+        row.call.failure = failure;
       }
+      complete(row);
     }
-    if (!allErrors.isEmpty()) {
-      throw new IOException("Insert failed: " + allErrors);
+
+    private void complete(PendingRow row) {
+      if (row.completed) {
+        return;
+      }
+      row.completed = true;
+      rowsInFlight.decrementAndGet();
+      row.call.done.countDown();
     }
   }
 
@@ -27,11 +27,9 @@ import com.google.api.client.googleapis.batch.json.JsonBatchCallback;
 import com.google.api.client.googleapis.json.GoogleJsonError;
 import com.google.api.client.googleapis.json.GoogleJsonResponseException;
 import com.google.api.client.http.HttpHeaders;
-import com.google.api.client.http.HttpRequestInitializer;
 import com.google.api.client.util.BackOff;
 import com.google.api.client.util.Sleeper;
 import com.google.api.services.storage.Storage;
-import com.google.api.services.storage.StorageRequest;
 import com.google.api.services.storage.model.Objects;
 import com.google.api.services.storage.model.StorageObject;
 import com.google.cloud.hadoop.gcsio.GoogleCloudStorageReadChannel;
@@ -44,7 +42,12 @@ import com.google.cloud.hadoop.util.ResilientOperation;
 import com.google.cloud.hadoop.util.RetryDeterminer;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -57,12 +60,15 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import javax.annotation.Nullable;
-import javax.annotation.concurrent.NotThreadSafe;
 
 /**
  * Provides operations on GCS.
@@ -110,6 +116,11 @@ public class GcsUtil {
    */
   private static final int MAX_REQUESTS_PER_BATCH = 1000;
 
+  /**
+   * Maximum number of batch requests that are executed concurrently.
+   */
+  private static final int MAX_CONCURRENT_BATCHES = 16;
+
   /////////////////////////////////////////////////////////////////////////////
 
   /** Client for the GCS API. */
@@ -123,7 +134,6 @@ public class GcsUtil {
   // Exposed for testing.
   final ExecutorService executorService;
 
-  private final BatchHelper batchHelper;
   /**
    * Returns true if the given GCS pattern is supported otherwise fails with an
    * exception.
@@ -143,8 +153,6 @@ public class GcsUtil {
     this.storageClient = storageClient;
     this.uploadBufferSizeBytes = uploadBufferSizeBytes;
     this.executorService = executorService;
-    this.batchHelper = new BatchHelper(
-        storageClient.getRequestFactory().getInitializer(), storageClient, MAX_REQUESTS_PER_BATCH);
   }
 
   // Use this only for testing purposes.
@@ -376,13 +384,16 @@ public class GcsUtil {
         "Number of source files %s must equal number of destination files %s",
         srcFilenames.size(),
         destFilenames.size());
+    List<BatchRequest> batches = new LinkedList<>();
+    BatchRequest batch = null;
     for (int i = 0; i < srcFilenames.size(); i++) {
       final GcsPath sourcePath = GcsPath.fromUri(srcFilenames.get(i));
       final GcsPath destPath = GcsPath.fromUri(destFilenames.get(i));
       LOG.debug("Copying {} to {}", sourcePath, destPath);
       Storage.Objects.Copy copyObject = storageClient.objects().copy(sourcePath.getBucket(),
           sourcePath.getObject(), destPath.getBucket(), destPath.getObject(), null);
-      batchHelper.queue(copyObject, new JsonBatchCallback<StorageObject>() {
+      batch = addToBatch(batches, batch);
+      copyObject.queue(batch, new JsonBatchCallback<StorageObject>() {
         @Override
         public void onSuccess(StorageObject obj, HttpHeaders responseHeaders) {
           LOG.debug("Successfully copied {} to {}", sourcePath, destPath);
@@ -398,16 +409,19 @@ public class GcsUtil {
         }
       });
     }
-    batchHelper.flush();
+    executeBatches(batches);
   }
 
   public void remove(Collection<String> filenames) throws IOException {
+    List<BatchRequest> batches = new LinkedList<>();
+    BatchRequest batch = null;
     for (String filename : filenames) {
       final GcsPath path = GcsPath.fromUri(filename);
       LOG.debug("Removing: " + path);
       Storage.Objects.Delete deleteObject =
           storageClient.objects().delete(path.getBucket(), path.getObject());
-      batchHelper.queue(deleteObject, new JsonBatchCallback<Void>() {
+      batch = addToBatch(batches, batch);
+      deleteObject.queue(batch, new JsonBatchCallback<Void>() {
         @Override
         public void onSuccess(Void obj, HttpHeaders responseHeaders) throws IOException {
           LOG.debug("Successfully removed {}", path);
@@ -423,100 +437,61 @@ public class GcsUtil {
         }
       });
     }
-    batchHelper.flush();
+    executeBatches(batches);
   }
 
   /**
-   * BatchHelper abstracts out the logic for the maximum requests per batch for GCS.
-   *
-   * <p>Copy of
-   * https://github.com/GoogleCloudPlatform/bigdata-interop/blob/master/gcs/src/main/java/com/google/cloud/hadoop/gcsio/BatchHelper.java
-   *
-   * <p>Copied to prevent Dataflow from depending on the Hadoop-related dependencies that are not
-   * used in Dataflow.  Hadoop-related dependencies will be removed from the Google Cloud Storage
-   * Connector (https://cloud.google.com/hadoop/google-cloud-storage-connector) so that this project
-   * and others may use the connector without introducing unnecessary dependencies.
-   *
-   * <p>This class is not thread-safe; create a new BatchHelper instance per single-threaded logical
-   * grouping of requests.
+   * Returns the batch that the next request should be queued in: {@code current}, or a new batch
+   * that is added to {@code batches} if {@code current} is full.
    */
-  @NotThreadSafe
-  private static class BatchHelper {
-    /**
-     * Callback that causes a single StorageRequest to be added to the BatchRequest.
-     */
-    protected static interface QueueRequestCallback {
-      void enqueue() throws IOException;
+  private BatchRequest addToBatch(List<BatchRequest> batches, @Nullable BatchRequest current) {
+    if (current != null && current.size() < MAX_REQUESTS_PER_BATCH) {
+      return current;
     }
+    BatchRequest batch = storageClient.batch(storageClient.getRequestFactory().getInitializer());
+    batches.add(batch);
+    return batch;
+  }
 
-    private final List<QueueRequestCallback> pendingBatchEntries;
-    private final BatchRequest batch;
-
-    // Number of requests that can be queued into a single actual HTTP request
-    // before a sub-batch is sent.
-    private final long maxRequestsPerBatch;
-
-    // Flag that indicates whether there is an in-progress flush.
-    private boolean flushing = false;
-
-    /**
-     * Primary constructor, generally accessed only via the inner Factory class.
-     */
-    public BatchHelper(
-        HttpRequestInitializer requestInitializer, Storage gcs, long maxRequestsPerBatch) {
-      this.pendingBatchEntries = new LinkedList<>();
-      this.batch = gcs.batch(requestInitializer);
-      this.maxRequestsPerBatch = maxRequestsPerBatch;
-    }
-
-    /**
-     * Adds an additional request to the batch, and possibly flushes the current contents of the
-     * batch if {@code maxRequestsPerBatch} has been reached.
-     */
-    public <T> void queue(final StorageRequest<T> req, final JsonBatchCallback<T> callback)
-        throws IOException {
-      QueueRequestCallback queueCallback = new QueueRequestCallback() {
-        @Override
-        public void enqueue() throws IOException {
-          req.queue(batch, callback);
-        }
-      };
-      pendingBatchEntries.add(queueCallback);
-
-      flushIfPossibleAndRequired();
+  /**
+   * Executes the batches on the {@link #executorService}, up to {@link #MAX_CONCURRENT_BATCHES}
+   * at a time, and waits for all of them to complete.
+   */
+  private void executeBatches(List<BatchRequest> batches) throws IOException {
+    if (batches.isEmpty()) {
+      return;
     }
-
-    // Flush our buffer if we have more pending entries than maxRequestsPerBatch
-    private void flushIfPossibleAndRequired() throws IOException {
-      if (pendingBatchEntries.size() > maxRequestsPerBatch) {
-        flushIfPossible();
-      }
+    if (batches.size() == 1) {
+      batches.get(0).execute();
+      return;
     }
 
-    // Flush our buffer if we are not already in a flush operation and we have data to flush.
-    private void flushIfPossible() throws IOException {
-      if (!flushing && pendingBatchEntries.size() > 0) {
-        flushing = true;
-        try {
-          while (batch.size() < maxRequestsPerBatch && pendingBatchEntries.size() > 0) {
-            QueueRequestCallback head = pendingBatchEntries.remove(0);
-            head.enqueue();
+    final Queue<BatchRequest> remaining = new ConcurrentLinkedQueue<>(batches);
+    ListeningExecutorService executor = MoreExecutors.listeningDecorator(executorService);
+    List<ListenableFuture<Void>> futures = new LinkedList<>();
+    for (int i = 0; i < Math.min(MAX_CONCURRENT_BATCHES, batches.size()); i++) {
+      futures.add(executor.submit(new Callable<Void>() {
+        @Override
+        public Void call() throws IOException {
+          BatchRequest batch = remaining.poll();
+          while (batch != null) {
+            batch.execute();
+            batch = remaining.poll();
           }
-
-          batch.execute();
-        } finally {
-          flushing = false;
+          return null;
         }
-      }
+      }));
     }
-
-
-    /**
-     * Sends any currently remaining requests in the batch; should be called at the end of any
-     * series of batched requests to ensure everything has been sent.
-     */
-    public void flush() throws IOException {
-      flushIfPossible();
+    try {
+      Futures.allAsList(futures).get();
+    } catch (InterruptedException e) {
+      remaining.clear();
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while executing batch GCS request", e);
+    } catch (ExecutionException e) {
+      remaining.clear();
+      Throwables.propagateIfPossible(e.getCause(), IOException.class);
+      throw new IOException("Error executing batch GCS request", e.getCause());
     }
   }
 
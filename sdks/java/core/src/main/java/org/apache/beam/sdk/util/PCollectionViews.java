@@ -34,8 +34,11 @@ import com.google.common.collect.HashMultimap;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Multimap;
+import com.google.common.collect.Multimaps;
 
 import java.io.IOException;
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
@@ -245,6 +248,8 @@ public class PCollectionViews {
    */
   public static class MultimapPCollectionView<K, V, W extends BoundedWindow>
       extends PCollectionViewBase<KV<K, V>, Map<K, Iterable<V>>, W> {
+    @Nullable private transient volatile LastMaterialized<Map<K, Iterable<V>>> lastMaterialized;
+
     private MultimapPCollectionView(
         Pipeline pipeline,
         WindowingStrategy<?, W> windowingStrategy,
@@ -254,15 +259,22 @@ public class PCollectionViews {
 
     @Override
     protected Map<K, Iterable<V>> fromElements(Iterable<WindowedValue<KV<K, V>>> elements) {
+      Map<K, Iterable<V>> result = LastMaterialized.get(lastMaterialized, elements);
+      if (result != null) {
+        return result;
+      }
       Multimap<K, V> multimap = HashMultimap.create();
       for (WindowedValue<KV<K, V>> elem : elements) {
         KV<K, V> kv = elem.getValue();
         multimap.put(kv.getKey(), kv.getValue());
       }
+      // The map is shared by later accesses, so its values must not be mutable collections.
       // Safe covariant cast that Java cannot express without rawtypes, even with unchecked casts
       @SuppressWarnings({"unchecked", "rawtypes"})
-      Map<K, Iterable<V>> resultMap = (Map) multimap.asMap();
-      return Collections.unmodifiableMap(resultMap);
+      Map<K, Iterable<V>> resultMap = (Map) Multimaps.unmodifiableMultimap(multimap).asMap();
+      result = Collections.unmodifiableMap(resultMap);
+      lastMaterialized = new LastMaterialized<>(elements, result);
+      return result;
     }
   }
 
@@ -274,6 +286,8 @@ public class PCollectionViews {
    */
   public static class MapPCollectionView<K, V, W extends BoundedWindow>
       extends PCollectionViewBase<KV<K, V>, Map<K, V>, W> {
+    @Nullable private transient volatile LastMaterialized<Map<K, V>> lastMaterialized;
+
     private MapPCollectionView(
         Pipeline pipeline,
         WindowingStrategy<?, W> windowingStrategy,
@@ -286,6 +300,10 @@ public class PCollectionViews {
      */
     @Override
     protected Map<K, V> fromElements(Iterable<WindowedValue<KV<K, V>>> elements) {
+      Map<K, V> result = LastMaterialized.get(lastMaterialized, elements);
+      if (result != null) {
+        return result;
+      }
       Map<K, V> map = new HashMap<>();
       for (WindowedValue<KV<K, V>> elem : elements) {
         KV<K, V> kv = elem.getValue();
@@ -294,7 +312,40 @@ public class PCollectionViews {
         }
         map.put(kv.getKey(), kv.getValue());
       }
-      return Collections.unmodifiableMap(map);
+      result = Collections.unmodifiableMap(map);
+      lastMaterialized = new LastMaterialized<>(elements, result);
+      return result;
+    }
+  }
+
+  /**
+   * The value of a view for the contents it was most recently materialized from, compared by
+   * identity. This only saves building a map or multimap again when a runner passes the same
+   * contents object for consecutive accesses, such as for a side input in the global window; a
+   * view that is accessed in alternating windows is built on every access. The value is only
+   * softly reachable from here, so a view that is no longer accessed can be reclaimed under memory
+   * pressure. Since it is shared by later accesses, the value must be unmodifiable.
+   */
+  private static class LastMaterialized<ViewT> {
+    private final WeakReference<Iterable<?>> elements;
+    private final SoftReference<ViewT> view;
+
+    private LastMaterialized(Iterable<?> elements, ViewT view) {
+      this.elements = new WeakReference<Iterable<?>>(elements);
+      this.view = new SoftReference<>(view);
+    }
+
+    /**
+     * Returns the view materialized from the provided contents, or {@code null} if it was
+     * materialized from other contents or has been reclaimed.
+     */
+    @Nullable
+    private static <ViewT> ViewT get(
+        @Nullable LastMaterialized<ViewT> last, Iterable<?> elements) {
+      if (last == null || last.elements.get() != elements) {
+        return null;
+      }
+      return last.view.get();
     }
   }
 
@@ -441,7 +441,7 @@ public abstract class PubsubClient implements Closeable {
 
   /**
    * Publish {@code outgoingMessages} to Pubsub {@code topic}. Return number of messages
-   * published.
+   * published. May be called concurrently from several threads.
    *
    * @throws IOException
    */
@@ -453,6 +453,7 @@ public abstract class PubsubClient implements Closeable {
    * Return the received messages, or empty collection if none were available. Does not
    * wait for messages to arrive if {@code returnImmediately} is {@literal true}.
    * Returned messages will record their request time as {@code requestTimeMsSinceEpoch}.
+   * May be called concurrently from several threads.
    *
    * @throws IOException
    */
@@ -464,7 +465,8 @@ public abstract class PubsubClient implements Closeable {
       throws IOException;
 
   /**
-   * Acknowldege messages from {@code subscription} with {@code ackIds}.
+   * Acknowldege messages from {@code subscription} with {@code ackIds}. May be called
+   * concurrently from several threads.
    *
    * @throws IOException
    */
@@ -473,7 +475,7 @@ public abstract class PubsubClient implements Closeable {
 
   /**
    * Modify the ack deadline for messages from {@code subscription} with {@code ackIds} to
-   * be {@code deadlineSeconds} from now.
+   * be {@code deadlineSeconds} from now. May be called concurrently from several threads.
    *
    * @throws IOException
    */
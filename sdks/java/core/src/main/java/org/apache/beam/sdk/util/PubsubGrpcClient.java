@@ -151,10 +151,12 @@ public class PubsubGrpcClient extends PubsubClient {
 
 
   /**
-   * Cached stubs, or null if not cached.
+   * Cached stubs, or null if not cached. Guarded by this client, since publishes, pulls, ACKs
+   * and ACK deadline extensions may be made from several threads at once.
    */
   @Nullable
   private PublisherGrpc.PublisherBlockingStub cachedPublisherStub;
+  @Nullable
   private SubscriberGrpc.SubscriberBlockingStub cachedSubscriberStub;
 
   @VisibleForTesting
@@ -179,7 +181,7 @@ public class PubsubGrpcClient extends PubsubClient {
    * Gracefully close the underlying netty channel.
    */
   @Override
-  public void close() {
+  public synchronized void close() {
     if (publisherChannel == null) {
       // Already closed.
       return;
@@ -216,7 +218,7 @@ public class PubsubGrpcClient extends PubsubClient {
   /**
    * Return a stub for making a publish request with a timeout.
    */
-  private PublisherBlockingStub publisherStub() throws IOException {
+  private synchronized PublisherBlockingStub publisherStub() throws IOException {
     if (cachedPublisherStub == null) {
       cachedPublisherStub = PublisherGrpc.newBlockingStub(newChannel());
     }
@@ -230,7 +232,7 @@ public class PubsubGrpcClient extends PubsubClient {
   /**
    * Return a stub for making a subscribe request with a timeout.
    */
-  private SubscriberBlockingStub subscriberStub() throws IOException {
+  private synchronized SubscriberBlockingStub subscriberStub() throws IOException {
     if (cachedSubscriberStub == null) {
       cachedSubscriberStub = SubscriberGrpc.newBlockingStub(newChannel());
     }
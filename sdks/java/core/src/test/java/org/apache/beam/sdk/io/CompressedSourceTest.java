@@ -32,6 +32,7 @@ import static org.junit.Assert.assertTrue;
 import org.apache.beam.sdk.Pipeline;
 import org.apache.beam.sdk.coders.Coder;
 import org.apache.beam.sdk.coders.SerializableCoder;
+import org.apache.beam.sdk.coders.StringUtf8Coder;
 import org.apache.beam.sdk.io.BoundedSource.BoundedReader;
 import org.apache.beam.sdk.io.CompressedSource.CompressedReader;
 import org.apache.beam.sdk.io.CompressedSource.CompressionMode;
@@ -69,12 +70,16 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
 import java.util.zip.GZIPOutputStream;
 
 import javax.annotation.Nullable;
@@ -119,6 +124,10 @@ public class CompressedSourceTest {
     source = CompressedSource.from(new ByteSource("input.BZ2", 1));
     assertFalse(source.isSplittable());
 
+    // BGZF files are splittable
+    source = CompressedSource.from(new ByteSource("input.bgz", 1));
+    assertTrue(source.isSplittable());
+
     // Other extensions are assumed to be splittable.
     source = CompressedSource.from(new ByteSource("input.txt", 1));
     assertTrue(source.isSplittable());
@@ -325,6 +334,61 @@ public class CompressedSourceTest {
     assertFalse(source.isSplittable());
   }
 
+  @Test
+  public void testBgzipFileIsSplittable() throws Exception {
+    File compressedFile = tmpFolder.newFile("test-input.bgz");
+    byte[] input = generateInput(1000);
+    writeBgzipFile(compressedFile, input, 10);
+
+    PipelineOptions options = PipelineOptionsFactory.create();
+    CompressedSource<Byte> source =
+        CompressedSource.from(new ByteSource(compressedFile.getPath(), 1));
+    assertTrue(source.isSplittable());
+    assertEquals(Bytes.asList(input), SourceTestUtils.readFromSource(source, options));
+
+    List<? extends FileBasedSource<Byte>> splits = source.splitIntoBundles(100, options);
+    assertTrue(splits.size() > 1);
+    SourceTestUtils.assertSourcesEqualReferenceSource(source, splits, options);
+  }
+
+  @Test
+  public void testBgzipSplitAtFractionExhaustive() throws Exception {
+    File compressedFile = tmpFolder.newFile("test-input.bgz");
+    writeBgzipFile(compressedFile, generateInput(100), 7);
+
+    CompressedSource<Byte> source =
+        CompressedSource.from(new ByteSource(compressedFile.getPath(), 1));
+    SourceTestUtils.assertSplitAtFractionExhaustive(
+        source.createForSubrangeOfFile(compressedFile.getPath(), 0, compressedFile.length()),
+        PipelineOptionsFactory.create());
+  }
+
+  /**
+   * Test that records that span blocks, including line separators that span blocks, are read
+   * exactly once when a BGZF file is split at block boundaries.
+   */
+  @Test
+  public void testBgzipSplitsRecordsAcrossBlocks() throws Exception {
+    File compressedFile = tmpFolder.newFile("test-input.bgz");
+    String text = "asdf\r\nhjkl\rxyz\n\n\r\nlonger line spanning blocks\rq\r\n\r\rlast";
+    writeBgzipFile(compressedFile, text.getBytes(StandardCharsets.UTF_8), 3);
+
+    PipelineOptions options = PipelineOptionsFactory.create();
+    CompressedSource<String> source = CompressedSource.from(
+        new TextIO.TextSource<>(compressedFile.getPath(), StringUtf8Coder.of()));
+    assertEquals(
+        Arrays.asList(
+            "asdf", "hjkl", "xyz", "", "", "longer line spanning blocks", "q", "", "", "last"),
+        SourceTestUtils.readFromSource(source, options));
+
+    List<? extends FileBasedSource<String>> splits = source.splitIntoBundles(20, options);
+    assertTrue(splits.size() > 1);
+    SourceTestUtils.assertSourcesEqualReferenceSource(source, splits, options);
+    SourceTestUtils.assertSplitAtFractionExhaustive(
+        source.createForSubrangeOfFile(compressedFile.getPath(), 0, compressedFile.length()),
+        options);
+  }
+
   /**
    * Test reading an uncompressed file with {@link CompressionMode#GZIP}, since we must support
    * this due to properties of services that we read from.
@@ -466,6 +530,42 @@ public class CompressedSourceTest {
     }
   }
 
+  /**
+   * Writes a file in the blocked gzip format, with the given number of uncompressed bytes per
+   * block, followed by the empty block that marks the end of the file.
+   */
+  private void writeBgzipFile(File file, byte[] input, int bytesPerBlock) throws IOException {
+    try (OutputStream os = new FileOutputStream(file)) {
+      for (int start = 0; start < input.length; start += bytesPerBlock) {
+        writeBgzipBlock(
+            os, Arrays.copyOfRange(input, start, Math.min(input.length, start + bytesPerBlock)));
+      }
+      writeBgzipBlock(os, new byte[0]);
+    }
+  }
+
+  private void writeBgzipBlock(OutputStream os, byte[] block) throws IOException {
+    Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    deflater.setInput(block);
+    deflater.finish();
+    byte[] compressed = new byte[block.length + 64];
+    int compressedLength = deflater.deflate(compressed);
+    deflater.end();
+    CRC32 crc = new CRC32();
+    crc.update(block);
+
+    ByteBuffer header = ByteBuffer.allocate(18).order(ByteOrder.LITTLE_ENDIAN);
+    header.put(new byte[] {0x1f, (byte) 0x8b, 8, 4, 0, 0, 0, 0, 0, (byte) 0xff});
+    header.putShort((short) 6).put((byte) 'B').put((byte) 'C').putShort((short) 2);
+    header.putShort((short) (18 + compressedLength + 8 - 1));
+    ByteBuffer trailer = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+    trailer.putInt((int) crc.getValue()).putInt(block.length);
+
+    os.write(header.array());
+    os.write(compressed, 0, compressedLength);
+    os.write(trailer.array());
+  }
+
   /**
    * Run a single read test, writing and reading back input with the given compression mode.
    */
@@ -308,6 +308,41 @@ public class FileBasedSinkTest {
     }
   }
 
+  /**
+   * Output files are moved to the destination location with the correct names and contents, and
+   * moving them again has no effect.
+   */
+  @Test
+  public void testMoveToOutputFiles() throws Exception {
+    PipelineOptions options = PipelineOptionsFactory.create();
+    SimpleSink.SimpleWriteOperation writeOp = buildWriteOperation();
+
+    // More files than are moved concurrently.
+    int numFiles = 50;
+    List<String> inputFilePaths = new ArrayList<>();
+    for (int i = 0; i < numFiles; i++) {
+      File inputTmpFile = tmpFolder.newFile(String.format("input-%02d", i));
+      writeFile(Arrays.asList("" + i), inputTmpFile);
+      inputFilePaths.add(inputTmpFile.toString());
+    }
+    // An existing output file is replaced.
+    List<String> expectedOutputPaths = writeOp.generateDestinationFilenames(numFiles);
+    writeFile(Arrays.asList("stale"), new File(expectedOutputPaths.get(0)));
+
+    List<String> actual = writeOp.moveToOutputFiles(inputFilePaths, options);
+    assertEquals(expectedOutputPaths, actual);
+    for (int i = 0; i < numFiles; i++) {
+      assertFalse(new File(inputFilePaths.get(i)).exists());
+      assertFileContains(Arrays.asList("" + i), expectedOutputPaths.get(i));
+    }
+
+    // Moving files that were already moved leaves the output files as they are.
+    writeOp.moveToOutputFiles(inputFilePaths, options);
+    for (int i = 0; i < numFiles; i++) {
+      assertFileContains(Arrays.asList("" + i), expectedOutputPaths.get(i));
+    }
+  }
+
   /**
    * Output filenames use the supplied naming template.
    */
@@ -18,7 +18,10 @@
 
 package org.apache.beam.sdk.io;
 
+import static org.junit.Assert.assertEquals;
+
 import org.apache.beam.sdk.coders.StringUtf8Coder;
+import org.apache.beam.sdk.io.PubsubUnboundedSink.PublishBatchSizer;
 import org.apache.beam.sdk.io.PubsubUnboundedSink.RecordIdMethod;
 import org.apache.beam.sdk.testing.CoderProperties;
 import org.apache.beam.sdk.testing.NeedsRunner;
@@ -164,6 +167,69 @@ public class PubsubUnboundedSinkTest {
     // message does not match the expected publish message.
   }
 
+  @Test
+  @Category(NeedsRunner.class)
+  public void sendManyBatchesWithOutstandingPublishes() throws IOException {
+    List<OutgoingMessage> outgoing = new ArrayList<>();
+    List<String> data = new ArrayList<>();
+    int batchSize = 5;
+    int batchBytes = 1000;
+    for (int i = 0; i < 500; i++) {
+      String str = String.valueOf(i);
+      outgoing.add(new OutgoingMessage(str.getBytes(), TIMESTAMP, getRecordId(str)));
+      data.add(str);
+    }
+    try (PubsubTestClientFactory factory =
+             PubsubTestClient.createFactoryForPublish(TOPIC, outgoing,
+                                                      ImmutableList.<OutgoingMessage>of())) {
+      PubsubUnboundedSink<String> sink =
+          new PubsubUnboundedSink<>(factory, TOPIC, StringUtf8Coder.of(), TIMESTAMP_LABEL, ID_LABEL,
+                                    2, batchSize, batchBytes, Duration.standardSeconds(2),
+                                    RecordIdMethod.DETERMINISTIC)
+              .withMaxOutstandingPublishes(3)
+              .withAdaptiveBatchSize(Duration.millis(500), 2);
+      TestPipeline p = TestPipeline.create();
+      p.apply(Create.of(data))
+       .apply(ParDo.of(new Stamp()))
+       .apply(sink);
+      p.run();
+    }
+    // The PubsubTestClientFactory will assert fail on close if the actual published
+    // message does not match the expected publish message.
+  }
+
+  @Test
+  public void batchSizeAdaptsToLatencyAndFailures() {
+    PublishBatchSizer sizer = new PublishBatchSizer(5, 100, 500);
+    assertEquals(100, sizer.getBatchSize());
+    // Slow publishes and failures halve the batch size, down to the minimum.
+    sizer.succeeded(501);
+    assertEquals(50, sizer.getBatchSize());
+    sizer.failed();
+    assertEquals(25, sizer.getBatchSize());
+    for (int i = 0; i < 10; i++) {
+      sizer.failed();
+    }
+    assertEquals(5, sizer.getBatchSize());
+    sizer.succeeded(501);
+    assertEquals(5, sizer.getBatchSize());
+    // Fast publishes grow the batch size by a tenth of the maximum, up to the maximum.
+    sizer.succeeded(500);
+    assertEquals(15, sizer.getBatchSize());
+    for (int i = 0; i < 10; i++) {
+      sizer.succeeded(10);
+    }
+    assertEquals(100, sizer.getBatchSize());
+  }
+
+  @Test
+  public void fixedBatchSizeDoesNotAdapt() {
+    PublishBatchSizer sizer = PublishBatchSizer.fixed(100);
+    sizer.succeeded(10000);
+    sizer.failed();
+    assertEquals(100, sizer.getBatchSize());
+  }
+
   // TODO: We would like to test that failed Pubsub publish calls cause the already assigned
   // (and random) record ids to be reused. However that can't be done without the test runnner
   // supporting retrying bundles.
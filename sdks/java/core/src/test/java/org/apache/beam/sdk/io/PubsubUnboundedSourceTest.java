@@ -51,8 +51,10 @@ import org.junit.runners.JUnit4;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.atomic.AtomicLong;
 
 /**
@@ -319,4 +321,45 @@ public class PubsubUnboundedSourceTest {
     assertTrue(dataToMessageNum.isEmpty());
     reader.close();
   }
+
+  @Test
+  public void readManyMessagesWithPipelinedPulls() throws IOException {
+    final int n = 10000;
+    final int maxUnreadMessages = 2500;
+    List<IncomingMessage> incoming = new ArrayList<>();
+    for (int i = 0; i < n; i++) {
+      String data = String.format("data_%d", i);
+      String ackId = String.format("ackid_%d", i);
+      incoming.add(new IncomingMessage(data.getBytes(), TIMESTAMP, 0, ackId, RECORD_ID));
+    }
+    setupOneMessage(incoming);
+    primSource = new PubsubSource<>(
+        primSource.outer.withPipelinedPulls(3, maxUnreadMessages, Long.MAX_VALUE));
+
+    // The clock is not advanced, since pulls are issued in the background.
+    TestPipeline p = TestPipeline.create();
+    PubsubReader<String> reader = primSource.createReader(p.getOptions(), null);
+    Set<String> seen = new HashSet<>();
+    boolean available = reader.start();
+    int attempts = 0;
+    while (seen.size() < n) {
+      assertThat(++attempts, lessThanOrEqualTo(2 * n));
+      if (available) {
+        // No duplicate messages.
+        assertTrue(seen.add(reader.getCurrent()));
+        if (seen.size() % 1000 == 0) {
+          // Flow control bounds the messages pulled but not yet read.
+          PubsubCheckpoint<String> checkpoint = reader.getCheckpointMark();
+          assertThat(checkpoint.notYetReadIds.size(), lessThanOrEqualTo(maxUnreadMessages));
+          // ACK in the background.
+          checkpoint.finalizeCheckpoint();
+        }
+      }
+      available = reader.advance();
+    }
+    // We are done.
+    assertFalse(available);
+    // Closing waits for all background ACKs, which are validated when the factory is closed.
+    reader.close();
+  }
 }
@@ -761,6 +761,25 @@ public class TextIOTest {
         ImmutableList.of("asdf", "hjkl", "xyz"));
   }
 
+  @Test
+  public void testReadFileWithLinesAcrossAndLongerThanReadBuffer() throws Exception {
+    StringBuilder data = new StringBuilder();
+    List<String> expected = new ArrayList<>();
+    String[] separators = {"\n", "\r", "\r\n"};
+    for (int i = 0; i < 600; i++) {
+      StringBuilder line = new StringBuilder();
+      // Mostly short lines, some of which span buffer boundaries, with a few lines that are
+      // several times longer than the read buffer and some multi-byte characters.
+      int length = i % 100 == 0 ? 20000 + i : i % 37;
+      for (int j = 0; j < length; j++) {
+        line.append(j % 11 == 0 ? '\u00e9' : (char) ('a' + j % 26));
+      }
+      expected.add(line.toString());
+      data.append(line).append(separators[i % separators.length]);
+    }
+    runTestReadWithData(data.toString().getBytes(StandardCharsets.UTF_8), expected);
+  }
+
   private void runTestReadWithData(byte[] data, List<String> expectedResults) throws Exception {
     TextSource<String> source = prepareSource(data);
     List<String> actual = SourceTestUtils.readFromSource(source, PipelineOptionsFactory.create());
@@ -20,17 +20,23 @@ package org.apache.beam.sdk.transforms;
 import static org.apache.beam.sdk.TestUtils.checkCombineFn;
 import static org.apache.beam.sdk.transforms.display.DisplayDataMatchers.hasDisplayItem;
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.lessThan;
 import static org.hamcrest.collection.IsIterableContainingInOrder.contains;
+import static org.junit.Assert.assertEquals;
 
 import org.apache.beam.sdk.Pipeline;
 import org.apache.beam.sdk.coders.BigEndianIntegerCoder;
+import org.apache.beam.sdk.coders.Coder;
 import org.apache.beam.sdk.coders.KvCoder;
 import org.apache.beam.sdk.coders.StringUtf8Coder;
 import org.apache.beam.sdk.testing.NeedsRunner;
 import org.apache.beam.sdk.testing.PAssert;
 import org.apache.beam.sdk.testing.TestPipeline;
 import org.apache.beam.sdk.transforms.ApproximateQuantiles.ApproximateQuantilesCombineFn;
+import org.apache.beam.sdk.transforms.ApproximateQuantiles.NumericQuantilesCombineFn;
+import org.apache.beam.sdk.transforms.ApproximateQuantiles.QuantileSketch;
 import org.apache.beam.sdk.transforms.display.DisplayData;
+import org.apache.beam.sdk.util.CoderUtils;
 import org.apache.beam.sdk.values.KV;
 import org.apache.beam.sdk.values.PCollection;
 
@@ -38,8 +44,10 @@ import org.hamcrest.CoreMatchers;
 import org.hamcrest.Description;
 import org.hamcrest.Matcher;
 import org.hamcrest.TypeSafeDiagnosingMatcher;
+import org.junit.Rule;
 import org.junit.Test;
 import org.junit.experimental.categories.Category;
+import org.junit.rules.ExpectedException;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
@@ -54,6 +62,7 @@ import java.util.List;
  */
 @RunWith(JUnit4.class)
 public class ApproximateQuantilesTest {
+  @Rule public ExpectedException thrown = ExpectedException.none();
 
   static final List<KV<String, Integer>> TABLE = Arrays.asList(
       KV.of("a", 1),
@@ -133,6 +142,27 @@ public class ApproximateQuantilesTest {
     p.run();
   }
 
+  @Test
+  @Category(NeedsRunner.class)
+  public void testNumericQuantiles() {
+    Pipeline p = TestPipeline.create();
+
+    PCollection<KV<String, Integer>> input = createInputTable(p);
+    PCollection<List<Double>> quantiles = input
+        .apply(Values.<Integer>create())
+        .apply(ApproximateQuantiles.<Integer>numericGlobally(3));
+    PCollection<KV<String, List<Double>>> quantilesPerKey = input.apply(
+        ApproximateQuantiles.<String, Integer>numericPerKey(2));
+
+    PAssert.that(quantiles)
+        .containsInAnyOrder(Arrays.asList(1.0, 3.0, 100.0));
+    PAssert.that(quantilesPerKey)
+        .containsInAnyOrder(
+            KV.of("a", Arrays.asList(1.0, 3.0)),
+            KV.of("b", Arrays.asList(1.0, 100.0)));
+    p.run();
+  }
+
   @Test
   public void testSingleton() {
     checkCombineFn(
@@ -240,6 +270,84 @@ public class ApproximateQuantilesTest {
         Arrays.asList("b", "aaa", "ccccc"));
   }
 
+  @Test
+  public void testNumericSingleton() {
+    checkCombineFn(
+        NumericQuantilesCombineFn.<Integer>create(5),
+        Arrays.asList(389),
+        Arrays.asList(389.0, 389.0, 389.0, 389.0, 389.0));
+  }
+
+  @Test
+  public void testNumericSimpleQuantiles() {
+    checkCombineFn(
+        NumericQuantilesCombineFn.<Integer>create(5),
+        intRange(101),
+        Arrays.asList(0.0, 25.0, 50.0, 75.0, 100.0));
+  }
+
+  @Test
+  public void testNumericDuplicates() {
+    List<Long> all = new ArrayList<>();
+    for (int i = 0; i < 10; i++) {
+      for (long j = 0; j < 101; j++) {
+        all.add(j);
+      }
+    }
+    checkCombineFn(
+        NumericQuantilesCombineFn.<Long>create(5),
+        all,
+        numericQuantileMatcher(101, 5, 2 /* tolerance */));
+  }
+
+  @Test
+  public void testNumericLargerQuantiles() {
+    checkCombineFn(
+        NumericQuantilesCombineFn.<Integer>create(50),
+        intRange(10001),
+        numericQuantileMatcher(10001, 50, 200 /* tolerance */));
+  }
+
+  @Test
+  public void testNumericSmallK() {
+    checkCombineFn(
+        NumericQuantilesCombineFn.<Integer>create(5, 20),
+        intRange(10001),
+        numericQuantileMatcher(10001, 5, 1500 /* tolerance */));
+  }
+
+  @Test
+  public void testNumericSketchSizeIsBounded() throws Exception {
+    NumericQuantilesCombineFn<Integer> fn = NumericQuantilesCombineFn.create(5);
+    Coder<QuantileSketch<Integer>> coder =
+        fn.getAccumulatorCoder(null, BigEndianIntegerCoder.of());
+
+    QuantileSketch<Integer> sketch = fn.createAccumulator();
+    for (int i = 0; i < 1000000; i++) {
+      sketch.addInput(i);
+    }
+    byte[] encoded = CoderUtils.encodeToByteArray(coder, sketch);
+    assertThat(encoded.length,
+        lessThan(8 * 4 * NumericQuantilesCombineFn.DEFAULT_K));
+
+    QuantileSketch<Integer> decoded = CoderUtils.decodeFromByteArray(coder, encoded);
+    assertEquals(sketch.extractOutput(), decoded.extractOutput());
+    assertThat(decoded.extractOutput(), numericQuantileMatcher(1000000, 5, 10000));
+  }
+
+  @Test
+  public void testNumericSketchMergeDifferentKThrows() {
+    QuantileSketch<Integer> sketch = NumericQuantilesCombineFn.<Integer>create(5, 20)
+        .createAccumulator();
+    QuantileSketch<Integer> other = NumericQuantilesCombineFn.<Integer>create(5, 40)
+        .createAccumulator();
+    other.addInput(1);
+
+    thrown.expect(IllegalArgumentException.class);
+    thrown.expectMessage("k = 40");
+    sketch.mergeAccumulator(other);
+  }
+
   @Test
   public void testDisplayData() {
     Top.Largest<Integer> comparer = new Top.Largest<Integer>();
@@ -248,6 +356,10 @@ public class ApproximateQuantilesTest {
 
     assertThat(displayData, hasDisplayItem("numQuantiles", 20));
     assertThat(displayData, hasDisplayItem("comparer", comparer.getClass()));
+
+    DisplayData numericDisplayData = DisplayData.from(NumericQuantilesCombineFn.create(20, 100));
+    assertThat(numericDisplayData, hasDisplayItem("numQuantiles", 20));
+    assertThat(numericDisplayData, hasDisplayItem("k", 100));
   }
 
   private Matcher<Iterable<? extends Integer>> quantileMatcher(
@@ -263,6 +375,19 @@ public class ApproximateQuantilesTest {
     return contains(quantiles);
   }
 
+  private Matcher<Iterable<? extends Double>> numericQuantileMatcher(
+      int size, int numQuantiles, int absoluteError) {
+    List<Matcher<? super Double>> quantiles = new ArrayList<>();
+    quantiles.add(CoreMatchers.is(0.0));
+    for (int k = 1; k < numQuantiles - 1; k++) {
+      double expected = ((double) (size - 1)) * k / (numQuantiles - 1);
+      quantiles.add(new Between<>(
+          expected - absoluteError, expected + absoluteError));
+    }
+    quantiles.add(CoreMatchers.is(size - 1.0));
+    return contains(quantiles);
+  }
+
   private static class Between<T extends Comparable<T>>
       extends TypeSafeDiagnosingMatcher<T> {
     private final T min;
@@ -19,17 +19,25 @@ package org.apache.beam.sdk.transforms;
 
 import static org.apache.beam.sdk.transforms.display.DisplayDataMatchers.hasDisplayItem;
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.not;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import org.apache.beam.sdk.Pipeline;
 import org.apache.beam.sdk.TestUtils;
+import org.apache.beam.sdk.coders.BigEndianIntegerCoder;
+import org.apache.beam.sdk.coders.Coder;
 import org.apache.beam.sdk.testing.NeedsRunner;
 import org.apache.beam.sdk.testing.PAssert;
 import org.apache.beam.sdk.testing.RunnableOnService;
 import org.apache.beam.sdk.testing.TestPipeline;
+import org.apache.beam.sdk.transforms.ApproximateUnique.HyperLogLogCombineFn;
+import org.apache.beam.sdk.transforms.ApproximateUnique.HyperLogLogCombineFn.Sketch;
 import org.apache.beam.sdk.transforms.display.DisplayData;
+import org.apache.beam.sdk.util.CoderUtils;
 import org.apache.beam.sdk.values.KV;
 import org.apache.beam.sdk.values.PCollection;
 import org.apache.beam.sdk.values.PCollectionView;
@@ -200,6 +208,141 @@ public class ApproximateUniqueTest implements Serializable {
     }
   }
 
+  @Test
+  @Category(NeedsRunner.class)
+  public void testApproximateUniqueWithHyperLogLog() {
+    List<Integer> elements = Lists.newArrayList();
+    for (int i = 0; i < 50000; i++) {
+      elements.add(i % 20000);
+    }
+    Collections.shuffle(elements);
+
+    Pipeline p = TestPipeline.create();
+    PCollection<Integer> input = p.apply(Create.of(elements));
+    PCollection<Long> estimate =
+        input.apply(ApproximateUnique.<Integer>globally(1000).withHyperLogLog());
+    PCollection<KV<Long, Long>> estimatePerKey = input
+        .apply(WithKeys.<Long, Integer>of(20000L))
+        .apply(ApproximateUnique.<Long, Integer>perKey(1000).withHyperLogLog());
+
+    PAssert.thatSingleton(estimate).satisfies(new VerifyEstimateFn(20000, 1000));
+    PAssert.that(estimatePerKey).satisfies(new VerifyEstimatePerKeyFn(1000));
+
+    p.run();
+  }
+
+  @Test
+  public void testHyperLogLogPrecisionForSampleSize() {
+    assertEquals(4, HyperLogLogCombineFn.precisionForSampleSize(16));
+    assertEquals(5, HyperLogLogCombineFn.precisionForSampleSize(100));
+    assertEquals(9, HyperLogLogCombineFn.precisionForSampleSize(1000));
+    assertEquals(12, HyperLogLogCombineFn.precisionForSampleSize(10000));
+    assertEquals(14, HyperLogLogCombineFn.precisionForSampleSize(40000));
+    assertEquals(18, HyperLogLogCombineFn.precisionForSampleSize(Integer.MAX_VALUE));
+  }
+
+  @Test
+  public void testHyperLogLogIsExactForSmallInputs() {
+    HyperLogLogCombineFn<Integer> fn = new HyperLogLogCombineFn<>(12, BigEndianIntegerCoder.of());
+    assertEquals(0L, (long) fn.apply(Collections.<Integer>emptyList()));
+    assertEquals(1L, (long) fn.apply(Arrays.asList(7, 7, 7)));
+    assertEquals(1000L, (long) fn.apply(range(0, 1000)));
+  }
+
+  @Test
+  public void testHyperLogLogEstimationError() {
+    for (int precision : new int[] {4, 10, 14}) {
+      HyperLogLogCombineFn<Integer> fn =
+          new HyperLogLogCombineFn<>(precision, BigEndianIntegerCoder.of());
+      double maxError = 4 * 1.04 / Math.sqrt(1 << precision);
+      for (int uniqueCount : new int[] {100, 5000, 200000}) {
+        long estimate = fn.apply(range(0, uniqueCount));
+        double error = Math.abs(estimate - uniqueCount) / (double) uniqueCount;
+        assertThat("Estimate " + estimate + " of " + uniqueCount + " for precision " + precision,
+            error, lessThan(maxError));
+      }
+    }
+  }
+
+  @Test
+  public void testHyperLogLogMergeIsIndependentOfSplits() {
+    HyperLogLogCombineFn<Integer> fn = new HyperLogLogCombineFn<>(10, BigEndianIntegerCoder.of());
+    long expected = fn.apply(range(0, 30000));
+
+    // A dense and two sparse sketches with overlapping values.
+    Sketch first = addAll(fn, fn.createAccumulator(), range(0, 20000));
+    Sketch second = addAll(fn, fn.createAccumulator(), range(19900, 20000));
+    Sketch third = addAll(fn, fn.createAccumulator(), range(29950, 30000));
+    Sketch rest = addAll(fn, fn.createAccumulator(), range(20000, 29950));
+
+    Sketch sparse = fn.mergeAccumulators(Arrays.asList(second, third));
+    assertEquals(150L, (long) fn.extractOutput(sparse));
+    assertEquals(expected,
+        (long) fn.extractOutput(fn.mergeAccumulators(Arrays.asList(sparse, first, rest))));
+  }
+
+  @Test
+  public void testHyperLogLogMergeRejectsDifferentPrecisions() {
+    HyperLogLogCombineFn<Integer> fn = new HyperLogLogCombineFn<>(10, BigEndianIntegerCoder.of());
+    HyperLogLogCombineFn<Integer> otherFn =
+        new HyperLogLogCombineFn<>(11, BigEndianIntegerCoder.of());
+    try {
+      fn.mergeAccumulators(Arrays.asList(fn.createAccumulator(), otherFn.createAccumulator()));
+      fail("Merged sketches of different precisions");
+    } catch (IllegalArgumentException e) {
+      assertTrue(e.getMessage().startsWith("Cannot merge sketches of precision 10 and 11"));
+    }
+  }
+
+  @Test
+  public void testHyperLogLogAccumulatorCoder() throws Exception {
+    HyperLogLogCombineFn<Integer> fn = new HyperLogLogCombineFn<>(12, BigEndianIntegerCoder.of());
+    Coder<Sketch> coder = fn.getAccumulatorCoder(null, BigEndianIntegerCoder.of());
+
+    for (int uniqueCount : new int[] {0, 10, 1000, 100000}) {
+      Sketch sketch = addAll(fn, fn.createAccumulator(), range(0, uniqueCount));
+      long estimate = fn.extractOutput(sketch);
+      byte[] encoded = CoderUtils.encodeToByteArray(coder, sketch);
+      assertThat(encoded.length, lessThan((1 << 12) + 8));
+
+      Sketch decoded = CoderUtils.decodeFromByteArray(coder, encoded);
+      assertEquals(estimate, (long) fn.extractOutput(decoded));
+      // The decoded sketch can still be added to.
+      addAll(fn, decoded, range(uniqueCount, uniqueCount + 10));
+      assertEquals(fn.apply(range(0, uniqueCount + 10)), fn.extractOutput(decoded));
+    }
+  }
+
+  @Test
+  public void testHyperLogLogAccumulatorCoderEncodesBufferedEntries() throws Exception {
+    HyperLogLogCombineFn<Integer> fn = new HyperLogLogCombineFn<>(12, BigEndianIntegerCoder.of());
+    Coder<Sketch> coder = fn.getAccumulatorCoder(null, BigEndianIntegerCoder.of());
+
+    // Few enough values that the last ones are still buffered when encoding.
+    Sketch sketch = addAll(fn, fn.createAccumulator(), range(0, 100));
+    byte[] encoded = CoderUtils.encodeToByteArray(coder, sketch);
+    assertEquals(100L, (long) fn.extractOutput(CoderUtils.decodeFromByteArray(coder, encoded)));
+    assertEquals(100L, (long) fn.extractOutput(sketch));
+    // Sorting the buffer while extracting the output does not change the encoding.
+    assertArrayEquals(encoded, CoderUtils.encodeToByteArray(coder, sketch));
+  }
+
+  private static Sketch addAll(
+      HyperLogLogCombineFn<Integer> fn, Sketch sketch, List<Integer> values) {
+    for (Integer value : values) {
+      sketch = fn.addInput(sketch, value);
+    }
+    return sketch;
+  }
+
+  private static List<Integer> range(int from, int to) {
+    List<Integer> values = new ArrayList<>(to - from);
+    for (int i = from; i < to; i++) {
+      values.add(i);
+    }
+    return values;
+  }
+
   @Test
   public void testApproximateUniqueGetName() {
     assertEquals("ApproximateUnique.PerKey", ApproximateUnique.<Long, Long>perKey(16).getName());
@@ -311,5 +454,11 @@ public class ApproximateUniqueTest implements Serializable {
     assertThat(maxErrorDisplayData, hasDisplayItem("maximumEstimationError", 0.1234));
     assertThat("calculated sampleSize should be included", maxErrorDisplayData,
         hasDisplayItem("sampleSize"));
+    assertThat(maxErrorDisplayData, not(hasDisplayItem("hyperLogLogPrecision")));
+
+    DisplayData hyperLogLogDisplayData =
+        DisplayData.from(ApproximateUnique.globally(10000).withHyperLogLog());
+    assertThat(hyperLogLogDisplayData, hasDisplayItem("sampleSize", 10000));
+    assertThat(hyperLogLogDisplayData, hasDisplayItem("hyperLogLogPrecision", 12));
   }
 }
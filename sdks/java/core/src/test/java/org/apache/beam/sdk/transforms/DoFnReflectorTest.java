@@ -26,8 +26,10 @@ import org.apache.beam.sdk.transforms.DoFnWithContext.ExtraContextFactory;
 import org.apache.beam.sdk.transforms.DoFnWithContext.ProcessContext;
 import org.apache.beam.sdk.transforms.DoFnWithContext.ProcessElement;
 import org.apache.beam.sdk.transforms.windowing.BoundedWindow;
+import org.apache.beam.sdk.util.UserCodeException;
 import org.apache.beam.sdk.util.WindowingInternals;
 
+import org.hamcrest.Matchers;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
@@ -37,6 +39,7 @@ import org.junit.runners.JUnit4;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
+import java.io.IOException;
 import java.lang.reflect.Method;
 
 /**
@@ -197,6 +200,73 @@ public class DoFnReflectorTest {
     checkInvokeProcessElementWorks(reflector);
   }
 
+  @Test
+  public void testDoFnWithWindowAndWindowingInternals() throws Exception {
+    DoFnReflector reflector = underTest(new DoFnWithContext<String, String>() {
+
+      @ProcessElement
+      public void processElement(ProcessContext c, WindowingInternals<String, String> wi,
+          BoundedWindow w) throws Exception {
+        wasProcessElementInvoked = true;
+        assertSame(c, mockContext);
+        assertSame(wi, mockWindowingInternals);
+        assertSame(w, mockWindow);
+      }
+    });
+
+    assertTrue(reflector.usesSingleWindow());
+
+    checkInvokeProcessElementWorks(reflector);
+  }
+
+  @Test
+  public void testDoFnWithManyExtraContexts() throws Exception {
+    DoFnReflector reflector = underTest(new DoFnWithContext<String, String>() {
+
+      @ProcessElement
+      public void processElement(ProcessContext c, BoundedWindow w1,
+          WindowingInternals<String, String> wi, BoundedWindow w2) throws Exception {
+        wasProcessElementInvoked = true;
+        assertSame(c, mockContext);
+        assertSame(w1, mockWindow);
+        assertSame(wi, mockWindowingInternals);
+        assertSame(w2, mockWindow);
+      }
+    });
+
+    checkInvokeProcessElementWorks(reflector);
+  }
+
+  @Test
+  public void testProcessElementExceptionIsWrapped() throws Exception {
+    DoFnReflector reflector = underTest(new DoFnWithContext<String, String>() {
+
+      @ProcessElement
+      public void processElement(ProcessContext c) throws Exception {
+        throw new IOException("user code failed");
+      }
+    });
+
+    thrown.expect(UserCodeException.class);
+    thrown.expectCause(Matchers.isA(IOException.class));
+    reflector.invokeProcessElement(fn, mockContext, extraContextFactory);
+  }
+
+  @Test
+  public void testProcessElementRuntimeExceptionIsWrapped() throws Exception {
+    DoFnReflector reflector = underTest(new DoFnWithContext<String, String>() {
+
+      @ProcessElement
+      public void processElement(ProcessContext c) {
+        throw new IllegalArgumentException("user code failed");
+      }
+    });
+
+    thrown.expect(UserCodeException.class);
+    thrown.expectCause(Matchers.isA(IllegalArgumentException.class));
+    reflector.invokeProcessElement(fn, mockContext, extraContextFactory);
+  }
+
   @Test
   public void testDoFnWithStartBundle() throws Exception {
     DoFnReflector reflector = underTest(new DoFnWithContext<String, String>() {
@@ -17,21 +17,29 @@
  */
 package org.apache.beam.sdk.transforms;
 
+import static org.apache.beam.sdk.TestUtils.checkCombineFn;
 import static org.apache.beam.sdk.transforms.display.DisplayDataMatchers.hasDisplayItem;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
 
 import org.apache.beam.sdk.Pipeline;
 import org.apache.beam.sdk.coders.BigEndianIntegerCoder;
+import org.apache.beam.sdk.coders.Coder;
+import org.apache.beam.sdk.coders.DoubleCoder;
 import org.apache.beam.sdk.coders.KvCoder;
 import org.apache.beam.sdk.coders.StringUtf8Coder;
+import org.apache.beam.sdk.coders.VarLongCoder;
 import org.apache.beam.sdk.testing.NeedsRunner;
 import org.apache.beam.sdk.testing.PAssert;
 import org.apache.beam.sdk.testing.TestPipeline;
+import org.apache.beam.sdk.transforms.Top.BoundedHeap;
+import org.apache.beam.sdk.transforms.Top.TopCombineFn;
 import org.apache.beam.sdk.transforms.display.DisplayData;
 import org.apache.beam.sdk.transforms.windowing.FixedWindows;
 import org.apache.beam.sdk.transforms.windowing.Window;
 import org.apache.beam.sdk.transforms.windowing.Window.Bound;
+import org.apache.beam.sdk.util.CoderUtils;
 import org.apache.beam.sdk.values.KV;
 import org.apache.beam.sdk.values.PCollection;
 
@@ -45,10 +53,12 @@ import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
+import java.util.Random;
 
 /** Tests for Top. */
 @RunWith(JUnit4.class)
@@ -241,6 +251,89 @@ public class TopTest {
     assertEquals("Largest.PerKey", Top.<String, Integer>largestPerKey(2).getName());
   }
 
+  @Test
+  public void testNumericTopMatchesComparatorTop() {
+    Random random = new Random(17);
+    List<Long> longs = new ArrayList<>();
+    List<Integer> ints = new ArrayList<>();
+    List<Double> doubles = new ArrayList<>();
+    for (int i = 0; i < 1000; i++) {
+      longs.add(random.nextLong() % 100);
+      longs.add(random.nextLong());
+      ints.add(random.nextInt());
+      doubles.add(random.nextGaussian());
+    }
+    longs.addAll(Arrays.asList(Long.MIN_VALUE, Long.MAX_VALUE, 0L));
+    ints.addAll(Arrays.asList(Integer.MIN_VALUE, Integer.MAX_VALUE, 0));
+    doubles.addAll(Arrays.asList(Double.NaN, Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY,
+        -0.0, 0.0, Double.MIN_VALUE, -Double.MAX_VALUE));
+
+    checkNumericTop(longs);
+    checkNumericTop(ints);
+    checkNumericTop(doubles);
+  }
+
+  private static <T extends Comparable<T>> void checkNumericTop(List<T> values) {
+    for (int count : new int[] {0, 1, 10, values.size() + 1}) {
+      List<T> sorted = new ArrayList<>(values);
+      Collections.sort(sorted, Collections.reverseOrder());
+      checkCombineFn(new TopCombineFn<>(count, new Top.Largest<T>()),
+          values, sorted.subList(0, Math.min(count, sorted.size())));
+
+      Collections.sort(sorted);
+      checkCombineFn(new TopCombineFn<>(count, new Top.Smallest<T>()),
+          values, sorted.subList(0, Math.min(count, sorted.size())));
+    }
+  }
+
+  @Test
+  public void testDefaultAccumulatorCoderNotNumeric() throws Exception {
+    TopCombineFn<Long, Top.Largest<Long>> fn = new TopCombineFn<>(3, new Top.Largest<Long>());
+    Coder<BoundedHeap<Long, Top.Largest<Long>>> coder =
+        fn.getAccumulatorCoder(null, VarLongCoder.of());
+
+    BoundedHeap<Long, Top.Largest<Long>> heap = fn.createAccumulator();
+    for (long value : new long[] {5, -7, Long.MAX_VALUE, 3, Long.MIN_VALUE, 4}) {
+      heap = fn.addInput(heap, value);
+    }
+    byte[] encoded = CoderUtils.encodeToByteArray(coder, heap);
+    assertNotEquals(1 + 3 * 8, encoded.length);
+    assertEquals(Arrays.asList(Long.MAX_VALUE, 5L, 4L),
+        fn.extractOutput(CoderUtils.decodeFromByteArray(coder, encoded)));
+  }
+
+  @Test
+  public void testNumericAccumulatorCoder() throws Exception {
+    TopCombineFn<Long, Top.Largest<Long>> fn =
+        new TopCombineFn<>(3, new Top.Largest<Long>()).withNumericAccumulatorCoder();
+    Coder<BoundedHeap<Long, Top.Largest<Long>>> coder =
+        fn.getAccumulatorCoder(null, VarLongCoder.of());
+
+    BoundedHeap<Long, Top.Largest<Long>> heap = fn.createAccumulator();
+    for (long value : new long[] {5, -7, Long.MAX_VALUE, 3, Long.MIN_VALUE, 4}) {
+      heap = fn.addInput(heap, value);
+    }
+    byte[] encoded = CoderUtils.encodeToByteArray(coder, heap);
+    assertEquals(1 + 3 * 8, encoded.length);
+
+    BoundedHeap<Long, Top.Largest<Long>> decoded =
+        CoderUtils.decodeFromByteArray(coder, encoded);
+    assertEquals(Arrays.asList(Long.MAX_VALUE, 5L, 4L), fn.extractOutput(decoded));
+    decoded = fn.addInput(decoded, 6L);
+    assertEquals(Arrays.asList(Long.MAX_VALUE, 6L, 5L), fn.extractOutput(decoded));
+
+    TopCombineFn<Double, Top.Smallest<Double>> smallestFn =
+        new TopCombineFn<>(2, new Top.Smallest<Double>()).withNumericAccumulatorCoder();
+    Coder<BoundedHeap<Double, Top.Smallest<Double>>> doubleCoder =
+        smallestFn.getAccumulatorCoder(null, DoubleCoder.of());
+    BoundedHeap<Double, Top.Smallest<Double>> doubleHeap = smallestFn.createAccumulator();
+    for (double value : new double[] {1.5, -0.0, Double.NaN, 0.0}) {
+      doubleHeap = smallestFn.addInput(doubleHeap, value);
+    }
+    assertEquals(Arrays.asList(-0.0, 0.0), smallestFn.extractOutput(
+        CoderUtils.clone(doubleCoder, doubleHeap)));
+  }
+
   @Test
   public void testDisplayData() {
     Top.Largest<Integer> comparer = new Top.Largest<Integer>();
@@ -18,6 +18,7 @@
 package org.apache.beam.sdk.util;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyLong;
 import static org.mockito.Matchers.anyString;
@@ -36,6 +37,7 @@ import org.apache.beam.sdk.transforms.Combine.CombineFn;
 import org.apache.beam.sdk.transforms.Sum;
 
 import com.google.api.services.bigquery.Bigquery;
+import com.google.api.services.bigquery.model.ErrorProto;
 import com.google.api.services.bigquery.model.Table;
 import com.google.api.services.bigquery.model.TableCell;
 import com.google.api.services.bigquery.model.TableDataInsertAllRequest;
@@ -64,8 +66,17 @@ import org.mockito.stubbing.Answer;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Tests for util classes related to BigQuery.
@@ -451,6 +462,282 @@ public class BigQueryUtilTest {
     }
   }
 
+  @Test
+  public void testInsertAllRetriesOnlyFailedRows() throws Exception {
+    final List<List<String>> requests =
+        Collections.synchronizedList(new ArrayList<List<String>>());
+    final AtomicBoolean failed = new AtomicBoolean();
+    when(mockClient.tabledata()).thenReturn(mockTabledata);
+    doAnswer(
+        new Answer<Bigquery.Tabledata.InsertAll>() {
+          @Override
+          public Bigquery.Tabledata.InsertAll answer(InvocationOnMock invocation) throws Throwable {
+            TableDataInsertAllRequest content =
+                (TableDataInsertAllRequest) invocation.getArguments()[3];
+            List<String> ids = new ArrayList<>();
+            List<TableDataInsertAllResponse.InsertErrors> errors = new ArrayList<>();
+            for (int i = 0; i < content.getRows().size(); i++) {
+              String id = content.getRows().get(i).getInsertId();
+              ids.add(id);
+              // Row 3 fails its first attempt only.
+              if (id.equals("3") && failed.compareAndSet(false, true)) {
+                errors.add(new TableDataInsertAllResponse.InsertErrors().setIndex((long) i));
+              }
+            }
+            requests.add(ids);
+            Bigquery.Tabledata.InsertAll mockInsertAll = mock(Bigquery.Tabledata.InsertAll.class);
+            when(mockInsertAll.execute())
+                .thenReturn(new TableDataInsertAllResponse().setInsertErrors(errors));
+            return mockInsertAll;
+          }
+        })
+        .when(mockTabledata)
+        .insertAll(anyString(), anyString(), anyString(), any(TableDataInsertAllRequest.class));
+
+    TableReference ref = BigQueryIO.parseTableSpec("project:dataset.table");
+    BigQueryTableInserter inserter = new BigQueryTableInserter(mockClient, 5);
+    List<TableRow> rows = new ArrayList<>();
+    List<String> ids = new ArrayList<>();
+    for (int i = 0; i < 10; ++i) {
+      rows.add(rawRow("foo", i));
+      ids.add(String.valueOf(i));
+    }
+
+    try {
+      inserter.insertAll(ref, rows, ids, null);
+    } finally {
+      verifyInsertAll(3);
+    }
+    // Only the failed row is sent again.
+    assertThat(requests, Matchers.containsInAnyOrder(
+        Arrays.asList("0", "1", "2", "3", "4"),
+        Arrays.asList("5", "6", "7", "8", "9"),
+        Arrays.asList("3")));
+    assertEquals(0, inserter.getRowsInFlight(ref));
+  }
+
+  @Test
+  public void testInsertAllUnattributedErrorReportedOncePerCall() throws Exception {
+    Bigquery.Tabledata.InsertAll mockInsertAll = mock(Bigquery.Tabledata.InsertAll.class);
+    when(mockClient.tabledata()).thenReturn(mockTabledata);
+    when(mockTabledata.insertAll(
+        anyString(), anyString(), anyString(), any(TableDataInsertAllRequest.class)))
+        .thenReturn(mockInsertAll);
+    when(mockInsertAll.execute()).thenReturn(new TableDataInsertAllResponse().setInsertErrors(
+        Arrays.asList(new TableDataInsertAllResponse.InsertErrors().setErrors(
+            Arrays.asList(new ErrorProto().setReason("unattributed"))))));
+
+    TableReference ref = BigQueryIO.parseTableSpec("project:dataset.table");
+    BigQueryTableInserter inserter = new BigQueryTableInserter(mockClient);
+    List<TableRow> rows = Arrays.asList(rawRow("foo", 1), rawRow("foo", 2), rawRow("foo", 3));
+    InMemoryLongSumAggregator rowsInFlight = new InMemoryLongSumAggregator("RowsInFlight");
+
+    try {
+      inserter.insertAll(ref, rows, null, null, rowsInFlight);
+      Assert.fail("Expected the insert to fail");
+    } catch (IOException e) {
+      assertEquals(1, e.getMessage().split("unattributed", -1).length - 1);
+    } finally {
+      verifyInsertAll(1);
+    }
+    assertEquals(3L, rowsInFlight.getSum());
+    assertEquals(0, inserter.getRowsInFlight(ref));
+  }
+
+  @Test
+  public void testInsertAllReleasedWhenRequestThrowsError() throws Exception {
+    Bigquery.Tabledata.InsertAll mockInsertAll = mock(Bigquery.Tabledata.InsertAll.class);
+    when(mockClient.tabledata()).thenReturn(mockTabledata);
+    when(mockTabledata.insertAll(
+        anyString(), anyString(), anyString(), any(TableDataInsertAllRequest.class)))
+        .thenReturn(mockInsertAll);
+    when(mockInsertAll.execute()).thenThrow(new AssertionError("Unexpected error"));
+
+    TableReference ref = BigQueryIO.parseTableSpec("project:dataset.table");
+    BigQueryTableInserter inserter = new BigQueryTableInserter(mockClient);
+
+    thrown.expect(RuntimeException.class);
+    thrown.expectMessage("Unexpected error");
+    try {
+      inserter.insertAll(ref, Arrays.asList(rawRow("foo", 1), rawRow("foo", 2)));
+    } finally {
+      verifyInsertAll(1);
+      assertEquals(0, inserter.getRowsInFlight(ref));
+    }
+  }
+
+  /**
+   * Makes the mocked client record the insert ids of every request, and complete each request
+   * without errors once {@code release} is counted down and {@code latencyMs} have elapsed.
+   * Tracks the number of requests in flight and the largest number seen.
+   */
+  private void onInsertAllRecording(
+      final List<List<String>> requests, final CountDownLatch release, final long latencyMs,
+      final AtomicInteger inFlight, final AtomicInteger maxInFlight) throws Exception {
+    when(mockClient.tabledata()).thenReturn(mockTabledata);
+    doAnswer(
+        new Answer<Bigquery.Tabledata.InsertAll>() {
+          @Override
+          public Bigquery.Tabledata.InsertAll answer(InvocationOnMock invocation) throws Throwable {
+            TableDataInsertAllRequest content =
+                (TableDataInsertAllRequest) invocation.getArguments()[3];
+            final List<String> ids = new ArrayList<>();
+            for (TableDataInsertAllRequest.Rows row : content.getRows()) {
+              ids.add(row.getInsertId());
+            }
+            Bigquery.Tabledata.InsertAll mockInsertAll = mock(Bigquery.Tabledata.InsertAll.class);
+            doAnswer(new Answer<TableDataInsertAllResponse>() {
+              @Override
+              public TableDataInsertAllResponse answer(InvocationOnMock execute)
+                  throws Throwable {
+                int current = inFlight.incrementAndGet();
+                synchronized (maxInFlight) {
+                  maxInFlight.set(Math.max(maxInFlight.get(), current));
+                }
+                try {
+                  release.await();
+                  Thread.sleep(latencyMs);
+                  requests.add(ids);
+                  return new TableDataInsertAllResponse();
+                } finally {
+                  inFlight.decrementAndGet();
+                }
+              }
+            }).when(mockInsertAll).execute();
+            return mockInsertAll;
+          }
+        })
+        .when(mockTabledata)
+        .insertAll(anyString(), anyString(), anyString(), any(TableDataInsertAllRequest.class));
+  }
+
+  /** Returns {@code numRows} rows, and adds their insert ids, {@code prefix} and an index. */
+  private List<TableRow> rowsWithIds(String prefix, int numRows, List<String> ids) {
+    List<TableRow> rows = new ArrayList<>();
+    for (int i = 0; i < numRows; i++) {
+      rows.add(rawRow("foo", i));
+      ids.add(prefix + i);
+    }
+    return rows;
+  }
+
+  @Test
+  public void testInsertAllHonorsMaxRowsPerBatchOfEachCaller() throws Exception {
+    final List<List<String>> requests =
+        Collections.synchronizedList(new ArrayList<List<String>>());
+    CountDownLatch release = new CountDownLatch(1);
+    AtomicInteger inFlight = new AtomicInteger();
+    onInsertAllRecording(requests, release, 0, inFlight, new AtomicInteger());
+
+    final TableReference ref = BigQueryIO.parseTableSpec("project:dataset.table");
+    final BigQueryTableInserter large = new BigQueryTableInserter(mockClient, 10);
+    final BigQueryTableInserter small = new BigQueryTableInserter(mockClient, 2);
+    ExecutorService callers = Executors.newCachedThreadPool();
+    List<Future<Void>> calls = new ArrayList<>();
+    try {
+      // Fill the requests in flight for the table, so that the following rows are queued.
+      for (int i = 0; i < 16; i++) {
+        calls.add(callers.submit(insertCall(large, ref, "fill" + i + "-", 1)));
+      }
+      while (inFlight.get() < 16) {
+        Thread.sleep(1);
+      }
+      calls.add(callers.submit(insertCall(large, ref, "large", 5)));
+      calls.add(callers.submit(insertCall(small, ref, "small", 5)));
+      while (large.getRowsInFlight(ref) < 26) {
+        Thread.sleep(1);
+      }
+      release.countDown();
+      for (Future<Void> call : calls) {
+        call.get();
+      }
+    } finally {
+      release.countDown();
+      callers.shutdownNow();
+      verifyInsertAll(requests.size());
+    }
+
+    int smallRows = 0;
+    for (List<String> request : requests) {
+      for (String id : request) {
+        if (id.startsWith("small")) {
+          smallRows++;
+          assertThat(request.size(), Matchers.lessThanOrEqualTo(2));
+        }
+      }
+      assertThat(request.size(), Matchers.lessThanOrEqualTo(10));
+    }
+    assertEquals(5, smallRows);
+    assertEquals(0, large.getRowsInFlight(ref));
+  }
+
+  private Callable<Void> insertCall(
+      final BigQueryTableInserter inserter, final TableReference ref, final String prefix,
+      final int numRows) {
+    return new Callable<Void>() {
+      @Override
+      public Void call() throws Exception {
+        List<String> ids = new ArrayList<>();
+        inserter.insertAll(ref, rowsWithIds(prefix, numRows, ids), ids, null);
+        return null;
+      }
+    };
+  }
+
+  /**
+   * Measures the rows per second inserted by many concurrent callers into one table through a
+   * fake client with a fixed request latency. Rows of concurrent callers are coalesced into
+   * shared requests, and no more than 16 requests are in flight for the table.
+   */
+  @Test
+  public void testInsertAllThroughputWithFakeClient() throws Exception {
+    final int numCallers = 64;
+    final int callsPerCaller = 20;
+    final int rowsPerCall = 10;
+    final List<List<String>> requests =
+        Collections.synchronizedList(new ArrayList<List<String>>());
+    AtomicInteger maxInFlight = new AtomicInteger();
+    onInsertAllRecording(requests, new CountDownLatch(0), 5, new AtomicInteger(), maxInFlight);
+
+    final TableReference ref = BigQueryIO.parseTableSpec("project:dataset.table");
+    final BigQueryTableInserter inserter = new BigQueryTableInserter(mockClient);
+    ExecutorService callers = Executors.newFixedThreadPool(numCallers);
+    List<Future<Void>> calls = new ArrayList<>();
+    long startNanos = System.nanoTime();
+    try {
+      for (int i = 0; i < numCallers; i++) {
+        final String prefix = "caller" + i + "-";
+        calls.add(callers.submit(new Callable<Void>() {
+          @Override
+          public Void call() throws Exception {
+            for (int j = 0; j < callsPerCaller; j++) {
+              insertCall(inserter, ref, prefix + j + "-", rowsPerCall).call();
+            }
+            return null;
+          }
+        }));
+      }
+      for (Future<Void> call : calls) {
+        call.get();
+      }
+    } finally {
+      callers.shutdownNow();
+      verifyInsertAll(requests.size());
+    }
+    long elapsedMs = Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+
+    int totalRows = numCallers * callsPerCaller * rowsPerCall;
+    int insertedRows = 0;
+    for (List<String> request : requests) {
+      insertedRows += request.size();
+    }
+    String stats = String.format("%d rows in %d requests in %d ms (%d rows/s)",
+        totalRows, requests.size(), elapsedMs, totalRows * 1000L / elapsedMs);
+    assertEquals(stats, totalRows, insertedRows);
+    assertThat(stats, maxInFlight.get(), Matchers.lessThanOrEqualTo(16));
+    assertThat(stats, requests.size(), Matchers.lessThan(numCallers * callsPerCaller));
+  }
+
   private static class InMemoryLongSumAggregator implements Aggregator<Long, Long> {
     private final String name;
     private long sum = 0;
@@ -18,6 +18,7 @@
 package org.apache.beam.sdk.util;
 
 import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsInAnyOrder;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
@@ -39,6 +40,7 @@ import com.google.api.client.http.HttpResponse;
 import com.google.api.client.http.HttpStatusCodes;
 import com.google.api.client.http.HttpTransport;
 import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
 import com.google.api.client.json.GenericJson;
 import com.google.api.client.json.Json;
 import com.google.api.client.json.JsonFactory;
@@ -459,6 +461,98 @@ public class GcsUtilTest {
     channel.close();
   }
 
+  @Test
+  public void testCopySplitsBatchesAndIgnoresNotFound() throws IOException {
+    BatchResponseTransport transport =
+        new BatchResponseTransport(HttpStatusCodes.STATUS_CODE_NOT_FOUND);
+    GcsUtil gcsUtil = gcsOptionsWithTestCredential().getGcsUtil();
+    gcsUtil.setStorageClient(new Storage(transport, Transport.getJsonFactory(), null));
+
+    List<String> srcFilenames = new ArrayList<>();
+    List<String> destFilenames = new ArrayList<>();
+    for (int i = 0; i < 2500; i++) {
+      srcFilenames.add("gs://bucket/src-" + i);
+      destFilenames.add("gs://bucket/dest-" + i);
+    }
+    gcsUtil.copy(srcFilenames, destFilenames);
+
+    assertEquals(3, transport.batchSizes.size());
+    assertThat(transport.batchSizes, containsInAnyOrder(1000, 1000, 500));
+  }
+
+  @Test
+  public void testRemoveSingleBatch() throws IOException {
+    BatchResponseTransport transport = new BatchResponseTransport(HttpStatusCodes.STATUS_CODE_OK);
+    GcsUtil gcsUtil = gcsOptionsWithTestCredential().getGcsUtil();
+    gcsUtil.setStorageClient(new Storage(transport, Transport.getJsonFactory(), null));
+
+    gcsUtil.remove(Arrays.asList("gs://bucket/a", "gs://bucket/b", "gs://bucket/c"));
+
+    assertThat(transport.batchSizes, contains(3));
+  }
+
+  @Test
+  public void testRemoveFailsOnServerError() throws IOException {
+    BatchResponseTransport transport =
+        new BatchResponseTransport(HttpStatusCodes.STATUS_CODE_SERVER_ERROR);
+    GcsUtil gcsUtil = gcsOptionsWithTestCredential().getGcsUtil();
+    gcsUtil.setStorageClient(new Storage(transport, Transport.getJsonFactory(), null));
+
+    List<String> filenames = new ArrayList<>();
+    for (int i = 0; i < 1500; i++) {
+      filenames.add("gs://bucket/file-" + i);
+    }
+
+    thrown.expect(IOException.class);
+    gcsUtil.remove(filenames);
+  }
+
+  /**
+   * A transport which answers every request of each batch request it receives with the same
+   * status code, and records the number of requests in each batch.
+   */
+  private static class BatchResponseTransport extends MockHttpTransport {
+    private static final String BOUNDARY = "batch_response";
+
+    private final int statusCode;
+    private final List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<Integer>());
+
+    private BatchResponseTransport(int statusCode) {
+      this.statusCode = statusCode;
+    }
+
+    @Override
+    public LowLevelHttpRequest buildRequest(String method, String url) {
+      return new MockLowLevelHttpRequest(url) {
+        @Override
+        public LowLevelHttpResponse execute() throws IOException {
+          int batchSize = getContentAsString().split("content-id: ", -1).length - 1;
+          batchSizes.add(batchSize);
+          String body = statusCode == HttpStatusCodes.STATUS_CODE_OK
+              ? "{}"
+              : String.format("{\"error\": {\"code\": %d, \"message\": \"Error\"}}", statusCode);
+          StringBuilder content = new StringBuilder();
+          for (int i = 0; i < batchSize; i++) {
+            content
+                .append("--").append(BOUNDARY).append("\r\n")
+                .append("Content-Type: application/http\r\n")
+                .append("Content-ID: <response-").append(i + 1).append(">\r\n")
+                .append("\r\n")
+                .append("HTTP/1.1 ").append(statusCode).append(" Status\r\n")
+                .append("Content-Type: application/json; charset=UTF-8\r\n")
+                .append("Content-Length: ").append(body.length()).append("\r\n")
+                .append("\r\n")
+                .append(body).append("\r\n");
+          }
+          content.append("--").append(BOUNDARY).append("--\r\n");
+          return new MockLowLevelHttpResponse()
+              .setContentType("multipart/mixed; boundary=" + BOUNDARY)
+              .setContent(content.toString());
+        }
+      };
+    }
+  }
+
   /**
    * Builds a fake GoogleJsonResponseException for testing API error handling.
    */
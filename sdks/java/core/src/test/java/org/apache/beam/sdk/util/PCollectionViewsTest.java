@@ -0,0 +1,140 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.beam.sdk.util;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.beam.sdk.coders.KvCoder;
+import org.apache.beam.sdk.coders.NullableCoder;
+import org.apache.beam.sdk.coders.StringUtf8Coder;
+import org.apache.beam.sdk.coders.VarIntCoder;
+import org.apache.beam.sdk.testing.TestPipeline;
+import org.apache.beam.sdk.values.KV;
+import org.apache.beam.sdk.values.PCollectionView;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tests for {@link PCollectionViews}.
+ */
+@RunWith(JUnit4.class)
+public class PCollectionViewsTest {
+  @Rule public ExpectedException thrown = ExpectedException.none();
+
+  private static List<WindowedValue<?>> elements(KV<?, ?>... kvs) {
+    List<WindowedValue<?>> elements = new ArrayList<>();
+    for (KV<?, ?> kv : kvs) {
+      elements.add(WindowedValue.valueInGlobalWindow(kv));
+    }
+    return elements;
+  }
+
+  private static PCollectionView<Map<String, Integer>> mapView() {
+    return PCollectionViews.mapView(
+        TestPipeline.create(),
+        WindowingStrategy.globalDefault(),
+        KvCoder.of(StringUtf8Coder.of(), NullableCoder.of(VarIntCoder.of())));
+  }
+
+  private static PCollectionView<Map<String, Iterable<Integer>>> multimapView() {
+    return PCollectionViews.multimapView(
+        TestPipeline.create(),
+        WindowingStrategy.globalDefault(),
+        KvCoder.of(StringUtf8Coder.of(), VarIntCoder.of()));
+  }
+
+  @Test
+  public void testMapView() {
+    Map<String, Integer> map = mapView().fromIterableInternal(
+        elements(KV.of("b", 2), KV.of("a", 1), KV.of("c", (Integer) null)));
+
+    assertEquals(3, map.size());
+    assertEquals(1, (int) map.get("a"));
+    assertEquals(2, (int) map.get("b"));
+    assertNull(map.get("c"));
+    assertTrue(map.containsKey("c"));
+    assertFalse(map.containsKey("d"));
+    assertNull(map.get("d"));
+    assertNull(map.get(null));
+    assertThat(map.keySet(), containsInAnyOrder("a", "b", "c"));
+  }
+
+  @Test
+  public void testMapViewRejectsDuplicateKeys() {
+    thrown.expect(IllegalArgumentException.class);
+    thrown.expectMessage("Duplicate values for a");
+    mapView().fromIterableInternal(elements(KV.of("a", 1), KV.of("b", 2), KV.of("a", 1)));
+  }
+
+  @Test
+  public void testMultimapView() {
+    Map<String, Iterable<Integer>> multimap = multimapView().fromIterableInternal(
+        elements(KV.of("a", 2), KV.of("b", 3), KV.of("a", 1), KV.of("a", 2)));
+
+    assertEquals(2, multimap.size());
+    assertThat(multimap.get("a"), containsInAnyOrder(1, 2));
+    assertThat(multimap.get("b"), contains(3));
+    assertNull(multimap.get("c"));
+    assertThat(multimap.keySet(), containsInAnyOrder("a", "b"));
+  }
+
+  @Test
+  public void testMultimapViewValuesAreUnmodifiable() {
+    Map<String, Iterable<Integer>> multimap =
+        multimapView().fromIterableInternal(elements(KV.of("a", 1)));
+
+    thrown.expect(UnsupportedOperationException.class);
+    ((Collection<Integer>) multimap.get("a")).add(2);
+  }
+
+  @Test
+  public void testViewIsReusedForSameContents() {
+    PCollectionView<Map<String, Integer>> view = mapView();
+    List<WindowedValue<?>> contents = elements(KV.of("a", 1));
+
+    Map<String, Integer> map = view.fromIterableInternal(contents);
+    assertThat(view.fromIterableInternal(contents), sameInstance(map));
+
+    Map<String, Integer> other = view.fromIterableInternal(elements(KV.of("a", 2)));
+    assertEquals(2, (int) other.get("a"));
+  }
+
+  @Test
+  public void testMapViewReturnsProvidedValues() {
+    Integer value = 1000;
+    Map<String, Integer> map = mapView().fromIterableInternal(elements(KV.of("a", value)));
+
+    assertThat(map.get("a"), sameInstance(value));
+  }
+}
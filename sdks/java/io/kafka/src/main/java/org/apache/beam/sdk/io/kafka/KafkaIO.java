@@ -38,7 +38,7 @@ import org.apache.beam.sdk.transforms.PTransform;
 import org.apache.beam.sdk.transforms.ParDo;
 import org.apache.beam.sdk.transforms.SerializableFunction;
 import org.apache.beam.sdk.util.CoderUtils;
-import org.apache.beam.sdk.util.ExposedByteArrayInputStream;
+import org.apache.beam.sdk.util.SerializableUtils;
 import org.apache.beam.sdk.values.KV;
 import org.apache.beam.sdk.values.PBegin;
 import org.apache.beam.sdk.values.PCollection;
@@ -55,6 +55,7 @@ import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Iterators;
 import com.google.common.collect.Lists;
 import com.google.common.io.Closeables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 import org.apache.kafka.clients.consumer.Consumer;
 import org.apache.kafka.clients.consumer.ConsumerConfig;
@@ -78,7 +79,10 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
@@ -88,9 +92,11 @@ import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Random;
+import java.util.TreeMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -146,6 +152,9 @@ import javax.annotation.Nullable;
  *     ...
  * }</pre>
  *
+ * <p>If the keys are not needed either, use {@code values()} instead of {@code withoutMetadata()}
+ * to read a {@code PCollection<V>}. The keys of the records are then not decoded at all.
+ *
  * <h3>Partition Assignment and Checkpointing</h3>
  * The Kafka partitions are evenly distributed among splits (workers).
  * Dataflow checkpointing is fully supported and
@@ -446,6 +455,21 @@ public class KafkaIO {
       return new TypedWithoutMetadata<K, V>(this);
     }
 
+    /**
+     * Returns a {@link PTransform} for PCollection of values, dropping Kafka metadata and keys.
+     * The keys are not decoded at all, so timestamp and watermark functions see a {@code null}
+     * key in every record.
+     */
+    @SuppressWarnings("unchecked")
+    public PTransform<PBegin, PCollection<V>> values() {
+      // The keys are always null, which VoidCoder encodes. The reader does not decode the keys
+      // with VoidCoder.
+      Coder<K> nullKeyCoder = (Coder<K>) (Coder<?>) VoidCoder.of();
+      return new TypedValues<K, V>(new TypedRead<K, V>(topics, topicPartitions, nullKeyCoder,
+          valueCoder, timestampFn, watermarkFn, consumerFactoryFn, consumerConfig,
+          maxNumRecords, maxReadTime));
+    }
+
     @Override
     public PCollection<KafkaRecord<K, V>> apply(PBegin input) {
      // Handles unbounded source to bounded conversion if maxNumRecords or maxReadTime is set.
@@ -559,6 +583,35 @@ public class KafkaIO {
     }
   }
 
+  /**
+   * A {@link PTransform} to read from Kafka topics. Similar to {@link KafkaIO.TypedRead}, but
+   * removes Kafka metatdata and keys and returns a {@link PCollection} of values.
+   * See {@link TypedRead#values()}.
+   */
+  private static class TypedValues<K, V> extends PTransform<PBegin, PCollection<V>> {
+
+    private final TypedRead<K, V> typedRead;
+
+    TypedValues(TypedRead<K, V> read) {
+      super("KafkaIO.Read");
+      this.typedRead = read;
+    }
+
+    @Override
+    public PCollection<V> apply(PBegin begin) {
+      return typedRead
+          .apply(begin)
+          .apply("Remove Kafka Metadata and Keys",
+              ParDo.of(new DoFn<KafkaRecord<K, V>, V>() {
+                @Override
+                public void processElement(ProcessContext ctx) {
+                  ctx.output(ctx.element().getKV().getValue());
+                }
+              }))
+          .setCoder(typedRead.valueCoder);
+    }
+  }
+
   ////////////////////////////////////////////////////////////////////////////////////////////////
 
   private static final Logger LOG = LoggerFactory.getLogger(KafkaIO.class);
@@ -757,6 +810,8 @@ public class KafkaIO {
     private KafkaRecord<K, V> curRecord;
     private Instant curTimestamp;
     private Iterator<PartitionState> curBatch = Collections.emptyIterator();
+    // all the keys in a batch are decoded through this stream
+    private final ReusableByteArrayInputStream keyStream = new ReusableByteArrayInputStream();
 
     private static final Duration KAFKA_POLL_TIMEOUT = Duration.millis(1000);
     // how long to wait for new records from kafka consumer inside start()
@@ -793,11 +848,14 @@ public class KafkaIO {
     }
 
     // maintains state of each assigned partition (buffered records, consumed offset, etc)
-    private static class PartitionState {
+    private class PartitionState {
       private final TopicPartition topicPartition;
       private long consumedOffset;
       private long latestOffset;
-      private Iterator<ConsumerRecord<byte[], byte[]>> recordIter = Collections.emptyIterator();
+      // records of the current batch, decoded together in nextBatch(), and their sizes in bytes
+      private List<KafkaRecord<K, V>> records = Collections.emptyList();
+      private int[] recordSizes = new int[0];
+      private int nextRecord = 0;
 
       // simple moving average for size of each record in bytes
       private double avgRecordSize = 0;
@@ -893,7 +951,7 @@ public class KafkaIO {
       LOG.info("{}: Returning from consumer pool loop", this);
     }
 
-    private void nextBatch(Duration timeout) {
+    private void nextBatch(Duration timeout) throws IOException {
       curBatch = Collections.emptyIterator();
 
       ConsumerRecords<byte[], byte[]> records;
@@ -913,8 +971,8 @@ public class KafkaIO {
       List<PartitionState> nonEmpty = new LinkedList<>();
 
       for (PartitionState p : partitionStates) {
-        p.recordIter = records.records(p.topicPartition).iterator();
-        if (p.recordIter.hasNext()) {
+        decodeBatch(p, records.records(p.topicPartition));
+        if (p.nextRecord < p.records.size()) {
           nonEmpty.add(p);
         }
       }
@@ -923,6 +981,38 @@ public class KafkaIO {
       curBatch = Iterators.cycle(nonEmpty);
     }
 
+    /**
+     * Decodes the records of a partition in a batch in one pass, through {@link #keyStream}.
+     * The keys are decoded right away, unless the key coder is {@link VoidCoder}, and the values
+     * are decoded when first accessed.
+     */
+    private void decodeBatch(PartitionState p, List<ConsumerRecord<byte[], byte[]>> rawRecords)
+        throws IOException {
+      List<KafkaRecord<K, V>> decoded = new ArrayList<>(rawRecords.size());
+      int[] sizes = new int[rawRecords.size()];
+
+      // apply user coders. might want to allow skipping records that fail to decode.
+      // TODO: wrap exceptions from coders to make explicit to users
+      for (ConsumerRecord<byte[], byte[]> rawRecord : rawRecords) {
+        K key = source.keyCoder.getClass() == VoidCoder.class
+            ? null
+            : decode(rawRecord.key(), source.keyCoder, keyStream);
+        sizes[decoded.size()] = (rawRecord.key() == null ? 0 : rawRecord.key().length)
+            + (rawRecord.value() == null ? 0 : rawRecord.value().length);
+        decoded.add(new LazyValueKafkaRecord<K, V>(
+            rawRecord.topic(),
+            rawRecord.partition(),
+            rawRecord.offset(),
+            key,
+            rawRecord.value(),
+            source.valueCoder));
+      }
+
+      p.records = decoded;
+      p.recordSizes = sizes;
+      p.nextRecord = 0;
+    }
+
     @Override
     public boolean start() throws IOException {
       consumer = source.consumerFactoryFn.apply(source.consumerConfig);
@@ -985,15 +1075,17 @@ public class KafkaIO {
         if (curBatch.hasNext()) {
           PartitionState pState = curBatch.next();
 
-          if (!pState.recordIter.hasNext()) { // -- (c)
-            pState.recordIter = Collections.emptyIterator(); // drop ref
+          if (pState.nextRecord >= pState.records.size()) { // -- (c)
+            pState.records = Collections.emptyList(); // drop refs
+            pState.recordSizes = new int[0];
             curBatch.remove();
             continue;
           }
 
-          ConsumerRecord<byte[], byte[]> rawRecord = pState.recordIter.next();
+          int index = pState.nextRecord++;
+          KafkaRecord<K, V> record = pState.records.get(index);
           long consumed = pState.consumedOffset;
-          long offset = rawRecord.offset();
+          long offset = record.getOffset();
 
           if (consumed >= 0 && offset <= consumed) { // -- (a)
             // this can happen when compression is enabled in Kafka (seems to be fixed in 0.10)
@@ -1013,23 +1105,12 @@ public class KafkaIO {
             LOG.info("{}: first record offset {}", name, offset);
           }
 
-          curRecord = null; // user coders below might throw.
-
-          // apply user coders. might want to allow skipping records that fail to decode.
-          // TODO: wrap exceptions from coders to make explicit to users
-          KafkaRecord<K, V> record = new KafkaRecord<K, V>(
-              rawRecord.topic(),
-              rawRecord.partition(),
-              rawRecord.offset(),
-              decode(rawRecord.key(), source.keyCoder),
-              decode(rawRecord.value(), source.valueCoder));
+          curRecord = null; // timestampFn below might throw (e.g. decoding the value).
 
           curTimestamp = source.timestampFn.apply(record);
           curRecord = record;
 
-          int recordSize = (rawRecord.key() == null ? 0 : rawRecord.key().length)
-              + (rawRecord.value() == null ? 0 : rawRecord.value().length);
-          pState.recordConsumed(offset, recordSize);
+          pState.recordConsumed(offset, pState.recordSizes[index]);
           return true;
 
         } else { // -- (b)
@@ -1043,13 +1124,22 @@ public class KafkaIO {
     }
 
     private static byte[] nullBytes = new byte[0];
-    private static <T> T decode(byte[] bytes, Coder<T> coder) throws IOException {
+
+    @SuppressWarnings("unchecked")
+    private static <T> T decode(byte[] bytes, Coder<T> coder, ReusableByteArrayInputStream stream)
+        throws IOException {
       // If 'bytes' is null, use byte[0]. It is common for key in Kakfa record to be null.
       // This makes it impossible for user to distinguish between zero length byte and null.
       // Alternately, we could have a ByteArrayCoder that handles nulls, and use that for default
       // coder.
       byte[] toDecode = bytes == null ? nullBytes : bytes;
-      return coder.decode(new ExposedByteArrayInputStream(toDecode), Coder.Context.OUTER);
+      if (coder.getClass() == ByteArrayCoder.class) {
+        // ByteArrayCoder would return the same array, without copying it, from an
+        // ExposedByteArrayInputStream in the outer context.
+        return (T) toDecode;
+      }
+      stream.setBytes(toDecode);
+      return coder.decode(stream, Coder.Context.OUTER);
     }
 
     // update latest offset for each partition.
@@ -1160,6 +1250,96 @@ public class KafkaIO {
     }
   }
 
+  /**
+   * A {@link KafkaRecord} that decodes its value when {@link #getKV()} is first called, so that
+   * the reader does not decode values that are never used.
+   */
+  private static class LazyValueKafkaRecord<K, V> extends KafkaRecord<K, V> {
+    private final K key;
+    private final byte[] valueBytes;
+    private final Coder<V> valueCoder;
+    private transient volatile KV<K, V> kv; // decoded on first access
+
+    LazyValueKafkaRecord(
+        String topic,
+        int partition,
+        long offset,
+        K key,
+        byte[] valueBytes,
+        Coder<V> valueCoder) {
+      super(topic, partition, offset, null);
+      this.key = key;
+      this.valueBytes = valueBytes;
+      this.valueCoder = valueCoder;
+    }
+
+    @Override
+    public KV<K, V> getKV() {
+      // The record may be accessed from other threads than the reader's, so it decodes with its
+      // own stream. Decoding twice in a race is harmless.
+      if (kv == null) {
+        try {
+          kv = KV.of(key, UnboundedKafkaReader.decode(
+              valueBytes, valueCoder, new ReusableByteArrayInputStream()));
+        } catch (IOException e) {
+          throw new RuntimeException(String.format(
+              "Failed to decode the value at offset %d of %s-%d",
+              getOffset(), getTopic(), getPartition()), e);
+        }
+      }
+      return kv;
+    }
+  }
+
+  /**
+   * An {@link InputStream} over a byte array, which can be pointed at another array. The reader
+   * decodes all the keys of a batch through one stream.
+   */
+  private static class ReusableByteArrayInputStream extends InputStream {
+    private byte[] bytes = new byte[0];
+    private int pos = 0;
+
+    void setBytes(byte[] bytes) {
+      this.bytes = bytes;
+      this.pos = 0;
+    }
+
+    @Override
+    public int read() {
+      return pos < bytes.length ? (bytes[pos++] & 0xff) : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+      checkNotNull(b);
+      if (off < 0 || len < 0 || len > b.length - off) {
+        throw new IndexOutOfBoundsException();
+      }
+      if (len == 0) {
+        return 0;
+      }
+      if (pos >= bytes.length) {
+        return -1;
+      }
+      int n = Math.min(len, bytes.length - pos);
+      System.arraycopy(bytes, pos, b, off, n);
+      pos += n;
+      return n;
+    }
+
+    @Override
+    public long skip(long n) {
+      long skipped = Math.max(0, Math.min(n, bytes.length - pos));
+      pos += (int) skipped;
+      return skipped;
+    }
+
+    @Override
+    public int available() {
+      return bytes.length - pos;
+    }
+  }
+
   //////////////////////// Sink Support \\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\\
 
   /**
@@ -1330,41 +1510,53 @@ public class KafkaIO {
 
     @Override
     public void startBundle(Context c) throws Exception {
-      // Producer initialization is fairly costly. Move this to future initialization api to avoid
-      // creating a producer for each bundle.
+      // Producer initialization is fairly costly, so producers are shared by the writers in the
+      // JVM with the same configuration, and kept open across bundles.
       if (producer == null) {
-        if (producerFactoryFnOpt.isPresent()) {
-           producer = producerFactoryFnOpt.get().apply(producerConfig);
-        } else {
-          producer = new KafkaProducer<K, V>(producerConfig);
-        }
+        producer = ProducerCache.acquire(producerKey);
       }
     }
 
     @Override
     public void processElement(ProcessContext ctx) throws Exception {
-      checkForFailures();
-
-      KV<K, V> kv = ctx.element();
-      producer.send(
-          new ProducerRecord<K, V>(topic, kv.getKey(), kv.getValue()),
-          new SendCallback());
+      try {
+        checkForFailures();
+
+        KV<K, V> kv = ctx.element();
+        producer.send(
+            new ProducerRecord<K, V>(topic, kv.getKey(), kv.getValue()),
+            new SendCallback());
+      } catch (Exception e) {
+        // The bundle fails, and finishBundle() will not be called. There is no teardown for a
+        // DoFn, so release the producer here to not keep it open forever.
+        releaseProducer();
+        throw e;
+      }
     }
 
     @Override
     public void finishBundle(Context c) throws Exception {
-      producer.flush();
-      producer.close();
-      producer = null;
+      // Wait for the records of the bundle to be sent. The producer is released rather than
+      // closed, so that the next bundle does not have to create a producer again.
+      try {
+        producer.flush();
+      } finally {
+        releaseProducer();
+      }
       checkForFailures();
     }
 
+    private void releaseProducer() {
+      if (producer != null) {
+        producer = null;
+        ProducerCache.release(producerKey);
+      }
+    }
+
     ///////////////////////////////////////////////////////////////////////////////////
 
     private final String topic;
-    private final Map<String, Object> producerConfig;
-    private final Optional<SerializableFunction<Map<String, Object>, Producer<K, V>>>
-                  producerFactoryFnOpt;
+    private final ProducerKey producerKey;
 
     private transient Producer<K, V> producer = null;
     //private transient Callback sendCallback = new SendCallback();
@@ -1379,7 +1571,6 @@ public class KafkaIO {
         Optional<SerializableFunction<Map<String, Object>, Producer<K, V>>> producerFactoryFnOpt) {
 
       this.topic = topic;
-      this.producerFactoryFnOpt = producerFactoryFnOpt;
 
       // Set custom kafka serializers. We can not serialize user objects then pass the bytes to
       // producer. The key and value objects are used in kafka Partitioner interface.
@@ -1387,9 +1578,10 @@ public class KafkaIO {
       // key bytes to pick a partition. But are making sure user's custom partitioner would work
       // as expected.
 
-      this.producerConfig = new HashMap<>(producerConfig);
-      this.producerConfig.put(configForKeySerializer(), keyCoder);
-      this.producerConfig.put(configForValueSerializer(), valueCoder);
+      Map<String, Object> config = new HashMap<>(producerConfig);
+      config.put(configForKeySerializer(), keyCoder);
+      config.put(configForValueSerializer(), valueCoder);
+      this.producerKey = new ProducerKey(config, producerFactoryFnOpt);
     }
 
     private synchronized void checkForFailures() throws IOException {
@@ -1427,6 +1619,144 @@ public class KafkaIO {
     }
   }
 
+  /**
+   * Identifies the producers that can be shared: the producers created from the same configuration
+   * by the same producer factory function, or by the {@link KafkaProducer} constructor if there is
+   * none.
+   *
+   * <p>Keys are compared by the serialized form of the configuration and the factory function,
+   * which is computed once when the writer is constructed. The configuration holds the key and
+   * value coders, and coders that are equal according to {@link Coder#equals} may still encode
+   * differently (for example {@code AvroCoders} with different schemas), so they can't be compared
+   * with {@code equals}. The serialized form is also shared by all the deserialized copies of a
+   * writer.
+   */
+  private static class ProducerKey implements Serializable {
+    private final Map<String, Object> producerConfig;
+    private final Optional<? extends SerializableFunction<Map<String, Object>, ?>>
+        producerFactoryFnOpt;
+    private final byte[] serializedForm;
+
+    ProducerKey(
+        Map<String, Object> producerConfig,
+        Optional<? extends SerializableFunction<Map<String, Object>, ?>> producerFactoryFnOpt) {
+      this.producerConfig = producerConfig;
+      this.producerFactoryFnOpt = producerFactoryFnOpt;
+      // Sort the configuration so that equal configurations serialize the same way.
+      this.serializedForm = SerializableUtils.serializeToByteArray(new Object[] {
+          new TreeMap<>(producerConfig), producerFactoryFnOpt.orNull()});
+    }
+
+    @SuppressWarnings("unchecked")
+    <K, V> Producer<K, V> createProducer() {
+      if (producerFactoryFnOpt.isPresent()) {
+        return (Producer<K, V>) producerFactoryFnOpt.get().apply(producerConfig);
+      } else {
+        return new KafkaProducer<K, V>(producerConfig);
+      }
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof ProducerKey)) {
+        return false;
+      }
+      ProducerKey that = (ProducerKey) other;
+      return Arrays.equals(serializedForm, that.serializedForm);
+    }
+
+    @Override
+    public int hashCode() {
+      return Arrays.hashCode(serializedForm);
+    }
+  }
+
+  /**
+   * Kafka producers shared by the {@link KafkaWriter KafkaWriters} in a JVM. A Kafka producer is
+   * thread-safe, and sharing one producer between writers also lets it batch their records
+   * together.
+   *
+   * <p>Producers are reference counted. A producer that is not used by any writer is closed after
+   * {@link #IDLE_PRODUCER_CLOSE_DELAY}, unless it is acquired again in the meantime.
+   */
+  static class ProducerCache {
+    private static final Duration IDLE_PRODUCER_CLOSE_DELAY = Duration.standardMinutes(1);
+
+    private static final Map<ProducerKey, CachedProducer> PRODUCERS = new HashMap<>();
+
+    private static final ScheduledExecutorService CLOSE_EXECUTOR =
+        Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat("KafkaIO-producer-closer-%d")
+                .build());
+
+    private static class CachedProducer {
+      private final Producer<?, ?> producer;
+      private int references;
+      @Nullable private ScheduledFuture<?> pendingClose;
+
+      CachedProducer(Producer<?, ?> producer) {
+        this.producer = producer;
+      }
+    }
+
+    /**
+     * Returns a producer for the key, creating one if there is none that can be shared.
+     */
+    @SuppressWarnings("unchecked")
+    static synchronized <K, V> Producer<K, V> acquire(ProducerKey key) {
+      CachedProducer cached = PRODUCERS.get(key);
+      if (cached == null) {
+        cached = new CachedProducer(key.createProducer());
+        PRODUCERS.put(key, cached);
+      } else if (cached.pendingClose != null) {
+        cached.pendingClose.cancel(false);
+        cached.pendingClose = null;
+      }
+      cached.references++;
+      return (Producer<K, V>) cached.producer;
+    }
+
+    /**
+     * Releases a producer returned by {@link #acquire}, scheduling it to be closed if it is not
+     * used anymore.
+     */
+    static synchronized void release(final ProducerKey key) {
+      final CachedProducer cached = PRODUCERS.get(key);
+      checkState(cached != null && cached.references > 0, "Producer is not acquired");
+      if (--cached.references > 0) {
+        return;
+      }
+      cached.pendingClose = CLOSE_EXECUTOR.schedule(new Runnable() {
+        @Override
+        public void run() {
+          synchronized (ProducerCache.class) {
+            if (cached.references > 0 || PRODUCERS.get(key) != cached) {
+              return;
+            }
+            PRODUCERS.remove(key);
+          }
+          LOG.debug("Closing idle Kafka producer");
+          cached.producer.close();
+        }
+      }, IDLE_PRODUCER_CLOSE_DELAY.getMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns the number of writers that acquired the producer and did not release it yet.
+     */
+    @VisibleForTesting
+    static synchronized int getReferences(Producer<?, ?> producer) {
+      for (CachedProducer cached : PRODUCERS.values()) {
+        if (cached.producer == producer) {
+          return cached.references;
+        }
+      }
+      return 0;
+    }
+  }
+
   /**
    * Implements Kafka's {@link Serializer} with a {@link Coder}. The coder is stored as serialized
    * value in producer configuration map.
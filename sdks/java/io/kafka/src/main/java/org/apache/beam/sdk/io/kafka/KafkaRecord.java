@@ -72,7 +72,7 @@ public class KafkaRecord<K, V> implements Serializable {
 
   @Override
   public int hashCode() {
-    return Arrays.deepHashCode(new Object[]{topic, partition, offset, kv});
+    return Arrays.deepHashCode(new Object[]{topic, partition, offset, getKV()});
   }
 
   @Override
@@ -83,7 +83,7 @@ public class KafkaRecord<K, V> implements Serializable {
       return topic.equals(other.topic)
           && partition == other.partition
           && offset == other.offset
-          && kv.equals(other.kv);
+          && getKV().equals(other.getKV());
     } else {
       return false;
     }
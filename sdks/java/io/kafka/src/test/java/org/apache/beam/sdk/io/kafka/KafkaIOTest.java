@@ -20,11 +20,16 @@ package org.apache.beam.sdk.io.kafka;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import org.apache.beam.sdk.Pipeline;
 import org.apache.beam.sdk.Pipeline.PipelineExecutionException;
 import org.apache.beam.sdk.coders.BigEndianIntegerCoder;
 import org.apache.beam.sdk.coders.BigEndianLongCoder;
+import org.apache.beam.sdk.coders.Coder;
+import org.apache.beam.sdk.coders.CustomCoder;
+import org.apache.beam.sdk.coders.KvCoder;
+import org.apache.beam.sdk.coders.VoidCoder;
 import org.apache.beam.sdk.io.Read;
 import org.apache.beam.sdk.io.UnboundedSource;
 import org.apache.beam.sdk.io.UnboundedSource.UnboundedReader;
@@ -33,6 +38,7 @@ import org.apache.beam.sdk.testing.PAssert;
 import org.apache.beam.sdk.testing.RunnableOnService;
 import org.apache.beam.sdk.testing.TestPipeline;
 import org.apache.beam.sdk.transforms.Count;
+import org.apache.beam.sdk.transforms.Create;
 import org.apache.beam.sdk.transforms.DoFn;
 import org.apache.beam.sdk.transforms.Flatten;
 import org.apache.beam.sdk.transforms.Max;
@@ -46,6 +52,7 @@ import org.apache.beam.sdk.values.KV;
 import org.apache.beam.sdk.values.PCollection;
 import org.apache.beam.sdk.values.PCollectionList;
 
+import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 
@@ -53,9 +60,11 @@ import org.apache.kafka.clients.consumer.Consumer;
 import org.apache.kafka.clients.consumer.ConsumerRecord;
 import org.apache.kafka.clients.consumer.MockConsumer;
 import org.apache.kafka.clients.consumer.OffsetResetStrategy;
+import org.apache.kafka.clients.producer.Callback;
 import org.apache.kafka.clients.producer.MockProducer;
 import org.apache.kafka.clients.producer.Producer;
 import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.clients.producer.RecordMetadata;
 import org.apache.kafka.common.PartitionInfo;
 import org.apache.kafka.common.TopicPartition;
 import org.joda.time.Instant;
@@ -67,6 +76,8 @@ import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -76,8 +87,10 @@ import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.annotation.Nullable;
 
@@ -414,6 +427,98 @@ public class KafkaIOTest {
     }
   }
 
+  @Test
+  public void testUnboundedSourceWithoutKeys() throws Exception {
+    int numElements = 100;
+    List<String> topics = ImmutableList.of("topic_a", "topic_b");
+
+    // keys are not needed and decoded with VoidCoder.
+    UnboundedSource<KafkaRecord<Void, Long>, KafkaCheckpointMark> source = KafkaIO.read()
+        .withBootstrapServers("none")
+        .withTopics(topics)
+        .withConsumerFactoryFn(new ConsumerFactoryFn(topics, 10, numElements))
+        .withKeyCoder(VoidCoder.of())
+        .withValueCoder(BigEndianLongCoder.of())
+        .makeSource()
+        .generateInitialSplits(1, PipelineOptionsFactory.fromArgs(new String[0]).create())
+        .get(0);
+
+    UnboundedReader<KafkaRecord<Void, Long>> reader = source.createReader(null, null);
+    if (!reader.start()) {
+      advanceOnce(reader);
+    }
+
+    List<Long> values = new ArrayList<>();
+    for (int i = 0; i < numElements; i++) {
+      KV<Void, Long> kv = reader.getCurrent().getKV();
+      assertNull(kv.getKey());
+      values.add(kv.getValue());
+      if ((i + 1) < numElements) {
+        advanceOnce(reader);
+      }
+    }
+    reader.close();
+
+    Collections.sort(values);
+    for (int i = 0; i < numElements; i++) {
+      assertEquals(i, (long) values.get(i));
+    }
+  }
+
+  @Test
+  @Category(RunnableOnService.class)
+  public void testUnboundedSourceValues() {
+    Pipeline p = TestPipeline.create();
+    int numElements = 1000;
+
+    PCollection<Long> input = p
+        .apply(mkKafkaReadTransform(numElements, new ValueAsTimestampFn())
+            .values());
+
+    addCountingAsserts(input, numElements);
+    p.run();
+  }
+
+  @Test
+  public void testUnboundedSourceDecodesValuesLazily() throws Exception {
+    int numElements = 100;
+    List<String> topics = ImmutableList.of("topic_a", "topic_b");
+
+    // the values can't be decoded, but the reader does not decode them.
+    UnboundedSource<KafkaRecord<Integer, Long>, KafkaCheckpointMark> source = KafkaIO.read()
+        .withBootstrapServers("none")
+        .withTopics(topics)
+        .withConsumerFactoryFn(new ConsumerFactoryFn(topics, 10, numElements))
+        .withKeyCoder(BigEndianIntegerCoder.of())
+        .withValueCoder(new FailingLongCoder())
+        .makeSource()
+        .generateInitialSplits(1, PipelineOptionsFactory.fromArgs(new String[0]).create())
+        .get(0);
+
+    UnboundedReader<KafkaRecord<Integer, Long>> reader = source.createReader(null, null);
+    if (!reader.start()) {
+      advanceOnce(reader);
+    }
+
+    List<KafkaRecord<Integer, Long>> records = new ArrayList<>();
+    for (int i = 0; i < numElements; i++) {
+      records.add(reader.getCurrent());
+      if ((i + 1) < numElements) {
+        advanceOnce(reader);
+      }
+    }
+    reader.close();
+
+    for (KafkaRecord<Integer, Long> record : records) {
+      try {
+        record.getKV();
+        fail("Value should have been decoded when accessed");
+      } catch (RuntimeException e) {
+        assertTrue(Throwables.getRootCause(e) instanceof InjectedErrorException);
+      }
+    }
+  }
+
   @Test
   public void testSink() throws Exception {
     // Simply read from kafka source and write to kafka sink. Then verify the records
@@ -483,6 +588,87 @@ public class KafkaIOTest {
     }
   }
 
+  @Test
+  public void testSinkSharesProducerAcrossBundles() throws Exception {
+    // Same as testSink(), but verifies that all the bundles share a single producer.
+
+    int numElements = 1000;
+
+    synchronized (MOCK_PRODUCER_LOCK) {
+
+      MOCK_PRODUCER.clear();
+      CountingProducerFactoryFn.NUM_PRODUCERS_CREATED.set(0);
+
+      ProducerSendCompletionThread completionThread = new ProducerSendCompletionThread().start();
+
+      Pipeline pipeline = TestPipeline.create();
+      String topic = "test";
+
+      pipeline
+        .apply(mkKafkaReadTransform(numElements, new ValueAsTimestampFn())
+            .withoutMetadata())
+        .apply(KafkaIO.write()
+            .withBootstrapServers("none")
+            .withTopic(topic)
+            .withKeyCoder(BigEndianIntegerCoder.of())
+            .withValueCoder(BigEndianLongCoder.of())
+            .withProducerFactoryFn(new CountingProducerFactoryFn()));
+
+      pipeline.run();
+
+      completionThread.shutdown();
+
+      verifyProducerRecords(topic, numElements, false);
+      assertEquals(1, CountingProducerFactoryFn.NUM_PRODUCERS_CREATED.get());
+    }
+  }
+
+  @Test
+  public void testSinkDoesNotShareProducerAcrossDifferentCoders() throws Exception {
+    // The two coders are equal according to Coder#equals(), but they are configured differently,
+    // so the writers must not share a producer.
+
+    int numElements = 100;
+
+    synchronized (MOCK_PRODUCER_LOCK) {
+
+      MOCK_PRODUCER.clear();
+      CountingProducerFactoryFn.NUM_PRODUCERS_CREATED.set(0);
+
+      ProducerSendCompletionThread completionThread = new ProducerSendCompletionThread().start();
+
+      Pipeline pipeline = TestPipeline.create();
+      String topic = "test";
+
+      PCollection<KV<Integer, Long>> input = pipeline
+          .apply(mkKafkaReadTransform(numElements, new ValueAsTimestampFn())
+              .withoutMetadata());
+
+      TaggedLongCoder firstCoder = new TaggedLongCoder("first");
+      TaggedLongCoder secondCoder = new TaggedLongCoder("second");
+      assertEquals(firstCoder, secondCoder);
+
+      input.apply("WriteFirst", KafkaIO.write()
+          .withBootstrapServers("none")
+          .withTopic(topic)
+          .withKeyCoder(BigEndianIntegerCoder.of())
+          .withValueCoder(firstCoder)
+          .withProducerFactoryFn(new CountingProducerFactoryFn()));
+      input.apply("WriteSecond", KafkaIO.write()
+          .withBootstrapServers("none")
+          .withTopic(topic)
+          .withKeyCoder(BigEndianIntegerCoder.of())
+          .withValueCoder(secondCoder)
+          .withProducerFactoryFn(new CountingProducerFactoryFn()));
+
+      pipeline.run();
+
+      completionThread.shutdown();
+
+      assertEquals(2, CountingProducerFactoryFn.NUM_PRODUCERS_CREATED.get());
+    }
+  }
+
   @Test
   public void testSinkWithSendErrors() throws Throwable {
     // similar to testSink(), except that up to 10 of the send calls to producer will fail
@@ -528,6 +714,31 @@ public class KafkaIOTest {
     }
   }
 
+  @Test
+  public void testSinkReleasesProducerWhenBundleFails() throws Exception {
+    Pipeline pipeline = TestPipeline.create();
+
+    pipeline
+      .apply(Create.of(KV.of(1, 1L))
+          .withCoder(KvCoder.of(BigEndianIntegerCoder.of(), BigEndianLongCoder.of())))
+      .apply(KafkaIO.write()
+          .withBootstrapServers("none")
+          .withTopic("test")
+          .withKeyCoder(BigEndianIntegerCoder.of())
+          .withValueCoder(BigEndianLongCoder.of())
+          .withProducerFactoryFn(new FailingProducerFactoryFn()));
+
+    try {
+      pipeline.run();
+      fail("Pipeline should have failed to send the record");
+    } catch (PipelineExecutionException e) {
+      assertTrue(Throwables.getRootCause(e) instanceof InjectedErrorException);
+    }
+
+    // finishBundle() was not called, the writer must still have released the producer.
+    assertEquals(0, KafkaIO.ProducerCache.getReferences(FAILING_PRODUCER));
+  }
+
   private static void verifyProducerRecords(String topic, int numElements, boolean keyIsAbsent) {
 
     // verify that appropriate messages are written to kafka
@@ -592,6 +803,79 @@ public class KafkaIOTest {
     }
   }
 
+  /**
+   * A producer that fails to send any record.
+   */
+  private static final MockProducer<Integer, Long> FAILING_PRODUCER =
+    new MockProducer<Integer, Long>(
+      false,
+      new KafkaIO.CoderBasedKafkaSerializer<Integer>(),
+      new KafkaIO.CoderBasedKafkaSerializer<Long>()) {
+
+      @Override
+      public synchronized Future<RecordMetadata> send(
+          ProducerRecord<Integer, Long> record, Callback callback) {
+        throw new InjectedErrorException("Injected Error sending " + record);
+      }
+    };
+
+  private static class FailingProducerFactoryFn
+    implements SerializableFunction<Map<String, Object>, Producer<Integer, Long>> {
+
+    @Override
+    public Producer<Integer, Long> apply(Map<String, Object> config) {
+      return FAILING_PRODUCER;
+    }
+  }
+
+  private static class CountingProducerFactoryFn
+    implements SerializableFunction<Map<String, Object>, Producer<Integer, Long>> {
+    private static final AtomicInteger NUM_PRODUCERS_CREATED = new AtomicInteger();
+
+    @Override
+    public Producer<Integer, Long> apply(Map<String, Object> config) {
+      NUM_PRODUCERS_CREATED.incrementAndGet();
+      return MOCK_PRODUCER;
+    }
+  }
+
+  /**
+   * A {@link Long} coder with some configuration that {@link Coder#equals} does not look at, like
+   * the schema of an {@code AvroCoder}.
+   */
+  private static class TaggedLongCoder extends CustomCoder<Long> {
+    private final String tag;
+
+    TaggedLongCoder(String tag) {
+      this.tag = tag;
+    }
+
+    @Override
+    public void encode(Long value, OutputStream outStream, Context context) throws IOException {
+      BigEndianLongCoder.of().encode(value, outStream, context);
+    }
+
+    @Override
+    public Long decode(InputStream inStream, Context context) throws IOException {
+      return BigEndianLongCoder.of().decode(inStream, context);
+    }
+  }
+
+  /**
+   * A {@link Long} coder that fails to decode any value.
+   */
+  private static class FailingLongCoder extends CustomCoder<Long> {
+    @Override
+    public void encode(Long value, OutputStream outStream, Context context) throws IOException {
+      BigEndianLongCoder.of().encode(value, outStream, context);
+    }
+
+    @Override
+    public Long decode(InputStream inStream, Context context) throws IOException {
+      throw new InjectedErrorException("Injected Error decoding a value");
+    }
+  }
+
   private static class InjectedErrorException extends RuntimeException {
     public InjectedErrorException(String message) {
       super(message);